@@ -53,6 +53,23 @@ public class CacheControl {
         return NumberUtils.toInt(directives.get("min-fresh"), -1);
     }
 
+    /**
+     * @return the number of seconds a stale response may be served while it is revalidated in the background,
+     * or -1 if not set.
+     * @see <a href="http://tools.ietf.org/html/rfc5861#section-3">RFC 5861</a>
+     */
+    public int getStaleWhileRevalidate() {
+        return NumberUtils.toInt(directives.get("stale-while-revalidate"), -1);
+    }
+
+    /**
+     * @return the number of seconds a stale response may be served if revalidation fails, or -1 if not set.
+     * @see <a href="http://tools.ietf.org/html/rfc5861#section-4">RFC 5861</a>
+     */
+    public int getStaleIfError() {
+        return NumberUtils.toInt(directives.get("stale-if-error"), -1);
+    }
+
     public boolean isOnlyIfCached() {
         return directives.hasDirective("only-if-cached");
     }
@@ -141,6 +158,16 @@ public class CacheControl {
             return this;
         }
 
+        public Builder staleWhileRevalidate(int seconds) {
+            addDirective("stale-while-revalidate", String.valueOf(seconds));
+            return this;
+        }
+
+        public Builder staleIfError(int seconds) {
+            addDirective("stale-if-error", String.valueOf(seconds));
+            return this;
+        }
+
         public Builder withPublic() {
             addDirective("public");
             return this;
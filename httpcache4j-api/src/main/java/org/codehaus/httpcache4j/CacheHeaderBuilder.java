@@ -26,10 +26,21 @@ public abstract class CacheHeaderBuilder {
         return INSTANCE.get();
     }
 
+    /**
+     * The headers only depend on the local address, so they are created once.
+     */
     private static class LocalHostCacheHeaderBuilder extends CacheHeaderBuilder {
         private static final String X_CACHE_FORMAT = "%s from HTTPCache4j(%s)";
+        private final Header miss;
+        private final Header hit;
 
-        private String getHostAddress() {
+        private LocalHostCacheHeaderBuilder() {
+            String hostAddress = getHostAddress();
+            miss = new Header(HeaderConstants.X_CACHE, String.format(X_CACHE_FORMAT, "MISS", hostAddress));
+            hit = new Header(HeaderConstants.X_CACHE, String.format(X_CACHE_FORMAT, "HIT", hostAddress));
+        }
+
+        private static String getHostAddress() {
             String hostname;
             try {
                 hostname = InetAddress.getLocalHost().getHostAddress();
@@ -41,14 +52,11 @@ public abstract class CacheHeaderBuilder {
         }
 
         public Header createMISSXCacheHeader() {
-            String value = String.format(X_CACHE_FORMAT, "MISS", getHostAddress());
-            return new Header(HeaderConstants.X_CACHE, value);
+            return miss;
         }
 
         public Header createHITXCacheHeader() {
-            String value = String.format(X_CACHE_FORMAT, "HIT", getHostAddress());
-            return new Header(HeaderConstants.X_CACHE, value);
-
+            return hit;
         }
     }
 }
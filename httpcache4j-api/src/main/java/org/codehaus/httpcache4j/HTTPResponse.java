@@ -55,6 +55,7 @@ public class HTTPResponse {
     private boolean cached;
     private URI location;
     private URI contentLocation;
+    private Timeline timeline;
 
     public HTTPResponse(Payload payload, Status status, Headers headers) {
         this(payload, new StatusLine(status), headers);
@@ -101,11 +102,54 @@ public class HTTPResponse {
         }
     }
 
+    /**
+     * Copies the parsed fields of the template, so the headers are not parsed again.
+     */
+    private HTTPResponse(HTTPResponse template, Headers headers, boolean cached) {
+        this.statusLine = template.statusLine;
+        this.payload = template.payload;
+        this.headers = headers;
+        this.date = template.date;
+        this.expires = template.expires;
+        this.lastModified = template.lastModified;
+        this.ETag = template.ETag;
+        this.allowedMethods = template.allowedMethods;
+        this.cacheControl = template.cacheControl;
+        this.cached = cached;
+        this.location = template.location;
+        this.contentLocation = template.contentLocation;
+        this.timeline = template.timeline;
+    }
+
     @Internal
     public HTTPResponse withHeaders(Headers headers) {
         return new HTTPResponse(payload, statusLine, headers);
     }
 
+    /**
+     * Replaces the headers without parsing them again.
+     * The new headers may only differ from the current headers in headers that are not parsed,
+     * like Age, Warning and X-Cache.
+     *
+     * @param headers the new headers.
+     * @param cached whether the new headers mark the response as served from the cache.
+     * @return a new response.
+     */
+    @Internal
+    public HTTPResponse withHeaders(Headers headers, boolean cached) {
+        return new HTTPResponse(this, Preconditions.checkNotNull(headers, "You must supply some Headers"), cached);
+    }
+
+    /**
+     * Attaches the timeline of the request that produced this response.
+     */
+    @Internal
+    public HTTPResponse withTimeline(Timeline timeline) {
+        HTTPResponse response = new HTTPResponse(this, headers, cached);
+        response.timeline = timeline;
+        return response;
+    }
+
     @Internal
     public HTTPResponse withPayload(Payload payload) {
         return new HTTPResponse(payload, statusLine, headers);
@@ -163,6 +207,13 @@ public class HTTPResponse {
         return cached;
     }
 
+    /**
+     * @return where the time was spent producing this response, if timelines are enabled in the cache.
+     */
+    public Optional<Timeline> getTimeline() {
+        return Optional.fromNullable(timeline);
+    }
+
     public Set<HTTPMethod> getAllowedMethods() {
         return allowedMethods != null ? allowedMethods : Collections.<HTTPMethod>emptySet();
     }
@@ -39,8 +39,10 @@ public final class HeaderConstants {
     public static final String ALLOW = "Allow";
     public static final String CACHE_CONTROL = "Cache-Control";
     public static final String CONTENT_TYPE = "Content-Type";
+    public static final String CONTENT_ENCODING = "Content-Encoding";
     public static final String CONTENT_LOCATION = "Content-Location";
     public static final String CONTENT_LENGTH = "Content-Length";
+    public static final String CONTENT_RANGE = "Content-Range";
     public static final String DATE = "Date";
     public static final String ETAG = "ETag";
     public static final String EXPIRES = "Expires";
@@ -48,10 +50,12 @@ public final class HeaderConstants {
     public static final String IF_MATCH = "If-Match";
     public static final String IF_MODIFIED_SINCE = "If-Modified-Since";
     public static final String IF_UNMODIFIED_SINCE = "If-Unmodified-Since";
+    public static final String IF_RANGE = "If-Range";
     public static final String LAST_MODIFIED = "Last-Modified";
     public static final String LOCATION = "Location";
     public static final String PRAGMA = "Pragma";
     public static final String PROXY_AUTHENTICATE = "Proxy-Authenticate";
+    public static final String RANGE = "Range";
     public static final String SET_COOKIE = "Set-Cookie";
     public static final String VARY = "Vary";
     public static final String WARNING = "Warning";
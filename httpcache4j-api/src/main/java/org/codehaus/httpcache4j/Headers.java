@@ -39,18 +39,21 @@ import java.util.*;
  * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
  */
 public final class Headers implements Iterable<Header> {
-    private final HeaderHashMap headers = new HeaderHashMap();
+    private final HeaderHashMap headers;
 
     public Headers() {
+        this.headers = new HeaderHashMap();
     }
 
     public Headers(final Headers headers) {
         this(headers.copyMap());
     }
 
+    /**
+     * Takes ownership of the map, which must be a copy that is not modified after this.
+     */
     private Headers(final HeaderHashMap headers) {
-        Preconditions.checkNotNull(headers, "The header map may not be null");
-        this.headers.putAll(headers);
+        this.headers = Preconditions.checkNotNull(headers, "The header map may not be null");
     }
 
     public List<Header> getHeaders(String headerKey) {
@@ -144,10 +147,19 @@ public final class Headers implements Iterable<Header> {
     
     public Headers set(Iterable<Header> headers) {
         HeaderHashMap map = copyMap();
-        Headers copy = new Headers().add(headers);
-        Set<String> keys = copy.keySet();
-        for (String key : keys) {
-            map.put(key, copy.headers.get(key));
+        Set<String> replaced = new HashSet<String>();
+        for (Header header : headers) {
+            List<String> list;
+            if (replaced.add(header.getName().toLowerCase(Locale.ENGLISH))) {
+                list = new ArrayList<String>(1);
+            }
+            else {
+                list = new ArrayList<String>(map.get(header.getName()));
+            }
+            if (!list.contains(header.getValue())) {
+                list.add(header.getValue());
+            }
+            map.put(header.getName(), list);
         }
         return new Headers(map);
     }
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j;
+
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Where the time of a single request was spent.
+ * Phases are recorded with {@link System#nanoTime()}, and reported relative to when the timeline was created.
+ * A phase may be recorded more than once, e.g. a storage lookup before and after waiting for a request in flight.
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public final class Timeline {
+    public enum Phase {
+        /** Waiting for a request in flight for the same URI. */
+        MUTEX_WAIT,
+        /** Looking up the request in the cache storage, including matching the Vary headers. */
+        STORAGE_LOOKUP,
+        /** The whole call to the response resolver. */
+        RESOLVE,
+        /** Opening the connection to the origin server, if the resolver reports it. */
+        CONNECT,
+        /** From sending the request until the response headers were received, if the resolver reports it. */
+        FIRST_BYTE,
+        /** Storing or updating the response, including copying the payload from the origin server. */
+        STORAGE_INSERT,
+        /** Rewriting the response headers. */
+        HEADER_REWRITE;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase(Locale.ENGLISH).replace('_', '-');
+        }
+    }
+
+    private final long origin;
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    public Timeline() {
+        this(System.nanoTime());
+    }
+
+    /**
+     * @param origin the start of the request, from {@link System#nanoTime()}.
+     */
+    public Timeline(long origin) {
+        this.origin = origin;
+    }
+
+    /**
+     * @param phase the phase.
+     * @param start the start of the phase, from {@link System#nanoTime()}.
+     * @param end the end of the phase, from {@link System#nanoTime()}.
+     */
+    public synchronized void record(Phase phase, long start, long end) {
+        Preconditions.checkNotNull(phase, "Phase may not be null");
+        entries.add(new Entry(phase, start - origin, end - start));
+    }
+
+    public synchronized List<Entry> getEntries() {
+        return Collections.unmodifiableList(new ArrayList<Entry>(entries));
+    }
+
+    /**
+     * @return the total time in nanoseconds recorded for the phase.
+     */
+    public synchronized long getDuration(Phase phase) {
+        long duration = 0;
+        for (Entry entry : entries) {
+            if (entry.phase == phase) {
+                duration += entry.duration;
+            }
+        }
+        return duration;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Entry entry : entries) {
+            if (builder.length() > 0) {
+                builder.append(", ");
+            }
+            builder.append(entry);
+        }
+        return builder.toString();
+    }
+
+    public static final class Entry {
+        private final Phase phase;
+        private final long offset;
+        private final long duration;
+
+        private Entry(Phase phase, long offset, long duration) {
+            this.phase = phase;
+            this.offset = offset;
+            this.duration = duration;
+        }
+
+        public Phase getPhase() {
+            return phase;
+        }
+
+        /**
+         * @return nanoseconds from the start of the request to the start of the phase.
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * @return the duration of the phase in nanoseconds.
+         */
+        public long getDuration() {
+            return duration;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ENGLISH, "%s@%.3fms=%.3fms", phase, millis(offset), millis(duration));
+        }
+
+        private static double millis(long nanos) {
+            return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+        }
+    }
+}
@@ -44,6 +44,12 @@ public class ByteArrayPayload implements Payload, Serializable {
         this.type = type;
     }
 
+    public ByteArrayPayload(byte[] bytes, MIMEType type) {
+        this.bytes = bytes;
+        this.length = bytes.length;
+        this.type = type;
+    }
+
     public MIMEType getMimeType() {
         return type;
     }
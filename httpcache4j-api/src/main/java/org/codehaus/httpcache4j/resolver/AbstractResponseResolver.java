@@ -20,6 +20,7 @@ import com.google.common.base.Preconditions;
 import org.codehaus.httpcache4j.HTTPRequest;
 import org.codehaus.httpcache4j.HTTPResponse;
 import org.codehaus.httpcache4j.Status;
+import org.codehaus.httpcache4j.Timeline;
 import org.codehaus.httpcache4j.auth.*;
 
 import java.io.IOException;
@@ -29,7 +30,7 @@ import java.io.IOException;
  *
  * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
  */
-public abstract class AbstractResponseResolver implements ResponseResolver {
+public abstract class AbstractResponseResolver implements TimedResponseResolver {
     private final ResponseCreator responseCreator = new ResponseCreator();
     private final ResolverConfiguration configuration;
 
@@ -49,15 +50,19 @@ public abstract class AbstractResponseResolver implements ResponseResolver {
         return configuration.getAuthenticator();
     }
 
-    protected final ResolverConfiguration getConfiguration() {
+    public final ResolverConfiguration getConfiguration() {
         return configuration;
     }
 
     public final HTTPResponse resolve(HTTPRequest request) throws IOException {
-        return resolveAuthenticated(request, request);
+        return resolveAuthenticated(request, request, null);
     }
 
-    private HTTPResponse resolveAuthenticated(HTTPRequest request, HTTPRequest req) throws IOException {
+    public final HTTPResponse resolve(HTTPRequest request, Timeline timeline) throws IOException {
+        return resolveAuthenticated(request, request, timeline);
+    }
+
+    private HTTPResponse resolveAuthenticated(HTTPRequest request, HTTPRequest req, Timeline timeline) throws IOException {
         HTTPResponse convertedResponse;
         if (getAuthenticator().canAuthenticatePreemptively(request)) {
             req = getAuthenticator().preparePreemptiveAuthentication(request);
@@ -65,14 +70,14 @@ public abstract class AbstractResponseResolver implements ResponseResolver {
         if (getProxyAuthenticator().canAuthenticatePreemptively()) {
             req = getProxyAuthenticator().preparePreemptiveAuthentication(req);
         }
-        convertedResponse = resolveImpl(req);
+        convertedResponse = resolveImpl(req, timeline);
 
         if (convertedResponse.getStatus() == Status.PROXY_AUTHENTICATION_REQUIRED) {
             req = getProxyAuthenticator().prepareAuthentication(req, convertedResponse);
             if (req != request) {
                 convertedResponse.consume();
 
-                convertedResponse = resolveImpl(req);
+                convertedResponse = resolveImpl(req, timeline);
 
                 if (convertedResponse.getStatus() == Status.PROXY_AUTHENTICATION_REQUIRED) { //We failed
                     getProxyAuthenticator().afterFailedAuthentication(convertedResponse.getHeaders());
@@ -86,7 +91,7 @@ public abstract class AbstractResponseResolver implements ResponseResolver {
             req = getAuthenticator().prepareAuthentication(req, convertedResponse);
             if (req != request) {
                 convertedResponse.consume();
-                convertedResponse = resolveImpl(req);
+                convertedResponse = resolveImpl(req, timeline);
                 if (convertedResponse.getStatus() == Status.UNAUTHORIZED) { //We failed
                     getAuthenticator().afterFailedAuthentication(req, convertedResponse.getHeaders());
                 }
@@ -99,4 +104,14 @@ public abstract class AbstractResponseResolver implements ResponseResolver {
     }
 
     protected abstract HTTPResponse resolveImpl(HTTPRequest request) throws IOException;
+
+    /**
+     * Override this to report the phases of the request.
+     *
+     * @param request the request to resolve.
+     * @param timeline where to record the phases, or {@code null} if timelines are disabled.
+     */
+    protected HTTPResponse resolveImpl(HTTPRequest request, Timeline timeline) throws IOException {
+        return resolveImpl(request);
+    }
 }
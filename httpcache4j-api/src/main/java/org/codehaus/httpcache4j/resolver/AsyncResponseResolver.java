@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.resolver;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import org.codehaus.httpcache4j.HTTPRequest;
+import org.codehaus.httpcache4j.HTTPResponse;
+
+/**
+ * Resolves a request with the originating server without blocking the calling thread.
+ * This is used internally by the HTTPCache when requests are executed asynchronously.
+ * Resolvers backed by a blocking client can be adapted with {@link ExecutorAsyncResponseResolver}.
+ *
+ * @since 4.0
+ */
+public interface AsyncResponseResolver {
+    /**
+     * Starts resolving the given request.
+     *
+     * @param request the request to resolve.
+     *
+     * @return a future holding the raw response from the server. If the server could not be reached the future
+     * fails with an {@link java.io.IOException}.
+     */
+    ListenableFuture<HTTPResponse> resolveAsync(HTTPRequest request);
+
+    void shutdown();
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.resolver;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.codehaus.httpcache4j.HTTPRequest;
+import org.codehaus.httpcache4j.HTTPResponse;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Adapts a blocking {@link ResponseResolver} to the {@link AsyncResponseResolver} interface
+ * by running each request on an executor.
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public class ExecutorAsyncResponseResolver implements AsyncResponseResolver {
+    private final ResponseResolver resolver;
+    private final ListeningExecutorService executor;
+
+    public ExecutorAsyncResponseResolver(ResponseResolver resolver, ExecutorService executor) {
+        this.resolver = Preconditions.checkNotNull(resolver, "Resolver may not be null");
+        this.executor = MoreExecutors.listeningDecorator(Preconditions.checkNotNull(executor, "Executor may not be null"));
+    }
+
+    public ExecutorAsyncResponseResolver(ResponseResolver resolver) {
+        this(resolver, Executors.newCachedThreadPool(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("httpcache4j-resolver-%d").build()));
+    }
+
+    public ResponseResolver getResolver() {
+        return resolver;
+    }
+
+    public ListenableFuture<HTTPResponse> resolveAsync(final HTTPRequest request) {
+        return executor.submit(new Callable<HTTPResponse>() {
+            public HTTPResponse call() throws Exception {
+                return resolver.resolve(request);
+            }
+        });
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+        resolver.shutdown();
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.resolver;
+
+import org.codehaus.httpcache4j.HTTPRequest;
+import org.codehaus.httpcache4j.HTTPResponse;
+import org.codehaus.httpcache4j.Timeline;
+
+import java.io.IOException;
+
+/**
+ * A resolver that can report the phases of a request, like connecting and waiting for the first byte.
+ * The HTTPCache uses this instead of {@link #resolve(HTTPRequest)} when timelines are enabled.
+ *
+ * @since 4.0
+ */
+public interface TimedResponseResolver extends ResponseResolver {
+    /**
+     * Resolves the given request into a response, recording its phases.
+     *
+     * @param request the request to resolve.
+     * @param timeline where to record the {@link Timeline.Phase#CONNECT connect} and
+     * {@link Timeline.Phase#FIRST_BYTE first byte} phases.
+     *
+     * @return the raw response from the server.
+     * @throws java.io.IOException if an IOException occurs e.g: java.net.ConnectException.
+     */
+    HTTPResponse resolve(HTTPRequest request, Timeline timeline) throws IOException;
+}
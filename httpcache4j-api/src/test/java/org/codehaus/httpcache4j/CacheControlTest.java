@@ -81,4 +81,22 @@ public class CacheControlTest {
         assertFalse(control.isProxyRevalidate());
     }
 
+    @Test
+    public void testStaleWhileRevalidate() {
+        Header header = new Header(HeaderConstants.CACHE_CONTROL, "max-age=60, stale-while-revalidate=30");
+        CacheControl control = new CacheControl(header.getDirectives());
+        assertEquals(60, control.getMaxAge());
+        assertEquals(30, control.getStaleWhileRevalidate());
+        assertEquals(-1, new CacheControl("max-age=60").getStaleWhileRevalidate());
+        assertEquals(30, new CacheControl.Builder().staleWhileRevalidate(30).build().getStaleWhileRevalidate());
+    }
+
+    @Test
+    public void testStaleIfError() {
+        CacheControl control = new CacheControl("max-age=60, stale-if-error=86400");
+        assertEquals(86400, control.getStaleIfError());
+        assertEquals(-1, control.getStaleWhileRevalidate());
+        assertEquals(-1, new CacheControl("max-age=60").getStaleIfError());
+        assertEquals(10, new CacheControl.Builder().staleIfError(10).build().getStaleIfError());
+    }
 }
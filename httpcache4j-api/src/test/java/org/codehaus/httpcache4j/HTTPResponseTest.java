@@ -103,4 +103,18 @@ public class HTTPResponseTest {
         assertTrue(result.isPresent());
         assertEquals("Hello", result.get());
     }
+
+    @Test
+    public void withHeadersAndCachedKeepsParsedFields() {
+        Headers headers = new Headers()
+                .add(HeaderConstants.ETAG, new Tag("foo").format())
+                .add(HeaderConstants.CACHE_CONTROL, "max-age=10");
+        HTTPResponse response = new HTTPResponse(null, Status.OK, headers);
+        HTTPResponse hit = response.withHeaders(headers.set(HeaderConstants.AGE, "5"), true);
+        assertEquals(new Tag("foo"), hit.getETag());
+        assertEquals(10, hit.getCacheControl().getMaxAge());
+        assertEquals("5", hit.getHeaders().getFirstHeaderValue(HeaderConstants.AGE));
+        assertTrue(hit.isCached());
+        assertFalse(response.isCached());
+    }
 }
@@ -28,6 +28,7 @@ import org.joda.time.DateTimeZone;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
 
 /** @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a> */
@@ -140,4 +141,14 @@ public class HeadersTest {
         assertNotNull(directives.getAsDirective("Digest"));
     }
 
+    @Test
+    public void setReplacesAllValuesOfEachNameAndLeavesOriginalUntouched() {
+        Headers headers = new Headers().add("Age", "10").add("Warning", "110 foo").add("Warning", "111 bar");
+        Headers updated = headers.set(Arrays.asList(new Header("age", "20"), new Header("Warning", "113 baz"), new Header("WARNING", "199 qux")));
+        assertEquals(1, updated.getHeaders("Age").size());
+        assertEquals("20", updated.getFirstHeaderValue("Age"));
+        assertEquals(Arrays.asList(new Header("Warning", "113 baz"), new Header("Warning", "199 qux")), updated.getHeaders("Warning"));
+        assertEquals("10", headers.getFirstHeaderValue("Age"));
+        assertEquals(2, headers.getHeaders("Warning").size());
+    }
 }
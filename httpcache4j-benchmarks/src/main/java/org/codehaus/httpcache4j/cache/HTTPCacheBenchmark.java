@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import org.codehaus.httpcache4j.HTTPRequest;
+import org.codehaus.httpcache4j.HTTPResponse;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The three main paths through {@link HTTPCache#execute(HTTPRequest)}.
+ * Run with {@code -prof gc} to see the allocations per request.
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HTTPCacheBenchmark {
+    // More than the capacity of the storage, so a URI has always been evicted before it is requested again.
+    private static final int MISS_URIS = 4096;
+
+    @Param({"1024"})
+    public int bodySize;
+
+    private HTTPCache cache;
+    private HTTPRequest fresh;
+    private HTTPRequest stale;
+    private HTTPRequest[] misses;
+    private final AtomicInteger nextMiss = new AtomicInteger();
+
+    @Setup
+    public void setUp() {
+        cache = new HTTPCache(new MemoryCacheStorage(), new StubResponseResolver(bodySize));
+        fresh = new HTTPRequest(URI.create("http://example.com/fresh/1"));
+        stale = new HTTPRequest(URI.create("http://example.com/stale/1"));
+        misses = new HTTPRequest[MISS_URIS];
+        for (int i = 0; i < MISS_URIS; i++) {
+            misses[i] = new HTTPRequest(URI.create("http://example.com/miss/" + i));
+        }
+        cache.execute(fresh).consume();
+        cache.execute(stale).consume();
+    }
+
+    @TearDown
+    public void tearDown() {
+        cache.shutdown();
+    }
+
+    @Benchmark
+    public HTTPResponse freshHit() {
+        return cache.execute(fresh);
+    }
+
+    @Benchmark
+    public HTTPResponse stale304() {
+        return cache.execute(stale);
+    }
+
+    @Benchmark
+    public HTTPResponse miss() {
+        HTTPRequest request = misses[(nextMiss.getAndIncrement() & Integer.MAX_VALUE) % MISS_URIS];
+        HTTPResponse response = cache.execute(request);
+        response.consume();
+        return response;
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import org.codehaus.httpcache4j.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rewriting the headers of a stored response before it is returned.
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HTTPCacheHelperBenchmark {
+    private HTTPCacheHelper helper;
+    private HTTPRequest request;
+    private HTTPRequest conditionalRequest;
+    private HTTPResponse cachedResponse;
+
+    @Setup
+    public void setUp() {
+        helper = new HTTPCacheHelper(CacheHeaderBuilder.getBuilder());
+        request = new HTTPRequest(URI.create("http://example.com/items/1"));
+        conditionalRequest = request.headers(new Headers().add(HeaderConstants.IF_NONE_MATCH, StubResponseResolver.ETAG.format()));
+        Headers headers = new Headers()
+                .add(HeaderConstants.CACHE_CONTROL, "max-age=3600")
+                .add(HeaderConstants.ETAG, StubResponseResolver.ETAG.format())
+                .add(HeaderConstants.CONTENT_TYPE, "text/plain");
+        cachedResponse = new HTTPResponse(null, Status.OK, headers);
+    }
+
+    @Benchmark
+    public HTTPResponse freshHit() {
+        return helper.rewriteResponse(request, cachedResponse, 10);
+    }
+
+    @Benchmark
+    public HTTPResponse conditionalHit() {
+        return helper.rewriteResponse(conditionalRequest, cachedResponse, 10);
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import org.codehaus.httpcache4j.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creating cache keys and matching them against requests, which happens on every lookup and insert.
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyBenchmark {
+    private HTTPRequest request;
+    private HTTPResponse response;
+    private Vary vary;
+
+    @Setup
+    public void setUp() {
+        Headers requestHeaders = new Headers()
+                .add(HeaderConstants.ACCEPT, "application/json")
+                .add("Accept-Encoding", "gzip")
+                .add("Accept-Language", "en");
+        request = new HTTPRequest(URI.create("http://example.com/items/1?expand=true")).headers(requestHeaders);
+        Headers responseHeaders = new Headers()
+                .add(HeaderConstants.CACHE_CONTROL, "max-age=3600")
+                .add(HeaderConstants.VARY, "Accept,Accept-Encoding");
+        response = new HTTPResponse(null, Status.OK, responseHeaders);
+        vary = Key.create(request, response).getVary();
+    }
+
+    @Benchmark
+    public Key create() {
+        return Key.create(request, response);
+    }
+
+    @Benchmark
+    public boolean varyMatches() {
+        return vary.matches(request);
+    }
+}
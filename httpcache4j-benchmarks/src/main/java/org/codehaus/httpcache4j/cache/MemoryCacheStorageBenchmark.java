@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import org.codehaus.httpcache4j.*;
+import org.codehaus.httpcache4j.payload.ByteArrayPayload;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads and writes against a full {@link MemoryCacheStorage} or {@link SegmentedMemoryCacheStorage}.
+ * See {@link ThreadScaling} to run these from 1 to 64 threads.
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MemoryCacheStorageBenchmark {
+    private static final int ENTRIES = 1000;
+
+    @Param({"memory", "segmented", "offheap"})
+    public String implementation;
+
+    private CacheStorage storage;
+    private HTTPRequest[] requests;
+    private HTTPResponse response;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next;
+
+        // Threads start at different offsets, so they do not walk the same entries in lockstep.
+        @Setup
+        public void setUp() {
+            next = (int) (Thread.currentThread().getId() * 7919);
+        }
+
+        int next() {
+            return (next++ & Integer.MAX_VALUE) % ENTRIES;
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        if ("segmented".equals(implementation)) {
+            storage = new SegmentedMemoryCacheStorage();
+        }
+        else if ("offheap".equals(implementation)) {
+            storage = new OffHeapMemoryCacheStorage(ENTRIES, 64 * 1024 * 1024);
+        }
+        else {
+            storage = new MemoryCacheStorage();
+        }
+        requests = new HTTPRequest[ENTRIES];
+        Headers headers = new Headers().add(HeaderConstants.CACHE_CONTROL, "max-age=3600");
+        response = new HTTPResponse(new ByteArrayPayload(new ByteArrayInputStream(new byte[1024]), MIMEType.valueOf("text/plain")), Status.OK, headers);
+        for (int i = 0; i < ENTRIES; i++) {
+            requests[i] = new HTTPRequest(URI.create("http://example.com/items/" + i));
+            storage.insert(requests[i], response);
+        }
+    }
+
+    @Benchmark
+    public CacheItem get(Cursor cursor) {
+        return storage.get(requests[cursor.next()]);
+    }
+
+    @Benchmark
+    public HTTPResponse insert(Cursor cursor) {
+        return storage.insert(requests[cursor.next()], response);
+    }
+}
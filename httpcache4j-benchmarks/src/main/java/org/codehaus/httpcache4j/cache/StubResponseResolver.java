@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import org.codehaus.httpcache4j.*;
+import org.codehaus.httpcache4j.payload.ByteArrayPayload;
+import org.codehaus.httpcache4j.resolver.ResponseResolver;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+/**
+ * An in-process origin server for the benchmarks.
+ * <ul>
+ *     <li>{@code /fresh/*} answers with a response that is fresh for an hour.</li>
+ *     <li>{@code /stale/*} answers with a response that is stale immediately, and 304 to conditional requests.</li>
+ *     <li>Anything else is fresh for an hour.</li>
+ * </ul>
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+class StubResponseResolver implements ResponseResolver {
+    static final Tag ETAG = new Tag("v1");
+    private static final MIMEType TEXT_PLAIN = MIMEType.valueOf("text/plain");
+
+    private final byte[] body;
+
+    StubResponseResolver(int bodySize) {
+        body = new byte[bodySize];
+    }
+
+    public HTTPResponse resolve(HTTPRequest request) throws IOException {
+        String path = request.getNormalizedURI().getPath();
+        if (path.startsWith("/stale/")) {
+            Headers headers = new Headers()
+                    .add(HeaderConstants.CACHE_CONTROL, "max-age=0")
+                    .add(HeaderConstants.ETAG, ETAG.format());
+            if (request.getHeaders().getConditionals().getNoneMatch().contains(ETAG)) {
+                return new HTTPResponse(null, Status.NOT_MODIFIED, headers);
+            }
+            return new HTTPResponse(payload(), Status.OK, headers);
+        }
+        Headers headers = new Headers().add(HeaderConstants.CACHE_CONTROL, "max-age=3600");
+        return new HTTPResponse(payload(), Status.OK, headers);
+    }
+
+    private ByteArrayPayload payload() throws IOException {
+        return new ByteArrayPayload(new ByteArrayInputStream(body), TEXT_PLAIN);
+    }
+
+    public void shutdown() {
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A satisfiable byte range of an entity with a known length.
+ * See: http://tools.ietf.org/html/rfc7233#section-2.1
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+final class ByteRange {
+    private static final String BYTES_UNIT = "bytes";
+    /** The most ranges served from one request, after overlapping ranges are merged. See RFC 7233, section 6.1. */
+    static final int MAX_RANGES = 16;
+
+    private final long start;
+    private final long end;
+
+    ByteRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    long getStart() {
+        return start;
+    }
+
+    /**
+     * @return the last byte position, inclusive.
+     */
+    long getEnd() {
+        return end;
+    }
+
+    long length() {
+        return end - start + 1;
+    }
+
+    String toContentRange(long entityLength) {
+        return String.format("%s %d-%d/%d", BYTES_UNIT, start, end, entityLength);
+    }
+
+    static String unsatisfiableContentRange(long entityLength) {
+        return String.format("%s */%d", BYTES_UNIT, entityLength);
+    }
+
+    /**
+     * Parses the value of a Range header.
+     *
+     * @param value the header value, e.g. {@code bytes=0-499,-500}
+     * @param entityLength the length of the full entity.
+     * @return the satisfiable ranges in ascending order, with overlapping and adjacent ranges merged,
+     * which is empty if none are satisfiable, or {@code null} if the header is not a valid byte range header,
+     * or asks for more than {@link #MAX_RANGES} ranges, and should be ignored.
+     */
+    static List<ByteRange> parse(String value, long entityLength) {
+        int equals = value.indexOf('=');
+        if (equals < 0 || !BYTES_UNIT.equals(value.substring(0, equals).trim().toLowerCase(Locale.ENGLISH))) {
+            return null;
+        }
+        List<ByteRange> ranges = new ArrayList<ByteRange>();
+        boolean specified = false;
+        for (String spec : value.substring(equals + 1).split(",")) {
+            spec = spec.trim();
+            if (spec.isEmpty()) {
+                continue;
+            }
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            specified = true;
+            try {
+                String first = spec.substring(0, dash).trim();
+                String last = spec.substring(dash + 1).trim();
+                if (first.isEmpty()) {
+                    long suffix = Long.parseLong(last);
+                    if (suffix < 0) {
+                        return null;
+                    }
+                    if (suffix > 0 && entityLength > 0) {
+                        ranges.add(new ByteRange(Math.max(0, entityLength - suffix), entityLength - 1));
+                    }
+                }
+                else {
+                    long start = Long.parseLong(first);
+                    long end = last.isEmpty() ? entityLength - 1 : Long.parseLong(last);
+                    if (start < 0 || end < start) {
+                        return null;
+                    }
+                    if (start < entityLength) {
+                        ranges.add(new ByteRange(start, Math.min(end, entityLength - 1)));
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        if (!specified) {
+            return null;
+        }
+        ranges = merge(ranges);
+        if (ranges.size() > MAX_RANGES) {
+            return null;
+        }
+        return Collections.unmodifiableList(ranges);
+    }
+
+    private static List<ByteRange> merge(List<ByteRange> ranges) {
+        if (ranges.size() < 2) {
+            return ranges;
+        }
+        Collections.sort(ranges, new Comparator<ByteRange>() {
+            public int compare(ByteRange a, ByteRange b) {
+                return a.start < b.start ? -1 : (a.start == b.start ? 0 : 1);
+            }
+        });
+        List<ByteRange> merged = new ArrayList<ByteRange>(ranges.size());
+        ByteRange current = ranges.get(0);
+        for (ByteRange range : ranges.subList(1, ranges.size())) {
+            if (range.start <= current.end + 1) {
+                current = new ByteRange(current.start, Math.max(current.end, range.end));
+            }
+            else {
+                merged.add(current);
+                current = range;
+            }
+        }
+        merged.add(current);
+        return merged;
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+import com.google.common.io.LimitInputStream;
+import org.codehaus.httpcache4j.HTTPException;
+import org.codehaus.httpcache4j.HeaderConstants;
+import org.codehaus.httpcache4j.MIMEType;
+import org.codehaus.httpcache4j.payload.FilePayload;
+import org.codehaus.httpcache4j.payload.Payload;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Exposes one or more byte ranges of a stored payload.
+ * A single range has the mime type of the stored payload; multiple ranges are
+ * served as {@code multipart/byteranges}.
+ * Ranges of a {@link FilePayload} are read by seeking in the file, other payloads are skipped forward.
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+class ByteRangePayload implements Payload {
+    private static final String CRLF = "\r\n";
+
+    private final Payload payload;
+    private final List<ByteRange> ranges;
+    private final long entityLength;
+    private final String boundary;
+    private final MIMEType mimeType;
+
+    ByteRangePayload(Payload payload, List<ByteRange> ranges) {
+        this.payload = Preconditions.checkNotNull(payload, "Payload may not be null");
+        Preconditions.checkArgument(!ranges.isEmpty(), "At least one range is required");
+        this.ranges = ranges;
+        this.entityLength = payload.length();
+        if (ranges.size() == 1) {
+            boundary = null;
+            mimeType = payload.getMimeType();
+        }
+        else {
+            boundary = UUID.randomUUID().toString().replace("-", "");
+            mimeType = new MIMEType("multipart", "byteranges").addParameter("boundary", boundary);
+        }
+    }
+
+    public MIMEType getMimeType() {
+        return mimeType;
+    }
+
+    public InputStream getInputStream() {
+        if (boundary == null) {
+            return open(ranges.get(0));
+        }
+        return new SequenceInputStream(new Parts());
+    }
+
+    public long length() {
+        if (boundary == null) {
+            return ranges.get(0).length();
+        }
+        long length = closeDelimiter().length;
+        for (ByteRange range : ranges) {
+            length += partHeader(range).length + range.length();
+        }
+        return length;
+    }
+
+    public boolean isAvailable() {
+        return payload.isAvailable();
+    }
+
+    private byte[] partHeader(ByteRange range) {
+        String header = CRLF + "--" + boundary + CRLF +
+                HeaderConstants.CONTENT_TYPE + ": " + payload.getMimeType() + CRLF +
+                HeaderConstants.CONTENT_RANGE + ": " + range.toContentRange(entityLength) + CRLF +
+                CRLF;
+        return header.getBytes(Charsets.US_ASCII);
+    }
+
+    private byte[] closeDelimiter() {
+        return (CRLF + "--" + boundary + "--" + CRLF).getBytes(Charsets.US_ASCII);
+    }
+
+    private InputStream open(ByteRange range) {
+        InputStream stream = null;
+        try {
+            if (payload instanceof FilePayload) {
+                FileInputStream file = new FileInputStream(((FilePayload) payload).getFile());
+                stream = file;
+                file.getChannel().position(range.getStart());
+            }
+            else {
+                stream = payload.getInputStream();
+                ByteStreams.skipFully(stream, range.getStart());
+            }
+            return new LimitInputStream(stream, range.length());
+        } catch (IOException e) {
+            Closeables.closeQuietly(stream);
+            throw new HTTPException(e);
+        }
+    }
+
+    /**
+     * Opens each range lazily, so that only one stream is open at a time.
+     */
+    private class Parts implements Enumeration<InputStream> {
+        private int index = 0;
+        private boolean body = false;
+
+        public boolean hasMoreElements() {
+            return index <= ranges.size();
+        }
+
+        public InputStream nextElement() {
+            if (index == ranges.size()) {
+                index++;
+                return new ByteArrayInputStream(closeDelimiter());
+            }
+            ByteRange range = ranges.get(index);
+            if (!body) {
+                body = true;
+                return new ByteArrayInputStream(partHeader(range));
+            }
+            body = false;
+            index++;
+            return open(range);
+        }
+    }
+}
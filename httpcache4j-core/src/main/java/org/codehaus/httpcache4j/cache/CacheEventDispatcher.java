@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import com.google.common.base.Preconditions;
+import org.codehaus.httpcache4j.util.StripedCounter;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hands events to the registered listeners on a single daemon thread, in the order they were published.
+ * Publishing never blocks: when the buffer is full because listeners are falling behind, the event is dropped and counted.
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+class CacheEventDispatcher implements CacheEventListener {
+    static final int DEFAULT_CAPACITY = 8192;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final Logger logger = Logger.getLogger(getClass().getName());
+    private final RingBuffer<CacheEvent> buffer;
+    private final List<CacheEventListener> listeners = new CopyOnWriteArrayList<CacheEventListener>();
+    private final StripedCounter dropped = new StripedCounter();
+    private final Thread thread;
+    private volatile boolean running = true;
+    private volatile boolean idle = false;
+
+    CacheEventDispatcher(int capacity) {
+        buffer = new RingBuffer<CacheEvent>(capacity);
+        thread = new Thread(new Runnable() {
+            public void run() {
+                dispatch();
+            }
+        }, "httpcache4j-events");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void addListener(CacheEventListener listener) {
+        listeners.add(Preconditions.checkNotNull(listener, "Listener may not be null"));
+    }
+
+    void removeListener(CacheEventListener listener) {
+        listeners.remove(listener);
+    }
+
+    long getDropped() {
+        return dropped.sum();
+    }
+
+    public void onEvent(CacheEvent event) {
+        if (!running || !buffer.offer(event)) {
+            dropped.increment();
+        }
+        else if (idle) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Delivers the events already published, and stops the dispatch thread.
+     */
+    void shutdown() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    private void dispatch() {
+        while (running || !buffer.isEmpty()) {
+            CacheEvent event = buffer.poll();
+            if (event == null) {
+                idle = true;
+                // Re-check after announcing that we are idle, so that a publisher either sees the flag or we see its event.
+                if (running && buffer.isEmpty()) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+                idle = false;
+                continue;
+            }
+            for (CacheEventListener listener : listeners) {
+                try {
+                    listener.onEvent(event);
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING, "Cache event listener failed on " + event, e);
+                }
+            }
+        }
+    }
+}
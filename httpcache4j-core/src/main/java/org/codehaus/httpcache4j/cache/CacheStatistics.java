@@ -15,40 +15,290 @@
 
 package org.codehaus.httpcache4j.cache;
 
+import com.google.common.base.Preconditions;
+import org.codehaus.httpcache4j.HTTPHost;
+import org.codehaus.httpcache4j.HTTPResponse;
 import org.codehaus.httpcache4j.util.CacheStatisticsMXBean;
+import org.codehaus.httpcache4j.util.LatencyHistogram;
+import org.codehaus.httpcache4j.util.StripedCounter;
 
-import java.util.concurrent.atomic.AtomicLong;
+import java.net.URI;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 /**
+ * Counts cache hits and misses, and records the latency and size of every response by {@link Outcome}.
+ * All counters are striped, so recording does not contend between threads.
+ * Background revalidations are counted apart from the requests made by clients.
+ * Only a limited number of hosts, {@link #DEFAULT_MAX_HOSTS} by default, are tracked one by one;
+ * any further hosts share a single bucket.
+ *
  * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
  * @version $Revision: $
  */
 public class CacheStatistics implements CacheStatisticsMXBean {
-    private final AtomicLong hits = new AtomicLong();
-    private final AtomicLong misses = new AtomicLong();
+    private static final double[] PERCENTILES = {0.5, 0.99, 0.999};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p99", "p999"};
+    private static final String OTHER_HOSTS = "other";
+    public static final int DEFAULT_MAX_HOSTS = 100;
+
+    public enum Outcome {
+        /** A fresh response from the cache. */
+        HIT,
+        /** A response from the origin server, with nothing usable in the cache. */
+        MISS,
+        /** A stored response revalidated by the origin server. */
+        NOT_MODIFIED,
+        /** A stored response replaced by the origin server. */
+        MODIFIED,
+        /** A stale response from the cache, served without or in place of the origin server. */
+        STALE,
+        /** A failure or server error. */
+        ERROR;
+
+        String key() {
+            return name().toLowerCase(Locale.ENGLISH).replace('_', '-');
+        }
+    }
+
+    private final StripedCounter hits = new StripedCounter();
+    private final StripedCounter misses = new StripedCounter();
+    private final StripedCounter bytesFromCache = new StripedCounter();
+    private final StripedCounter bytesFromOrigin = new StripedCounter();
+    private final Map<Outcome, StripedCounter> outcomes = new EnumMap<Outcome, StripedCounter>(Outcome.class);
+    private final Map<Outcome, LatencyHistogram> latencies = new EnumMap<Outcome, LatencyHistogram>(Outcome.class);
+    private final Map<Outcome, StripedCounter> background = new EnumMap<Outcome, StripedCounter>(Outcome.class);
+    private final LatencyHistogram mutexWait = new LatencyHistogram();
+    private final ConcurrentMap<HTTPHost, HostStatistics> hosts = new ConcurrentHashMap<HTTPHost, HostStatistics>();
+    private final HostStatistics otherHosts = new HostStatistics();
+    private final CacheStorage storage;
+    private final int maxHosts;
+
+    public CacheStatistics() {
+        this(null);
+    }
+
+    /**
+     * @param storage the storage to report the weight of, or {@code null}.
+     */
+    public CacheStatistics(CacheStorage storage) {
+        this(storage, DEFAULT_MAX_HOSTS);
+    }
+
+    /**
+     * @param storage the storage to report the weight of, or {@code null}.
+     * @param maxHosts the number of hosts to track one by one.
+     */
+    public CacheStatistics(CacheStorage storage, int maxHosts) {
+        Preconditions.checkArgument(maxHosts >= 0, "Max hosts may not be negative");
+        this.storage = storage;
+        this.maxHosts = maxHosts;
+        for (Outcome outcome : Outcome.values()) {
+            outcomes.put(outcome, new StripedCounter());
+            latencies.put(outcome, new LatencyHistogram());
+            background.put(outcome, new StripedCounter());
+        }
+    }
 
     public long getHits() {
-        return hits.get();
+        return hits.sum();
     }
 
     public void hit() {
-        hits.getAndIncrement();
+        hits.increment();
     }
 
     public void miss() {
-        misses.getAndIncrement();
+        misses.increment();
     }
 
     public long getMisses() {
-        return misses.get();
+        return misses.sum();
     }
 
     public double getHitRatio() {
-        return getMisses() / (double)(getMisses() + getHits());
+        long hits = getHits();
+        long total = hits + getMisses();
+        return total == 0 ? 0 : hits / (double) total;
+    }
+
+    public long getCount(Outcome outcome) {
+        return outcomes.get(outcome).sum();
+    }
+
+    public LatencyHistogram getLatency(Outcome outcome) {
+        return latencies.get(outcome);
+    }
+
+    /**
+     * @return the number of background revalidations with the given outcome.
+     */
+    public long getBackgroundCount(Outcome outcome) {
+        return background.get(outcome).sum();
+    }
+
+    /**
+     * @return time spent waiting for a request in flight for the same URI.
+     */
+    public LatencyHistogram getMutexWait() {
+        return mutexWait;
+    }
+
+    public long getBytesFromCache() {
+        return bytesFromCache.sum();
+    }
+
+    public long getBytesFromOrigin() {
+        return bytesFromOrigin.sum();
+    }
+
+    public long getStorageWeight() {
+        if (storage instanceof WeightedCacheStorage) {
+            return ((WeightedCacheStorage) storage).getWeight();
+        }
+        return -1;
+    }
+
+    /**
+     * @return the statistics of the tracked hosts.
+     */
+    public Map<HTTPHost, HostStatistics> getHostStatistics() {
+        return Collections.unmodifiableMap(hosts);
+    }
+
+    /**
+     * @return the statistics shared by the hosts seen after the tracked hosts were full.
+     */
+    public HostStatistics getOtherHostStatistics() {
+        return otherHosts;
+    }
+
+    public Map<String, Long> getOutcomes() {
+        Map<String, Long> map = new TreeMap<String, Long>();
+        for (Outcome outcome : Outcome.values()) {
+            map.put(outcome.key(), getCount(outcome));
+        }
+        return map;
+    }
+
+    public Map<String, Long> getBackgroundOutcomes() {
+        Map<String, Long> map = new TreeMap<String, Long>();
+        for (Outcome outcome : Outcome.values()) {
+            map.put(outcome.key(), getBackgroundCount(outcome));
+        }
+        return map;
+    }
+
+    public Map<String, Double> getLatencyPercentiles() {
+        Map<String, Double> map = new TreeMap<String, Double>();
+        for (Outcome outcome : Outcome.values()) {
+            putPercentiles(map, outcome.key(), latencies.get(outcome));
+        }
+        putPercentiles(map, "mutex-wait", mutexWait);
+        return map;
+    }
+
+    public Map<String, Long> getRequestsPerHost() {
+        Map<String, Long> map = new TreeMap<String, Long>();
+        for (Map.Entry<HTTPHost, HostStatistics> entry : hosts.entrySet()) {
+            map.put(entry.getKey().toString(), entry.getValue().getRequests());
+        }
+        if (otherHosts.getRequests() > 0) {
+            map.put(OTHER_HOSTS, otherHosts.getRequests());
+        }
+        return map;
+    }
+
+    public Map<String, Double> getHostLatencyPercentiles() {
+        Map<String, Double> map = new TreeMap<String, Double>();
+        for (Map.Entry<HTTPHost, HostStatistics> entry : hosts.entrySet()) {
+            putPercentiles(map, entry.getKey().toString(), entry.getValue().getLatency());
+        }
+        if (otherHosts.getRequests() > 0) {
+            putPercentiles(map, OTHER_HOSTS, otherHosts.getLatency());
+        }
+        return map;
     }
 
     public void clear() {
-        hits.set(0L);
-        misses.set(0L);
+        hits.reset();
+        misses.reset();
+        bytesFromCache.reset();
+        bytesFromOrigin.reset();
+        for (Outcome outcome : Outcome.values()) {
+            outcomes.get(outcome).reset();
+            latencies.get(outcome).clear();
+            background.get(outcome).reset();
+        }
+        mutexWait.clear();
+        hosts.clear();
+        otherHosts.clear();
+    }
+
+    void recordMutexWait(long nanos) {
+        mutexWait.record(nanos);
+    }
+
+    void record(RequestMetrics metrics, HTTPResponse response) {
+        long bytes = response.hasPayload() ? Math.max(0, response.getPayload().length()) : 0;
+        record(metrics.getURI(), metrics.getOutcome(response), metrics.elapsed(), bytes);
+    }
+
+    void recordFailure(RequestMetrics metrics) {
+        record(metrics.getURI(), Outcome.ERROR, metrics.elapsed(), 0);
+    }
+
+    void recordBackground(Outcome outcome) {
+        background.get(outcome).increment();
+    }
+
+    private void record(URI uri, Outcome outcome, long nanos, long bytes) {
+        outcomes.get(outcome).increment();
+        latencies.get(outcome).record(nanos);
+        if (bytes > 0) {
+            if (outcome == Outcome.HIT || outcome == Outcome.STALE || outcome == Outcome.NOT_MODIFIED) {
+                bytesFromCache.add(bytes);
+            } else {
+                bytesFromOrigin.add(bytes);
+            }
+        }
+        HostStatistics host = getHost(uri);
+        if (host != null) {
+            host.record(outcome, nanos);
+        }
+    }
+
+    private HostStatistics getHost(URI uri) {
+        String scheme = uri.getScheme();
+        if (uri.getHost() == null || (uri.getPort() == -1 && !"http".equals(scheme) && !"https".equals(scheme))) {
+            return null;
+        }
+        HTTPHost key = new HTTPHost(uri);
+        HostStatistics host = hosts.get(key);
+        if (host == null) {
+            // Checked without locking, so a few more hosts than the limit may slip in under contention.
+            if (hosts.size() >= maxHosts) {
+                return otherHosts;
+            }
+            HostStatistics created = new HostStatistics();
+            host = hosts.putIfAbsent(key, created);
+            if (host == null) {
+                host = created;
+            }
+        }
+        return host;
+    }
+
+    private static void putPercentiles(Map<String, Double> map, String prefix, LatencyHistogram histogram) {
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            double millis = histogram.getPercentile(PERCENTILES[i]) / (double) TimeUnit.MILLISECONDS.toNanos(1);
+            map.put(prefix + "." + PERCENTILE_NAMES[i], millis);
+        }
     }
 }
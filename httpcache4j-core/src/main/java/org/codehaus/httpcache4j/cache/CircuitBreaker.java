@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import com.google.common.base.Preconditions;
+import org.codehaus.httpcache4j.HTTPHost;
+import org.codehaus.httpcache4j.HTTPResponse;
+import org.codehaus.httpcache4j.Status;
+import org.joda.time.DateTimeUtils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Stops sending requests to a host which keeps failing.
+ * <p/>
+ * A request fails if the resolver throws, or the origin answers 503 or 504.
+ * The circuit of a host opens after a number of consecutive failures, or when the failure rate
+ * of a window of requests reaches a threshold.
+ * While open, {@link HTTPCache} serves stored responses, even stale ones, with a Disconnected operation warning,
+ * and fails cache misses with a {@link CircuitOpenException}, without waiting for the origin.
+ * When the open duration has passed, a single request is let through as a probe.
+ * If it succeeds the circuit closes, otherwise it opens again. Late results of other requests do not change the state.
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public class CircuitBreaker {
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    static final int REJECTED = -1;
+
+    private final double failureRateThreshold;
+    private final int windowSize;
+    private final int consecutiveFailureThreshold;
+    private final long openDuration;
+    private final ConcurrentMap<HTTPHost, Circuit> circuits = new ConcurrentHashMap<HTTPHost, Circuit>();
+
+    public CircuitBreaker() {
+        this(0.5, 20, 5, 30);
+    }
+
+    /**
+     * @param failureRateThreshold the fraction of failed requests in a window which opens the circuit, between 0 and 1.
+     * @param windowSize the number of requests the failure rate is computed over.
+     * @param consecutiveFailureThreshold the number of failures in a row which opens the circuit.
+     * @param openDurationInSeconds how long the circuit stays open before a probe is let through.
+     */
+    public CircuitBreaker(double failureRateThreshold, int windowSize, int consecutiveFailureThreshold, int openDurationInSeconds) {
+        Preconditions.checkArgument(failureRateThreshold > 0 && failureRateThreshold <= 1, "Failure rate threshold must be between 0 and 1");
+        Preconditions.checkArgument(windowSize > 0, "Window size must be positive");
+        Preconditions.checkArgument(consecutiveFailureThreshold > 0, "Consecutive failure threshold must be positive");
+        Preconditions.checkArgument(openDurationInSeconds >= 0, "Open duration may not be negative");
+        this.failureRateThreshold = failureRateThreshold;
+        this.windowSize = windowSize;
+        this.consecutiveFailureThreshold = consecutiveFailureThreshold;
+        this.openDuration = openDurationInSeconds * 1000L;
+    }
+
+    public double getFailureRateThreshold() {
+        return failureRateThreshold;
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    public int getConsecutiveFailureThreshold() {
+        return consecutiveFailureThreshold;
+    }
+
+    public State getState(HTTPHost host) {
+        Circuit circuit = circuits.get(host);
+        if (circuit == null) {
+            return State.CLOSED;
+        }
+        synchronized (circuit) {
+            return circuit.state;
+        }
+    }
+
+    /**
+     * @return the generation of the circuit, to pass on to {@link #onResponse(HTTPHost, int, HTTPResponse)}
+     * or {@link #onFailure(HTTPHost, int)}, or {@link #REJECTED} if the request may not be sent.
+     */
+    int allowRequest(HTTPHost host) {
+        Circuit circuit = circuits.get(host);
+        if (circuit == null) {
+            return 0;
+        }
+        synchronized (circuit) {
+            long now = DateTimeUtils.currentTimeMillis();
+            switch (circuit.state) {
+                case CLOSED:
+                    return circuit.generation;
+                case OPEN:
+                    if (now - circuit.openedAt < openDuration) {
+                        return REJECTED;
+                    }
+                    circuit.probe(now);
+                    return circuit.generation;
+                default:
+                    // The probe should have finished by now, so its outcome was lost.
+                    if (now - circuit.probeStarted >= openDuration) {
+                        circuit.probe(now);
+                        return circuit.generation;
+                    }
+                    return REJECTED;
+            }
+        }
+    }
+
+    void onResponse(HTTPHost host, int generation, HTTPResponse response) {
+        Status status = response.getStatus();
+        if (status == Status.SERVICE_UNAVAILABLE || status == Status.GATEWAY_TIMEOUT) {
+            onFailure(host, generation);
+        }
+        else {
+            onSuccess(host, generation);
+        }
+    }
+
+    /**
+     * Results of requests let through in an earlier generation of the circuit are ignored,
+     * so that only the probe decides whether a half open circuit closes.
+     */
+    void onSuccess(HTTPHost host, int generation) {
+        Circuit circuit = circuits.get(host);
+        // Circuits are created by the first failure, so healthy hosts cost nothing.
+        if (circuit == null) {
+            return;
+        }
+        synchronized (circuit) {
+            if (generation != circuit.generation) {
+                return;
+            }
+            if (circuit.state == State.CLOSED) {
+                circuit.consecutiveFailures = 0;
+                record(circuit, false);
+            }
+            else if (circuit.state == State.HALF_OPEN) {
+                circuit.close();
+            }
+        }
+    }
+
+    void onFailure(HTTPHost host, int generation) {
+        Circuit circuit = circuits.get(host);
+        if (circuit == null) {
+            circuit = new Circuit();
+            Circuit existing = circuits.putIfAbsent(host, circuit);
+            if (existing != null) {
+                circuit = existing;
+            }
+        }
+        synchronized (circuit) {
+            if (generation != circuit.generation) {
+                return;
+            }
+            long now = DateTimeUtils.currentTimeMillis();
+            if (circuit.state == State.HALF_OPEN) {
+                circuit.open(now);
+            }
+            else if (circuit.state == State.CLOSED) {
+                circuit.consecutiveFailures++;
+                if (circuit.consecutiveFailures >= consecutiveFailureThreshold || record(circuit, true)) {
+                    circuit.open(now);
+                }
+            }
+        }
+    }
+
+    /**
+     * Counts a request towards the current window.
+     *
+     * @return {@code true} if the window is complete and its failure rate reached the threshold.
+     */
+    private boolean record(Circuit circuit, boolean failed) {
+        circuit.requests++;
+        if (failed) {
+            circuit.failures++;
+        }
+        if (circuit.requests < windowSize) {
+            return false;
+        }
+        boolean trip = circuit.failures >= failureRateThreshold * windowSize;
+        circuit.requests = 0;
+        circuit.failures = 0;
+        return trip;
+    }
+
+    void clear() {
+        circuits.clear();
+    }
+
+    private static class Circuit {
+        private State state = State.CLOSED;
+        private int requests;
+        private int failures;
+        private int consecutiveFailures;
+        private long openedAt;
+        private long probeStarted;
+        private int generation;
+
+        private void open(long now) {
+            state = State.OPEN;
+            openedAt = now;
+            advance();
+        }
+
+        private void probe(long now) {
+            state = State.HALF_OPEN;
+            probeStarted = now;
+            advance();
+        }
+
+        private void close() {
+            state = State.CLOSED;
+            requests = 0;
+            failures = 0;
+            consecutiveFailures = 0;
+            advance();
+        }
+
+        private void advance() {
+            generation = (generation + 1) & Integer.MAX_VALUE;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import org.codehaus.httpcache4j.HTTPHost;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of sending a request to a host while its {@link CircuitBreaker circuit} is open.
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public class CircuitOpenException extends IOException {
+    private final HTTPHost host;
+
+    public CircuitOpenException(HTTPHost host) {
+        super(String.format("The circuit to %s is open", host));
+        this.host = host;
+    }
+
+    public HTTPHost getHost() {
+        return host;
+    }
+}
@@ -16,13 +16,45 @@
 
 package org.codehaus.httpcache4j.cache;
 
+import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.codehaus.httpcache4j.*;
+import org.codehaus.httpcache4j.payload.Payload;
+import org.codehaus.httpcache4j.resolver.AbstractResponseResolver;
+import org.codehaus.httpcache4j.resolver.AsyncResponseResolver;
+import org.codehaus.httpcache4j.resolver.ConnectionConfiguration;
+import org.codehaus.httpcache4j.resolver.ExecutorAsyncResponseResolver;
 import org.codehaus.httpcache4j.resolver.ResponseResolver;
+import org.codehaus.httpcache4j.resolver.TimedResponseResolver;
 import org.codehaus.httpcache4j.util.URIBuilder;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * TODO:
@@ -36,16 +68,49 @@ import java.net.URI;
  * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
  */
 public class HTTPCache {
+    private static final int DEFAULT_REVALIDATION_THREADS = 2;
+    private static final int DEFAULT_REVALIDATION_QUEUE_SIZE = 100;
+
     private final HTTPCacheHelper helper;
-    private final CacheStatistics statistics = new CacheStatistics();
+    private final CacheStatistics statistics;
     private final CacheStorage storage;
     private ResponseResolver resolver;
+    private volatile AsyncResponseResolver asyncResolver;
     private final Mutex<URI> mutex = new Mutex<URI>();
+    private final Mutex<URI> revalidations = new Mutex<URI>();
+    private final HostConcurrencyLimiter limiter = new HostConcurrencyLimiter();
+    private final Executor storing = new Executor() {
+        public void execute(Runnable command) {
+            try {
+                getStoreExecutor().execute(command);
+            } catch (RejectedExecutionException e) {
+                command.run();
+            }
+        }
+    };
+    private ExecutorService revalidationExecutor;
+    private boolean defaultRevalidationExecutor = false;
+    private ExecutorService storeExecutor;
+    private boolean defaultStoreExecutor = false;
+    private volatile RefreshAhead refreshAhead;
+    private volatile CircuitBreaker circuitBreaker;
+    private volatile CacheEventDispatcher events;
+    private volatile boolean recordTimeline = false;
+    private volatile int staleIfError = -1;
+    private volatile Set<Status> staleIfErrorStatuses = ImmutableSet.of(
+            Status.INTERNAL_SERVER_ERROR,
+            Status.BAD_GATEWAY,
+            Status.SERVICE_UNAVAILABLE,
+            Status.GATEWAY_TIMEOUT
+    );
     private boolean translateHEADToGET = false;
+    private volatile File teeDirectory;
+    private final ConcurrentMap<URI, Spool> spools = new ConcurrentHashMap<URI, Spool>();
 
     public HTTPCache(CacheStorage storage, ResponseResolver resolver) {
         this.storage = Preconditions.checkNotNull(storage, "Cache storage may not be null");
         this.resolver = resolver;
+        statistics = new CacheStatistics(storage);
         helper = new HTTPCacheHelper(CacheHeaderBuilder.getBuilder());
     }
 
@@ -55,6 +120,14 @@ public class HTTPCache {
 
     public void clear() {
         storage.clear();
+        RefreshAhead refresh = refreshAhead;
+        if (refresh != null) {
+            refresh.clear();
+        }
+        CircuitBreaker breaker = circuitBreaker;
+        if (breaker != null) {
+            breaker.clear();
+        }
     }
 
     public void setResolver(final ResponseResolver resolver) {
@@ -82,105 +155,733 @@ public class HTTPCache {
         return execute(request, true);
     }
 
+    /**
+     * Executes the request without blocking the calling thread on the origin server.
+     * Fresh responses from the cache are returned as a completed future on the calling thread.
+     * Misses and revalidations are handed to the {@link AsyncResponseResolver}.
+     * If the resolver only implements {@link ResponseResolver}, it is run on an executor.
+     *
+     * @param request the request to execute
+     * @return a future holding the response.
+     */
+    public ListenableFuture<HTTPResponse> executeAsync(final HTTPRequest request) {
+        return executeAsync(request, helper.isEndToEndReloadRequest(request));
+    }
+
+    /**
+     * Executes a batch of requests, using the connection configuration of the resolver if it has one.
+     *
+     * @see #executeAll(Collection, ConnectionConfiguration)
+     */
+    public List<ListenableFuture<HTTPResponse>> executeAll(final Collection<HTTPRequest> requests) {
+        ConnectionConfiguration configuration;
+        if (resolver instanceof AbstractResponseResolver) {
+            configuration = ((AbstractResponseResolver) resolver).getConfiguration().getConnectionConfiguration();
+        } else {
+            configuration = new ConnectionConfiguration();
+        }
+        return executeAll(requests, configuration);
+    }
+
+    /**
+     * Executes a batch of requests.
+     * Fresh responses are answered from the cache before anything is sent to the origin servers.
+     * The remaining requests are executed asynchronously, with at most
+     * {@link ConnectionConfiguration#getConnectionsPerHost() connections per host} in flight per host,
+     * counting the requests of other batches still in flight.
+     * Cacheable requests for the same URI are only sent once at a time; the duplicates run when the first one completes,
+     * and are answered from the cache if the response was stored.
+     *
+     * @param requests the requests to execute.
+     * @param configuration the connection limits to apply.
+     * @return one future per request, in the same order as the requests.
+     * Use {@link Futures#allAsList(Iterable)} to wait for all of them, or add listeners to handle responses as they complete.
+     */
+    public List<ListenableFuture<HTTPResponse>> executeAll(final Collection<HTTPRequest> requests, final ConnectionConfiguration configuration) {
+        if (resolver == null) {
+            throw new IllegalStateException("The resolver was not set, no point of continuing with the request");
+        }
+        List<ListenableFuture<HTTPResponse>> responses = new ArrayList<ListenableFuture<HTTPResponse>>(requests.size());
+        Map<URI, ListenableFuture<HTTPResponse>> inFlight = new HashMap<URI, ListenableFuture<HTTPResponse>>();
+        for (final HTTPRequest request : requests) {
+            CacheControl cacheControl = request.getHeaders().getCacheControl();
+            boolean force = helper.isEndToEndReloadRequest(request) || (cacheControl != null && cacheControl.isNoStore());
+            if (!force && helper.isCacheableRequest(request)) {
+                RequestMetrics metrics = new RequestMetrics(request, recordTimeline);
+                HTTPResponse cached = getFreshFromStorage(request, metrics);
+                if (cached != null) {
+                    responses.add(Futures.immediateFuture(complete(metrics, cached)));
+                    continue;
+                }
+                URI uri = request.getNormalizedURI();
+                ListenableFuture<HTTPResponse> previous = inFlight.get(uri);
+                ListenableFuture<HTTPResponse> response = previous == null ? submit(configuration, request) : submitAfter(previous, configuration, request);
+                inFlight.put(uri, response);
+                responses.add(response);
+            } else {
+                responses.add(submit(configuration, request));
+            }
+        }
+        return responses;
+    }
+
+    private ListenableFuture<HTTPResponse> submit(ConnectionConfiguration configuration, final HTTPRequest request) {
+        HTTPHost host = new HTTPHost(request.getNormalizedURI());
+        return limiter.submit(host, HostConcurrencyLimiter.getLimit(configuration, host), new Callable<ListenableFuture<HTTPResponse>>() {
+            public ListenableFuture<HTTPResponse> call() {
+                return executeAsync(request);
+            }
+        });
+    }
+
+    private ListenableFuture<HTTPResponse> submitAfter(ListenableFuture<HTTPResponse> previous, final ConnectionConfiguration configuration, final HTTPRequest request) {
+        final SettableFuture<HTTPResponse> response = SettableFuture.create();
+        previous.addListener(new Runnable() {
+            public void run() {
+                RequestMetrics metrics = new RequestMetrics(request, recordTimeline);
+                HTTPResponse cached = getFreshFromStorage(request, metrics);
+                if (cached != null) {
+                    response.set(complete(metrics, cached));
+                    return;
+                }
+                Futures.addCallback(submit(configuration, request), new FutureCallback<HTTPResponse>() {
+                    public void onSuccess(HTTPResponse result) {
+                        response.set(result);
+                    }
+
+                    public void onFailure(Throwable t) {
+                        response.setException(t);
+                    }
+                });
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return response;
+    }
+
     public void shutdown() {
         storage.shutdown();
-        resolver.shutdown();
+        synchronized (this) {
+            if (defaultRevalidationExecutor) {
+                revalidationExecutor.shutdown();
+            }
+            if (defaultStoreExecutor) {
+                storeExecutor.shutdown();
+            }
+            if (events != null) {
+                events.shutdown();
+            }
+        }
+        AsyncResponseResolver async = asyncResolver;
+        if (async != null && async != resolver) {
+            // The adapter shuts down the resolver it wraps.
+            async.shutdown();
+        } else {
+            resolver.shutdown();
+        }
+    }
+
+    AsyncResponseResolver getAsyncResolver() {
+        AsyncResponseResolver async = asyncResolver;
+        if (async == null) {
+            synchronized (this) {
+                async = asyncResolver;
+                if (async == null) {
+                    if (resolver instanceof AsyncResponseResolver) {
+                        async = (AsyncResponseResolver) resolver;
+                    } else {
+                        async = new ExecutorAsyncResponseResolver(resolver);
+                    }
+                    asyncResolver = async;
+                }
+            }
+        }
+        return async;
+    }
+
+    /**
+     * Sets the executor used to revalidate responses served under stale-while-revalidate.
+     * If none is set, a small bounded pool is created on first use, and shut down with the cache.
+     * Revalidations rejected by the executor are dropped, and retried by the next request for the stale response.
+     *
+     * @param revalidationExecutor the executor to use, preferably bounded.
+     */
+    public synchronized void setRevalidationExecutor(ExecutorService revalidationExecutor) {
+        Preconditions.checkNotNull(revalidationExecutor, "Revalidation executor may not be null");
+        if (defaultRevalidationExecutor) {
+            this.revalidationExecutor.shutdown();
+            defaultRevalidationExecutor = false;
+        }
+        this.revalidationExecutor = revalidationExecutor;
+    }
+
+    /**
+     * Sets the executor used to store responses resolved by {@link #executeAsync(HTTPRequest)},
+     * so that the storage is not written from the I/O threads of the resolver.
+     * If none is set, a pool is created on first use, and shut down with the cache.
+     * Responses rejected by the executor are stored on the thread which resolved them.
+     *
+     * @param storeExecutor the executor to use.
+     */
+    public synchronized void setStoreExecutor(ExecutorService storeExecutor) {
+        Preconditions.checkNotNull(storeExecutor, "Store executor may not be null");
+        if (defaultStoreExecutor) {
+            this.storeExecutor.shutdown();
+            defaultStoreExecutor = false;
+        }
+        this.storeExecutor = storeExecutor;
+    }
+
+    /**
+     * Registers a listener for hits, misses, revalidations and errors, and for changes to the storage
+     * if it is a {@link CacheEventSource}.
+     * Events are delivered on a separate thread through a bounded buffer, so listeners never slow down requests.
+     * If listeners fall behind, events are dropped, see {@link #getDroppedEvents()}.
+     *
+     * @param listener the listener to add.
+     */
+    public synchronized void addEventListener(CacheEventListener listener) {
+        if (events == null) {
+            CacheEventDispatcher dispatcher = new CacheEventDispatcher(CacheEventDispatcher.DEFAULT_CAPACITY);
+            if (storage instanceof CacheEventSource) {
+                ((CacheEventSource) storage).setEventListener(dispatcher);
+            }
+            events = dispatcher;
+        }
+        events.addListener(listener);
+    }
+
+    public synchronized void removeEventListener(CacheEventListener listener) {
+        if (events != null) {
+            events.removeListener(listener);
+        }
+    }
+
+    /**
+     * @return the number of events dropped because the listeners could not keep up.
+     */
+    public long getDroppedEvents() {
+        CacheEventDispatcher dispatcher = events;
+        return dispatcher == null ? 0 : dispatcher.getDropped();
+    }
+
+    synchronized ExecutorService getRevalidationExecutor() {
+        if (revalidationExecutor == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                    DEFAULT_REVALIDATION_THREADS,
+                    DEFAULT_REVALIDATION_THREADS,
+                    60L,
+                    TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(DEFAULT_REVALIDATION_QUEUE_SIZE),
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("httpcache4j-revalidation-%d").build()
+            );
+            executor.allowCoreThreadTimeOut(true);
+            revalidationExecutor = executor;
+            defaultRevalidationExecutor = true;
+        }
+        return revalidationExecutor;
+    }
+
+    synchronized ExecutorService getStoreExecutor() {
+        if (storeExecutor == null) {
+            storeExecutor = Executors.newCachedThreadPool(
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("httpcache4j-store-%d").build()
+            );
+            defaultStoreExecutor = true;
+        }
+        return storeExecutor;
     }
 
     private HTTPResponse execute(final HTTPRequest request, boolean force) {
         if (resolver == null) {
             throw new IllegalStateException("The resolver was not set, no point of continuing with the request");
         }
+        RequestMetrics metrics = new RequestMetrics(request, recordTimeline);
         HTTPResponse response;
+        try {
+            if (!helper.isCacheableRequest(request)) {
+                response = unconditionalResolve(request, metrics);
+            } else {
+                //request is cacheable
+                response = coalesce(request, force || (request.getHeaders().getCacheControl() != null && request.getHeaders().getCacheControl().isNoStore()), metrics);
+            }
+        } catch (RuntimeException e) {
+            recordFailure(metrics, e);
+            throw e;
+        }
+        if (response == null) {
+            HTTPException e = new HTTPException("No response produced");
+            recordFailure(metrics, e);
+            throw e;
+        }
+        return complete(metrics, response);
+    }
+
+    /**
+     * Only one request per URI goes to the origin server at a time.
+     * Fresh hits are answered from storage without taking part. Concurrent misses and revalidations for the same URI
+     * wait for the request in flight to complete, and are then answered from storage if the response was stored
+     * and is fresh. Requests for other URIs are never blocked.
+     */
+    private HTTPResponse coalesce(final HTTPRequest request, final boolean force, final RequestMetrics metrics) {
+        URI uri = request.getNormalizedURI();
+        CacheItem item = force ? null : lookup(request, metrics);
+        while (true) {
+            if (isFresh(item, request)) {
+                return freshHit(request, item, metrics);
+            }
+            if (mutex.tryAcquire(uri)) {
+                try {
+                    return doRequest(request, force, item, metrics);
+                } finally {
+                    mutex.release(uri);
+                }
+            }
+            long waitStart = System.nanoTime();
+            boolean released = mutex.await(uri);
+            statistics.recordMutexWait(System.nanoTime() - waitStart);
+            metrics.end(Timeline.Phase.MUTEX_WAIT, waitStart);
+            if (!released) {
+                return new HTTPResponse(null, Status.BAD_GATEWAY, new Headers());
+            }
+            if (!force) {
+                item = lookup(request, metrics);
+            }
+        }
+    }
+
+    private HTTPResponse getFreshFromStorage(HTTPRequest request, RequestMetrics metrics) {
+        CacheItem item = lookup(request, metrics);
+        return isFresh(item, request) ? freshHit(request, item, metrics) : null;
+    }
+
+    private boolean isFresh(CacheItem item, HTTPRequest request) {
+        return item != null && !helper.isStale(item, request);
+    }
+
+    private HTTPResponse freshHit(HTTPRequest request, CacheItem item, RequestMetrics metrics) {
+        statistics.hit();
+        metrics.setOutcome(CacheStatistics.Outcome.HIT);
+        maybeRefreshAhead(request, item);
+        return rewriteHit(request, item, metrics);
+    }
+
+    /**
+     * Records the response, and attaches the timeline if there is one.
+     */
+    private HTTPResponse complete(RequestMetrics metrics, HTTPResponse response) {
+        recordResponse(metrics, response);
+        Timeline timeline = metrics.getTimeline();
+        return timeline != null ? response.withTimeline(timeline) : response;
+    }
+
+    private void recordResponse(RequestMetrics metrics, HTTPResponse response) {
+        statistics.record(metrics, response);
+        dispatch(metrics, response);
+    }
+
+    private void dispatch(RequestMetrics metrics, HTTPResponse response) {
+        CacheEventDispatcher dispatcher = events;
+        if (dispatcher != null) {
+            CacheEvent.Type type = toEventType(metrics.getOutcome(response));
+            Key key = Key.create(metrics.getRequest(), response);
+            dispatcher.onEvent(new CacheEvent(type, key, metrics.elapsed(), CacheEvent.sizeOf(response), null));
+        }
+    }
+
+    private void recordFailure(RequestMetrics metrics, Throwable error) {
+        statistics.recordFailure(metrics);
+        dispatchFailure(metrics, error);
+    }
+
+    private void dispatchFailure(RequestMetrics metrics, Throwable error) {
+        CacheEventDispatcher dispatcher = events;
+        if (dispatcher != null) {
+            Key key = Key.create(metrics.getURI(), new Vary());
+            dispatcher.onEvent(new CacheEvent(CacheEvent.Type.RESOLVER_ERROR, key, metrics.elapsed(), -1, error));
+        }
+    }
+
+    private static CacheEvent.Type toEventType(CacheStatistics.Outcome outcome) {
+        switch (outcome) {
+            case HIT:
+                return CacheEvent.Type.HIT;
+            case STALE:
+                return CacheEvent.Type.STALE_SERVED;
+            case NOT_MODIFIED:
+                return CacheEvent.Type.REVALIDATED;
+            case ERROR:
+                return CacheEvent.Type.RESOLVER_ERROR;
+            default:
+                return CacheEvent.Type.MISS;
+        }
+    }
+
+    private ListenableFuture<HTTPResponse> executeAsync(final HTTPRequest request, boolean force) {
+        if (resolver == null) {
+            throw new IllegalStateException("The resolver was not set, no point of continuing with the request");
+        }
+        final RequestMetrics metrics = new RequestMetrics(request, recordTimeline);
+        ListenableFuture<HTTPResponse> response;
         if (!helper.isCacheableRequest(request)) {
-            response = unconditionalResolve(request);
+            response = unconditionalResolveAsync(request, metrics);
         } else {
             //request is cacheable
-            boolean shouldUnlock = true;
-            try {
-                if (mutex.acquire(request.getRequestURI())) {
-                    response = doRequest(request, force || (request.getHeaders().getCacheControl() != null && request.getHeaders().getCacheControl().isNoStore()));
-                } else {
-                    response = new HTTPResponse(null, Status.BAD_GATEWAY, new Headers());
-                    shouldUnlock = false;
+            response = coalesceAsync(request, force || (request.getHeaders().getCacheControl() != null && request.getHeaders().getCacheControl().isNoStore()), metrics);
+        }
+        ListenableFuture<HTTPResponse> checked = Futures.transform(response, new Function<HTTPResponse, HTTPResponse>() {
+            public HTTPResponse apply(HTTPResponse response) {
+                if (response == null) {
+                    throw new HTTPException("No response produced");
                 }
-            } finally {
-                if (shouldUnlock) {
-                    mutex.release(request.getRequestURI());
+                return complete(metrics, response);
+            }
+        });
+        Futures.addCallback(checked, new FutureCallback<HTTPResponse>() {
+            public void onSuccess(HTTPResponse result) {
+                // Recorded when completed.
+            }
+
+            public void onFailure(Throwable t) {
+                recordFailure(metrics, t);
+            }
+        });
+        return checked;
+    }
+
+    /**
+     * Same as {@link #coalesce(HTTPRequest, boolean, RequestMetrics)}, but instead of blocking, callers
+     * that find a request in flight continue when it is released.
+     */
+    private ListenableFuture<HTTPResponse> coalesceAsync(final HTTPRequest request, final boolean force, final RequestMetrics metrics) {
+        return coalesceAsync(request, force, force ? null : lookup(request, metrics), metrics);
+    }
+
+    private ListenableFuture<HTTPResponse> coalesceAsync(final HTTPRequest request, final boolean force, final CacheItem item, final RequestMetrics metrics) {
+        if (isFresh(item, request)) {
+            return Futures.immediateFuture(freshHit(request, item, metrics));
+        }
+        final URI uri = request.getNormalizedURI();
+        if (mutex.tryAcquire(uri)) {
+            ListenableFuture<HTTPResponse> response;
+            try {
+                response = doRequestAsync(request, force, item, metrics);
+            } catch (RuntimeException e) {
+                mutex.release(uri);
+                return Futures.immediateFailedFuture(e);
+            }
+            response.addListener(new Runnable() {
+                public void run() {
+                    mutex.release(uri);
                 }
+            }, MoreExecutors.sameThreadExecutor());
+            return response;
+        }
+        final long waitStart = System.nanoTime();
+        return Futures.transform(mutex.whenReleased(uri), new AsyncFunction<Void, HTTPResponse>() {
+            public ListenableFuture<HTTPResponse> apply(Void input) {
+                statistics.recordMutexWait(System.nanoTime() - waitStart);
+                metrics.end(Timeline.Phase.MUTEX_WAIT, waitStart);
+                return coalesceAsync(request, force, metrics);
             }
+        });
+    }
+
+    /**
+     * @param item the stale item looked up before the mutex was acquired, or {@code null}.
+     */
+    private ListenableFuture<HTTPResponse> doRequestAsync(final HTTPRequest request, final boolean force, final CacheItem item, final RequestMetrics metrics) {
+        if (force) {
+            return unconditionalResolveAsync(request, metrics);
         }
-        if (response == null) {
-            throw new HTTPException("No response produced");
+        if (item != null) {
+            statistics.hit();
+            HTTPRequest conditionalRequest = maybePrepareConditionalResponse(request, item.getResponse());
+            return handleStaleResponseAsync(conditionalRequest, request, item, metrics);
+        }
+        HTTPResponse following = follow(request, metrics);
+        if (following != null) {
+            return Futures.immediateFuture(following);
+        }
+        statistics.miss();
+        return unconditionalResolveAsync(request, metrics);
+    }
+
+    private ListenableFuture<HTTPResponse> handleStaleResponseAsync(HTTPRequest conditionalRequest, HTTPRequest originalRequest, CacheItem item, RequestMetrics metrics) {
+        int age = item.getAge(conditionalRequest);
+        if (helper.allowStale(item, originalRequest)) {
+            metrics.setOutcome(CacheStatistics.Outcome.STALE);
+            return Futures.immediateFuture(rewriteStale(originalRequest, item, age, metrics));
+        }
+        if (helper.allowStaleWhileRevalidate(item, originalRequest)) {
+            metrics.setOutcome(CacheStatistics.Outcome.STALE);
+            revalidateInBackground(conditionalRequest, item);
+            return Futures.immediateFuture(rewriteStale(originalRequest, item, age, metrics));
+        }
+        return Futures.transform(handleResolveAsync(conditionalRequest, item, metrics), rewriteRevalidated(originalRequest, age, metrics));
+    }
+
+    private ListenableFuture<HTTPResponse> unconditionalResolveAsync(final HTTPRequest request, final RequestMetrics metrics) {
+        return Futures.transform(handleResolveAsync(request, null, metrics), rewrite(request, -1, metrics));
+    }
+
+    private ListenableFuture<HTTPResponse> handleResolveAsync(final HTTPRequest request, final CacheItem item, final RequestMetrics metrics) {
+        final SettableFuture<HTTPResponse> response = SettableFuture.create();
+        final CircuitBreaker breaker = circuitBreaker;
+        final HTTPHost host = breaker != null ? new HTTPHost(request.getNormalizedURI()) : null;
+        final int generation = breaker != null ? breaker.allowRequest(host) : 0;
+        if (generation == CircuitBreaker.REJECTED) {
+            try {
+                response.set(handleResolveFailure(item, new CircuitOpenException(host), metrics));
+            } catch (RuntimeException e) {
+                response.setException(e);
+            }
+            return response;
         }
+        final long begin = metrics.begin();
+        Futures.addCallback(getAsyncResolver().resolveAsync(rewriteHEADToGET(request)), new FutureCallback<HTTPResponse>() {
+            public void onSuccess(HTTPResponse resolvedResponse) {
+                metrics.end(Timeline.Phase.RESOLVE, begin);
+                if (breaker != null && resolvedResponse != null) {
+                    breaker.onResponse(host, generation, resolvedResponse);
+                }
+                try {
+                    response.set(handleResolved(request, item, resolvedResponse, metrics));
+                } catch (RuntimeException e) {
+                    response.setException(e);
+                }
+            }
+
+            public void onFailure(Throwable t) {
+                metrics.end(Timeline.Phase.RESOLVE, begin);
+                if (breaker != null) {
+                    breaker.onFailure(host, generation);
+                }
+                try {
+                    if (t instanceof IOException) {
+                        response.set(handleResolveFailure(item, (IOException) t, metrics));
+                    } else {
+                        response.setException(t);
+                    }
+                } catch (RuntimeException e) {
+                    response.setException(e);
+                }
+            }
+        }, storing);
         return response;
     }
 
-    private HTTPResponse doRequest(final HTTPRequest request, final boolean force) {
+    private Function<HTTPResponse, HTTPResponse> rewrite(final HTTPRequest request, final int age, final RequestMetrics metrics) {
+        return new Function<HTTPResponse, HTTPResponse>() {
+            public HTTPResponse apply(HTTPResponse response) {
+                return rewriteResponse(request, response, age, metrics);
+            }
+        };
+    }
+
+    private HTTPResponse rewriteResponse(HTTPRequest request, HTTPResponse response, int age, RequestMetrics metrics) {
+        long begin = metrics.begin();
+        HTTPResponse rewritten = helper.rewriteResponse(request, response, age);
+        metrics.end(Timeline.Phase.HEADER_REWRITE, begin);
+        return rewritten;
+    }
+
+    private Function<HTTPResponse, HTTPResponse> rewriteRevalidated(final HTTPRequest request, final int age, final RequestMetrics metrics) {
+        return new Function<HTTPResponse, HTTPResponse>() {
+            public HTTPResponse apply(HTTPResponse response) {
+                return rewriteRevalidated(request, response, age, metrics);
+            }
+        };
+    }
+
+    /**
+     * Rewrites the response to a revalidation, which is the stored response if the origin answered 304,
+     * and answers the Range header of the original request from it.
+     */
+    private HTTPResponse rewriteRevalidated(HTTPRequest request, HTTPResponse response, int age, RequestMetrics metrics) {
+        long begin = metrics.begin();
+        HTTPResponse rewritten = helper.rewriteRangeResponse(request, helper.rewriteResponse(request, response, age));
+        metrics.end(Timeline.Phase.HEADER_REWRITE, begin);
+        return rewritten;
+    }
+
+    private HTTPResponse rewriteStale(HTTPRequest request, CacheItem item, int age, RequestMetrics metrics) {
+        long begin = metrics.begin();
+        HTTPResponse rewritten = helper.rewriteRangeResponse(request, helper.rewriteStaleResponse(request, item.getResponse(), age));
+        metrics.end(Timeline.Phase.HEADER_REWRITE, begin);
+        return rewritten;
+    }
+
+    private CacheItem lookup(HTTPRequest request, RequestMetrics metrics) {
+        long begin = metrics.begin();
+        CacheItem item = storage.get(request);
+        metrics.end(Timeline.Phase.STORAGE_LOOKUP, begin);
+        return item;
+    }
+
+    /**
+     * @param item the stale item looked up before the mutex was acquired, or {@code null}.
+     */
+    private HTTPResponse doRequest(final HTTPRequest request, final boolean force, final CacheItem item, final RequestMetrics metrics) {
         HTTPResponse response;
         if (force) {
-            response = unconditionalResolve(request);
+            response = unconditionalResolve(request, metrics);
         } else {
-            response = getFromStorage(request);
+            response = getFromStorage(request, item, metrics);
         }
         return response;
     }
 
-    private HTTPResponse getFromStorage(HTTPRequest request) {
+    private HTTPResponse getFromStorage(HTTPRequest request, CacheItem item, RequestMetrics metrics) {
         HTTPResponse response;
-        CacheItem item = storage.get(request);
         if (item != null) {
             statistics.hit();
-            if (item.isStale(request)) {
-                //If the cached value is stale, execute the request and try to cache it.
-                HTTPResponse staleResponse = item.getResponse();
-                //If the payload has been deleted for some reason, we want to do a unconditional GET
-                HTTPRequest conditionalRequest = maybePrepareConditionalResponse(request, staleResponse);
-                response = handleStaleResponse(conditionalRequest, request, item);
-            } else {
-                response = helper.rewriteResponse(request, item.getResponse(), item.getAge(request));
-            }
+            //The cached value is stale, execute the request and try to cache it.
+            HTTPResponse staleResponse = item.getResponse();
+            //If the payload has been deleted for some reason, we want to do a unconditional GET
+            HTTPRequest conditionalRequest = maybePrepareConditionalResponse(request, staleResponse);
+            response = handleStaleResponse(conditionalRequest, request, item, metrics);
         } else {
-            statistics.miss();
-            response = unconditionalResolve(request);
+            response = follow(request, metrics);
+            if (response == null) {
+                statistics.miss();
+                response = unconditionalResolve(request, metrics);
+            }
         }
         return response;
     }
 
-    private HTTPResponse handleStaleResponse(HTTPRequest conditionalRequest, HTTPRequest originalRequest, CacheItem item) {
+    private HTTPResponse handleStaleResponse(HTTPRequest conditionalRequest, HTTPRequest originalRequest, CacheItem item, RequestMetrics metrics) {
         int age = item.getAge(conditionalRequest);
-        if (!helper.allowStale(item, originalRequest)) {
-            HTTPResponse response = handleResolve(conditionalRequest, item);
-            return helper.rewriteResponse(originalRequest, response, age);
+        if (helper.allowStale(item, originalRequest)) {
+            metrics.setOutcome(CacheStatistics.Outcome.STALE);
+            return rewriteStale(originalRequest, item, age, metrics);
+        }
+        if (helper.allowStaleWhileRevalidate(item, originalRequest)) {
+            metrics.setOutcome(CacheStatistics.Outcome.STALE);
+            revalidateInBackground(conditionalRequest, item);
+            return rewriteStale(originalRequest, item, age, metrics);
+        }
+        HTTPResponse response = handleResolve(conditionalRequest, item, metrics);
+        return rewriteRevalidated(originalRequest, response, age, metrics);
+    }
+
+    private HTTPResponse rewriteHit(HTTPRequest request, CacheItem item, RequestMetrics metrics) {
+        long begin = metrics.begin();
+        int age = item.getAge(request);
+        HTTPResponse response = helper.warnIfHeuristicExpiration(helper.rewriteResponse(request, item.getResponse(), age), item, age);
+        response = helper.rewriteRangeResponse(request, response);
+        metrics.end(Timeline.Phase.HEADER_REWRITE, begin);
+        return response;
+    }
+
+    private void maybeRefreshAhead(HTTPRequest request, CacheItem item) {
+        RefreshAhead refresh = refreshAhead;
+        if (refresh != null && refresh.onHit(request, item, helper.getTTL(item))) {
+            revalidateInBackground(maybePrepareConditionalResponse(request, item.getResponse()), item);
+        }
+    }
+
+    /**
+     * Queues a revalidation of the item, unless one is already queued or running for the same URI.
+     */
+    private void revalidateInBackground(final HTTPRequest conditionalRequest, final CacheItem item) {
+        final URI uri = conditionalRequest.getNormalizedURI();
+        if (!revalidations.tryAcquire(uri)) {
+            return;
+        }
+        try {
+            getRevalidationExecutor().execute(new Runnable() {
+                public void run() {
+                    RequestMetrics metrics = new RequestMetrics(conditionalRequest);
+                    try {
+                        HTTPResponse response = handleResolve(conditionalRequest, item, metrics);
+                        if (response != null) {
+                            statistics.recordBackground(metrics.getOutcome(response));
+                            dispatch(metrics, response);
+                            if (response.getPayload() instanceof TeePayload) {
+                                ((TeePayload) response.getPayload()).drain();
+                            } else {
+                                response.consume();
+                            }
+                        } else {
+                            statistics.recordBackground(metrics.getOutcome());
+                        }
+                    } catch (IOException e) {
+                        statistics.recordBackground(CacheStatistics.Outcome.ERROR);
+                        dispatchFailure(metrics, e);
+                    } catch (RuntimeException e) {
+                        statistics.recordBackground(CacheStatistics.Outcome.ERROR);
+                        dispatchFailure(metrics, e);
+                        throw e;
+                    } finally {
+                        revalidations.release(uri);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            revalidations.release(uri);
         }
-        return helper.rewriteStaleResponse(originalRequest, item.getResponse(), age);
     }
 
     private HTTPRequest maybePrepareConditionalResponse(HTTPRequest request, HTTPResponse staleResponse) {
         if (!staleResponse.hasPayload() || staleResponse.getPayload().isAvailable()) {
             return helper.prepareConditionalGETRequest(request, staleResponse);
         }
-        return request.headers(request.getHeaders().withConditionals(new Conditionals()));
+        return request.headers(HTTPCacheHelper.withoutRange(request.getHeaders()).withConditionals(new Conditionals()));
     }
 
-    private HTTPResponse unconditionalResolve(final HTTPRequest request) {
-        return helper.rewriteResponse(request, handleResolve(request, null), -1);
+    private HTTPResponse unconditionalResolve(final HTTPRequest request, final RequestMetrics metrics) {
+        return rewriteResponse(request, handleResolve(request, null, metrics), -1, metrics);
     }
 
-    private HTTPResponse handleResolve(final HTTPRequest request, final CacheItem item) {
-        HTTPResponse response = null;
-        HTTPResponse resolvedResponse = null;
+    private HTTPResponse handleResolve(final HTTPRequest request, final CacheItem item, final RequestMetrics metrics) {
+        CircuitBreaker breaker = circuitBreaker;
+        HTTPHost host = null;
+        int generation = 0;
+        if (breaker != null) {
+            host = new HTTPHost(request.getNormalizedURI());
+            generation = breaker.allowRequest(host);
+            if (generation == CircuitBreaker.REJECTED) {
+                return handleResolveFailure(item, new CircuitOpenException(host), metrics);
+            }
+        }
+        HTTPResponse resolvedResponse;
         try {
-            resolvedResponse = resolveWithHeadRewrite(request, resolvedResponse);
+            resolvedResponse = resolveWithHeadRewrite(request, metrics);
         } catch (IOException e) {
-            //No cached item found, we throw an exception.
-            if (item == null) {
-                throw new HTTPException(e);
-            } else {
-                Headers headers = helper.warn(item.getResponse().getHeaders(), e);
-                response = item.getResponse().withHeaders(headers);
+            if (breaker != null) {
+                breaker.onFailure(host, generation);
             }
+            return handleResolveFailure(item, e, metrics);
+        } catch (RuntimeException e) {
+            if (breaker != null) {
+                breaker.onFailure(host, generation);
+            }
+            throw e;
+        }
+        if (breaker != null && resolvedResponse != null) {
+            breaker.onResponse(host, generation, resolvedResponse);
+        }
+        return handleResolved(request, item, resolvedResponse, metrics);
+    }
+
+    private HTTPResponse handleResolveFailure(final CacheItem item, final IOException e, final RequestMetrics metrics) {
+        //No cached item found, we throw an exception.
+        if (item == null) {
+            throw new HTTPException(e);
+        }
+        metrics.setOutcome(CacheStatistics.Outcome.STALE);
+        Headers headers = helper.warn(item.getResponse().getHeaders(), e);
+        return item.getResponse().withHeaders(headers);
+    }
+
+    private HTTPResponse handleResolved(final HTTPRequest request, final CacheItem item, final HTTPResponse resolvedResponse, final RequestMetrics metrics) {
+        if (item != null && resolvedResponse != null && isStaleIfError(request, item, resolvedResponse)) {
+            metrics.setOutcome(CacheStatistics.Outcome.STALE);
+            resolvedResponse.consume();
+            return item.getResponse().withHeaders(helper.warnRevalidationFailed(item.getResponse().getHeaders()));
         }
+        HTTPResponse response = null;
         if (resolvedResponse != null) {
             if (!request.getMethod().isSafe() && isSuccessfulResponse(resolvedResponse)) {
                 URI requestUri = request.getNormalizedURI();
@@ -200,17 +901,20 @@ public class HTTPCache {
                     storage.invalidate(request.getNormalizedURI());
                 }
             } else if (helper.isCacheableResponse(resolvedResponse) && helper.shouldBeStored(resolvedResponse)) {
-                response = storage.insert(request, resolvedResponse);
+                response = store(request, resolvedResponse, metrics);
                 updated = true;
-
             } else {
                 //Response could not be cached
                 response = resolvedResponse;
             }
             if (item != null) {
+                metrics.setOutcome(resolvedResponse.getStatus() == Status.NOT_MODIFIED ? CacheStatistics.Outcome.NOT_MODIFIED : CacheStatistics.Outcome.MODIFIED);
                 //from http://tools.ietf.org/html/rfc2616#section-13.5.3
-                if (resolvedResponse.getStatus() == Status.NOT_MODIFIED || resolvedResponse.getStatus() == Status.PARTIAL_CONTENT) {
+                //A 206 describes part of a possibly different entity, so it is never merged into the stored one.
+                if (resolvedResponse.getStatus() == Status.NOT_MODIFIED) {
+                    long begin = metrics.begin();
                     response = updateHeadersFromResolved(request, item, resolvedResponse);
+                    metrics.end(Timeline.Phase.STORAGE_INSERT, begin);
                 } else if (updated) {
                     Headers newHeaders = response.getHeaders().add(CacheHeaderBuilder.getBuilder().createMISSXCacheHeader());
                     response = response.withHeaders(newHeaders);
@@ -220,19 +924,79 @@ public class HTTPCache {
         return response;
     }
 
+    private HTTPResponse store(HTTPRequest request, HTTPResponse resolvedResponse, RequestMetrics metrics) {
+        File directory = teeDirectory;
+        if (directory != null && shouldTee(request, resolvedResponse)) {
+            try {
+                return resolvedResponse.withPayload(new Spool(storage, request, resolvedResponse, directory, spools).lead());
+            } catch (IOException ignore) {
+                // No spool file, the response is stored before it is returned.
+            }
+        }
+        long begin = metrics.begin();
+        HTTPResponse response = storage.insert(request, resolvedResponse);
+        metrics.end(Timeline.Phase.STORAGE_INSERT, begin);
+        return response;
+    }
+
+    /**
+     * Attaches to the body of a response which is still being read from the origin server, if there is one.
+     */
+    private HTTPResponse follow(HTTPRequest request, RequestMetrics metrics) {
+        Spool spool = spools.get(request.getNormalizedURI());
+        if (spool == null || !shouldTee(request, spool.getResponse())) {
+            return null;
+        }
+        Payload payload = spool.follow(request);
+        if (payload == null) {
+            return null;
+        }
+        statistics.hit();
+        metrics.setOutcome(CacheStatistics.Outcome.HIT);
+        return rewriteResponse(request, spool.getResponse().withPayload(payload), 0, metrics);
+    }
+
+    /**
+     * Only plain GETs are teed; the payload of other responses may be replaced before the caller reads it.
+     */
+    private boolean shouldTee(HTTPRequest request, HTTPResponse resolvedResponse) {
+        return request.getMethod() == HTTPMethod.GET &&
+                resolvedResponse.hasPayload() &&
+                request.getHeaders().getConditionals().isUnconditional() &&
+                !request.getHeaders().hasHeader(HeaderConstants.RANGE);
+    }
+
+    private boolean isStaleIfError(HTTPRequest request, CacheItem item, HTTPResponse resolvedResponse) {
+        return staleIfErrorStatuses.contains(resolvedResponse.getStatus()) && helper.allowStaleIfError(item, request, staleIfError);
+    }
+
     //http://tools.ietf.org/html/draft-ietf-httpbis-p6-cache-22#section-6
     private boolean isSuccessfulResponse(HTTPResponse resolvedResponse) {
         Status.Category category = resolvedResponse.getStatus().getCategory();
         return category == Status.Category.SUCCESS || category == Status.Category.REDIRECTION;
     }
 
-    private HTTPResponse resolveWithHeadRewrite(HTTPRequest request, HTTPResponse resolvedResponse) throws IOException {
+    private HTTPResponse resolveWithHeadRewrite(HTTPRequest request, RequestMetrics metrics) throws IOException {
+        Timeline timeline = metrics.getTimeline();
+        if (timeline == null) {
+            return resolver.resolve(rewriteHEADToGET(request));
+        }
+        long begin = System.nanoTime();
+        try {
+            if (resolver instanceof TimedResponseResolver) {
+                return ((TimedResponseResolver) resolver).resolve(rewriteHEADToGET(request), timeline);
+            }
+            return resolver.resolve(rewriteHEADToGET(request));
+        } finally {
+            timeline.record(Timeline.Phase.RESOLVE, begin, System.nanoTime());
+        }
+    }
+
+    private HTTPRequest rewriteHEADToGET(HTTPRequest request) {
         if (request.getMethod() == HTTPMethod.HEAD && isTranslateHEADToGET()) { // We change this to GET and cache the result.
-            resolvedResponse = resolver.resolve(request.method(HTTPMethod.GET));
-        } else {
-            resolvedResponse = resolver.resolve(request);
+            return request.method(HTTPMethod.GET);
         }
-        return resolvedResponse;
+        return request;
     }
 
     HTTPResponse updateHeadersFromResolved(final HTTPRequest request, final CacheItem item, final HTTPResponse resolvedResponse) {
@@ -243,6 +1007,109 @@ public class HTTPCache {
         return storage.update(request, updatedResponse);
     }
 
+    public RefreshAhead getRefreshAhead() {
+        return refreshAhead;
+    }
+
+    /**
+     * Enables revalidation of frequently read responses shortly before they expire.
+     * Revalidations run on the {@link #setRevalidationExecutor(ExecutorService) revalidation executor}.
+     *
+     * @param refreshAhead the policy to use, or {@code null} to disable refresh-ahead.
+     */
+    public void setRefreshAhead(RefreshAhead refreshAhead) {
+        this.refreshAhead = refreshAhead;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Stops sending requests to hosts which keep failing, see {@link CircuitBreaker}.
+     * While the circuit of a host is open, stored responses are served even if stale,
+     * and cache misses fail without waiting for the origin.
+     *
+     * @param circuitBreaker the breaker to use, or {@code null} to always send requests.
+     */
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    public boolean isRecordTimeline() {
+        return recordTimeline;
+    }
+
+    /**
+     * Records where the time of each request is spent, available from {@link HTTPResponse#getTimeline()}.
+     * Phases reported by the resolver are included if it is a {@link TimedResponseResolver}.
+     * Disabled by default; when disabled no extra clock reads are made.
+     *
+     * @param recordTimeline whether to record timelines.
+     */
+    public void setRecordTimeline(boolean recordTimeline) {
+        this.recordTimeline = recordTimeline;
+    }
+
+    public int getMaxHeuristicTTL() {
+        return helper.getMaxHeuristicTTL();
+    }
+
+    /**
+     * Sets the upper bound for the freshness lifetime computed for responses that have a Last-Modified header,
+     * but no explicit expiration time. Defaults to 24 hours. Set to 0 to disable heuristic freshness.
+     *
+     * @param maxHeuristicTTL the maximum heuristic freshness lifetime in seconds.
+     */
+    public void setMaxHeuristicTTL(int maxHeuristicTTL) {
+        helper.setMaxHeuristicTTL(maxHeuristicTTL);
+    }
+
+    public int getStaleIfError() {
+        return staleIfError;
+    }
+
+    /**
+     * Sets how many seconds past expiry a stored response may be served in place of an error from the origin server,
+     * for responses without a stale-if-error directive. Defaults to -1, which disables the fallback.
+     *
+     * @param staleIfError the window in seconds.
+     */
+    public void setStaleIfError(int staleIfError) {
+        this.staleIfError = staleIfError;
+    }
+
+    public Set<Status> getStaleIfErrorStatuses() {
+        return staleIfErrorStatuses;
+    }
+
+    /**
+     * Sets which statuses from the origin server count as errors for stale-if-error.
+     * Defaults to 500, 502, 503 and 504.
+     *
+     * @param staleIfErrorStatuses the statuses to replace with a stale response.
+     */
+    public void setStaleIfErrorStatuses(Set<Status> staleIfErrorStatuses) {
+        this.staleIfErrorStatuses = ImmutableSet.copyOf(Preconditions.checkNotNull(staleIfErrorStatuses, "Statuses may not be null"));
+    }
+
+    public File getTeeDirectory() {
+        return teeDirectory;
+    }
+
+    /**
+     * Returns responses to the caller while they are being read from the origin server, instead of after they are stored.
+     * The payload is copied to a spool file in the directory, and stored when it has been read to the end.
+     * Concurrent requests for the same response read the spool file while it grows, instead of waiting for it to be stored.
+     * Responses which no caller reads to the end are not stored.
+     * Defaults to {@code null}, which stores the response before it is returned.
+     *
+     * @param teeDirectory the directory for spool files, or {@code null}.
+     */
+    public void setTeeDirectory(File teeDirectory) {
+        this.teeDirectory = teeDirectory;
+    }
+
     public boolean isTranslateHEADToGET() {
         return translateHEADToGET;
     }
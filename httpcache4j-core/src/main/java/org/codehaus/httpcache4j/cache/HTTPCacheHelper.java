@@ -17,7 +17,9 @@ package org.codehaus.httpcache4j.cache;
 
 import com.google.common.collect.ImmutableSet;
 import org.codehaus.httpcache4j.*;
+import org.codehaus.httpcache4j.payload.Payload;
 import org.joda.time.DateTime;
+import org.joda.time.Seconds;
 
 import java.io.IOException;
 import java.net.SocketException;
@@ -59,15 +61,98 @@ class HTTPCacheHelper {
         );
     }
 
+    static final int DEFAULT_MAX_HEURISTIC_TTL = 24 * 60 * 60;
+    private static final int HEURISTIC_WARNING_AGE = 24 * 60 * 60;
+    private static final double HEURISTIC_FRACTION = 0.1;
+
     private CacheHeaderBuilder cacheHeaderBuilder;
+    private volatile int maxHeuristicTTL = DEFAULT_MAX_HEURISTIC_TTL;
 
     HTTPCacheHelper(CacheHeaderBuilder cacheHeaderBuilder) {
         this.cacheHeaderBuilder = cacheHeaderBuilder;
     }
 
+    int getMaxHeuristicTTL() {
+        return maxHeuristicTTL;
+    }
+
+    void setMaxHeuristicTTL(int maxHeuristicTTL) {
+        this.maxHeuristicTTL = maxHeuristicTTL;
+    }
+
+    /**
+     * The freshness lifetime of the item, which is heuristic if the response has no explicit expiration time.
+     */
+    int getTTL(CacheItem item) {
+        int ttl = item.getTTL();
+        if (ttl > 0) {
+            return ttl;
+        }
+        return Math.max(ttl, getHeuristicTTL(item));
+    }
+
+    boolean isStale(CacheItem item, HTTPRequest request) {
+        if (!item.isStale(request)) {
+            return false;
+        }
+        HTTPResponse response = item.getResponse();
+        if (response.hasPayload() && !response.getPayload().isAvailable()) {
+            return true;
+        }
+        return getHeuristicTTL(item) - item.getAge(request) <= 0;
+    }
+
+    /**
+     * If the response has no explicit expiration time, but has a Last-Modified header, the freshness lifetime
+     * is 10% of the time since it was last modified, but no more than the configured maximum.
+     * Only responses with a status that is cacheable by default are given a heuristic freshness lifetime.
+     *
+     * See: http://tools.ietf.org/html/rfc7234#section-4.2.2
+     *
+     * @return the heuristic freshness lifetime in seconds, or 0 if none applies.
+     */
+    int getHeuristicTTL(CacheItem item) {
+        HTTPResponse response = item.getResponse();
+        if (maxHeuristicTTL <= 0 || !cacheableStatuses.contains(response.getStatus()) || hasExplicitExpiration(response)) {
+            return 0;
+        }
+        DateTime lastModified = response.getLastModified();
+        if (lastModified == null) {
+            return 0;
+        }
+        DateTime date = response.getDate() != null ? response.getDate() : item.getCachedTime();
+        if (!lastModified.isBefore(date)) {
+            return 0;
+        }
+        int sinceModified = Seconds.secondsBetween(lastModified, date).getSeconds();
+        return (int) Math.min((long) (sinceModified * HEURISTIC_FRACTION), maxHeuristicTTL);
+    }
+
+    private boolean hasExplicitExpiration(HTTPResponse response) {
+        if (response.getHeaders().hasHeader(HeaderConstants.EXPIRES)) {
+            return true;
+        }
+        CacheControl cc = response.getCacheControl();
+        return cc != null && (cc.getMaxAge() > -1 || cc.getSMaxAge() > -1 || cc.isNoCache() || cc.isMustRevalidate());
+    }
+
+    /**
+     * Warning 113 MUST be added if the cache heuristically chose a freshness lifetime greater than 24 hours
+     * and the response's age is greater than 24 hours.
+     */
+    HTTPResponse warnIfHeuristicExpiration(HTTPResponse response, CacheItem item, int age) {
+        if (age > HEURISTIC_WARNING_AGE && item.getTTL() <= 0 && getHeuristicTTL(item) > HEURISTIC_WARNING_AGE) {
+            return response.withHeaders(response.getHeaders().add(Warning.HEURISTIC_EXPIRATION_WARNING.toHeader()));
+        }
+        return response;
+    }
+
     Headers warn(Headers headers, IOException e) {
         headers = headers.add(Warning.STALE_WARNING.toHeader());
-        if (e instanceof SocketException) {
+        if (e != null) {
+            headers = headers.add(Warning.REVALIDATE_FAILED_WARNING.toHeader());
+        }
+        if (e instanceof SocketException || e instanceof CircuitOpenException) {
             headers = headers.add(Warning.DISCONNECT_OPERATION_WARNING.toHeader());
         }
         return headers;
@@ -104,23 +189,37 @@ class HTTPCacheHelper {
     }
 
     HTTPRequest prepareConditionalGETRequest(HTTPRequest request, HTTPResponse staleResponse) {
-        Conditionals conditionals = request.getHeaders().getConditionals();
-        if (request.getMethod() == HTTPMethod.GET && conditionals.toHeaders().isEmpty()) {
+        if (request.getMethod() != HTTPMethod.GET) {
+            return request;
+        }
+        Headers headers = withoutRange(request.getHeaders());
+        Conditionals conditionals = headers.getConditionals();
+        if (conditionals.toHeaders().isEmpty()) {
             if (staleResponse.getETag() != null) {
                 conditionals = new Conditionals().addIfNoneMatch(staleResponse.getETag());
             }
             else if (staleResponse.getLastModified() != null) {
                 conditionals = conditionals.ifModifiedSince(staleResponse.getLastModified());
             }
-            return request.headers(request.getHeaders().withConditionals(conditionals));
         }
-        return request;
+        return request.headers(headers.withConditionals(conditionals));
+    }
+
+    /**
+     * A stored entity is always revalidated whole, and the Range of the original request answered from it afterwards.
+     */
+    static Headers withoutRange(Headers headers) {
+        return headers.remove(HeaderConstants.RANGE).remove(HeaderConstants.IF_RANGE);
     }
 
     Headers warnStale(Headers headers) {
         return warn(headers, null);
     }
 
+    Headers warnRevalidationFailed(Headers headers) {
+        return warnStale(headers).add(Warning.REVALIDATE_FAILED_WARNING.toHeader());
+    }
+
     boolean isEndToEndReloadRequest(HTTPRequest request) {
         CacheControl cacheControl = request.getCacheControl();
         return request.getMethod().isCacheable() && cacheControl != null ? cacheControl.isNoCache() : false;
@@ -143,7 +242,7 @@ class HTTPCacheHelper {
             CacheControl control = req.getCacheControl();
             int maxStale = control.getMaxStale();
             if (maxStale > -1) {
-                int ttl = item.getTTL();
+                int ttl = getTTL(item);
                 int age = item.getAge(req);
                 if ((ttl - maxStale - age) < 0) {
                     return true;
@@ -153,6 +252,55 @@ class HTTPCacheHelper {
         return false;
     }
 
+    /**
+     * A stale response may be served while it is revalidated in the background if it is still inside
+     * its stale-while-revalidate window, and its payload is still available.
+     *
+     * See: http://tools.ietf.org/html/rfc5861#section-3
+     */
+    boolean allowStaleWhileRevalidate(CacheItem item, HTTPRequest req) {
+        HTTPResponse response = item.getResponse();
+        CacheControl control = response.getCacheControl();
+        if (control == null || control.isMustRevalidate() || control.isProxyRevalidate()) {
+            return false;
+        }
+        if (response.hasPayload() && !response.getPayload().isAvailable()) {
+            return false;
+        }
+        int staleWhileRevalidate = control.getStaleWhileRevalidate();
+        return staleWhileRevalidate > -1 && item.getAge(req) - getTTL(item) <= staleWhileRevalidate;
+    }
+
+    /**
+     * A stale response may be served instead of an error from the origin server if it is still inside
+     * its stale-if-error window. The request directive takes precedence over the response directive,
+     * and the default window is only used if neither is set, and the response does not require revalidation.
+     *
+     * See: http://tools.ietf.org/html/rfc5861#section-4
+     */
+    boolean allowStaleIfError(CacheItem item, HTTPRequest req, int defaultStaleIfError) {
+        HTTPResponse response = item.getResponse();
+        if (response.hasPayload() && !response.getPayload().isAvailable()) {
+            return false;
+        }
+        int staleIfError = -1;
+        CacheControl requestControl = req.getCacheControl();
+        if (requestControl != null) {
+            staleIfError = requestControl.getStaleIfError();
+        }
+        CacheControl responseControl = response.getCacheControl();
+        if (staleIfError < 0 && responseControl != null) {
+            staleIfError = responseControl.getStaleIfError();
+        }
+        if (staleIfError < 0) {
+            if (responseControl != null && (responseControl.isMustRevalidate() || responseControl.isProxyRevalidate())) {
+                return false;
+            }
+            staleIfError = defaultStaleIfError;
+        }
+        return staleIfError > -1 && item.getAge(req) - getTTL(item) <= staleIfError;
+    }
+
     HTTPResponse rewriteStaleResponse(HTTPRequest request, HTTPResponse cachedResponse, int age) {
         return rewriteResponse(request, cachedResponse, true, age, age < 0);
     }
@@ -162,6 +310,9 @@ class HTTPCacheHelper {
     }
 
     private HTTPResponse rewriteResponse(HTTPRequest request, HTTPResponse cachedResponse, boolean stale, int age, boolean hasBeenCached) {
+        if (isFreshHitWithoutConditionals(request, cachedResponse, stale, age)) {
+            return rewriteFreshHit(cachedResponse, age);
+        }
         HTTPResponse response = cachedResponse;
         Headers headers = cachedResponse.getHeaders();
         if (request.getMethod().isSafe()) {
@@ -208,6 +359,77 @@ class HTTPCacheHelper {
     }
 
 
+    /**
+     * Answers a GET with a Range header from a stored full response.
+     * The full response is returned if the Range header is invalid or asks for too many ranges,
+     * or if the If-Range validator does not match.
+     *
+     * See: http://tools.ietf.org/html/rfc7233
+     */
+    HTTPResponse rewriteRangeResponse(HTTPRequest request, HTTPResponse response) {
+        Headers requestHeaders = request.getHeaders();
+        if (request.getMethod() != HTTPMethod.GET || response.getStatus() != Status.OK || !response.hasPayload() || !requestHeaders.hasHeader(HeaderConstants.RANGE)) {
+            return response;
+        }
+        Payload payload = response.getPayload();
+        long length = payload.length();
+        if (length < 0 || !payload.isAvailable() || !isIfRangeMatching(requestHeaders.getFirstHeaderValue(HeaderConstants.IF_RANGE), response)) {
+            return response;
+        }
+        List<ByteRange> ranges = ByteRange.parse(requestHeaders.getFirstHeaderValue(HeaderConstants.RANGE), length);
+        if (ranges == null) {
+            return response;
+        }
+        Headers headers = response.getHeaders();
+        if (ranges.isEmpty()) {
+            headers = headers.set(HeaderConstants.CONTENT_RANGE, ByteRange.unsatisfiableContentRange(length)).remove(HeaderConstants.CONTENT_LENGTH);
+            return new HTTPResponse(null, Status.REQUESTED_RANGE_NOT_SATISFIABLE, headers);
+        }
+        ByteRangePayload rangePayload = new ByteRangePayload(payload, ranges);
+        if (ranges.size() == 1) {
+            headers = headers.set(HeaderConstants.CONTENT_RANGE, ranges.get(0).toContentRange(length));
+        }
+        headers = headers.set(HeaderConstants.CONTENT_TYPE, rangePayload.getMimeType().toString());
+        headers = headers.set(HeaderConstants.CONTENT_LENGTH, String.valueOf(rangePayload.length()));
+        return new HTTPResponse(rangePayload, Status.PARTIAL_CONTENT, headers);
+    }
+
+    private boolean isIfRangeMatching(String ifRange, HTTPResponse response) {
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            Tag tag = Tag.parse(ifRange);
+            // If-Range requires the strong comparison function
+            return tag != null && !tag.isWeak() && response.getETag() != null && !response.getETag().isWeak() && tag.equals(response.getETag());
+        }
+        DateTime date = HeaderUtils.parseGMTString(ifRange);
+        return date != null && date.equals(response.getLastModified());
+    }
+
+    private boolean isFreshHitWithoutConditionals(HTTPRequest request, HTTPResponse cachedResponse, boolean stale, int age) {
+        if (stale || age < 0 || request.getMethod() != HTTPMethod.GET) {
+            return false;
+        }
+        Headers requestHeaders = request.getHeaders();
+        return !requestHeaders.hasHeader(HeaderConstants.IF_NONE_MATCH) &&
+                !requestHeaders.hasHeader(HeaderConstants.IF_MODIFIED_SINCE) &&
+                !cachedResponse.getHeaders().hasHeader(HeaderConstants.X_CACHE);
+    }
+
+    /**
+     * The common case of a fresh hit: only X-Cache and Age are added, with a single copy of the headers,
+     * and the parsed fields of the cached response are reused.
+     */
+    private HTTPResponse rewriteFreshHit(HTTPResponse cachedResponse, int age) {
+        Headers headers = cachedResponse.getHeaders().set(Arrays.asList(
+                cacheHeaderBuilder.createHITXCacheHeader(),
+                new Header(HeaderConstants.AGE, String.valueOf(age))
+        ));
+        return cachedResponse.withHeaders(headers, true);
+    }
+
     boolean shouldBeStored(HTTPResponse response) {
         boolean hasValidator = response.getLastModified() != null || response.getETag() != null;
         boolean hasExpiry = response.getExpires() != null || (response.getCacheControl() != null && response.getCacheControl().getMaxAge() > 0);
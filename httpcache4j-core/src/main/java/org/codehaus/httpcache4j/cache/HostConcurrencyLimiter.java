@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.codehaus.httpcache4j.HTTPHost;
+import org.codehaus.httpcache4j.HTTPResponse;
+import org.codehaus.httpcache4j.resolver.ConnectionConfiguration;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+
+/**
+ * Limits how many requests are in flight per host, across all the batches submitted to it.
+ * Requests over the limit are queued, and started when a request to the same host completes.
+ * No threads are blocked while waiting, and requests which complete immediately do not start the next one recursively.
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+class HostConcurrencyLimiter {
+    static final int DEFAULT_CONNECTIONS_PER_HOST = 2;
+
+    private final Map<HTTPHost, Slot> slots = new HashMap<HTTPHost, Slot>();
+    private final ThreadLocal<Queue<Pending>> starting = new ThreadLocal<Queue<Pending>>();
+
+    static int getLimit(ConnectionConfiguration configuration, HTTPHost host) {
+        Integer limit = configuration.getConnectionsPerHost().get(host);
+        if (limit == null) {
+            limit = configuration.getDefaultConnectionsPerHost().or(DEFAULT_CONNECTIONS_PER_HOST);
+        }
+        return Math.max(1, limit);
+    }
+
+    /**
+     * @param limit the number of requests allowed in flight to the host, replacing the limit of earlier submits.
+     */
+    ListenableFuture<HTTPResponse> submit(HTTPHost host, int limit, Callable<ListenableFuture<HTTPResponse>> task) {
+        Pending pending = new Pending(host, task);
+        boolean start;
+        synchronized (slots) {
+            Slot slot = slots.get(host);
+            if (slot == null) {
+                slot = new Slot();
+                slots.put(host, slot);
+            }
+            slot.limit = limit;
+            start = slot.running < slot.limit;
+            if (start) {
+                slot.running++;
+            } else {
+                slot.pending.add(pending);
+            }
+        }
+        if (start) {
+            start(pending);
+        }
+        return pending.response;
+    }
+
+    int getRunning(HTTPHost host) {
+        synchronized (slots) {
+            Slot slot = slots.get(host);
+            return slot == null ? 0 : slot.running;
+        }
+    }
+
+    /**
+     * Starts the request, and any requests that are released while it is started on this thread, in a loop.
+     */
+    private void start(Pending pending) {
+        Queue<Pending> queue = starting.get();
+        if (queue != null) {
+            queue.add(pending);
+            return;
+        }
+        queue = new LinkedList<Pending>();
+        starting.set(queue);
+        try {
+            for (Pending next = pending; next != null; next = queue.poll()) {
+                run(next);
+            }
+        } finally {
+            starting.remove();
+        }
+    }
+
+    private void run(final Pending pending) {
+        ListenableFuture<HTTPResponse> response;
+        try {
+            response = pending.task.call();
+        } catch (Exception e) {
+            response = Futures.immediateFailedFuture(e);
+        }
+        Futures.addCallback(response, new FutureCallback<HTTPResponse>() {
+            public void onSuccess(HTTPResponse result) {
+                release(pending.host);
+                pending.response.set(result);
+            }
+
+            public void onFailure(Throwable t) {
+                release(pending.host);
+                pending.response.setException(t);
+            }
+        });
+    }
+
+    private void release(HTTPHost host) {
+        Pending next = null;
+        synchronized (slots) {
+            Slot slot = slots.get(host);
+            if (slot.running <= slot.limit) {
+                next = slot.pending.poll();
+            }
+            if (next == null) {
+                slot.running--;
+                if (slot.running == 0) {
+                    slots.remove(host);
+                }
+            }
+        }
+        if (next != null) {
+            start(next);
+        }
+    }
+
+    private static class Slot {
+        private final Queue<Pending> pending = new LinkedList<Pending>();
+        private int limit;
+        private int running;
+    }
+
+    private static class Pending {
+        private final HTTPHost host;
+        private final Callable<ListenableFuture<HTTPResponse>> task;
+        private final SettableFuture<HTTPResponse> response = SettableFuture.create();
+
+        private Pending(HTTPHost host, Callable<ListenableFuture<HTTPResponse>> task) {
+            this.host = host;
+            this.task = task;
+        }
+    }
+}
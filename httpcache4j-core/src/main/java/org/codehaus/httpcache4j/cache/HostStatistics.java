@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import org.codehaus.httpcache4j.util.LatencyHistogram;
+import org.codehaus.httpcache4j.util.StripedCounter;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Request counts and latencies for a single host.
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public class HostStatistics {
+    // Fewer stripes than the global histograms, as there is one per tracked host,
+    // but enough that a dominant host does not contend on a single set of buckets.
+    private static final int STRIPES = 4;
+    private final Map<CacheStatistics.Outcome, StripedCounter> outcomes = new EnumMap<CacheStatistics.Outcome, StripedCounter>(CacheStatistics.Outcome.class);
+    private final LatencyHistogram latency = new LatencyHistogram(STRIPES);
+
+    HostStatistics() {
+        for (CacheStatistics.Outcome outcome : CacheStatistics.Outcome.values()) {
+            outcomes.put(outcome, new StripedCounter());
+        }
+    }
+
+    public long getRequests() {
+        long requests = 0;
+        for (StripedCounter counter : outcomes.values()) {
+            requests += counter.sum();
+        }
+        return requests;
+    }
+
+    public long getCount(CacheStatistics.Outcome outcome) {
+        return outcomes.get(outcome).sum();
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    void record(CacheStatistics.Outcome outcome, long nanos) {
+        outcomes.get(outcome).increment();
+        latency.record(nanos);
+    }
+
+    void clear() {
+        for (StripedCounter counter : outcomes.values()) {
+            counter.reset();
+        }
+        latency.clear();
+    }
+}
@@ -16,14 +16,23 @@
 
 package org.codehaus.httpcache4j.cache;
 
+import com.google.common.base.Preconditions;
 import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.Closeables;
+import com.google.common.io.Files;
+import com.google.common.io.LimitInputStream;
 import org.codehaus.httpcache4j.HTTPRequest;
 import org.codehaus.httpcache4j.HTTPResponse;
 import org.codehaus.httpcache4j.payload.Payload;
 import org.codehaus.httpcache4j.payload.ByteArrayPayload;
+import org.codehaus.httpcache4j.payload.FilePayload;
+import org.codehaus.httpcache4j.util.DeletingFileFilter;
 import org.codehaus.httpcache4j.util.InvalidateOnRemoveLRUHashMap;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.SequenceInputStream;
 import java.net.URI;
 import java.util.*;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -33,24 +42,92 @@ import java.io.IOException;
 
 /**
  * In Memory implementation of a cache storage.
+ * The capacity is counted in URIs. The storage may also be bounded by the total weight of its entries,
+ * in which case the eldest URIs are evicted until it fits; the entry just stored is kept even if it alone is too heavy.
+ * Payloads larger than the spill threshold, if one is given, are kept in files instead of on the heap,
+ * and only their metadata counts towards the weight. They are read before the write lock is taken.
  *
  * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
  */
-public class MemoryCacheStorage implements CacheStorage {
+public class MemoryCacheStorage implements WeightedCacheStorage, CacheEventSource {
 
     protected final int capacity;
+    protected final long maxBytes;
+    private final Weigher weigher;
+    private final File spillDirectory;
+    private final long spillThreshold;
     protected InvalidateOnRemoveLRUHashMap cache;
     private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
     protected final Lock read = lock.readLock();
     protected final Lock write = lock.writeLock();
+    private volatile CacheEventListener eventListener;
+    private long weight;
 
     public MemoryCacheStorage() {
         this(1000);
     }
 
     protected MemoryCacheStorage(int capacity) {
+        this(capacity, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param capacity the maximum number of URIs.
+     * @param maxBytes the maximum total weight as estimated by {@link Weighers#bytes()}.
+     */
+    public MemoryCacheStorage(int capacity, long maxBytes) {
+        this(capacity, maxBytes, Weighers.bytes());
+    }
+
+    public MemoryCacheStorage(int capacity, long maxBytes, Weigher weigher) {
+        this(capacity, maxBytes, weigher, null, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param spillDirectory the directory for payloads larger than the threshold. Its contents are deleted.
+     * @param spillThreshold the largest payload, in bytes, which is kept on the heap.
+     */
+    public MemoryCacheStorage(int capacity, long maxBytes, File spillDirectory, long spillThreshold) {
+        this(capacity, maxBytes, Weighers.bytes(), Preconditions.checkNotNull(spillDirectory, "Spill directory may not be null"), spillThreshold);
+    }
+
+    public MemoryCacheStorage(int capacity, long maxBytes, Weigher weigher, File spillDirectory, long spillThreshold) {
+        Preconditions.checkArgument(maxBytes > 0, "Max bytes must be positive");
+        Preconditions.checkArgument(spillThreshold >= 0, "Spill threshold may not be negative");
         this.capacity = capacity;
-        cache = new InvalidateOnRemoveLRUHashMap(this.capacity);
+        this.maxBytes = maxBytes;
+        this.weigher = Preconditions.checkNotNull(weigher, "Weigher may not be null");
+        this.spillDirectory = spillDirectory;
+        this.spillThreshold = spillThreshold;
+        if (spillDirectory != null) {
+            if (!spillDirectory.exists() && !spillDirectory.mkdirs()) {
+                throw new IllegalArgumentException("Unable to create " + spillDirectory);
+            }
+            spillDirectory.listFiles(new DeletingFileFilter());
+        }
+        restore(new InvalidateOnRemoveLRUHashMap(this.capacity));
+    }
+
+    /**
+     * Replaces the stored entries, and evicts the eldest if they are too heavy.
+     * Must be called with the write lock held, or from a constructor.
+     */
+    protected final void restore(InvalidateOnRemoveLRUHashMap map) {
+        cache = map;
+        cache.setEvictionListener(new InvalidateOnRemoveLRUHashMap.EvictionListener() {
+            public void onEvict(Key key, CacheItem item) {
+                weight -= weigh(key, item);
+                afterRemove(key, item);
+                publish(CacheEvent.Type.EVICTED, key, item.getResponse());
+            }
+        });
+        weight = 0;
+        for (Map.Entry<URI, Map<Vary, CacheItem>> entry : cache.entrySet()) {
+            for (Map.Entry<Vary, CacheItem> variant : entry.getValue().entrySet()) {
+                weight += weigh(new Key(entry.getKey(), variant.getKey()), variant.getValue());
+            }
+        }
+        evictWhileTooHeavy(null);
     }
 
     private HTTPResponse rewriteResponse(Key key, HTTPResponse response) {
@@ -74,12 +151,17 @@ public class MemoryCacheStorage implements CacheStorage {
 
 
     public final HTTPResponse insert(final HTTPRequest request, final HTTPResponse response) {
-        write.lock();
         Key key = Key.create(request, response);
+        HTTPResponse cacheableResponse = spillDirectory != null ? rewriteResponse(key, response) : null;
+        write.lock();
         try {
             invalidate(key);
-            HTTPResponse cacheableResponse = rewriteResponse(key, response);
-            return putImpl(key, cacheableResponse);
+            if (cacheableResponse == null) {
+                cacheableResponse = rewriteResponse(key, response);
+            }
+            HTTPResponse stored = putImpl(key, cacheableResponse);
+            publish(CacheEvent.Type.STORED, key, stored);
+            return stored;
         } finally {
             write.unlock();
         }
@@ -92,20 +174,80 @@ public class MemoryCacheStorage implements CacheStorage {
             varyCacheItemMap = new HashMap<Vary, CacheItem>();
             cache.put(pKey.getURI(), varyCacheItemMap);
         }
-        varyCacheItemMap.put(pKey.getVary(), item);
+        CacheItem previous = varyCacheItemMap.put(pKey.getVary(), item);
+        weight += weigh(pKey, item) - (previous == null ? 0 : weigh(pKey, previous));
+        if (previous != null && previous.getResponse().getPayload() != pCacheableResponse.getPayload()) {
+            afterRemove(pKey, previous);
+        }
+        evictWhileTooHeavy(pKey.getURI());
         return pCacheableResponse;
     }
 
+    private void evictWhileTooHeavy(URI keep) {
+        Iterator<Map.Entry<URI, Map<Vary, CacheItem>>> iterator = cache.entrySet().iterator();
+        while (weight > maxBytes && iterator.hasNext()) {
+            Map.Entry<URI, Map<Vary, CacheItem>> eldest = iterator.next();
+            if (eldest.getKey().equals(keep)) {
+                continue;
+            }
+            evict(eldest);
+            iterator = cache.entrySet().iterator();
+        }
+    }
+
+    /**
+     * Evicts all variants of the eldest URI. Must be called with the write lock held.
+     *
+     * @return {@code false} if the storage was empty.
+     */
+    protected final boolean evictEldest() {
+        Iterator<Map.Entry<URI, Map<Vary, CacheItem>>> iterator = cache.entrySet().iterator();
+        if (!iterator.hasNext()) {
+            return false;
+        }
+        evict(iterator.next());
+        return true;
+    }
+
+    private void evict(Map.Entry<URI, Map<Vary, CacheItem>> entry) {
+        for (Map.Entry<Vary, CacheItem> variant : new ArrayList<Map.Entry<Vary, CacheItem>>(entry.getValue().entrySet())) {
+            Key key = new Key(entry.getKey(), variant.getKey());
+            invalidate(key);
+            publish(CacheEvent.Type.EVICTED, key, variant.getValue().getResponse());
+        }
+    }
+
+    private long weigh(Key key, CacheItem item) {
+        HTTPResponse response = item.getResponse();
+        if (isSpilled(item)) {
+            return weigher.weigh(key, response.withPayload(null));
+        }
+        return weigher.weigh(key, response);
+    }
+
     protected CacheItem createCacheItem(HTTPResponse pCacheableResponse) {
         return new DefaultCacheItem(pCacheableResponse);
     }
 
     public final HTTPResponse update(final HTTPRequest request, final HTTPResponse response) {
         Key key = Key.create(request, response);
-        return putImpl(key, response);
+        write.lock();
+        try {
+            HTTPResponse updated = putImpl(key, response);
+            publish(CacheEvent.Type.UPDATED, key, updated);
+            return updated;
+        } finally {
+            write.unlock();
+        }
     }
 
+    /**
+     * Called with the write lock held, or before it is taken if the storage spills.
+     */
     protected Payload createPayload(Key key, Payload payload, InputStream stream) throws IOException {
+        if (spillDirectory != null) {
+            return bufferOrSpill(payload, stream);
+        }
         ByteArrayPayload p = new ByteArrayPayload(stream, payload.getMimeType());
         if (p.isAvailable()) {
             return p;
@@ -113,6 +255,39 @@ public class MemoryCacheStorage implements CacheStorage {
         return null;
     }
 
+    /**
+     * Spills the payload if its length is known to be above the threshold, otherwise reads no more than
+     * the threshold into memory before deciding.
+     */
+    private Payload bufferOrSpill(Payload payload, InputStream stream) throws IOException {
+        if (payload.length() > spillThreshold) {
+            return spill(payload, stream);
+        }
+        byte[] head = ByteStreams.toByteArray(new LimitInputStream(stream, spillThreshold + 1));
+        if (head.length > spillThreshold) {
+            return spill(payload, new SequenceInputStream(new ByteArrayInputStream(head), stream));
+        }
+        return head.length > 0 ? new ByteArrayPayload(head, payload.getMimeType()) : null;
+    }
+
+    /**
+     * Each spill gets a file of its own, so that a response being stored never overwrites one being read.
+     */
+    private Payload spill(Payload payload, InputStream stream) throws IOException {
+        File file = File.createTempFile("spill", null, spillDirectory);
+        try {
+            ByteStreams.copy(stream, Files.newOutputStreamSupplier(file));
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+        if (file.length() == 0) {
+            file.delete();
+            return null;
+        }
+        return new FilePayload(file, payload.getMimeType());
+    }
+
     public final CacheItem get(HTTPRequest request) {
         read.lock();
 
@@ -124,7 +299,7 @@ public class MemoryCacheStorage implements CacheStorage {
             else {
                 for (Map.Entry<Vary, CacheItem> entry : varyCacheItemMap.entrySet()) {
                     if (entry.getKey().matches(request)) {
-                        return entry.getValue();
+                        return afterGet(entry.getValue());
                     }
                 }
             }
@@ -143,7 +318,10 @@ public class MemoryCacheStorage implements CacheStorage {
                 Set<Vary> vary = new HashSet<Vary>(varyCacheItemMap.keySet());
                 for (Vary v : vary) {
                     Key key = new Key(uri, v);
-                    cache.remove(key);
+                    CacheItem item = invalidate(key);
+                    if (item != null) {
+                        publish(CacheEvent.Type.INVALIDATED, key, item.getResponse());
+                    }
                 }
             }
         } finally {
@@ -156,17 +334,25 @@ public class MemoryCacheStorage implements CacheStorage {
 
         try {
             Map<Vary, CacheItem> varyCacheItemMap = cache.get(key.getURI());
-            if (varyCacheItemMap != null) {
-                return varyCacheItemMap.get(key.getVary());
-            }
-            return null;
+            CacheItem item = varyCacheItemMap == null ? null : varyCacheItemMap.get(key.getVary());
+            return item == null ? null : afterGet(item);
         } finally {
             read.unlock();
         }
     }
 
-    private void invalidate(Key key) {
+    private CacheItem invalidate(Key key) {
+        Map<Vary, CacheItem> varyCacheItemMap = cache.get(key.getURI());
+        CacheItem item = varyCacheItemMap == null ? null : varyCacheItemMap.get(key.getVary());
+        if (item != null) {
+            // Weighed before removal, which may delete the payload.
+            weight -= weigh(key, item);
+        }
         cache.remove(key);
+        if (item != null) {
+            afterRemove(key, item);
+        }
+        return item;
     }
 
     public final void clear() {
@@ -175,8 +361,13 @@ public class MemoryCacheStorage implements CacheStorage {
         try {
             Set<URI> uris = new HashSet<URI>(cache.keySet());
             for (URI uri : uris) {
+                for (Map.Entry<Vary, CacheItem> variant : cache.get(uri).entrySet()) {
+                    afterRemove(new Key(uri, variant.getKey()), variant.getValue());
+                }
                 cache.remove(uri);
             }
+            cache.clear();
+            weight = 0;
             afterClear();
         } finally {
             write.unlock();
@@ -187,6 +378,64 @@ public class MemoryCacheStorage implements CacheStorage {
     protected void afterClear() {
     }
 
+    /**
+     * Called with the read lock held for every item returned by {@code get}.
+     *
+     * @return the item to return, by default the stored item.
+     */
+    protected CacheItem afterGet(CacheItem item) {
+        return item;
+    }
+
+    /**
+     * Called with the write lock held when an item is no longer stored, unless its payload was kept
+     * by the item replacing it.
+     */
+    protected void afterRemove(Key key, CacheItem item) {
+        if (isSpilled(item)) {
+            // The item replacing this one may use the same file.
+            CacheItem stored = getStored(key);
+            File file = spillFile(item);
+            if (stored == item || !file.equals(spillFile(stored))) {
+                file.delete();
+            }
+        }
+    }
+
+    private boolean isSpilled(CacheItem item) {
+        return spillFile(item) != null;
+    }
+
+    private File spillFile(CacheItem item) {
+        Payload payload = item == null || spillDirectory == null ? null : item.getResponse().getPayload();
+        if (payload instanceof FilePayload) {
+            File file = ((FilePayload) payload).getFile();
+            if (spillDirectory.equals(file.getParentFile())) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the stored item, without calling {@link #afterGet(CacheItem)}. Must be called with a lock held.
+     */
+    protected final CacheItem getStored(Key key) {
+        Map<Vary, CacheItem> varyCacheItemMap = cache.get(key.getURI());
+        return varyCacheItemMap == null ? null : varyCacheItemMap.get(key.getVary());
+    }
+
+    public void setEventListener(final CacheEventListener listener) {
+        eventListener = listener;
+    }
+
+    protected void publish(CacheEvent.Type type, Key key, HTTPResponse response) {
+        CacheEventListener listener = eventListener;
+        if (listener != null) {
+            listener.onEvent(new CacheEvent(type, key, CacheEvent.sizeOf(response)));
+        }
+    }
+
     public final int size() {
         read.lock();
         try {
@@ -200,6 +449,19 @@ public class MemoryCacheStorage implements CacheStorage {
         }
     }
 
+    public final long getWeight() {
+        read.lock();
+        try {
+            return weight;
+        } finally {
+            read.unlock();
+        }
+    }
+
+    public final long getMaximumWeight() {
+        return maxBytes;
+    }
+
     public final Iterator<Key> iterator() {
         read.lock();
         try {
@@ -15,50 +15,43 @@
 
 package org.codehaus.httpcache4j.cache;
 
-import java.util.Set;
-import java.util.concurrent.CopyOnWriteArraySet;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
+ * Per-key lock used to coalesce concurrent requests for the same resource.
+ * Each key that is held has its own future which completes on release, so releasing a key only wakes the threads waiting for that key,
+ * and threads working on different keys never contend with each other.
+ *
  * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
  * @author <a href="mailto:erik@mogensoft.net">Erik Mogensen</p>
  * @version $Revision: $
  */
 class Mutex<T> {
-    private final Set<T> locks = new CopyOnWriteArraySet<T>();
-    private Lock lock = new ReentrantLock();
-    private Condition condition = lock.newCondition();
+    private final ConcurrentMap<T, SettableFuture<Void>> locks = new ConcurrentHashMap<T, SettableFuture<Void>>();
     private final Logger logger = Logger.getLogger(getClass().getName());
 
+    /**
+     * Blocks until the lock for the given key is held by the calling thread.
+     *
+     * @param object the key to lock
+     * @return {@code true} if the lock was acquired, {@code false} if the thread was interrupted while waiting.
+     */
     public boolean acquire(T object) {
         if (logger.isLoggable(Level.FINEST)) {
             logger.finest(String.format("About to acquire lock for %s", object));
         }
-        lock.lock();
-        try {
-            while (locks.contains(object)) {
-                try {
-                    condition.await();
-                } catch (InterruptedException e) {
-                    if (logger.isLoggable(Level.WARNING)) {
-                        logger.warning(String.format("Thread trying to get lock for %s was interrupted", object));
-                    }
-                    Thread.currentThread().interrupt();
-                    locks.remove(object);
-                    return false;
-                }
+        while (!tryAcquire(object)) {
+            if (!await(object)) {
+                return false;
             }
-            if (logger.isLoggable(Level.FINE)) {
-                logger.fine(String.format("Adding %s to locks", object));
-            }
-            locks.add(object);
-        }
-        finally {
-            lock.unlock();
         }
         if (logger.isLoggable(Level.FINEST)) {
             logger.finest(String.format("Acquired lock for %s", object));
@@ -66,21 +59,73 @@ class Mutex<T> {
         return true;
     }
 
+    /**
+     * Acquires the lock for the given key if no other thread holds it.
+     *
+     * @param object the key to lock
+     * @return {@code true} if the calling thread now holds the lock.
+     */
+    public boolean tryAcquire(T object) {
+        if (locks.containsKey(object)) {
+            return false;
+        }
+        boolean acquired = locks.putIfAbsent(object, SettableFuture.<Void>create()) == null;
+        if (acquired && logger.isLoggable(Level.FINE)) {
+            logger.fine(String.format("Adding %s to locks", object));
+        }
+        return acquired;
+    }
+
+    /**
+     * Waits until the current holder of the given key releases it, without acquiring the lock.
+     * Returns immediately if the key is not held.
+     *
+     * @param object the key to wait for
+     * @return {@code true} if the key was released, {@code false} if the thread was interrupted while waiting.
+     */
+    public boolean await(T object) {
+        SettableFuture<Void> released = locks.get(object);
+        if (released != null) {
+            try {
+                released.get();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            } catch (InterruptedException e) {
+                if (logger.isLoggable(Level.WARNING)) {
+                    logger.warning(String.format("Thread trying to get lock for %s was interrupted", object));
+                }
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a future which completes when the current holder of the given key releases it.
+     * This lets callers that must not block continue once the key is free.
+     *
+     * @param object the key to wait for
+     * @return a future which completes on release, or an already completed future if the key is not held.
+     */
+    public ListenableFuture<Void> whenReleased(T object) {
+        SettableFuture<Void> released = locks.get(object);
+        if (released != null) {
+            return released;
+        }
+        return Futures.immediateFuture(null);
+    }
+
     public void release(T object) {
         if (logger.isLoggable(Level.FINEST)) {
             logger.finest(String.format("About to release lock for %s", object));
         }
-        lock.lock();
-        try {
-            if (locks.remove(object)) {
-                if (logger.isLoggable(Level.FINE)) {
-                    logger.fine(String.format("Removing %s from locks", object));
-                }
-                condition.signalAll();
+        SettableFuture<Void> released = locks.remove(object);
+        if (released != null) {
+            if (logger.isLoggable(Level.FINE)) {
+                logger.fine(String.format("Removing %s from locks", object));
             }
-
-        } finally {
-            lock.unlock();
+            released.set(null);
         }
         if (logger.isLoggable(Level.FINEST)) {
             logger.finest(String.format("Released lock for %s", object));
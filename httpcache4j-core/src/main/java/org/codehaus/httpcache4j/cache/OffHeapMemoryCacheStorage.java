@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+
+package org.codehaus.httpcache4j.cache;
+
+import com.google.common.io.ByteStreams;
+import org.codehaus.httpcache4j.HTTPResponse;
+import org.codehaus.httpcache4j.payload.ByteArrayPayload;
+import org.codehaus.httpcache4j.payload.Payload;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In memory storage which keeps payloads in direct memory, so that only keys and metadata are on the Java heap.
+ * <p/>
+ * Payloads are copied into chunks from slabs of direct memory, bounded by {@code maxDirectMemory}.
+ * When no chunk of the needed size is free, the eldest entries are evicted until one is.
+ * Slabs are assigned to a size class for good, so a storage whose mix of payload sizes changes may
+ * have to evict more than the bytes it needs; if evicting everything does not help, the payload is kept on the heap.
+ * <p/>
+ * Payloads are reference counted, and every item returned by {@code get} holds a reference until its payload has
+ * been read or consumed, so a payload looked up before its entry is evicted stays readable.
+ * Streams must be closed or read to the end, and responses which are not read should be consumed;
+ * otherwise their memory is not reused until the response is garbage collected.
+ * The JVM must allow at least {@code maxDirectMemory}, see {@code -XX:MaxDirectMemorySize}.
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public class OffHeapMemoryCacheStorage extends MemoryCacheStorage {
+    private final SlabAllocator allocator;
+    private final AtomicLong heapPayloads = new AtomicLong();
+    // Payloads are copied with the write lock held, so one buffer is enough.
+    private final byte[] buffer = new byte[SlabAllocator.MAX_CHUNK];
+
+    /**
+     * @param capacity the maximum number of URIs.
+     * @param maxDirectMemory the maximum bytes of direct memory to reserve for payloads, at least one slab of 1 MB.
+     */
+    public OffHeapMemoryCacheStorage(int capacity, long maxDirectMemory) {
+        this(capacity, Long.MAX_VALUE, maxDirectMemory);
+    }
+
+    /**
+     * @param capacity the maximum number of URIs.
+     * @param maxBytes the maximum total weight as estimated by {@link Weighers#bytes()}.
+     * @param maxDirectMemory the maximum bytes of direct memory to reserve for payloads, at least one slab of 1 MB.
+     */
+    public OffHeapMemoryCacheStorage(int capacity, long maxBytes, long maxDirectMemory) {
+        super(capacity, maxBytes);
+        allocator = new SlabAllocator(maxDirectMemory);
+    }
+
+    @Override
+    protected Payload createPayload(Key key, Payload payload, InputStream stream) throws IOException {
+        List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+        long length = 0;
+        int read;
+        while ((read = ByteStreams.read(stream, buffer, 0, buffer.length)) > 0) {
+            ByteBuffer chunk = allocate(read);
+            if (chunk == null) {
+                return onHeap(chunks, read, stream, payload);
+            }
+            chunk.put(buffer, 0, read);
+            chunk.flip();
+            chunks.add(chunk);
+            length += read;
+        }
+        return new OffHeapPayload(allocator, payload.getMimeType(), chunks, length);
+    }
+
+    private ByteBuffer allocate(int size) {
+        ByteBuffer chunk = allocator.allocate(size);
+        while (chunk == null && evictEldest()) {
+            chunk = allocator.allocate(size);
+        }
+        return chunk;
+    }
+
+    private Payload onHeap(List<ByteBuffer> chunks, int read, InputStream stream, Payload payload) throws IOException {
+        heapPayloads.incrementAndGet();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (ByteBuffer chunk : chunks) {
+            byte[] copy = new byte[chunk.remaining()];
+            chunk.get(copy);
+            bytes.write(copy);
+            allocator.free(chunk);
+        }
+        bytes.write(buffer, 0, read);
+        ByteStreams.copy(stream, bytes);
+        return new ByteArrayPayload(new ByteArrayInputStream(bytes.toByteArray()), payload.getMimeType());
+    }
+
+    /**
+     * Stores the payload a response from {@code get} was leased from, and returns the response with a lease.
+     */
+    @Override
+    protected HTTPResponse putImpl(Key key, HTTPResponse response) {
+        Payload payload = response.getPayload();
+        if (payload instanceof OffHeapPayload.Lease) {
+            OffHeapPayload leased = ((OffHeapPayload.Lease) payload).getPayload();
+            CacheItem previous = getStored(key);
+            // The storage's reference moves over from the item being replaced, or is taken anew.
+            if (previous == null || previous.getResponse().getPayload() != leased) {
+                if (!leased.retain()) {
+                    return response;
+                }
+            }
+            super.putImpl(key, response.withPayload(leased));
+            return response;
+        }
+        HTTPResponse stored = super.putImpl(key, response);
+        if (payload instanceof OffHeapPayload) {
+            return stored.withPayload(((OffHeapPayload) payload).lease());
+        }
+        return stored;
+    }
+
+    @Override
+    protected CacheItem afterGet(CacheItem item) {
+        HTTPResponse response = item.getResponse();
+        if (response.hasPayload() && response.getPayload() instanceof OffHeapPayload) {
+            OffHeapPayload payload = (OffHeapPayload) response.getPayload();
+            return new DefaultCacheItem(response.withPayload(payload.lease()), item.getCachedTime());
+        }
+        return item;
+    }
+
+    @Override
+    protected void afterRemove(Key key, CacheItem item) {
+        HTTPResponse response = item.getResponse();
+        if (response.hasPayload() && response.getPayload() instanceof OffHeapPayload) {
+            ((OffHeapPayload) response.getPayload()).release();
+        }
+    }
+
+    /**
+     * @return the bytes of direct memory reserved for payloads.
+     */
+    public long getDirectMemoryReserved() {
+        return allocator.getReserved();
+    }
+
+    /**
+     * @return the bytes of direct memory held by stored payloads and open streams.
+     */
+    public long getDirectMemoryUsed() {
+        return allocator.getUsed();
+    }
+
+    public long getMaxDirectMemory() {
+        return allocator.getMaxBytes();
+    }
+
+    /**
+     * @return the number of payloads kept on the heap because no direct memory could be freed for them.
+     */
+    public long getHeapPayloads() {
+        return heapPayloads.get();
+    }
+}
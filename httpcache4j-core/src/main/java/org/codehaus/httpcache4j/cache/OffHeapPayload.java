@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+
+package org.codehaus.httpcache4j.cache;
+
+import org.codehaus.httpcache4j.MIMEType;
+import org.codehaus.httpcache4j.payload.Payload;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A payload held in chunks of direct memory from a {@link SlabAllocator}.
+ * The storage holds one reference, every {@link Lease} another until its first stream is done, and every open
+ * stream another until it is closed or read to the end; the chunks go back to the allocator when the last
+ * reference is released. A payload looked up before its entry is evicted can therefore be read to the end.
+ * Once released, {@link #getInputStream()} returns a stream which fails when read.
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+final class OffHeapPayload implements Payload {
+    private final SlabAllocator allocator;
+    private final MIMEType mimeType;
+    private final ByteBuffer[] chunks;
+    private final long length;
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    OffHeapPayload(SlabAllocator allocator, MIMEType mimeType, List<ByteBuffer> chunks, long length) {
+        this.allocator = allocator;
+        this.mimeType = mimeType;
+        this.chunks = chunks.toArray(new ByteBuffer[chunks.size()]);
+        this.length = length;
+    }
+
+    public MIMEType getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * @return a stream which releases its reference when closed or read to the end.
+     */
+    public InputStream getInputStream() {
+        if (!retain()) {
+            return new ReleasedInputStream();
+        }
+        return new ChunkInputStream();
+    }
+
+    /**
+     * Must be called while a reference is known to be held, e.g. with the storage's lock held.
+     *
+     * @return a view of this payload which keeps it from being freed until the view's first stream is done.
+     */
+    Lease lease() {
+        if (!retain()) {
+            throw new IllegalStateException("Payload has been released");
+        }
+        return new Lease();
+    }
+
+    public long length() {
+        return length;
+    }
+
+    public boolean isAvailable() {
+        return references.get() > 0;
+    }
+
+    boolean retain() {
+        while (true) {
+            int count = references.get();
+            if (count <= 0) {
+                return false;
+            }
+            if (references.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Releases a reference, and frees the chunks if it was the last.
+     */
+    void release() {
+        if (references.decrementAndGet() == 0) {
+            for (ByteBuffer chunk : chunks) {
+                allocator.free(chunk);
+            }
+        }
+    }
+
+    /**
+     * The payload of an item returned by the storage. Its reference is handed to its first stream, and released
+     * when it is garbage collected if no stream was ever opened.
+     */
+    final class Lease implements Payload {
+        private final AtomicBoolean held = new AtomicBoolean(true);
+
+        private Lease() {
+        }
+
+        OffHeapPayload getPayload() {
+            return OffHeapPayload.this;
+        }
+
+        public MIMEType getMimeType() {
+            return mimeType;
+        }
+
+        public InputStream getInputStream() {
+            if (held.compareAndSet(true, false)) {
+                return new ChunkInputStream();
+            }
+            return OffHeapPayload.this.getInputStream();
+        }
+
+        public long length() {
+            return length;
+        }
+
+        public boolean isAvailable() {
+            return held.get() || OffHeapPayload.this.isAvailable();
+        }
+
+        @Override
+        protected void finalize() throws Throwable {
+            try {
+                if (held.compareAndSet(true, false)) {
+                    release();
+                }
+            } finally {
+                super.finalize();
+            }
+        }
+    }
+
+    private static class ReleasedInputStream extends InputStream {
+        @Override
+        public int read() throws IOException {
+            throw new IOException("Payload has been evicted");
+        }
+    }
+
+    private class ChunkInputStream extends InputStream {
+        private final ByteBuffer[] views = new ByteBuffer[chunks.length];
+        private int index = 0;
+        private boolean closed = false;
+        private boolean released = false;
+
+        private ChunkInputStream() {
+            for (int i = 0; i < chunks.length; i++) {
+                views[i] = chunks[i].duplicate();
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            ByteBuffer view = current();
+            return view == null ? -1 : view.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int count) throws IOException {
+            if (count == 0) {
+                return 0;
+            }
+            ByteBuffer view = current();
+            if (view == null) {
+                return -1;
+            }
+            int read = Math.min(count, view.remaining());
+            view.get(bytes, offset, read);
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = 0;
+            ByteBuffer view;
+            while (skipped < count && (view = current()) != null) {
+                int step = (int) Math.min(count - skipped, view.remaining());
+                view.position(view.position() + step);
+                skipped += step;
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            ByteBuffer view = current();
+            return view == null ? 0 : view.remaining();
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            releaseOnce();
+        }
+
+        private ByteBuffer current() throws IOException {
+            if (closed) {
+                throw new IOException("Stream is closed");
+            }
+            if (released) {
+                return null;
+            }
+            while (index < views.length && !views[index].hasRemaining()) {
+                index++;
+            }
+            if (index < views.length) {
+                return views[index];
+            }
+            releaseOnce();
+            return null;
+        }
+
+        private void releaseOnce() {
+            if (!released) {
+                released = true;
+                release();
+            }
+        }
+    }
+}
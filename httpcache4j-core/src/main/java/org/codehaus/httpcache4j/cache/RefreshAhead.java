@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import org.codehaus.httpcache4j.HTTPRequest;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides when a fresh cache hit should be revalidated before it expires.
+ * An entry is refreshed when its remaining time to live drops below a fraction of its TTL,
+ * and it has been read at least a minimum number of times since it was last refreshed.
+ * Entries that are not read within the access window are forgotten.
+ * Reads are counted per request URI, so that no key has to be built for a hit.
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public class RefreshAhead {
+    private final double refreshFraction;
+    private final int minimumHits;
+    private final LoadingCache<URI, AtomicInteger> hits;
+
+    public RefreshAhead() {
+        this(0.2, 2, 60, 10000);
+    }
+
+    /**
+     * @param refreshFraction the fraction of the TTL left when a refresh is triggered, between 0 and 1.
+     * @param minimumHits the number of reads needed before an entry is refreshed.
+     * @param accessWindowInSeconds how long an entry is tracked after it was last read.
+     * @param maximumTrackedEntries the maximum number of entries tracked.
+     */
+    public RefreshAhead(double refreshFraction, int minimumHits, int accessWindowInSeconds, int maximumTrackedEntries) {
+        Preconditions.checkArgument(refreshFraction > 0 && refreshFraction < 1, "Refresh fraction must be between 0 and 1");
+        Preconditions.checkArgument(minimumHits > 0, "Minimum hits must be positive");
+        this.refreshFraction = refreshFraction;
+        this.minimumHits = minimumHits;
+        this.hits = CacheBuilder.newBuilder()
+                .expireAfterAccess(accessWindowInSeconds, TimeUnit.SECONDS)
+                .maximumSize(maximumTrackedEntries)
+                .build(new CacheLoader<URI, AtomicInteger>() {
+                    @Override
+                    public AtomicInteger load(URI uri) {
+                        return new AtomicInteger();
+                    }
+                });
+    }
+
+    public double getRefreshFraction() {
+        return refreshFraction;
+    }
+
+    public int getMinimumHits() {
+        return minimumHits;
+    }
+
+    /**
+     * Records a read of a fresh item.
+     *
+     * @param ttl the freshness lifetime of the item, including heuristic lifetimes.
+     * @return {@code true} if the item should be revalidated now.
+     */
+    boolean onHit(HTTPRequest request, CacheItem item, int ttl) {
+        if (ttl <= 0) {
+            return false;
+        }
+        URI uri = request.getRequestURI();
+        int count = hits.getUnchecked(uri).incrementAndGet();
+        if (count < minimumHits) {
+            return false;
+        }
+        int remaining = ttl - item.getAge(request);
+        if (remaining > 0 && remaining <= ttl * refreshFraction) {
+            hits.invalidate(uri);
+            return true;
+        }
+        return false;
+    }
+
+    void clear() {
+        hits.invalidateAll();
+    }
+}
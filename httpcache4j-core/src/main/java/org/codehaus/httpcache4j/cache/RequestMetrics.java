@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import org.codehaus.httpcache4j.HTTPRequest;
+import org.codehaus.httpcache4j.HTTPResponse;
+import org.codehaus.httpcache4j.Status;
+import org.codehaus.httpcache4j.Timeline;
+
+import java.net.URI;
+
+/**
+ * Tracks a single request through the cache, until its outcome is recorded in {@link CacheStatistics}.
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+final class RequestMetrics {
+    private final HTTPRequest request;
+    private final URI uri;
+    private final long start = System.nanoTime();
+    private final Timeline timeline;
+    // Async responses complete on the resolver's threads.
+    private volatile CacheStatistics.Outcome outcome = CacheStatistics.Outcome.MISS;
+
+    RequestMetrics(HTTPRequest request) {
+        this(request, false);
+    }
+
+    RequestMetrics(HTTPRequest request, boolean recordTimeline) {
+        this.request = request;
+        this.uri = request.getNormalizedURI();
+        this.timeline = recordTimeline ? new Timeline(start) : null;
+    }
+
+    /**
+     * @return the timeline, or {@code null} if timelines are disabled.
+     */
+    Timeline getTimeline() {
+        return timeline;
+    }
+
+    /**
+     * @return the start of a phase, without reading the clock if timelines are disabled.
+     */
+    long begin() {
+        return timeline != null ? System.nanoTime() : 0;
+    }
+
+    void end(Timeline.Phase phase, long begin) {
+        if (timeline != null) {
+            timeline.record(phase, begin, System.nanoTime());
+        }
+    }
+
+    HTTPRequest getRequest() {
+        return request;
+    }
+
+    URI getURI() {
+        return uri;
+    }
+
+    CacheStatistics.Outcome getOutcome() {
+        return outcome;
+    }
+
+    /**
+     * @return the outcome, or {@link CacheStatistics.Outcome#ERROR} if the response is a server error.
+     */
+    CacheStatistics.Outcome getOutcome(HTTPResponse response) {
+        if (response.getStatus().getCategory() == Status.Category.SERVER_ERROR) {
+            return CacheStatistics.Outcome.ERROR;
+        }
+        return outcome;
+    }
+
+    void setOutcome(CacheStatistics.Outcome outcome) {
+        this.outcome = outcome;
+    }
+
+    long elapsed() {
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,421 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.Closeables;
+import org.codehaus.httpcache4j.HTTPRequest;
+import org.codehaus.httpcache4j.HTTPResponse;
+import org.codehaus.httpcache4j.payload.ByteArrayPayload;
+import org.codehaus.httpcache4j.payload.Payload;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * In memory cache storage for many concurrent threads.
+ * <p/>
+ * Entries are spread over segments by URI, so all variants of a URI live in the same segment.
+ * Reads take no locks. Writes lock a single segment, and response bodies are buffered before the lock is taken.
+ * Each segment evicts its least recently used entries when it holds more than its share of the capacity or
+ * of the maximum weight; the entry just stored is kept even if it alone is too heavy.
+ * Reads are recorded in a bounded buffer per segment, which is applied to the recency order by the next write.
+ * If the buffer is full a read is dropped from the order rather than blocking.
+ * <p/>
+ * Unlike {@link MemoryCacheStorage}, the capacity is counted in entries, not URIs.
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public class SegmentedMemoryCacheStorage implements WeightedCacheStorage, CacheEventSource {
+    private static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+    private static final int READ_BUFFER_SIZE = 64;
+    private static final Node[] NO_NODES = new Node[0];
+
+    private final Segment[] segments;
+    private final int segmentMask;
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong weight = new AtomicLong();
+    private final long maxBytes;
+    private final Weigher weigher;
+    private volatile CacheEventListener eventListener;
+
+    public SegmentedMemoryCacheStorage() {
+        this(1000);
+    }
+
+    public SegmentedMemoryCacheStorage(int capacity) {
+        this(capacity, DEFAULT_CONCURRENCY_LEVEL);
+    }
+
+    /**
+     * @param capacity the maximum number of entries.
+     * @param concurrencyLevel the number of threads expected to write at the same time,
+     * rounded down to a power of two segments. Each segment holds at most its share of the capacity.
+     */
+    public SegmentedMemoryCacheStorage(int capacity, int concurrencyLevel) {
+        this(capacity, concurrencyLevel, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param maxBytes the maximum total weight as estimated by {@link Weighers#bytes()}, split evenly between the segments.
+     */
+    public SegmentedMemoryCacheStorage(int capacity, int concurrencyLevel, long maxBytes) {
+        this(capacity, concurrencyLevel, maxBytes, Weighers.bytes());
+    }
+
+    public SegmentedMemoryCacheStorage(int capacity, int concurrencyLevel, long maxBytes, Weigher weigher) {
+        Preconditions.checkArgument(capacity > 0, "Capacity must be positive");
+        Preconditions.checkArgument(concurrencyLevel > 0, "Concurrency level must be positive");
+        Preconditions.checkArgument(maxBytes > 0, "Max bytes must be positive");
+        this.maxBytes = maxBytes;
+        this.weigher = Preconditions.checkNotNull(weigher, "Weigher may not be null");
+        int count = Integer.highestOneBit(Math.min(concurrencyLevel, capacity));
+        segments = new Segment[count];
+        int segmentCapacity = (capacity + count - 1) / count;
+        long segmentWeight = maxBytes / count + (maxBytes % count == 0 ? 0 : 1);
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment(segmentCapacity, segmentWeight);
+        }
+        segmentMask = count - 1;
+    }
+
+    public HTTPResponse insert(HTTPRequest request, HTTPResponse response) {
+        Key key = Key.create(request, response);
+        HTTPResponse stored = buffer(response);
+        List<Node> evicted = segmentFor(key.getURI()).put(key, new DefaultCacheItem(stored), weigher.weigh(key, stored));
+        publish(CacheEvent.Type.STORED, key, stored);
+        publishEvicted(evicted);
+        return stored;
+    }
+
+    public HTTPResponse update(HTTPRequest request, HTTPResponse response) {
+        Key key = Key.create(request, response);
+        List<Node> evicted = segmentFor(key.getURI()).put(key, new DefaultCacheItem(response), weigher.weigh(key, response));
+        publish(CacheEvent.Type.UPDATED, key, response);
+        publishEvicted(evicted);
+        return response;
+    }
+
+    public CacheItem get(Key key) {
+        Segment segment = segmentFor(key.getURI());
+        for (Node node : segment.nodes(key.getURI())) {
+            if (node.key.getVary().equals(key.getVary())) {
+                segment.recordRead(node);
+                return node.item;
+            }
+        }
+        return null;
+    }
+
+    public CacheItem get(HTTPRequest request) {
+        URI uri = request.getNormalizedURI();
+        Segment segment = segmentFor(uri);
+        for (Node node : segment.nodes(uri)) {
+            if (node.key.getVary().matches(request)) {
+                segment.recordRead(node);
+                return node.item;
+            }
+        }
+        return null;
+    }
+
+    public void invalidate(URI uri) {
+        for (Node node : segmentFor(uri).remove(uri)) {
+            publish(CacheEvent.Type.INVALIDATED, node.key, node.item.getResponse());
+        }
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    public long getWeight() {
+        return weight.get();
+    }
+
+    public long getMaximumWeight() {
+        return maxBytes;
+    }
+
+    /**
+     * @return the keys at the time of the call. Entries added or removed while iterating may or may not be included.
+     */
+    public Iterator<Key> iterator() {
+        List<Key> keys = new ArrayList<Key>(size());
+        for (Segment segment : segments) {
+            for (Node[] nodes : segment.table.values()) {
+                for (Node node : nodes) {
+                    keys.add(node.key);
+                }
+            }
+        }
+        return Collections.unmodifiableList(keys).iterator();
+    }
+
+    public void shutdown() {
+    }
+
+    public void setEventListener(CacheEventListener listener) {
+        this.eventListener = listener;
+    }
+
+    private Segment segmentFor(URI uri) {
+        int hash = uri.hashCode();
+        // Spread the high bits, so URIs differing only at the end do not share a segment.
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+        return segments[hash & segmentMask];
+    }
+
+    private HTTPResponse buffer(HTTPResponse response) {
+        if (!response.hasPayload()) {
+            return response;
+        }
+        Payload payload = response.getPayload();
+        InputStream stream = null;
+        try {
+            stream = payload.getInputStream();
+            ByteArrayPayload buffered = new ByteArrayPayload(stream, payload.getMimeType());
+            return response.withPayload(buffered.isAvailable() ? buffered : null);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Unable to cache response", e);
+        } finally {
+            Closeables.closeQuietly(stream);
+        }
+    }
+
+    private void publishEvicted(List<Node> evicted) {
+        for (Node node : evicted) {
+            publish(CacheEvent.Type.EVICTED, node.key, node.item.getResponse());
+        }
+    }
+
+    private void publish(CacheEvent.Type type, Key key, HTTPResponse response) {
+        CacheEventListener listener = eventListener;
+        if (listener != null) {
+            listener.onEvent(new CacheEvent(type, key, CacheEvent.sizeOf(response)));
+        }
+    }
+
+    private static final class Node {
+        private final Key key;
+        private volatile CacheItem item;
+        // Guarded by the segment lock. Null when the node is not in the recency list.
+        private long weight;
+        private Node previous;
+        private Node next;
+
+        private Node(Key key, CacheItem item) {
+            this.key = key;
+            this.item = item;
+        }
+    }
+
+    private final class Segment {
+        private final int capacity;
+        private final long maxWeight;
+        // The variants of each URI, replaced as a whole under the lock so readers see a consistent array.
+        private final ConcurrentHashMap<URI, Node[]> table = new ConcurrentHashMap<URI, Node[]>();
+        private final ReentrantLock lock = new ReentrantLock();
+        private final RingBuffer<Node> reads = new RingBuffer<Node>(READ_BUFFER_SIZE);
+        // Least recently used after the head, most recently used before it.
+        private final Node head = new Node(null, null);
+        private int count;
+        private long weight;
+
+        private Segment(int capacity, long maxWeight) {
+            this.capacity = capacity;
+            this.maxWeight = maxWeight;
+            head.previous = head;
+            head.next = head;
+        }
+
+        private Node[] nodes(URI uri) {
+            Node[] nodes = table.get(uri);
+            return nodes == null ? NO_NODES : nodes;
+        }
+
+        private void recordRead(Node node) {
+            if (!reads.offer(node) && lock.tryLock()) {
+                try {
+                    drainReads();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        /**
+         * @return the entries evicted to make room.
+         */
+        private List<Node> put(Key key, CacheItem item, long itemWeight) {
+            List<Node> evicted = Collections.emptyList();
+            lock.lock();
+            try {
+                drainReads();
+                URI uri = key.getURI();
+                Node[] nodes = nodes(uri);
+                Node node = null;
+                for (Node candidate : nodes) {
+                    if (candidate.key.getVary().equals(key.getVary())) {
+                        node = candidate;
+                    }
+                }
+                if (node != null) {
+                    node.item = item;
+                    addWeight(itemWeight - node.weight);
+                    node.weight = itemWeight;
+                    moveToTail(node);
+                }
+                else {
+                    node = new Node(key, item);
+                    node.weight = itemWeight;
+                    Node[] updated = new Node[nodes.length + 1];
+                    System.arraycopy(nodes, 0, updated, 0, nodes.length);
+                    updated[nodes.length] = node;
+                    table.put(uri, updated);
+                    link(node);
+                    addWeight(itemWeight);
+                    count++;
+                    size.incrementAndGet();
+                }
+                while ((count > capacity || weight > maxWeight) && head.next != node) {
+                    Node eldest = head.next;
+                    if (evicted.isEmpty()) {
+                        evicted = new ArrayList<Node>(1);
+                    }
+                    evicted.add(eldest);
+                    removeNode(eldest);
+                }
+                return evicted;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private Node[] remove(URI uri) {
+            lock.lock();
+            try {
+                drainReads();
+                Node[] nodes = table.remove(uri);
+                if (nodes == null) {
+                    return NO_NODES;
+                }
+                for (Node node : nodes) {
+                    unlink(node);
+                    addWeight(-node.weight);
+                }
+                count -= nodes.length;
+                size.addAndGet(-nodes.length);
+                return nodes;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void clear() {
+            lock.lock();
+            try {
+                while (reads.poll() != null) {
+                }
+                table.clear();
+                for (Node node = head.next; node != head; ) {
+                    Node next = node.next;
+                    node.previous = null;
+                    node.next = null;
+                    node = next;
+                }
+                head.previous = head;
+                head.next = head;
+                size.addAndGet(-count);
+                count = 0;
+                addWeight(-weight);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void removeNode(Node node) {
+            URI uri = node.key.getURI();
+            Node[] nodes = table.get(uri);
+            if (nodes.length == 1) {
+                table.remove(uri);
+            }
+            else {
+                Node[] updated = new Node[nodes.length - 1];
+                int i = 0;
+                for (Node candidate : nodes) {
+                    if (candidate != node) {
+                        updated[i++] = candidate;
+                    }
+                }
+                table.put(uri, updated);
+            }
+            unlink(node);
+            addWeight(-node.weight);
+            count--;
+            size.decrementAndGet();
+        }
+
+        private void addWeight(long delta) {
+            weight += delta;
+            SegmentedMemoryCacheStorage.this.weight.addAndGet(delta);
+        }
+
+        private void drainReads() {
+            for (Node node = reads.poll(); node != null; node = reads.poll()) {
+                // The node may have been removed after it was read.
+                if (node.next != null) {
+                    moveToTail(node);
+                }
+            }
+        }
+
+        private void moveToTail(Node node) {
+            unlink(node);
+            link(node);
+        }
+
+        private void link(Node node) {
+            node.previous = head.previous;
+            node.next = head;
+            head.previous.next = node;
+            head.previous = node;
+        }
+
+        private void unlink(Node node) {
+            node.previous.next = node.next;
+            node.next.previous = node.previous;
+            node.previous = null;
+            node.next = null;
+        }
+    }
+}
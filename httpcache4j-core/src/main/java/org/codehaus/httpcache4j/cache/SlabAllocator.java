@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+
+package org.codehaus.httpcache4j.cache;
+
+import com.google.common.base.Preconditions;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Hands out chunks of direct memory in size classes.
+ * Memory is reserved in slabs of {@value #SLAB_SIZE} bytes, each carved into chunks of a single size class,
+ * and is never given back; freed chunks are reused by later allocations of the same class.
+ * Size classes are four steps per power of two, so at most a fifth of a chunk is wasted.
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+final class SlabAllocator {
+    static final int SLAB_SIZE = 1 << 20;
+    static final int MIN_CHUNK = 256;
+    static final int MAX_CHUNK = 64 * 1024;
+    private static final int[] SIZE_CLASSES = sizeClasses();
+
+    private final long maxBytes;
+    private final List<ArrayDeque<ByteBuffer>> free = new ArrayList<ArrayDeque<ByteBuffer>>(SIZE_CLASSES.length);
+    private long reserved;
+    private long used;
+
+    SlabAllocator(long maxBytes) {
+        Preconditions.checkArgument(maxBytes >= SLAB_SIZE, "At least one slab of %s bytes is required", SLAB_SIZE);
+        this.maxBytes = maxBytes;
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            free.add(new ArrayDeque<ByteBuffer>());
+        }
+    }
+
+    /**
+     * @param size the number of bytes needed, at most {@link #MAX_CHUNK}.
+     * @return a chunk with {@code size} bytes remaining, or {@code null} if there is no room left.
+     */
+    synchronized ByteBuffer allocate(int size) {
+        Preconditions.checkArgument(size > 0 && size <= MAX_CHUNK, "Size must be between 1 and %s", MAX_CHUNK);
+        int index = sizeClass(size);
+        ArrayDeque<ByteBuffer> chunks = free.get(index);
+        if (chunks.isEmpty() && !carve(index)) {
+            return null;
+        }
+        ByteBuffer chunk = chunks.pop();
+        used += chunk.capacity();
+        chunk.clear();
+        chunk.limit(size);
+        return chunk;
+    }
+
+    synchronized void free(ByteBuffer chunk) {
+        used -= chunk.capacity();
+        free.get(sizeClass(chunk.capacity())).push(chunk);
+    }
+
+    /**
+     * @return the bytes of direct memory reserved in slabs.
+     */
+    synchronized long getReserved() {
+        return reserved;
+    }
+
+    /**
+     * @return the bytes of the chunks in use, including the unused tail of each chunk.
+     */
+    synchronized long getUsed() {
+        return used;
+    }
+
+    long getMaxBytes() {
+        return maxBytes;
+    }
+
+    private boolean carve(int index) {
+        if (reserved + SLAB_SIZE > maxBytes) {
+            return false;
+        }
+        ByteBuffer slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+        reserved += SLAB_SIZE;
+        int size = SIZE_CLASSES[index];
+        for (int position = 0; position + size <= SLAB_SIZE; position += size) {
+            slab.limit(position + size).position(position);
+            free.get(index).push(slab.slice());
+        }
+        return true;
+    }
+
+    static int sizeClass(int size) {
+        int index = Arrays.binarySearch(SIZE_CLASSES, size);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    private static int[] sizeClasses() {
+        List<Integer> sizes = new ArrayList<Integer>();
+        for (int base = MIN_CHUNK; base < MAX_CHUNK; base <<= 1) {
+            for (int step = 0; step < 4; step++) {
+                sizes.add(base + step * base / 4);
+            }
+        }
+        sizes.add(MAX_CHUNK);
+        int[] classes = new int[sizes.size()];
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = sizes.get(i);
+        }
+        return classes;
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+
+package org.codehaus.httpcache4j.cache;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.Closeables;
+import org.codehaus.httpcache4j.HTTPRequest;
+import org.codehaus.httpcache4j.HTTPResponse;
+import org.codehaus.httpcache4j.HeaderConstants;
+import org.codehaus.httpcache4j.Headers;
+import org.codehaus.httpcache4j.MIMEType;
+import org.codehaus.httpcache4j.payload.FilePayload;
+import org.codehaus.httpcache4j.payload.Payload;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A response body which is being read from the origin server, shared by all readers of the response.
+ * The body is copied to a spool file as it arrives. Readers read what is already in the file, at their own pace;
+ * the reader which is furthest ahead reads the next bytes from the origin server.
+ * <p>
+ * The response is stored when the body has been read to the end, and has the length the origin said it would have.
+ * If every reader gives up before that, or reading from the origin fails, the body is discarded.
+ * While in flight, the spool is registered by URI so that concurrent requests may {@link #follow(HTTPRequest) follow} it.
+ * </p>
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+class Spool {
+    private final Logger logger = Logger.getLogger(getClass().getName());
+    private final CacheStorage storage;
+    private final HTTPRequest request;
+    private final HTTPResponse response;
+    private final Key key;
+    private final ConcurrentMap<URI, Spool> spools;
+    private final File file;
+    private final InputStream origin;
+    private final OutputStream out;
+    private long written;
+    private int readers;
+    private boolean pumping;
+    private boolean complete;
+    private boolean failed;
+
+    Spool(CacheStorage storage, HTTPRequest request, HTTPResponse response, File directory, ConcurrentMap<URI, Spool> spools) throws IOException {
+        this.storage = Preconditions.checkNotNull(storage, "Storage may not be null");
+        this.request = Preconditions.checkNotNull(request, "Request may not be null");
+        this.response = Preconditions.checkNotNull(response, "Response may not be null");
+        Preconditions.checkArgument(response.hasPayload(), "Response must have a payload");
+        this.key = Key.create(request, response);
+        this.spools = Preconditions.checkNotNull(spools, "Spools may not be null");
+        this.file = File.createTempFile("httpcache4j-", ".tee", directory);
+        try {
+            this.out = new FileOutputStream(file);
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+        this.origin = response.getPayload().getInputStream();
+    }
+
+    HTTPResponse getResponse() {
+        return response;
+    }
+
+    /**
+     * Registers the spool, and returns the payload of the request which started it.
+     */
+    Payload lead() {
+        attach();
+        spools.put(key.getURI(), this);
+        return new TeePayload(this);
+    }
+
+    /**
+     * @return a payload which starts at the beginning of the body, or {@code null} if the spool cannot be followed by the request.
+     */
+    Payload follow(HTTPRequest request) {
+        if (!key.getVary().matches(request)) {
+            return null;
+        }
+        synchronized (this) {
+            if (failed || (complete && readers == 0)) {
+                return null;
+            }
+            attach();
+        }
+        return new TeePayload(this);
+    }
+
+    private synchronized void attach() {
+        readers++;
+    }
+
+    void detach() {
+        boolean abort;
+        synchronized (this) {
+            readers--;
+            if (readers > 0) {
+                return;
+            }
+            abort = !complete && !failed;
+            failed = failed || abort;
+        }
+        if (abort) {
+            Closeables.closeQuietly(origin);
+            Closeables.closeQuietly(out);
+        }
+        spools.remove(key.getURI(), this);
+        delete();
+    }
+
+    MIMEType getMimeType() {
+        return response.getPayload().getMimeType();
+    }
+
+    long length() {
+        return response.getPayload().length();
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    synchronized boolean isFailed() {
+        return failed;
+    }
+
+    /**
+     * Reads from the spool file if the bytes have arrived, otherwise from the origin server,
+     * or waits for the reader which is already reading from it.
+     */
+    int read(long position, byte[] b, int off, int len, RandomAccessFile reader) throws IOException {
+        long available;
+        synchronized (this) {
+            while (position >= written && pumping && !failed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for " + key.getURI());
+                }
+            }
+            if (failed) {
+                throw new IOException("Reading " + key.getURI() + " from the origin server failed");
+            }
+            available = written - position;
+            if (available <= 0) {
+                if (complete) {
+                    return -1;
+                }
+                pumping = true;
+            }
+        }
+        if (available > 0) {
+            reader.seek(position);
+            return reader.read(b, off, (int) Math.min(len, available));
+        }
+        return pump(b, off, len);
+    }
+
+    private int pump(byte[] b, int off, int len) throws IOException {
+        int read;
+        try {
+            read = origin.read(b, off, len);
+            if (read > 0) {
+                out.write(b, off, read);
+            }
+        } catch (IOException e) {
+            fail();
+            throw e;
+        }
+        if (read == -1) {
+            finish();
+            return -1;
+        }
+        synchronized (this) {
+            written += read;
+            pumping = false;
+            notifyAll();
+        }
+        return read;
+    }
+
+    private void finish() {
+        synchronized (this) {
+            complete = true;
+            pumping = false;
+            // Keeps the file while it is stored.
+            readers++;
+            notifyAll();
+        }
+        Closeables.closeQuietly(origin);
+        try {
+            out.close();
+            long expected = expectedLength();
+            if (expected < 0 || expected == written) {
+                storage.insert(request, new HTTPResponse(new FilePayload(file, response.getPayload().getMimeType()), response.getStatusLine(), response.getHeaders()));
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to write to " + file + ", the response will not be stored", e);
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Unable to store " + key.getURI(), e);
+        } finally {
+            spools.remove(key.getURI(), this);
+            detach();
+        }
+    }
+
+    private void fail() {
+        synchronized (this) {
+            failed = true;
+            pumping = false;
+            notifyAll();
+        }
+        Closeables.closeQuietly(origin);
+        Closeables.closeQuietly(out);
+        spools.remove(key.getURI(), this);
+    }
+
+    private void delete() {
+        if (!file.delete() && file.exists()) {
+            file.deleteOnExit();
+        }
+    }
+
+    private long expectedLength() {
+        Headers headers = response.getHeaders();
+        String contentLength = headers.getFirstHeaderValue(HeaderConstants.CONTENT_LENGTH);
+        if (contentLength != null && !headers.hasHeader(HeaderConstants.CONTENT_ENCODING)) {
+            try {
+                return Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException ignore) {
+            }
+        }
+        return -1;
+    }
+}
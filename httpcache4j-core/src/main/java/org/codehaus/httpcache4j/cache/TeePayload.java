@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+
+package org.codehaus.httpcache4j.cache;
+
+import com.google.common.io.Closeables;
+import org.codehaus.httpcache4j.MIMEType;
+import org.codehaus.httpcache4j.payload.Payload;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * One reader's view of a {@link Spool}. The body is read from the beginning, as fast as the reader wants it
+ * and the origin server delivers it.
+ * The body can only be read once, so every call to {@link #getInputStream()} returns the same stream.
+ * The reader gives up the body when the stream is closed, or read to the end.
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+class TeePayload implements Payload {
+    private final Spool spool;
+    private final SpoolInputStream stream;
+
+    TeePayload(Spool spool) {
+        this.spool = spool;
+        this.stream = new SpoolInputStream();
+    }
+
+    public MIMEType getMimeType() {
+        return spool.getMimeType();
+    }
+
+    public InputStream getInputStream() {
+        return stream;
+    }
+
+    public long length() {
+        return spool.length();
+    }
+
+    public boolean isAvailable() {
+        return !spool.isFailed();
+    }
+
+    /**
+     * Reads the rest of the payload, so that it is stored.
+     */
+    void drain() throws IOException {
+        try {
+            byte[] buffer = new byte[8192];
+            while (stream.read(buffer) != -1) {
+                // spooled
+            }
+        } finally {
+            Closeables.closeQuietly(stream);
+        }
+    }
+
+    private class SpoolInputStream extends InputStream {
+        private RandomAccessFile file;
+        private long position;
+        private boolean detached;
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int read;
+            while ((read = read(b, 0, 1)) == 0) {
+                // nothing yet
+            }
+            return read == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (detached) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            int read;
+            try {
+                if (file == null) {
+                    file = new RandomAccessFile(spool.getFile(), "r");
+                }
+                read = spool.read(position, b, off, len, file);
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+            if (read == -1) {
+                close();
+            }
+            else {
+                position += read;
+            }
+            return read;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!detached) {
+                detached = true;
+                Closeables.closeQuietly(file);
+                spool.detach();
+            }
+        }
+    }
+}
@@ -45,7 +45,7 @@ class Warning {
     /**
      * MUST be included if the cache heuristically chose a freshness lifetime greater than 24 hours and the response's age is greater than 24 hours.
      */
-    public static Warning HEURISTIC_EXPIRATION_WARNING = new Warning(110, "Heuristic expiration");
+    public static Warning HEURISTIC_EXPIRATION_WARNING = new Warning(113, "Heuristic expiration");
 
     /**
      * The warning text MAY include arbitrary information to be presented to a human user, or logged.
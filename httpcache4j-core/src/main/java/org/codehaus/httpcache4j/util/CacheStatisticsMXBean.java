@@ -15,6 +15,8 @@
 
 package org.codehaus.httpcache4j.util;
 
+import java.util.Map;
+
 /**
  * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
  * @version $Revision: $
@@ -24,5 +26,43 @@ public interface CacheStatisticsMXBean {
 
     long getMisses();
 
+    double getHitRatio();
+
+    /**
+     * @return the number of requests per outcome, keyed by outcome, e.g. {@code hit} or {@code not-modified}.
+     */
+    Map<String, Long> getOutcomes();
+
+    /**
+     * @return the number of background revalidations per outcome, which are not counted in {@link #getOutcomes()}.
+     */
+    Map<String, Long> getBackgroundOutcomes();
+
+    long getBytesFromCache();
+
+    long getBytesFromOrigin();
+
+    /**
+     * @return the total weight of the stored entries, in bytes for storages sized in bytes,
+     * or -1 if the storage is not weighted.
+     */
+    long getStorageWeight();
+
+    /**
+     * @return p50, p99 and p999 in milliseconds per outcome, and for time spent waiting for a request in flight,
+     * keyed like {@code hit.p99} and {@code mutex-wait.p50}.
+     */
+    Map<String, Double> getLatencyPercentiles();
+
+    /**
+     * @return the number of requests per host, keyed by the host URI, with hosts beyond the tracked ones under {@code other}.
+     */
+    Map<String, Long> getRequestsPerHost();
+
+    /**
+     * @return p50, p99 and p999 in milliseconds per host, keyed like {@code http://example.com.p99}.
+     */
+    Map<String, Double> getHostLatencyPercentiles();
+
     void clear();
 }
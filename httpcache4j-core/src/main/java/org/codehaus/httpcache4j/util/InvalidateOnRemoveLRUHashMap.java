@@ -13,6 +13,7 @@ public class InvalidateOnRemoveLRUHashMap extends LinkedHashMap<URI, Map<Vary, C
     private static final long serialVersionUID = -8600084275381371031L;
     private final int capacity;
     private transient RemoveListener listener;
+    private transient EvictionListener evictionListener;
 
     public InvalidateOnRemoveLRUHashMap(final int capacity) {
         super(capacity);
@@ -27,7 +28,13 @@ public class InvalidateOnRemoveLRUHashMap extends LinkedHashMap<URI, Map<Vary, C
 
     @Override
     protected boolean removeEldestEntry(Map.Entry<URI, Map<Vary, CacheItem>> eldest) {
-        return size() > capacity;
+        boolean evict = size() > capacity;
+        if (evict && evictionListener != null) {
+            for (Map.Entry<Vary, CacheItem> entry : eldest.getValue().entrySet()) {
+                evictionListener.onEvict(Key.create(eldest.getKey(), entry.getKey()), entry.getValue());
+            }
+        }
+        return evict;
     }
 
     @Override
@@ -69,7 +76,15 @@ public class InvalidateOnRemoveLRUHashMap extends LinkedHashMap<URI, Map<Vary, C
         this.listener = listener;
     }
 
+    public void setEvictionListener(EvictionListener evictionListener) {
+        this.evictionListener = evictionListener;
+    }
+
     public static interface RemoveListener {
         public void onRemoveFromMap(Key key);
     }
+
+    public static interface EvictionListener {
+        public void onEvict(Key key, CacheItem item);
+    }
 }
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public class CacheEventDispatcherTest {
+    private static final Key KEY = Key.create(URI.create("http://example.com/items/1"), new Vary());
+
+    @Test
+    public void ringBufferIsBoundedAndOrdered() {
+        RingBuffer<Integer> buffer = new RingBuffer<Integer>(3);
+        assertEquals(4, buffer.capacity());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(buffer.offer(i));
+        }
+        assertFalse(buffer.offer(4));
+        assertEquals(Integer.valueOf(0), buffer.poll());
+        assertTrue(buffer.offer(4));
+        for (int i = 1; i <= 4; i++) {
+            assertEquals(Integer.valueOf(i), buffer.poll());
+        }
+        assertNull(buffer.poll());
+        assertTrue(buffer.isEmpty());
+    }
+
+    @Test
+    public void slowListenerDoesNotBlockPublisher() throws Exception {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final List<CacheEvent> received = Collections.synchronizedList(new ArrayList<CacheEvent>());
+        CacheEventDispatcher dispatcher = new CacheEventDispatcher(2);
+        dispatcher.addListener(new CacheEventListener() {
+            public void onEvent(CacheEvent event) {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                received.add(event);
+            }
+        });
+        for (int i = 0; i < 100; i++) {
+            dispatcher.onEvent(new CacheEvent(CacheEvent.Type.HIT, KEY, i));
+        }
+        assertTrue(dispatcher.getDropped() >= 97);
+        blocked.countDown();
+        dispatcher.shutdown();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (received.size() + dispatcher.getDropped() < 100 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(100, received.size() + dispatcher.getDropped());
+        assertEquals(0, received.get(0).getSize());
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import org.codehaus.httpcache4j.HTTPRequest;
+import org.codehaus.httpcache4j.HTTPResponse;
+import org.codehaus.httpcache4j.Headers;
+import org.codehaus.httpcache4j.Status;
+import org.codehaus.httpcache4j.util.LatencyHistogram;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.TabularData;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public class CacheStatisticsTest {
+    @Test
+    public void hitRatioIsHitsOverRequests() {
+        CacheStatistics statistics = new CacheStatistics();
+        assertEquals(0, statistics.getHitRatio(), 0);
+        statistics.hit();
+        statistics.hit();
+        statistics.hit();
+        statistics.miss();
+        assertEquals(0.75, statistics.getHitRatio(), 0.0001);
+        statistics.clear();
+        assertEquals(0, statistics.getHits());
+    }
+
+    @Test
+    public void storageWeightIsReportedForWeightedStorages() {
+        MemoryCacheStorage storage = new MemoryCacheStorage();
+        CacheStatistics statistics = new CacheStatistics(storage);
+        assertEquals(0, statistics.getStorageWeight());
+        storage.insert(new HTTPRequest(URI.create("http://example.com/items/0")), new HTTPResponse(null, Status.OK, new Headers()));
+        assertEquals(storage.getWeight(), statistics.getStorageWeight());
+        assertTrue(statistics.getStorageWeight() > 0);
+        assertEquals(-1, new CacheStatistics(new NullCacheStorage()).getStorageWeight());
+        assertEquals(-1, new CacheStatistics().getStorageWeight());
+    }
+
+    @Test
+    public void histogramPercentilesAreWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i, TimeUnit.MICROSECONDS);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(500), histogram.getPercentile(0.5), TimeUnit.MICROSECONDS.toNanos(500) * 0.125);
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(990), histogram.getPercentile(0.99), TimeUnit.MICROSECONDS.toNanos(990) * 0.125);
+        assertTrue(histogram.getPercentile(1) >= TimeUnit.MICROSECONDS.toNanos(1000));
+        histogram.clear();
+        assertEquals(0, histogram.getPercentile(0.5));
+    }
+
+    @Test
+    public void hostsBeyondTheLimitShareTheOtherBucket() {
+        CacheStatistics statistics = new CacheStatistics(null, 2);
+        for (int i = 0; i < 5; i++) {
+            HTTPRequest request = new HTTPRequest(URI.create("http://host" + i + ".example.com/"));
+            statistics.record(new RequestMetrics(request), new HTTPResponse(null, Status.OK, new Headers()));
+        }
+        statistics.record(new RequestMetrics(new HTTPRequest(URI.create("http://host0.example.com/"))), new HTTPResponse(null, Status.OK, new Headers()));
+        assertEquals(2, statistics.getHostStatistics().size());
+        assertEquals(3, statistics.getOtherHostStatistics().getRequests());
+        assertEquals(Long.valueOf(2), statistics.getRequestsPerHost().get("http://host0.example.com"));
+        assertEquals(Long.valueOf(3), statistics.getRequestsPerHost().get("other"));
+        assertEquals(3, statistics.getRequestsPerHost().size());
+        statistics.clear();
+        assertEquals(0, statistics.getOtherHostStatistics().getRequests());
+        assertTrue(statistics.getRequestsPerHost().isEmpty());
+    }
+
+    @Test
+    public void statisticsAreReadableOverJMX() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("org.codehaus.httpcache4j:type=CacheStatistics,name=test");
+        CacheStatistics statistics = new CacheStatistics();
+        statistics.hit();
+        server.registerMBean(statistics, name);
+        try {
+            assertEquals(1.0, server.getAttribute(name, "HitRatio"));
+            assertTrue(server.getAttribute(name, "LatencyPercentiles") instanceof TabularData);
+            assertTrue(server.getAttribute(name, "Outcomes") instanceof TabularData);
+            assertTrue(server.getAttribute(name, "RequestsPerHost") instanceof TabularData);
+            assertEquals(-1L, server.getAttribute(name, "StorageWeight"));
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import org.codehaus.httpcache4j.HTTPHost;
+import org.codehaus.httpcache4j.HTTPResponse;
+import org.codehaus.httpcache4j.Headers;
+import org.codehaus.httpcache4j.Status;
+import org.joda.time.DateTimeUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URI;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public class CircuitBreakerTest {
+    private static final HTTPHost HOST = new HTTPHost(URI.create("http://example.com/"));
+
+    private long now = 1000000;
+
+    @Before
+    public void fixTime() {
+        DateTimeUtils.setCurrentMillisFixed(now);
+    }
+
+    @After
+    public void resetTime() {
+        DateTimeUtils.setCurrentMillisSystem();
+    }
+
+    @Test
+    public void opensAfterConsecutiveFailures() {
+        CircuitBreaker breaker = new CircuitBreaker(1, 100, 3, 30);
+        failure(breaker);
+        failure(breaker);
+        success(breaker);
+        failure(breaker);
+        failure(breaker);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(HOST));
+        failure(breaker);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState(HOST));
+        assertEquals(CircuitBreaker.REJECTED, breaker.allowRequest(HOST));
+    }
+
+    @Test
+    public void opensWhenFailureRateOfWindowReachesThreshold() {
+        CircuitBreaker breaker = new CircuitBreaker(0.5, 10, 10, 30);
+        for (int i = 0; i < 9; i++) {
+            if (i % 2 == 0) {
+                failure(breaker);
+            }
+            else {
+                success(breaker);
+            }
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(HOST));
+        breaker.onResponse(HOST, breaker.allowRequest(HOST), new HTTPResponse(null, Status.GATEWAY_TIMEOUT, new Headers()));
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState(HOST));
+    }
+
+    @Test
+    public void windowBelowThresholdIsForgotten() {
+        CircuitBreaker breaker = new CircuitBreaker(0.5, 4, 10, 30);
+        failure(breaker);
+        success(breaker);
+        success(breaker);
+        success(breaker);
+        failure(breaker);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(HOST));
+    }
+
+    @Test
+    public void letsOneProbeThroughAfterOpenDuration() {
+        CircuitBreaker breaker = new CircuitBreaker(1, 100, 1, 30);
+        failure(breaker);
+        advance(29);
+        assertEquals(CircuitBreaker.REJECTED, breaker.allowRequest(HOST));
+        advance(1);
+        int probe = breaker.allowRequest(HOST);
+        assertTrue(probe != CircuitBreaker.REJECTED);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState(HOST));
+        assertEquals(CircuitBreaker.REJECTED, breaker.allowRequest(HOST));
+        breaker.onResponse(HOST, probe, new HTTPResponse(null, Status.OK, new Headers()));
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(HOST));
+        assertTrue(breaker.allowRequest(HOST) != CircuitBreaker.REJECTED);
+    }
+
+    @Test
+    public void failedProbeOpensCircuitAgain() {
+        CircuitBreaker breaker = new CircuitBreaker(1, 100, 1, 30);
+        failure(breaker);
+        advance(30);
+        breaker.onFailure(HOST, breaker.allowRequest(HOST));
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState(HOST));
+        advance(29);
+        assertEquals(CircuitBreaker.REJECTED, breaker.allowRequest(HOST));
+    }
+
+    @Test
+    public void hostsHaveSeparateCircuits() {
+        CircuitBreaker breaker = new CircuitBreaker(1, 100, 1, 30);
+        failure(breaker);
+        HTTPHost other = new HTTPHost(URI.create("http://example.org/"));
+        assertTrue(breaker.allowRequest(other) != CircuitBreaker.REJECTED);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(other));
+    }
+
+    @Test
+    public void lateSuccessWhileOpenIsIgnored() {
+        CircuitBreaker breaker = new CircuitBreaker(1, 100, 1, 30);
+        int late = breaker.allowRequest(HOST);
+        failure(breaker);
+        breaker.onSuccess(HOST, late);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState(HOST));
+        advance(30);
+        int probe = breaker.allowRequest(HOST);
+        breaker.onSuccess(HOST, late);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState(HOST));
+        breaker.onSuccess(HOST, probe);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(HOST));
+    }
+
+    @Test
+    public void lateFailureWhileOpenIsIgnored() {
+        CircuitBreaker breaker = new CircuitBreaker(1, 100, 1, 30);
+        int late = breaker.allowRequest(HOST);
+        failure(breaker);
+        advance(20);
+        breaker.onFailure(HOST, late);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState(HOST));
+        advance(10);
+        int probe = breaker.allowRequest(HOST);
+        assertTrue(probe != CircuitBreaker.REJECTED);
+        breaker.onFailure(HOST, late);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState(HOST));
+    }
+
+    private void success(CircuitBreaker breaker) {
+        breaker.onSuccess(HOST, breaker.allowRequest(HOST));
+    }
+
+    private void failure(CircuitBreaker breaker) {
+        breaker.onFailure(HOST, breaker.allowRequest(HOST));
+    }
+
+    private void advance(int seconds) {
+        now += seconds * 1000L;
+        DateTimeUtils.setCurrentMillisFixed(now);
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import org.junit.Test;
+
+/**
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public class ConcurrentSegmentedMemoryCacheStorageTest extends ConcurrentCacheStorageAbstractTest {
+    protected CacheStorage createCacheStorage() {
+        return new SegmentedMemoryCacheStorage(2000);
+    }
+
+    @Test
+    public void test1001Concurrent() throws InterruptedException {
+        testIterations(1001, 1001);
+    }
+}
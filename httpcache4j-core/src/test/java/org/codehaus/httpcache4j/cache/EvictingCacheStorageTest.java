@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+
+package org.codehaus.httpcache4j.cache;
+
+import org.codehaus.httpcache4j.HTTPRequest;
+import org.codehaus.httpcache4j.HTTPResponse;
+import org.codehaus.httpcache4j.Headers;
+import org.codehaus.httpcache4j.HeaderConstants;
+import org.codehaus.httpcache4j.MIMEType;
+import org.codehaus.httpcache4j.Status;
+import org.codehaus.httpcache4j.payload.InputStreamPayload;
+import org.codehaus.httpcache4j.util.NullInputStream;
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public class EvictingCacheStorageTest extends CacheStorageAbstractTest {
+    @Override
+    protected CacheStorage createCacheStorage() {
+        return new EvictingCacheStorage(new MemoryCacheStorage(), new TinyLFUEvictionPolicy(100));
+    }
+
+    @Override
+    protected void afterTest() {
+    }
+
+    @Test
+    public void evictsThroughThePolicy() {
+        EvictingCacheStorage storage = new EvictingCacheStorage(new MemoryCacheStorage(), new LRUEvictionPolicy(2));
+        final List<Key> evicted = new ArrayList<Key>();
+        storage.setEventListener(new CacheEventListener() {
+            public void onEvent(CacheEvent event) {
+                if (event.getType() == CacheEvent.Type.EVICTED) {
+                    evicted.add(event.getKey());
+                }
+            }
+        });
+        storage.insert(request(0), response());
+        storage.insert(request(1), response());
+        assertNotNull(storage.get(request(0)));
+        storage.insert(request(2), response());
+        assertEquals(2, storage.size());
+        assertNull(storage.get(request(1)));
+        assertEquals(1, evicted.size());
+        assertEquals(request(1).getNormalizedURI(), evicted.get(0).getURI());
+    }
+
+    @Test
+    public void bufferedHitsAreReplayedIntoThePolicy() {
+        EvictingCacheStorage storage = new EvictingCacheStorage(new MemoryCacheStorage(), new LRUEvictionPolicy(2));
+        storage.insert(request(0), response());
+        storage.insert(request(1), response());
+        for (int i = 0; i < 1000; i++) {
+            assertNotNull(storage.get(request(0)));
+        }
+        storage.insert(request(2), response());
+        assertNotNull(storage.get(request(0)));
+        assertNull(storage.get(request(1)));
+        assertEquals(2, storage.getPolicy().size());
+    }
+
+    @Test
+    public void evictingAnEntryRemovesAllItsVariants() {
+        EvictingCacheStorage storage = new EvictingCacheStorage(new MemoryCacheStorage(), new LRUEvictionPolicy(2));
+        Headers headers = new Headers().add(HeaderConstants.VARY, HeaderConstants.ACCEPT);
+        storage.insert(request(0).addHeader(HeaderConstants.ACCEPT, "text/plain"), new HTTPResponse(null, Status.OK, headers));
+        storage.insert(request(0).addHeader(HeaderConstants.ACCEPT, "text/html"), new HTTPResponse(null, Status.OK, headers));
+        storage.insert(request(1), response());
+        assertEquals(1, storage.size());
+        assertEquals(1, storage.getPolicy().size());
+        assertNotNull(storage.get(request(1)));
+    }
+
+    @Test
+    public void admissionFilterRejectsOneHitWonders() {
+        EvictingCacheStorage storage = new EvictingCacheStorage(new MemoryCacheStorage(), new LRUEvictionPolicy(10), new DoorkeeperAdmissionFilter());
+        HTTPResponse response = response();
+        assertSame(response, storage.insert(request(0), response));
+        assertEquals(0, storage.size());
+        storage.insert(request(0), response());
+        assertEquals(1, storage.size());
+        storage.insert(request(0), response());
+        assertEquals(1, storage.size());
+    }
+
+    @Test
+    public void existingEntriesAreHandedToThePolicy() {
+        MemoryCacheStorage memory = new MemoryCacheStorage();
+        for (int i = 0; i < 3; i++) {
+            memory.insert(request(i), response());
+        }
+        EvictingCacheStorage storage = new EvictingCacheStorage(memory, new LRUEvictionPolicy(2));
+        assertEquals(2, storage.size());
+        assertEquals(2, storage.getPolicy().size());
+    }
+
+    @Test
+    public void evictsByWeight() {
+        EvictingCacheStorage storage = new EvictingCacheStorage(new MemoryCacheStorage(), new LRUEvictionPolicy(3000), Weighers.bytes(), null);
+        for (int i = 0; i < 3; i++) {
+            storage.insert(request(i), new HTTPResponse(new InputStreamPayload(new NullInputStream(1000), MIMEType.APPLICATION_OCTET_STREAM), Status.OK, new Headers())).consume();
+        }
+        assertEquals(2, storage.size());
+        assertNull(storage.get(request(0)));
+        assertTrue(storage.getWeight() > 2000);
+        assertEquals(3000, storage.getMaximumWeight());
+    }
+
+    private HTTPResponse response() {
+        return new HTTPResponse(null, Status.OK, new Headers());
+    }
+
+    private HTTPRequest request(int i) {
+        return new HTTPRequest(URI.create("http://example.com/items/" + i));
+    }
+}
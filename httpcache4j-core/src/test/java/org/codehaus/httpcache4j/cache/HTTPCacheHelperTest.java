@@ -15,12 +15,22 @@
 
 package org.codehaus.httpcache4j.cache;
 
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import org.codehaus.httpcache4j.payload.FilePayload;
+import org.codehaus.httpcache4j.payload.Payload;
+import org.codehaus.httpcache4j.payload.StringPayload;
 import org.junit.Test;
 import org.junit.Assert;
 import org.codehaus.httpcache4j.*;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeUtils;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 
 /**
@@ -120,6 +130,138 @@ public class HTTPCacheHelperTest {
         Assert.assertFalse(helper.shouldBeStored(new HTTPResponse(null, Status.OK, headers)));
     }
 
+    @Test
+    public void heuristicTTLIsTenPercentOfTimeSinceLastModified() {
+        DateTime date = createDateTime(0);
+        Headers headers = new Headers();
+        headers = headers.add(HeaderUtils.toHttpDate(HeaderConstants.DATE, date));
+        headers = headers.add(HeaderUtils.toHttpDate(HeaderConstants.LAST_MODIFIED, date.minusHours(10)));
+        CacheItem item = new DefaultCacheItem(new HTTPResponse(null, Status.OK, headers), date);
+        Assert.assertEquals(0, item.getTTL());
+        Assert.assertEquals(3600, helper.getHeuristicTTL(item));
+        Assert.assertEquals(3600, helper.getTTL(item));
+        HTTPRequest request = new HTTPRequest(URI.create("http://foo/bar"));
+        Assert.assertFalse(helper.isStale(new DefaultCacheItem(item.getResponse()), request));
+    }
+
+    @Test
+    public void heuristicTTLIsCapped() {
+        DateTime date = createDateTime(0);
+        Headers headers = new Headers();
+        headers = headers.add(HeaderUtils.toHttpDate(HeaderConstants.DATE, date));
+        headers = headers.add(HeaderUtils.toHttpDate(HeaderConstants.LAST_MODIFIED, date.minusYears(1)));
+        CacheItem item = new DefaultCacheItem(new HTTPResponse(null, Status.OK, headers), date);
+        Assert.assertEquals(HTTPCacheHelper.DEFAULT_MAX_HEURISTIC_TTL, helper.getHeuristicTTL(item));
+    }
+
+    @Test
+    public void noHeuristicTTLWithExplicitExpirationOrUncacheableStatus() {
+        DateTime date = createDateTime(0);
+        Headers headers = new Headers();
+        headers = headers.add(HeaderUtils.toHttpDate(HeaderConstants.DATE, date));
+        headers = headers.add(HeaderUtils.toHttpDate(HeaderConstants.LAST_MODIFIED, date.minusHours(10)));
+        Assert.assertEquals(0, helper.getHeuristicTTL(new DefaultCacheItem(new HTTPResponse(null, Status.OK, headers.add(HeaderConstants.CACHE_CONTROL, "max-age=0")), date)));
+        Assert.assertEquals(0, helper.getHeuristicTTL(new DefaultCacheItem(new HTTPResponse(null, Status.OK, headers.add(HeaderConstants.CACHE_CONTROL, "no-cache")), date)));
+        Assert.assertEquals(0, helper.getHeuristicTTL(new DefaultCacheItem(new HTTPResponse(null, Status.OK, headers.add(HeaderConstants.EXPIRES, "0")), date)));
+        Assert.assertEquals(0, helper.getHeuristicTTL(new DefaultCacheItem(new HTTPResponse(null, Status.FOUND, headers), date)));
+    }
+
+    @Test
+    public void singleRangeIsServedFromStoredPayload() throws Exception {
+        HTTPResponse response = rangeResponse("bytes=2-5", new StringPayload("0123456789", MIMEType.valueOf("text/plain")));
+        Assert.assertEquals(Status.PARTIAL_CONTENT, response.getStatus());
+        Assert.assertEquals("bytes 2-5/10", response.getHeaders().getFirstHeaderValue(HeaderConstants.CONTENT_RANGE));
+        Assert.assertEquals("4", response.getHeaders().getFirstHeaderValue(HeaderConstants.CONTENT_LENGTH));
+        Assert.assertEquals("2345", read(response));
+
+        Assert.assertEquals("789", read(rangeResponse("bytes=-3", new StringPayload("0123456789", MIMEType.valueOf("text/plain")))));
+        Assert.assertEquals("89", read(rangeResponse("bytes=8-", new StringPayload("0123456789", MIMEType.valueOf("text/plain")))));
+    }
+
+    @Test
+    public void multipleRangesAreServedAsMultipartFromFile() throws Exception {
+        File file = File.createTempFile("range", ".txt");
+        file.deleteOnExit();
+        Files.write("0123456789", file, Charsets.US_ASCII);
+        HTTPResponse response = rangeResponse("bytes=0-1, 7-", new FilePayload(file, MIMEType.valueOf("text/plain")));
+        Assert.assertEquals(Status.PARTIAL_CONTENT, response.getStatus());
+        MIMEType type = response.getPayload().getMimeType();
+        Assert.assertEquals("multipart/byteranges", type.getPrimaryType() + "/" + type.getSubType());
+        String boundary = type.getParameter("boundary");
+        String body = read(response);
+        Assert.assertEquals(response.getPayload().length(), body.length());
+        Assert.assertEquals(
+                "\r\n--" + boundary + "\r\nContent-Type: text/plain\r\nContent-Range: bytes 0-1/10\r\n\r\n01" +
+                "\r\n--" + boundary + "\r\nContent-Type: text/plain\r\nContent-Range: bytes 7-9/10\r\n\r\n789" +
+                "\r\n--" + boundary + "--\r\n", body);
+    }
+
+    @Test
+    public void unsatisfiableAndInvalidRanges() throws Exception {
+        HTTPResponse response = rangeResponse("bytes=20-30", new StringPayload("0123456789", MIMEType.valueOf("text/plain")));
+        Assert.assertEquals(Status.REQUESTED_RANGE_NOT_SATISFIABLE, response.getStatus());
+        Assert.assertEquals("bytes */10", response.getHeaders().getFirstHeaderValue(HeaderConstants.CONTENT_RANGE));
+        Assert.assertEquals(Status.OK, rangeResponse("bytes=5-2", new StringPayload("0123456789", MIMEType.valueOf("text/plain"))).getStatus());
+        Assert.assertEquals(Status.OK, rangeResponse("lines=1-2", new StringPayload("0123456789", MIMEType.valueOf("text/plain"))).getStatus());
+    }
+
+    @Test
+    public void overlappingRangesAreMergedAndTooManyRangesAreIgnored() throws Exception {
+        HTTPResponse response = rangeResponse("bytes=4-6, 0-2, 2-3", new StringPayload("0123456789", MIMEType.valueOf("text/plain")));
+        Assert.assertEquals(Status.PARTIAL_CONTENT, response.getStatus());
+        Assert.assertEquals("bytes 0-6/10", response.getHeaders().getFirstHeaderValue(HeaderConstants.CONTENT_RANGE));
+        Assert.assertEquals("0123456", read(response));
+
+        StringBuilder range = new StringBuilder("bytes=");
+        for (int i = 0; i < ByteRange.MAX_RANGES + 1; i++) {
+            range.append(i == 0 ? "" : ",").append(i * 3).append('-').append(i * 3);
+        }
+        response = rangeResponse(range.toString(), new StringPayload(Strings.repeat("0123456789", 10), MIMEType.valueOf("text/plain")));
+        Assert.assertEquals(Status.OK, response.getStatus());
+        Assert.assertEquals(100, read(response).length());
+    }
+
+    @Test
+    public void ifRangeMustMatchStrongValidator() throws Exception {
+        Headers headers = new Headers().add(HeaderConstants.ETAG, new Tag("foo").format());
+        HTTPResponse stored = new HTTPResponse(new StringPayload("0123456789", MIMEType.valueOf("text/plain")), Status.OK, headers);
+        HTTPRequest request = new HTTPRequest(URI.create("http://foo/bar")).headers(new Headers().add(HeaderConstants.RANGE, "bytes=0-0"));
+        Assert.assertEquals(Status.PARTIAL_CONTENT, helper.rewriteRangeResponse(request.headers(request.getHeaders().add(HeaderConstants.IF_RANGE, "\"foo\"")), stored).getStatus());
+        Assert.assertEquals(Status.OK, helper.rewriteRangeResponse(request.headers(request.getHeaders().add(HeaderConstants.IF_RANGE, "\"bar\"")), stored).getStatus());
+        Assert.assertEquals(Status.OK, helper.rewriteRangeResponse(request.headers(request.getHeaders().add(HeaderConstants.IF_RANGE, "W/\"foo\"")), stored).getStatus());
+    }
+
+    private HTTPResponse rangeResponse(String range, Payload payload) {
+        HTTPRequest request = new HTTPRequest(URI.create("http://foo/bar")).headers(new Headers().add(HeaderConstants.RANGE, range));
+        return helper.rewriteRangeResponse(request, new HTTPResponse(payload, Status.OK, new Headers()));
+    }
+
+    private String read(HTTPResponse response) throws IOException {
+        InputStream stream = response.getPayload().getInputStream();
+        try {
+            return new String(ByteStreams.toByteArray(stream), "US-ASCII");
+        } finally {
+            stream.close();
+        }
+    }
+
+    @Test
+    public void freshHitOnlyAddsXCacheAndAge() {
+        Headers headers = new Headers()
+                .add(HeaderConstants.CACHE_CONTROL, "max-age=60")
+                .add(HeaderConstants.ETAG, new Tag("foo").format());
+        HTTPResponse cached = new HTTPResponse(null, Status.OK, headers);
+        HTTPResponse response = helper.rewriteResponse(new HTTPRequest(URI.create("http://foo/bar")), cached, 12);
+        Assert.assertTrue(response.isCached());
+        Assert.assertEquals("12", response.getHeaders().getFirstHeaderValue(HeaderConstants.AGE));
+        Assert.assertEquals(CacheHeaderBuilder.getBuilder().createHITXCacheHeader(), response.getHeaders().getFirstHeader(HeaderConstants.X_CACHE));
+        Assert.assertEquals(headers.size() + 2, response.getHeaders().size());
+        Assert.assertSame(cached.getETag(), response.getETag());
+
+        HTTPRequest conditional = new HTTPRequest(URI.create("http://foo/bar")).headers(new Headers().add(HeaderConstants.IF_NONE_MATCH, new Tag("foo").format()));
+        Assert.assertEquals(Status.NOT_MODIFIED, helper.rewriteResponse(conditional, cached, 12).getStatus());
+    }
+
     private DateTime createDateTime(int seconds) {
         return new DateTime(2009, 4, 22, 10, 10, seconds, 0);
     }
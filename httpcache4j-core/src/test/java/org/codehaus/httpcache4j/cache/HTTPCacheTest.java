@@ -16,10 +16,15 @@
 
 package org.codehaus.httpcache4j.cache;
 
+import org.codehaus.httpcache4j.resolver.ConnectionConfiguration;
 import org.codehaus.httpcache4j.resolver.ResponseResolver;
+import org.codehaus.httpcache4j.resolver.TimedResponseResolver;
 import org.codehaus.httpcache4j.*;
 import org.codehaus.httpcache4j.payload.Payload;
 import org.codehaus.httpcache4j.payload.ClosedInputStreamPayload;
+import org.codehaus.httpcache4j.payload.InputStreamPayload;
+import org.codehaus.httpcache4j.payload.StringPayload;
+import org.codehaus.httpcache4j.util.TestUtil;
 
 import org.junit.Test;
 import org.junit.Before;
@@ -27,12 +32,35 @@ import org.junit.Assert;
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 import static org.mockito.Matchers.eq;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.joda.time.DateTime;
 import org.joda.time.MutableDateTime;
 import org.joda.time.DateTimeUtils;
 
 import java.net.URI;
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 
 /** @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a> */
@@ -477,6 +505,752 @@ public class HTTPCacheTest {
     }
 
 
+    @Test
+    public void concurrentRequestsForSameURIAreResolvedOnce() throws Exception {
+        final AtomicInteger resolved = new AtomicInteger();
+        ResponseResolver slowResolver = new ResponseResolver() {
+            public HTTPResponse resolve(HTTPRequest request) throws IOException {
+                resolved.incrementAndGet();
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                Headers headers = new Headers().add(HeaderConstants.CACHE_CONTROL, "max-age=60");
+                return new HTTPResponse(new StringPayload("foo", MIMEType.valueOf("text/plain")), Status.OK, headers);
+            }
+
+            public void shutdown() {
+            }
+        };
+        final HTTPCache cache = new HTTPCache(new MemoryCacheStorage(), slowResolver);
+        final List<HTTPResponse> responses = Collections.synchronizedList(new ArrayList<HTTPResponse>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 10; i++) {
+            threads.add(new Thread(new Runnable() {
+                public void run() {
+                    responses.add(cache.execute(new HTTPRequest(REQUEST_URI)));
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(1, resolved.get());
+        assertEquals(10, responses.size());
+        for (HTTPResponse response : responses) {
+            assertEquals(Status.OK, response.getStatus());
+        }
+        assertEquals(9, cache.getStatistics().getHits());
+    }
+
+    @Test
+    public void executeAsyncAnswersFreshHitOnCallingThread() throws Exception {
+        HTTPRequest request = new HTTPRequest(REQUEST_URI);
+        Headers headers = new Headers().add(HeaderConstants.CACHE_CONTROL, "max-age=60");
+        when(cacheStorage.get(request)).thenReturn(new DefaultCacheItem(new HTTPResponse(null, Status.OK, headers)));
+        ListenableFuture<HTTPResponse> response = cache.executeAsync(request);
+        assertTrue("Cache hit was not completed synchronously", response.isDone());
+        assertEquals(Status.OK, response.get().getStatus());
+        verify(responseResolver, never()).resolve(isA(HTTPRequest.class));
+    }
+
+    @Test
+    public void executeAsyncResolvesMissWithBlockingResolver() throws Exception {
+        HTTPRequest request = new HTTPRequest(REQUEST_URI);
+        Headers headers = new Headers().add(HeaderConstants.CACHE_CONTROL, "max-age=60");
+        HTTPResponse resolvedResponse = new HTTPResponse(null, Status.OK, headers);
+        when(responseResolver.resolve(isA(HTTPRequest.class))).thenReturn(resolvedResponse);
+        when(cacheStorage.insert(isA(HTTPRequest.class), eq(resolvedResponse))).thenReturn(resolvedResponse);
+        HTTPResponse response = cache.executeAsync(request).get(5, TimeUnit.SECONDS);
+        assertEquals(Status.OK, response.getStatus());
+        verify(cacheStorage, times(1)).insert(isA(HTTPRequest.class), eq(resolvedResponse));
+    }
+
+    @Test
+    public void executeAsyncStoresOnTheStoreExecutor() throws Exception {
+        HTTPRequest request = new HTTPRequest(REQUEST_URI);
+        Headers headers = new Headers().add(HeaderConstants.CACHE_CONTROL, "max-age=60");
+        final HTTPResponse resolvedResponse = new HTTPResponse(null, Status.OK, headers);
+        when(responseResolver.resolve(isA(HTTPRequest.class))).thenReturn(resolvedResponse);
+        final AtomicReference<String> storingThread = new AtomicReference<String>();
+        when(cacheStorage.insert(isA(HTTPRequest.class), eq(resolvedResponse))).thenAnswer(new Answer<HTTPResponse>() {
+            public HTTPResponse answer(InvocationOnMock invocation) throws Throwable {
+                storingThread.set(Thread.currentThread().getName());
+                return resolvedResponse;
+            }
+        });
+        ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat("store-test").build());
+        cache.setStoreExecutor(executor);
+        try {
+            assertEquals(Status.OK, cache.executeAsync(request).get(5, TimeUnit.SECONDS).getStatus());
+            assertEquals("store-test", storingThread.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void executeAsyncFailsWhenOriginIsUnreachableAndNothingIsCached() throws Exception {
+        when(responseResolver.resolve(isA(HTTPRequest.class))).thenThrow(new IOException("Connection refused"));
+        try {
+            cache.executeAsync(new HTTPRequest(REQUEST_URI)).get(5, TimeUnit.SECONDS);
+            fail("Expected ExecutionException");
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof HTTPException);
+        }
+    }
+
+    @Test
+    public void freshHitsDoNotWaitForARequestInFlight() throws Exception {
+        Headers headers = new Headers().add(HeaderConstants.CACHE_CONTROL, "max-age=60");
+        DefaultCacheItem fresh = new DefaultCacheItem(new HTTPResponse(null, Status.OK, headers));
+        when(cacheStorage.get(isA(HTTPRequest.class))).thenReturn(null).thenReturn(fresh);
+        final CountDownLatch resolving = new CountDownLatch(1);
+        final CountDownLatch origin = new CountDownLatch(1);
+        when(responseResolver.resolve(isA(HTTPRequest.class))).thenAnswer(new Answer<HTTPResponse>() {
+            public HTTPResponse answer(InvocationOnMock invocation) throws Throwable {
+                resolving.countDown();
+                origin.await();
+                return new HTTPResponse(null, Status.OK, new Headers());
+            }
+        });
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            executor.submit(new Callable<HTTPResponse>() {
+                public HTTPResponse call() throws Exception {
+                    return cache.execute(new HTTPRequest(REQUEST_URI));
+                }
+            });
+            assertTrue(resolving.await(5, TimeUnit.SECONDS));
+            Future<HTTPResponse> hit = executor.submit(new Callable<HTTPResponse>() {
+                public HTTPResponse call() throws Exception {
+                    return cache.execute(new HTTPRequest(REQUEST_URI));
+                }
+            });
+            assertEquals(Status.OK, hit.get(5, TimeUnit.SECONDS).getStatus());
+            assertEquals(0, cache.getStatistics().getMutexWait().getCount());
+        } finally {
+            origin.countDown();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void staleWhileRevalidateServesStaleAndRevalidatesOnceInBackground() throws Exception {
+        HTTPRequest request = new HTTPRequest(REQUEST_URI);
+        Headers headers = new Headers()
+                .add(HeaderConstants.CACHE_CONTROL, "max-age=10, stale-while-revalidate=60")
+                .add(HeaderConstants.ETAG, new Tag("foo").format());
+        HTTPResponse cachedResponse = new HTTPResponse(null, Status.OK, headers);
+        when(cacheStorage.get(isA(HTTPRequest.class))).thenReturn(new DefaultCacheItem(cachedResponse, new DateTime().minusSeconds(20)));
+        final CountDownLatch revalidating = new CountDownLatch(1);
+        final CountDownLatch origin = new CountDownLatch(1);
+        when(responseResolver.resolve(isA(HTTPRequest.class))).thenAnswer(new Answer<HTTPResponse>() {
+            public HTTPResponse answer(InvocationOnMock invocation) throws Throwable {
+                revalidating.countDown();
+                origin.await();
+                return new HTTPResponse(null, Status.NOT_MODIFIED, new Headers());
+            }
+        });
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        cache.setRevalidationExecutor(executor);
+
+        HTTPResponse response = cache.execute(request);
+        assertTrue(revalidating.await(5, TimeUnit.SECONDS));
+        assertEquals(Status.OK, response.getStatus());
+        assertTrue(response.getHeaders().hasHeader(HeaderConstants.WARNING));
+        assertEquals("20", response.getHeaders().getFirstHeaderValue(HeaderConstants.AGE));
+        response = cache.execute(new HTTPRequest(REQUEST_URI));
+        assertEquals(Status.OK, response.getStatus());
+
+        origin.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        verify(responseResolver, times(1)).resolve(isA(HTTPRequest.class));
+        verify(cacheStorage, times(1)).update(isA(HTTPRequest.class), isA(HTTPResponse.class));
+        CacheStatistics statistics = cache.getStatistics();
+        assertEquals(2, statistics.getCount(CacheStatistics.Outcome.STALE));
+        assertEquals(0, statistics.getCount(CacheStatistics.Outcome.NOT_MODIFIED));
+        assertEquals(1, statistics.getBackgroundCount(CacheStatistics.Outcome.NOT_MODIFIED));
+        assertEquals(Long.valueOf(2), statistics.getRequestsPerHost().get("http://some"));
+    }
+
+    @Test
+    public void staleWhileRevalidateWindowExpiredResolvesInForeground() throws IOException {
+        HTTPRequest request = new HTTPRequest(REQUEST_URI);
+        Headers headers = new Headers().add(HeaderConstants.CACHE_CONTROL, "max-age=10, stale-while-revalidate=5");
+        HTTPResponse cachedResponse = new HTTPResponse(null, Status.OK, headers);
+        when(cacheStorage.get(isA(HTTPRequest.class))).thenReturn(new DefaultCacheItem(cachedResponse, new DateTime().minusSeconds(20)));
+        HTTPResponse resolvedResponse = new HTTPResponse(null, Status.OK, new Headers());
+        when(responseResolver.resolve(isA(HTTPRequest.class))).thenReturn(resolvedResponse);
+        HTTPResponse response = cache.execute(request);
+        assertEquals(Status.OK, response.getStatus());
+        assertFalse(response.getHeaders().hasHeader(HeaderConstants.WARNING));
+        verify(responseResolver, times(1)).resolve(isA(HTTPRequest.class));
+    }
+
+    @Test
+    public void staleIfErrorServesStoredResponseOnServerError() throws IOException {
+        HTTPRequest request = new HTTPRequest(REQUEST_URI);
+        Headers headers = new Headers().add(HeaderConstants.CACHE_CONTROL, "max-age=10, stale-if-error=60");
+        HTTPResponse cachedResponse = new HTTPResponse(null, Status.OK, headers);
+        when(cacheStorage.get(isA(HTTPRequest.class))).thenReturn(new DefaultCacheItem(cachedResponse, new DateTime().minusSeconds(20)));
+        when(responseResolver.resolve(isA(HTTPRequest.class))).thenReturn(new HTTPResponse(null, Status.SERVICE_UNAVAILABLE, new Headers()));
+        HTTPResponse response = cache.execute(request);
+        assertEquals(Status.OK, response.getStatus());
+        List<Header> warnings = response.getHeaders().getHeaders(HeaderConstants.WARNING);
+        assertEquals(2, warnings.size());
+        assertTrue(warnings.get(0).getValue().startsWith("110"));
+        assertTrue(warnings.get(1).getValue().startsWith("111"));
+        verify(cacheStorage, never()).insert(isA(HTTPRequest.class), isA(HTTPResponse.class));
+        verify(cacheStorage, never()).invalidate(isA(URI.class));
+    }
+
+    @Test
+    public void staleIfErrorUsesCacheDefaultAndConfiguredStatuses() throws IOException {
+        HTTPRequest request = new HTTPRequest(REQUEST_URI);
+        Headers headers = new Headers().add(HeaderConstants.CACHE_CONTROL, "max-age=10");
+        HTTPResponse cachedResponse = new HTTPResponse(null, Status.OK, headers);
+        when(cacheStorage.get(isA(HTTPRequest.class))).thenReturn(new DefaultCacheItem(cachedResponse, new DateTime().minusSeconds(20)));
+        when(responseResolver.resolve(isA(HTTPRequest.class))).thenReturn(new HTTPResponse(null, Status.INTERNAL_SERVER_ERROR, new Headers()));
+        assertEquals(Status.INTERNAL_SERVER_ERROR, cache.execute(request).getStatus());
+        cache.setStaleIfError(60);
+        assertEquals(Status.OK, cache.execute(new HTTPRequest(REQUEST_URI)).getStatus());
+        cache.setStaleIfErrorStatuses(Collections.singleton(Status.SERVICE_UNAVAILABLE));
+        assertEquals(Status.INTERNAL_SERVER_ERROR, cache.execute(new HTTPRequest(REQUEST_URI)).getStatus());
+    }
+
+    @Test
+    public void staleIfErrorWindowExpiredPassesErrorThrough() throws IOException {
+        HTTPRequest request = new HTTPRequest(REQUEST_URI);
+        Headers headers = new Headers().add(HeaderConstants.CACHE_CONTROL, "max-age=10, stale-if-error=5");
+        HTTPResponse cachedResponse = new HTTPResponse(null, Status.OK, headers);
+        when(cacheStorage.get(isA(HTTPRequest.class))).thenReturn(new DefaultCacheItem(cachedResponse, new DateTime().minusSeconds(20)));
+        when(responseResolver.resolve(isA(HTTPRequest.class))).thenReturn(new HTTPResponse(null, Status.BAD_GATEWAY, new Headers()));
+        assertEquals(Status.BAD_GATEWAY, cache.execute(request).getStatus());
+    }
+
+    @Test
+    public void refreshAheadRevalidatesHotEntryNearingExpiry() throws Exception {
+        Headers headers = new Headers()
+                .add(HeaderConstants.CACHE_CONTROL, "max-age=60")
+                .add(HeaderConstants.ETAG, new Tag("foo").format());
+        HTTPResponse cachedResponse = new HTTPResponse(null, Status.OK, headers);
+        when(cacheStorage.get(isA(HTTPRequest.class))).thenReturn(new DefaultCacheItem(cachedResponse, new DateTime().minusSeconds(55)));
+        final List<HTTPRequest> resolved = Collections.synchronizedList(new ArrayList<HTTPRequest>());
+        when(responseResolver.resolve(isA(HTTPRequest.class))).thenAnswer(new Answer<HTTPResponse>() {
+            public HTTPResponse answer(InvocationOnMock invocation) throws Throwable {
+                resolved.add((HTTPRequest) invocation.getArguments()[0]);
+                return new HTTPResponse(null, Status.NOT_MODIFIED, new Headers());
+            }
+        });
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        cache.setRevalidationExecutor(executor);
+        cache.setRefreshAhead(new RefreshAhead(0.2, 2, 60, 100));
+
+        HTTPResponse response = cache.execute(new HTTPRequest(REQUEST_URI));
+        assertEquals(Status.OK, response.getStatus());
+        assertFalse(response.getHeaders().hasHeader(HeaderConstants.WARNING));
+        response = cache.execute(new HTTPRequest(REQUEST_URI));
+        assertEquals(Status.OK, response.getStatus());
+
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(1, resolved.size());
+        assertEquals(Collections.singletonList(new Tag("foo")), resolved.get(0).getHeaders().getConditionals().getNoneMatch());
+        verify(cacheStorage, times(1)).update(isA(HTTPRequest.class), isA(HTTPResponse.class));
+    }
+
+    @Test
+    public void refreshAheadRevalidatesHeuristicallyFreshEntries() throws Exception {
+        DateTime cached = new DateTime().minusSeconds(55);
+        Headers headers = new Headers()
+                .add(HeaderUtils.toHttpDate(HeaderConstants.DATE, cached))
+                .add(HeaderUtils.toHttpDate(HeaderConstants.LAST_MODIFIED, cached.minusSeconds(600)));
+        when(cacheStorage.get(isA(HTTPRequest.class))).thenReturn(new DefaultCacheItem(new HTTPResponse(null, Status.OK, headers), cached));
+        when(responseResolver.resolve(isA(HTTPRequest.class))).thenReturn(new HTTPResponse(null, Status.NOT_MODIFIED, new Headers()));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        cache.setRevalidationExecutor(executor);
+        cache.setRefreshAhead(new RefreshAhead(0.2, 1, 60, 100));
+
+        assertEquals(Status.OK, cache.execute(new HTTPRequest(REQUEST_URI)).getStatus());
+
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        verify(responseResolver, times(1)).resolve(isA(HTTPRequest.class));
+    }
+
+    @Test
+    public void refreshAheadLeavesEntriesWithPlentyOfTTLAlone() throws Exception {
+        Headers headers = new Headers().add(HeaderConstants.CACHE_CONTROL, "max-age=60");
+        when(cacheStorage.get(isA(HTTPRequest.class))).thenReturn(new DefaultCacheItem(new HTTPResponse(null, Status.OK, headers)));
+        cache.setRefreshAhead(new RefreshAhead(0.2, 1, 60, 100));
+        for (int i = 0; i < 5; i++) {
+            assertEquals(Status.OK, cache.execute(new HTTPRequest(REQUEST_URI)).getStatus());
+        }
+        verify(responseResolver, never()).resolve(isA(HTTPRequest.class));
+    }
+
+    @Test
+    public void openCircuitServesStaleAndFailsMissesWithoutResolving() throws IOException {
+        cache.setCircuitBreaker(new CircuitBreaker(0.5, 20, 2, 30));
+        when(responseResolver.resolve(isA(HTTPRequest.class))).thenThrow(new IOException("Connection refused"));
+        for (int i = 0; i < 3; i++) {
+            try {
+                cache.execute(new HTTPRequest(REQUEST_URI));
+                fail("Expected HTTPException");
+            } catch (HTTPException expected) {
+                assertEquals(i == 2, expected.getCause() instanceof CircuitOpenException);
+            }
+        }
+        assertEquals(CircuitBreaker.State.OPEN, cache.getCircuitBreaker().getState(new HTTPHost(REQUEST_URI)));
+
+        Headers headers = new Headers().add(HeaderConstants.CACHE_CONTROL, "max-age=10");
+        HTTPResponse cachedResponse = new HTTPResponse(null, Status.OK, headers);
+        when(cacheStorage.get(isA(HTTPRequest.class))).thenReturn(new DefaultCacheItem(cachedResponse, new DateTime().minusSeconds(20)));
+        HTTPResponse response = cache.execute(new HTTPRequest(URI.create("http://some/uri/456")));
+        assertEquals(Status.OK, response.getStatus());
+        List<Header> warnings = response.getHeaders().getHeaders(HeaderConstants.WARNING);
+        assertEquals(3, warnings.size());
+        assertTrue(warnings.get(2).getValue().startsWith("112"));
+        verify(responseResolver, times(2)).resolve(isA(HTTPRequest.class));
+    }
+
+    @Test
+    public void openCircuitLetsAProbeThroughAfterOpenDuration() throws IOException {
+        try {
+            DateTimeUtils.setCurrentMillisFixed(new DateTime(2012, 6, 1, 10, 0, 0, 0).getMillis());
+            cache.setCircuitBreaker(new CircuitBreaker(0.5, 20, 1, 30));
+            when(responseResolver.resolve(isA(HTTPRequest.class))).thenReturn(new HTTPResponse(null, Status.SERVICE_UNAVAILABLE, new Headers()));
+            assertEquals(Status.SERVICE_UNAVAILABLE, cache.execute(new HTTPRequest(REQUEST_URI)).getStatus());
+            HTTPHost host = new HTTPHost(REQUEST_URI);
+            assertEquals(CircuitBreaker.State.OPEN, cache.getCircuitBreaker().getState(host));
+
+            DateTimeUtils.setCurrentMillisFixed(new DateTime(2012, 6, 1, 10, 0, 30, 0).getMillis());
+            when(responseResolver.resolve(isA(HTTPRequest.class))).thenReturn(new HTTPResponse(null, Status.OK, new Headers()));
+            assertEquals(Status.OK, cache.execute(new HTTPRequest(REQUEST_URI)).getStatus());
+            assertEquals(CircuitBreaker.State.CLOSED, cache.getCircuitBreaker().getState(host));
+            verify(responseResolver, times(2)).resolve(isA(HTTPRequest.class));
+        } finally {
+            DateTimeUtils.setCurrentMillisSystem();
+        }
+    }
+
+    @Test
+    public void executeAllAnswersHitsUpFrontAndResolvesDuplicatesOnce() throws Exception {
+        final AtomicInteger resolves = new AtomicInteger();
+        HTTPCache cache = new HTTPCache(new MemoryCacheStorage(), new ResponseResolver() {
+            public HTTPResponse resolve(HTTPRequest request) throws IOException {
+                resolves.incrementAndGet();
+                Headers headers = new Headers().add(HeaderConstants.CACHE_CONTROL, "max-age=60");
+                return new HTTPResponse(new StringPayload(request.getRequestURI().toString(), MIMEType.valueOf("text/plain")), Status.OK, headers);
+            }
+
+            public void shutdown() {
+            }
+        });
+        URI hit = URI.create("http://some/uri/hit");
+        URI other = URI.create("http://other/uri/123");
+        cache.execute(new HTTPRequest(hit)).consume();
+        List<HTTPRequest> requests = new ArrayList<HTTPRequest>();
+        requests.add(new HTTPRequest(REQUEST_URI));
+        requests.add(new HTTPRequest(hit));
+        requests.add(new HTTPRequest(REQUEST_URI));
+        requests.add(new HTTPRequest(other));
+
+        List<ListenableFuture<HTTPResponse>> responses = cache.executeAll(requests);
+        assertEquals(requests.size(), responses.size());
+        assertTrue("Cache hit was not answered up front", responses.get(1).isDone());
+        List<HTTPResponse> all = Futures.allAsList(responses).get(5, TimeUnit.SECONDS);
+        for (HTTPResponse response : all) {
+            assertEquals(Status.OK, response.getStatus());
+            response.consume();
+        }
+        assertTrue(all.get(2).isCached());
+        assertEquals(3, resolves.get());
+        cache.shutdown();
+    }
+
+    @Test
+    public void executeAllLimitsConcurrencyPerHostAcrossBatches() throws Exception {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        HTTPCache cache = new HTTPCache(new MemoryCacheStorage(), new ResponseResolver() {
+            public HTTPResponse resolve(HTTPRequest request) throws IOException {
+                int current = running.incrementAndGet();
+                synchronized (maxRunning) {
+                    maxRunning.set(Math.max(maxRunning.get(), current));
+                }
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                running.decrementAndGet();
+                return new HTTPResponse(null, Status.OK, new Headers());
+            }
+
+            public void shutdown() {
+            }
+        });
+        List<HTTPRequest> requests = new ArrayList<HTTPRequest>();
+        for (int i = 0; i < 8; i++) {
+            requests.add(new HTTPRequest(URI.create("http://foo/items/" + i)));
+        }
+        ConnectionConfiguration configuration = new ConnectionConfiguration.Builder().setDefaultConnectionPerHost(2).build();
+        List<ListenableFuture<HTTPResponse>> batches = new ArrayList<ListenableFuture<HTTPResponse>>();
+        batches.addAll(cache.executeAll(requests.subList(0, 4), configuration));
+        batches.addAll(cache.executeAll(requests.subList(4, 8), configuration));
+        List<HTTPResponse> all = Futures.allAsList(batches).get(10, TimeUnit.SECONDS);
+        assertEquals(8, all.size());
+        assertEquals(2, maxRunning.get());
+        cache.shutdown();
+    }
+
+    @Test
+    public void lastModifiedOnlyResponseIsHeuristicallyFresh() throws IOException {
+        DateTime now = new DateTime();
+        Headers headers = new Headers()
+                .add(HeaderUtils.toHttpDate(HeaderConstants.DATE, now))
+                .add(HeaderUtils.toHttpDate(HeaderConstants.LAST_MODIFIED, now.minusDays(10)));
+        when(cacheStorage.get(isA(HTTPRequest.class))).thenReturn(new DefaultCacheItem(new HTTPResponse(null, Status.OK, headers), now));
+        HTTPResponse response = cache.execute(new HTTPRequest(REQUEST_URI));
+        assertEquals(Status.OK, response.getStatus());
+        assertFalse(response.getHeaders().hasHeader(HeaderConstants.WARNING));
+        verify(responseResolver, never()).resolve(isA(HTTPRequest.class));
+
+        cache.setMaxHeuristicTTL(0);
+        when(responseResolver.resolve(isA(HTTPRequest.class))).thenReturn(new HTTPResponse(null, Status.NOT_MODIFIED, new Headers()));
+        when(cacheStorage.update(isA(HTTPRequest.class), isA(HTTPResponse.class))).thenReturn(new HTTPResponse(null, Status.OK, headers));
+        cache.execute(new HTTPRequest(REQUEST_URI));
+        verify(responseResolver, times(1)).resolve(isA(HTTPRequest.class));
+    }
+
+    @Test
+    public void heuristicallyFreshResponseOlderThanADayIsWarned() throws IOException {
+        DateTime cached = new DateTime().minusDays(2);
+        Headers headers = new Headers()
+                .add(HeaderUtils.toHttpDate(HeaderConstants.DATE, cached))
+                .add(HeaderUtils.toHttpDate(HeaderConstants.LAST_MODIFIED, cached.minusDays(100)));
+        when(cacheStorage.get(isA(HTTPRequest.class))).thenReturn(new DefaultCacheItem(new HTTPResponse(null, Status.OK, headers), cached));
+        cache.setMaxHeuristicTTL(7 * 24 * 60 * 60);
+        HTTPResponse response = cache.execute(new HTTPRequest(REQUEST_URI));
+        assertEquals(Status.OK, response.getStatus());
+        assertTrue(response.getHeaders().getFirstHeaderValue(HeaderConstants.WARNING).startsWith("113"));
+        verify(responseResolver, never()).resolve(isA(HTTPRequest.class));
+    }
+
+    @Test
+    public void rangeRequestIsAnsweredFromCachedEntity() throws IOException {
+        Headers headers = new Headers().add(HeaderConstants.CACHE_CONTROL, "max-age=60");
+        HTTPResponse cachedResponse = new HTTPResponse(new StringPayload("0123456789", MIMEType.valueOf("text/plain")), Status.OK, headers);
+        when(cacheStorage.get(isA(HTTPRequest.class))).thenReturn(new DefaultCacheItem(cachedResponse));
+        HTTPRequest request = new HTTPRequest(REQUEST_URI).headers(new Headers().add(HeaderConstants.RANGE, "bytes=0-3"));
+        HTTPResponse response = cache.execute(request);
+        assertEquals(Status.PARTIAL_CONTENT, response.getStatus());
+        assertEquals("bytes 0-3/10", response.getHeaders().getFirstHeaderValue(HeaderConstants.CONTENT_RANGE));
+        assertEquals(4, response.getPayload().length());
+        assertTrue(response.isCached());
+        verify(responseResolver, never()).resolve(isA(HTTPRequest.class));
+    }
+
+    @Test
+    public void rangeRequestIsAnsweredFromStaleAndRevalidatedEntities() throws IOException {
+        Headers headers = new Headers()
+                .add(HeaderConstants.CACHE_CONTROL, "max-age=10")
+                .add(HeaderConstants.ETAG, new Tag("foo").format());
+        HTTPResponse cachedResponse = new HTTPResponse(new StringPayload("0123456789", MIMEType.valueOf("text/plain")), Status.OK, headers);
+        when(cacheStorage.get(isA(HTTPRequest.class))).thenReturn(new DefaultCacheItem(cachedResponse, new DateTime().minusSeconds(20)));
+        when(cacheStorage.update(isA(HTTPRequest.class), isA(HTTPResponse.class))).thenAnswer(new Answer<HTTPResponse>() {
+            public HTTPResponse answer(InvocationOnMock invocation) throws Throwable {
+                return (HTTPResponse) invocation.getArguments()[1];
+            }
+        });
+        when(responseResolver.resolve(isA(HTTPRequest.class))).thenReturn(new HTTPResponse(null, Status.NOT_MODIFIED, new Headers()));
+        HTTPRequest request = new HTTPRequest(REQUEST_URI).headers(new Headers().add(HeaderConstants.RANGE, "bytes=2-4"));
+        HTTPResponse revalidated = cache.execute(request);
+        assertEquals(Status.PARTIAL_CONTENT, revalidated.getStatus());
+        assertEquals("bytes 2-4/10", revalidated.getHeaders().getFirstHeaderValue(HeaderConstants.CONTENT_RANGE));
+
+        HTTPResponse stale = cache.execute(request.headers(request.getHeaders().add(HeaderConstants.CACHE_CONTROL, "max-stale=60")));
+        assertEquals(Status.PARTIAL_CONTENT, stale.getStatus());
+        assertEquals("bytes 2-4/10", stale.getHeaders().getFirstHeaderValue(HeaderConstants.CONTENT_RANGE));
+        verify(responseResolver, times(1)).resolve(isA(HTTPRequest.class));
+    }
+
+    @Test
+    public void staleEntitiesAreRevalidatedWithoutRangeAndNeverUpdatedFromPartialContent() throws IOException {
+        Headers headers = new Headers()
+                .add(HeaderConstants.CACHE_CONTROL, "max-age=10")
+                .add(HeaderConstants.ETAG, new Tag("foo").format());
+        HTTPResponse cachedResponse = new HTTPResponse(new StringPayload("0123456789", MIMEType.valueOf("text/plain")), Status.OK, headers);
+        when(cacheStorage.get(isA(HTTPRequest.class))).thenReturn(new DefaultCacheItem(cachedResponse, new DateTime().minusSeconds(20)));
+        final List<HTTPRequest> forwarded = new ArrayList<HTTPRequest>();
+        when(responseResolver.resolve(isA(HTTPRequest.class))).thenAnswer(new Answer<HTTPResponse>() {
+            public HTTPResponse answer(InvocationOnMock invocation) throws Throwable {
+                forwarded.add((HTTPRequest) invocation.getArguments()[0]);
+                Headers partial = new Headers()
+                        .add(HeaderConstants.ETAG, new Tag("bar").format())
+                        .add(HeaderConstants.CONTENT_RANGE, "bytes 2-4/20");
+                return new HTTPResponse(new StringPayload("abc", MIMEType.valueOf("text/plain")), Status.PARTIAL_CONTENT, partial);
+            }
+        });
+        HTTPRequest request = new HTTPRequest(REQUEST_URI).headers(new Headers()
+                .add(HeaderConstants.RANGE, "bytes=2-4")
+                .add(HeaderConstants.IF_RANGE, new Tag("foo").format()));
+        HTTPResponse response = cache.execute(request);
+        assertEquals(Status.PARTIAL_CONTENT, response.getStatus());
+        assertEquals(1, forwarded.size());
+        Headers sent = forwarded.get(0).getHeaders();
+        assertFalse(sent.hasHeader(HeaderConstants.RANGE));
+        assertFalse(sent.hasHeader(HeaderConstants.IF_RANGE));
+        assertTrue(sent.hasHeader(HeaderConstants.IF_NONE_MATCH));
+        verify(cacheStorage, never()).update(isA(HTTPRequest.class), isA(HTTPResponse.class));
+    }
+
+    @Test
+    public void statisticsRecordOutcomeOfEachRequest() {
+        final AtomicInteger resolved = new AtomicInteger();
+        HTTPCache cache = new HTTPCache(new MemoryCacheStorage(), new ResponseResolver() {
+            public HTTPResponse resolve(HTTPRequest request) throws IOException {
+                if (resolved.getAndIncrement() > 0) {
+                    return new HTTPResponse(null, Status.NOT_MODIFIED, new Headers().add(HeaderConstants.ETAG, "\"1\""));
+                }
+                Headers headers = new Headers().add(HeaderConstants.CACHE_CONTROL, "max-age=0").add(HeaderConstants.ETAG, "\"1\"");
+                return new HTTPResponse(new StringPayload("foo", MIMEType.valueOf("text/plain")), Status.OK, headers);
+            }
+
+            public void shutdown() {
+            }
+        });
+        cache.execute(new HTTPRequest(REQUEST_URI)).consume();
+        cache.execute(new HTTPRequest(REQUEST_URI)).consume();
+        CacheStatistics statistics = cache.getStatistics();
+        assertEquals(1, statistics.getCount(CacheStatistics.Outcome.MISS));
+        assertEquals(1, statistics.getCount(CacheStatistics.Outcome.NOT_MODIFIED));
+        assertEquals(0, statistics.getCount(CacheStatistics.Outcome.HIT));
+        assertEquals(3, statistics.getBytesFromOrigin());
+        assertEquals(3, statistics.getBytesFromCache());
+        assertEquals(1, statistics.getLatency(CacheStatistics.Outcome.NOT_MODIFIED).getCount());
+        assertEquals(Long.valueOf(2), statistics.getRequestsPerHost().get("http://some"));
+        assertEquals(0.5, statistics.getHitRatio(), 0.0001);
+    }
+
+    @Test
+    public void statisticsRecordFreshHitsAndErrors() throws IOException {
+        Headers headers = new Headers().add(HeaderConstants.CACHE_CONTROL, "max-age=60");
+        when(cacheStorage.get(isA(HTTPRequest.class))).thenReturn(new DefaultCacheItem(new HTTPResponse(null, Status.OK, headers)));
+        cache.execute(new HTTPRequest(REQUEST_URI));
+        when(cacheStorage.get(isA(HTTPRequest.class))).thenReturn(null);
+        when(responseResolver.resolve(isA(HTTPRequest.class))).thenThrow(new IOException("Connection refused"));
+        try {
+            cache.execute(new HTTPRequest(REQUEST_URI));
+            fail("Expected the failure to be thrown");
+        } catch (HTTPException expected) {
+        }
+        CacheStatistics statistics = cache.getStatistics();
+        assertEquals(1, statistics.getCount(CacheStatistics.Outcome.HIT));
+        assertEquals(1, statistics.getCount(CacheStatistics.Outcome.ERROR));
+        assertEquals(1, statistics.getHostStatistics().get(new HTTPHost(REQUEST_URI)).getCount(CacheStatistics.Outcome.ERROR));
+    }
+
+    @Test
+    public void eventListenerReceivesRequestAndStorageEvents() throws Exception {
+        HTTPCache cache = new HTTPCache(new MemoryCacheStorage(), new ResponseResolver() {
+            public HTTPResponse resolve(HTTPRequest request) throws IOException {
+                Headers headers = new Headers().add(HeaderConstants.CACHE_CONTROL, "max-age=60");
+                return new HTTPResponse(new StringPayload("foo", MIMEType.valueOf("text/plain")), Status.OK, headers);
+            }
+
+            public void shutdown() {
+            }
+        });
+        final List<CacheEvent> events = Collections.synchronizedList(new ArrayList<CacheEvent>());
+        final CountDownLatch latch = new CountDownLatch(4);
+        cache.addEventListener(new CacheEventListener() {
+            public void onEvent(CacheEvent event) {
+                events.add(event);
+                latch.countDown();
+            }
+        });
+        cache.execute(new HTTPRequest(REQUEST_URI)).consume();
+        cache.execute(new HTTPRequest(REQUEST_URI)).consume();
+        cache.getStorage().invalidate(REQUEST_URI);
+        assertTrue("Events were not delivered", latch.await(5, TimeUnit.SECONDS));
+        List<CacheEvent.Type> types = new ArrayList<CacheEvent.Type>();
+        for (CacheEvent event : events) {
+            types.add(event.getType());
+            assertEquals(REQUEST_URI, event.getKey().getURI());
+        }
+        assertEquals(Arrays.asList(CacheEvent.Type.STORED, CacheEvent.Type.MISS, CacheEvent.Type.HIT, CacheEvent.Type.INVALIDATED), types);
+        assertEquals(3, events.get(0).getSize());
+        assertTrue(events.get(2).getDuration() >= 0);
+        assertEquals(0, cache.getDroppedEvents());
+        cache.shutdown();
+    }
+
+    @Test
+    public void timelineIsOnlyRecordedWhenEnabled() {
+        HTTPCache cache = new HTTPCache(new MemoryCacheStorage(), new TimedResponseResolver() {
+            public HTTPResponse resolve(HTTPRequest request, Timeline timeline) throws IOException {
+                long start = System.nanoTime();
+                timeline.record(Timeline.Phase.CONNECT, start, start + 1000);
+                return resolve(request);
+            }
+
+            public HTTPResponse resolve(HTTPRequest request) throws IOException {
+                Headers headers = new Headers().add(HeaderConstants.CACHE_CONTROL, "max-age=60");
+                return new HTTPResponse(new StringPayload("foo", MIMEType.valueOf("text/plain")), Status.OK, headers);
+            }
+
+            public void shutdown() {
+            }
+        });
+        HTTPResponse response = cache.execute(new HTTPRequest(URI.create("http://some/uri/untimed")));
+        assertFalse(response.getTimeline().isPresent());
+
+        cache.setRecordTimeline(true);
+        Timeline miss = cache.execute(new HTTPRequest(REQUEST_URI)).getTimeline().get();
+        assertEquals(1000, miss.getDuration(Timeline.Phase.CONNECT));
+        List<Timeline.Phase> phases = new ArrayList<Timeline.Phase>();
+        for (Timeline.Entry entry : miss.getEntries()) {
+            phases.add(entry.getPhase());
+        }
+        assertEquals(Arrays.asList(Timeline.Phase.STORAGE_LOOKUP, Timeline.Phase.CONNECT, Timeline.Phase.RESOLVE, Timeline.Phase.STORAGE_INSERT, Timeline.Phase.HEADER_REWRITE), phases);
+
+        Timeline hit = cache.execute(new HTTPRequest(REQUEST_URI)).getTimeline().get();
+        assertEquals(2, hit.getEntries().size());
+        assertEquals(0, hit.getDuration(Timeline.Phase.RESOLVE));
+    }
+
+    @Test
+    public void teedResponseIsStoredWhenReadToTheEnd() throws IOException {
+        MemoryCacheStorage storage = new MemoryCacheStorage();
+        HTTPCache cache = teeingCache(storage, "0123456789", "10");
+        HTTPResponse response = cache.execute(new HTTPRequest(REQUEST_URI));
+        assertEquals(0, storage.size());
+        assertEquals("0123456789", new String(ByteStreams.toByteArray(response.getPayload().getInputStream()), "UTF-8"));
+        assertEquals(1, storage.size());
+        HTTPResponse hit = cache.execute(new HTTPRequest(REQUEST_URI));
+        assertTrue(hit.isCached());
+        assertEquals("0123456789", new String(ByteStreams.toByteArray(hit.getPayload().getInputStream()), "UTF-8"));
+        assertEquals(0, teeDirectory().list().length);
+    }
+
+    @Test
+    public void teedResponseIsDiscardedWhenClosedEarly() throws IOException {
+        MemoryCacheStorage storage = new MemoryCacheStorage();
+        HTTPCache cache = teeingCache(storage, "0123456789", "10");
+        HTTPResponse response = cache.execute(new HTTPRequest(REQUEST_URI));
+        InputStream stream = response.getPayload().getInputStream();
+        assertEquals('0', stream.read());
+        stream.close();
+        assertEquals(0, storage.size());
+        assertEquals(0, teeDirectory().list().length);
+    }
+
+    @Test
+    public void truncatedTeedResponseIsDiscarded() throws IOException {
+        MemoryCacheStorage storage = new MemoryCacheStorage();
+        HTTPCache cache = teeingCache(storage, "01234", "10");
+        HTTPResponse response = cache.execute(new HTTPRequest(REQUEST_URI));
+        assertEquals("01234", new String(ByteStreams.toByteArray(response.getPayload().getInputStream()), "UTF-8"));
+        assertEquals(0, storage.size());
+    }
+
+    @Test
+    public void concurrentRequestsFollowTheResponseInFlight() throws IOException {
+        MemoryCacheStorage storage = new MemoryCacheStorage();
+        final AtomicInteger resolved = new AtomicInteger();
+        final CountDownLatch rest = new CountDownLatch(1);
+        HTTPCache cache = new HTTPCache(storage, new ResponseResolver() {
+            public HTTPResponse resolve(HTTPRequest request) throws IOException {
+                resolved.incrementAndGet();
+                Headers headers = new Headers().add(HeaderConstants.CACHE_CONTROL, "max-age=60");
+                return new HTTPResponse(new InputStreamPayload(new HalfwayBlockingInputStream("0123456789", rest), MIMEType.valueOf("text/plain")), Status.OK, headers);
+            }
+
+            public void shutdown() {
+            }
+        });
+        cache.setTeeDirectory(teeDirectory());
+        InputStream leader = cache.execute(new HTTPRequest(REQUEST_URI)).getPayload().getInputStream();
+        byte[] first = new byte[5];
+        ByteStreams.readFully(leader, first);
+        assertEquals("01234", new String(first, "UTF-8"));
+
+        HTTPResponse follower = cache.execute(new HTTPRequest(REQUEST_URI));
+        assertEquals(1, resolved.get());
+        assertEquals(0, storage.size());
+        rest.countDown();
+        assertEquals("0123456789", new String(ByteStreams.toByteArray(follower.getPayload().getInputStream()), "UTF-8"));
+        assertEquals(1, storage.size());
+        assertEquals("56789", new String(ByteStreams.toByteArray(leader), "UTF-8"));
+        assertEquals(0, teeDirectory().list().length);
+    }
+
+    @Test
+    public void followerCompletesTheResponseWhenTheLeaderGivesUp() throws IOException {
+        MemoryCacheStorage storage = new MemoryCacheStorage();
+        HTTPCache cache = teeingCache(storage, "0123456789", "10");
+        InputStream leader = cache.execute(new HTTPRequest(REQUEST_URI)).getPayload().getInputStream();
+        assertEquals('0', leader.read());
+        HTTPResponse follower = cache.execute(new HTTPRequest(REQUEST_URI));
+        leader.close();
+        assertEquals("0123456789", new String(ByteStreams.toByteArray(follower.getPayload().getInputStream()), "UTF-8"));
+        assertEquals(1, storage.size());
+    }
+
+    private HTTPCache teeingCache(CacheStorage storage, final String body, final String contentLength) {
+        HTTPCache cache = new HTTPCache(storage, new ResponseResolver() {
+            public HTTPResponse resolve(HTTPRequest request) throws IOException {
+                Headers headers = new Headers().add(HeaderConstants.CACHE_CONTROL, "max-age=60").add(HeaderConstants.CONTENT_LENGTH, contentLength);
+                return new HTTPResponse(new InputStreamPayload(new ByteArrayInputStream(body.getBytes("UTF-8")), MIMEType.valueOf("text/plain")), Status.OK, headers);
+            }
+
+            public void shutdown() {
+            }
+        });
+        cache.setTeeDirectory(teeDirectory());
+        return cache;
+    }
+
+    private File teeDirectory() {
+        File directory = TestUtil.getTestFile("target/tee");
+        directory.mkdirs();
+        return directory;
+    }
+
+    /**
+     * Delivers the first half of the body at once, and the rest when released.
+     */
+    private static class HalfwayBlockingInputStream extends InputStream {
+        private final byte[] body;
+        private final CountDownLatch rest;
+        private int position;
+
+        HalfwayBlockingInputStream(String body, CountDownLatch rest) throws IOException {
+            this.body = body.getBytes("UTF-8");
+            this.rest = rest;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (position == body.length / 2) {
+                try {
+                    rest.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e.getMessage());
+                }
+            }
+            return position < body.length ? body[position++] : -1;
+        }
+    }
+
     private Headers dryCleanHeaders(Headers headers, Headers updatedHeaders) {
         CacheStorage storage = new NullCacheStorage();
         cache = new HTTPCache(storage, responseResolver);
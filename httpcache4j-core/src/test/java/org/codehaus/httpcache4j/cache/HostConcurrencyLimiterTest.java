@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+
+package org.codehaus.httpcache4j.cache;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.codehaus.httpcache4j.HTTPHost;
+import org.codehaus.httpcache4j.HTTPResponse;
+import org.codehaus.httpcache4j.Headers;
+import org.codehaus.httpcache4j.Status;
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public class HostConcurrencyLimiterTest {
+    private static final HTTPHost HOST = new HTTPHost(URI.create("http://example.com/"));
+
+    private final HostConcurrencyLimiter limiter = new HostConcurrencyLimiter();
+
+    @Test
+    public void queuedRequestsWhichCompleteImmediatelyAreStartedInALoop() throws Exception {
+        final SettableFuture<HTTPResponse> first = SettableFuture.create();
+        limiter.submit(HOST, 1, new Callable<ListenableFuture<HTTPResponse>>() {
+            public ListenableFuture<HTTPResponse> call() {
+                return first;
+            }
+        });
+        List<ListenableFuture<HTTPResponse>> queued = new ArrayList<ListenableFuture<HTTPResponse>>();
+        for (int i = 0; i < 50000; i++) {
+            queued.add(limiter.submit(HOST, 1, new Callable<ListenableFuture<HTTPResponse>>() {
+                public ListenableFuture<HTTPResponse> call() {
+                    return Futures.immediateFuture(new HTTPResponse(null, Status.OK, new Headers()));
+                }
+            }));
+        }
+        assertEquals(1, limiter.getRunning(HOST));
+        first.set(new HTTPResponse(null, Status.OK, new Headers()));
+        assertEquals(50000, Futures.allAsList(queued).get(5, TimeUnit.SECONDS).size());
+        assertEquals(0, limiter.getRunning(HOST));
+    }
+
+    @Test
+    public void limitHoldsAcrossSubmitters() {
+        List<SettableFuture<HTTPResponse>> responses = new ArrayList<SettableFuture<HTTPResponse>>();
+        for (int i = 0; i < 4; i++) {
+            final SettableFuture<HTTPResponse> response = SettableFuture.create();
+            responses.add(response);
+            limiter.submit(HOST, 2, new Callable<ListenableFuture<HTTPResponse>>() {
+                public ListenableFuture<HTTPResponse> call() {
+                    return response;
+                }
+            });
+        }
+        assertEquals(2, limiter.getRunning(HOST));
+        for (SettableFuture<HTTPResponse> response : responses) {
+            response.set(new HTTPResponse(null, Status.OK, new Headers()));
+        }
+        assertEquals(0, limiter.getRunning(HOST));
+    }
+}
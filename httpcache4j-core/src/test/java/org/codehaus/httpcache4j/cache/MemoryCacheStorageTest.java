@@ -16,6 +16,22 @@
 
 package org.codehaus.httpcache4j.cache;
 
+import org.codehaus.httpcache4j.HTTPRequest;
+import org.codehaus.httpcache4j.HTTPResponse;
+import org.codehaus.httpcache4j.Headers;
+import org.codehaus.httpcache4j.MIMEType;
+import org.codehaus.httpcache4j.Status;
+import org.codehaus.httpcache4j.payload.ByteArrayPayload;
+import org.codehaus.httpcache4j.payload.FilePayload;
+import org.codehaus.httpcache4j.payload.InputStreamPayload;
+import org.codehaus.httpcache4j.util.NullInputStream;
+import org.codehaus.httpcache4j.util.TestUtil;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.URI;
+
+import static org.junit.Assert.*;
 
 /** @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a> */
 public class MemoryCacheStorageTest extends CacheStorageAbstractTest {
@@ -27,4 +43,89 @@ public class MemoryCacheStorageTest extends CacheStorageAbstractTest {
     @Override
 	protected void afterTest() {
     }
+
+    @Test
+    public void evictsEldestUntilWithinMaxBytes() {
+        MemoryCacheStorage storage = new MemoryCacheStorage(100, 3000);
+        for (int i = 0; i < 3; i++) {
+            storage.insert(request(i), response(1000)).consume();
+        }
+        assertEquals(2, storage.size());
+        assertNull(storage.get(request(0)));
+        assertTrue(storage.getWeight() > 2000);
+        assertTrue(storage.getWeight() <= 3000);
+        storage.invalidate(request(1).getNormalizedURI());
+        storage.invalidate(request(2).getNormalizedURI());
+        assertEquals(0, storage.getWeight());
+    }
+
+    @Test
+    public void keepsAnEntryHeavierThanMaxBytesUntilTheNextInsert() {
+        MemoryCacheStorage storage = new MemoryCacheStorage(100, 500);
+        storage.insert(request(0), response(1000)).consume();
+        assertNotNull(storage.get(request(0)));
+        storage.insert(request(1), response(10)).consume();
+        assertNull(storage.get(request(0)));
+        assertEquals(1, storage.size());
+    }
+
+    @Test
+    public void payloadsAboveTheSpillThresholdAreKeptInFiles() {
+        MemoryCacheStorage storage = new MemoryCacheStorage(100, Long.MAX_VALUE, spillDirectory(), 100);
+        HTTPResponse small = storage.insert(request(0), response(100));
+        HTTPResponse large = storage.insert(request(1), response(1000));
+        assertTrue(small.getPayload() instanceof ByteArrayPayload);
+        assertTrue(large.getPayload() instanceof FilePayload);
+        File file = ((FilePayload) large.getPayload()).getFile();
+        assertEquals(1000, file.length());
+        storage.invalidate(request(1).getNormalizedURI());
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void contentLengthAboveTheSpillThresholdIsSpilledWithoutBuffering() {
+        MemoryCacheStorage storage = new MemoryCacheStorage(100, Long.MAX_VALUE, spillDirectory(), 100);
+        HTTPResponse response = new HTTPResponse(new InputStreamPayload(new NullInputStream(1000), MIMEType.APPLICATION_OCTET_STREAM, 1000), Status.OK, new Headers());
+        HTTPResponse stored = storage.insert(request(0), response);
+        assertTrue(stored.getPayload() instanceof FilePayload);
+        assertEquals(1000, stored.getPayload().length());
+    }
+
+    @Test
+    public void evictedSpillFilesAreDeleted() {
+        MemoryCacheStorage storage = new MemoryCacheStorage(1, Long.MAX_VALUE, spillDirectory(), 100);
+        File first = ((FilePayload) storage.insert(request(0), response(1000)).getPayload()).getFile();
+        storage.insert(request(1), response(1000));
+        assertNull(storage.get(request(0)));
+        assertFalse(first.exists());
+        storage.clear();
+    }
+
+    @Test
+    public void replacedSpillFilesAreDeletedAndSpillsWeighOnlyTheirMetadata() {
+        MemoryCacheStorage storage = new MemoryCacheStorage(100, 2000, spillDirectory(), 100);
+        File first = ((FilePayload) storage.insert(request(0), response(1000)).getPayload()).getFile();
+        File second = ((FilePayload) storage.insert(request(0), response(1000)).getPayload()).getFile();
+        assertFalse(first.equals(second));
+        assertFalse(first.exists());
+        assertTrue(second.exists());
+        storage.insert(request(1), response(1000));
+        storage.insert(request(2), response(1000));
+        assertEquals(3, storage.size());
+        assertTrue(storage.getWeight() < 1000);
+        storage.clear();
+        assertFalse(second.exists());
+    }
+
+    private File spillDirectory() {
+        return TestUtil.getTestFile("target/spill");
+    }
+
+    private HTTPResponse response(int length) {
+        return new HTTPResponse(new InputStreamPayload(new NullInputStream(length), MIMEType.APPLICATION_OCTET_STREAM), Status.OK, new Headers());
+    }
+
+    private HTTPRequest request(int i) {
+        return new HTTPRequest(URI.create("http://example.com/items/" + i));
+    }
 }
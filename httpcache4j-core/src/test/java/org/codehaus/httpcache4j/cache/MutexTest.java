@@ -20,6 +20,7 @@ import org.junit.Assert;
 
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Map;
@@ -140,14 +141,35 @@ public class MutexTest {
         thread2.join();
     }
 
+    @Test
+    public void tryAcquireFailsWhileHeldAndAwaitReturnsAfterRelease() throws Exception {
+        Assert.assertTrue(mutex.tryAcquire(URI_1));
+        Assert.assertFalse(mutex.tryAcquire(URI_1));
+        Assert.assertTrue(mutex.tryAcquire(URI.create("bar")));
+        final AtomicBoolean released = new AtomicBoolean(false);
+        Thread waiter = new Thread(new Runnable() {
+            public void run() {
+                success.put(Thread.currentThread().getName(), mutex.await(URI_1) && released.get());
+            }
+        });
+        waiter.start();
+        Thread.sleep(200);
+        released.set(true);
+        mutex.release(URI_1);
+        waiter.join(2000);
+        Assert.assertFalse(waiter.isAlive());
+        Assert.assertTrue(success.get(waiter.getName()));
+        Assert.assertTrue(mutex.tryAcquire(URI_1));
+        mutex.release(URI_1);
+        mutex.release(URI.create("bar"));
+    }
+
     private List<Thread> testWithRunnables(final Runnable worker, URI uri) throws InterruptedException {
         List<Thread> threads = new ArrayList<Thread>();
         final DoTheThingSlowly runnable = new DoTheThingSlowly(uri);
         Thread slowThread = new Thread(runnable);
         slowThread.start();
-        synchronized (runnable) {
-            runnable.wait();
-        }
+        runnable.started.await();
         threads.add(slowThread);
         for (int i = 0; i < 4; i++) {
             Thread t = new Thread(worker);
@@ -190,6 +212,7 @@ public class MutexTest {
 
     class DoTheThingSlowly implements Runnable {
         private final String uri;
+        private final CountDownLatch started = new CountDownLatch(1);
 
         public DoTheThingSlowly(URI uri) {
             this.uri = uri.toString();
@@ -197,9 +220,7 @@ public class MutexTest {
 
         public void run() {
             mutex.acquire(URI.create(uri));
-            synchronized (this) {
-                notify();
-            }
+            started.countDown();
             try {
                 Thread.sleep(2000);
                 flag.set(true);
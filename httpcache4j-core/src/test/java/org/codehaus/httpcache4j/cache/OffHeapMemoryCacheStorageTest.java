@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+
+package org.codehaus.httpcache4j.cache;
+
+import com.google.common.io.ByteStreams;
+import org.codehaus.httpcache4j.HTTPRequest;
+import org.codehaus.httpcache4j.HTTPResponse;
+import org.codehaus.httpcache4j.Headers;
+import org.codehaus.httpcache4j.MIMEType;
+import org.codehaus.httpcache4j.Status;
+import org.codehaus.httpcache4j.payload.ByteArrayPayload;
+import org.codehaus.httpcache4j.payload.Payload;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public class OffHeapMemoryCacheStorageTest extends CacheStorageAbstractTest {
+    private static final int MB = 1024 * 1024;
+
+    @Override
+    protected CacheStorage createCacheStorage() {
+        return new OffHeapMemoryCacheStorage(1000, 4 * MB);
+    }
+
+    @Override
+    protected void afterTest() {
+    }
+
+    @Test
+    public void payloadIsStoredOffHeap() throws IOException {
+        OffHeapMemoryCacheStorage storage = new OffHeapMemoryCacheStorage(1000, 4 * MB);
+        byte[] bytes = bytes(200 * 1024);
+        storage.insert(request(0), response(bytes)).consume();
+        Payload payload = storage.get(request(0)).getResponse().getPayload();
+        assertTrue(payload instanceof OffHeapPayload.Lease);
+        assertEquals(bytes.length, payload.length());
+        assertArrayEquals(bytes, read(payload));
+        assertTrue(storage.getDirectMemoryUsed() >= bytes.length);
+        storage.invalidate(request(0).getNormalizedURI());
+        assertEquals(0, storage.getDirectMemoryUsed());
+        assertEquals(SlabAllocator.SLAB_SIZE * 2, storage.getDirectMemoryReserved());
+    }
+
+    @Test
+    public void streamOpenedBeforeEvictionStaysReadable() throws IOException {
+        OffHeapMemoryCacheStorage storage = new OffHeapMemoryCacheStorage(1000, 4 * MB);
+        byte[] bytes = bytes(100 * 1024);
+        storage.insert(request(0), response(bytes)).consume();
+        Payload payload = storage.get(request(0)).getResponse().getPayload();
+        InputStream stream = payload.getInputStream();
+        storage.invalidate(request(0).getNormalizedURI());
+        assertTrue(payload.isAvailable());
+        assertTrue(storage.getDirectMemoryUsed() > 0);
+        assertArrayEquals(bytes, ByteStreams.toByteArray(stream));
+        stream.close();
+        assertFalse(payload.isAvailable());
+        assertEquals(0, storage.getDirectMemoryUsed());
+        stream = payload.getInputStream();
+        try {
+            stream.read();
+            fail("Expected the released payload to fail when read");
+        } catch (IOException expected) {
+        } finally {
+            stream.close();
+        }
+    }
+
+    @Test
+    public void payloadLookedUpBeforeEvictionStaysReadable() throws IOException {
+        OffHeapMemoryCacheStorage storage = new OffHeapMemoryCacheStorage(1000, 4 * MB);
+        byte[] bytes = bytes(100 * 1024);
+        storage.insert(request(0), response(bytes)).consume();
+        Payload payload = storage.get(request(0)).getResponse().getPayload();
+        storage.invalidate(request(0).getNormalizedURI());
+        assertTrue(payload.isAvailable());
+        InputStream stream = payload.getInputStream();
+        assertNotNull(stream);
+        assertArrayEquals(bytes, ByteStreams.toByteArray(stream));
+        assertEquals(0, storage.getDirectMemoryUsed());
+        stream.close();
+    }
+
+    @Test
+    public void evictsEldestEntriesWhenDirectMemoryIsFull() throws IOException {
+        OffHeapMemoryCacheStorage storage = new OffHeapMemoryCacheStorage(1000, 2 * MB);
+        for (int i = 0; i < 6; i++) {
+            storage.insert(request(i), response(bytes(300 * 1024))).consume();
+        }
+        assertEquals(4, storage.size());
+        assertNull(storage.get(request(0)));
+        assertNull(storage.get(request(1)));
+        assertNotNull(storage.get(request(5)));
+        assertEquals(0, storage.getHeapPayloads());
+        assertEquals(2 * MB, storage.getDirectMemoryReserved());
+    }
+
+    @Test
+    public void keepsPayloadOnHeapWhenNoDirectMemoryCanBeFreed() throws IOException {
+        OffHeapMemoryCacheStorage storage = new OffHeapMemoryCacheStorage(1000, MB);
+        byte[] bytes = bytes(300 * 1024);
+        storage.insert(request(0), response(bytes)).consume();
+        assertEquals(1, storage.getHeapPayloads());
+        Payload payload = storage.get(request(0)).getResponse().getPayload();
+        assertTrue(payload instanceof ByteArrayPayload);
+        assertArrayEquals(bytes, read(payload));
+        assertEquals(0, storage.getDirectMemoryUsed());
+    }
+
+    @Test
+    public void updateKeepsThePayload() throws IOException {
+        OffHeapMemoryCacheStorage storage = new OffHeapMemoryCacheStorage(1000, 4 * MB);
+        byte[] bytes = bytes(1000);
+        storage.insert(request(0), response(bytes)).consume();
+        HTTPResponse cached = storage.get(request(0)).getResponse();
+        storage.update(request(0), cached.withHeaders(new Headers().add("ETag", "\"v2\"")));
+        assertArrayEquals(bytes, read(storage.get(request(0)).getResponse().getPayload()));
+    }
+
+    private static byte[] read(Payload payload) throws IOException {
+        InputStream stream = payload.getInputStream();
+        try {
+            return ByteStreams.toByteArray(stream);
+        } finally {
+            stream.close();
+        }
+    }
+
+    private static byte[] bytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static HTTPResponse response(byte[] bytes) throws IOException {
+        return new HTTPResponse(new ByteArrayPayload(new ByteArrayInputStream(bytes), MIMEType.APPLICATION_OCTET_STREAM), Status.OK, new Headers());
+    }
+
+    private static HTTPRequest request(int i) {
+        return new HTTPRequest(URI.create("http://example.com/items/" + i));
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import org.codehaus.httpcache4j.HTTPRequest;
+import org.codehaus.httpcache4j.HTTPResponse;
+import org.codehaus.httpcache4j.Headers;
+import org.codehaus.httpcache4j.HeaderConstants;
+import org.codehaus.httpcache4j.MIMEType;
+import org.codehaus.httpcache4j.Status;
+import org.codehaus.httpcache4j.payload.InputStreamPayload;
+import org.codehaus.httpcache4j.util.NullInputStream;
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public class SegmentedMemoryCacheStorageTest extends CacheStorageAbstractTest {
+    @Override
+    protected CacheStorage createCacheStorage() {
+        return new SegmentedMemoryCacheStorage();
+    }
+
+    @Override
+    protected void afterTest() {
+    }
+
+    @Test
+    public void evictsLeastRecentlyReadEntry() {
+        SegmentedMemoryCacheStorage storage = new SegmentedMemoryCacheStorage(3, 1);
+        final List<Key> evicted = new ArrayList<Key>();
+        storage.setEventListener(new CacheEventListener() {
+            public void onEvent(CacheEvent event) {
+                if (event.getType() == CacheEvent.Type.EVICTED) {
+                    evicted.add(event.getKey());
+                }
+            }
+        });
+        for (int i = 0; i < 3; i++) {
+            storage.insert(request(i), new HTTPResponse(null, Status.OK, new Headers()));
+        }
+        assertNotNull(storage.get(request(0)));
+        storage.insert(request(3), new HTTPResponse(null, Status.OK, new Headers()));
+        assertEquals(3, storage.size());
+        assertNull(storage.get(request(1)));
+        assertNotNull(storage.get(request(0)));
+        assertEquals(1, evicted.size());
+        assertEquals(request(1).getNormalizedURI(), evicted.get(0).getURI());
+    }
+
+    @Test
+    public void variantsAreCountedAndInvalidatedTogether() {
+        Headers headers = new Headers().add(HeaderConstants.VARY, HeaderConstants.ACCEPT);
+        storage.insert(request(0).addHeader(HeaderConstants.ACCEPT, "text/plain"), new HTTPResponse(null, Status.OK, headers));
+        storage.insert(request(0).addHeader(HeaderConstants.ACCEPT, "text/html"), new HTTPResponse(null, Status.OK, headers));
+        storage.insert(request(1), new HTTPResponse(null, Status.OK, new Headers()));
+        assertEquals(3, storage.size());
+        assertNotNull(storage.get(request(0).addHeader(HeaderConstants.ACCEPT, "text/html")));
+        storage.invalidate(request(0).getNormalizedURI());
+        assertEquals(1, storage.size());
+        assertNull(storage.get(request(0).addHeader(HeaderConstants.ACCEPT, "text/plain")));
+        assertNotNull(storage.get(request(1)));
+    }
+
+    @Test
+    public void evictsLeastRecentlyReadEntriesUntilWithinMaxBytes() {
+        SegmentedMemoryCacheStorage storage = new SegmentedMemoryCacheStorage(100, 1, 3000);
+        for (int i = 0; i < 3; i++) {
+            storage.insert(request(i), response(1000)).consume();
+        }
+        assertEquals(2, storage.size());
+        assertNull(storage.get(request(0)));
+        assertTrue(storage.getWeight() > 2000);
+        assertTrue(storage.getWeight() <= 3000);
+        storage.clear();
+        assertEquals(0, storage.getWeight());
+    }
+
+    private HTTPResponse response(int length) {
+        return new HTTPResponse(new InputStreamPayload(new NullInputStream(length), MIMEType.APPLICATION_OCTET_STREAM), Status.OK, new Headers());
+    }
+
+    private HTTPRequest request(int i) {
+        return new HTTPRequest(URI.create("http://example.com/items/" + i));
+    }
+}
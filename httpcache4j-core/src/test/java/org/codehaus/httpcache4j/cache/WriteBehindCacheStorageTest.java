@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+
+package org.codehaus.httpcache4j.cache;
+
+import com.google.common.io.ByteStreams;
+import org.codehaus.httpcache4j.HTTPRequest;
+import org.codehaus.httpcache4j.HTTPResponse;
+import org.codehaus.httpcache4j.HeaderConstants;
+import org.codehaus.httpcache4j.Headers;
+import org.codehaus.httpcache4j.MIMEType;
+import org.codehaus.httpcache4j.Status;
+import org.codehaus.httpcache4j.payload.InputStreamPayload;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public class WriteBehindCacheStorageTest extends CacheStorageAbstractTest {
+    @Override
+    protected CacheStorage createCacheStorage() {
+        return new WriteBehindCacheStorage(new MemoryCacheStorage());
+    }
+
+    @Override
+    protected void afterTest() {
+        storage.shutdown();
+    }
+
+    @Test
+    public void pendingWritesAreReadFromTheQueue() throws IOException {
+        SlowStorage slow = new SlowStorage();
+        WriteBehindCacheStorage storage = new WriteBehindCacheStorage(slow);
+        HTTPResponse response = storage.insert(request(0), response("hello"));
+        assertEquals("hello", new String(ByteStreams.toByteArray(response.getPayload().getInputStream()), "UTF-8"));
+        CacheItem item = storage.get(request(0));
+        assertNotNull(item);
+        assertEquals("hello", new String(ByteStreams.toByteArray(item.getResponse().getPayload().getInputStream()), "UTF-8"));
+        assertNull(slow.memory.get(request(0)));
+        slow.release();
+        storage.flush();
+        assertNotNull(slow.memory.get(request(0)));
+        storage.shutdown();
+    }
+
+    @Test
+    public void repeatedWritesToTheSameKeyAreCoalesced() {
+        SlowStorage slow = new SlowStorage();
+        WriteBehindCacheStorage storage = new WriteBehindCacheStorage(slow);
+        storage.insert(request(0), response("first"));
+        slow.awaitWriting();
+        for (int i = 0; i < 5; i++) {
+            storage.insert(request(1), response("second " + i));
+        }
+        assertEquals(1, storage.getQueueSize());
+        slow.release();
+        storage.flush();
+        assertEquals(2, slow.inserts.get());
+        assertEquals(2, storage.size());
+        storage.shutdown();
+    }
+
+    @Test
+    public void invalidationDiscardsPendingWrites() {
+        SlowStorage slow = new SlowStorage();
+        WriteBehindCacheStorage storage = new WriteBehindCacheStorage(slow);
+        storage.insert(request(0), response("first"));
+        slow.awaitWriting();
+        storage.insert(request(1), response("second"));
+        storage.invalidate(request(1).getNormalizedURI());
+        assertNull(storage.get(request(1)));
+        slow.release();
+        storage.flush();
+        assertEquals(1, slow.inserts.get());
+        assertNull(storage.get(request(1)));
+        storage.shutdown();
+    }
+
+    @Test
+    public void writesAreDroppedWhenTheQueueIsFull() {
+        SlowStorage slow = new SlowStorage();
+        WriteBehindCacheStorage storage = new WriteBehindCacheStorage(slow, 1, WriteBehindCacheStorage.WhenFull.DROP);
+        storage.insert(request(0), response("first"));
+        slow.awaitWriting();
+        storage.insert(request(1), response("second"));
+        HTTPResponse dropped = storage.insert(request(2), response("third"));
+        assertNotNull(dropped.getPayload());
+        assertEquals(1, storage.getDropped());
+        assertNull(storage.get(request(2)));
+        slow.release();
+        storage.flush();
+        assertEquals(2, storage.size());
+        storage.shutdown();
+    }
+
+    @Test
+    public void shutdownWritesPendingWrites() {
+        SlowStorage slow = new SlowStorage();
+        WriteBehindCacheStorage storage = new WriteBehindCacheStorage(slow);
+        for (int i = 0; i < 10; i++) {
+            storage.insert(request(i), response("item " + i));
+        }
+        slow.release();
+        storage.shutdown();
+        assertEquals(10, slow.memory.size());
+    }
+
+    @Test
+    public void updateOfAQueuedInsertKeepsItsPayload() throws IOException {
+        SlowStorage slow = new SlowStorage();
+        WriteBehindCacheStorage storage = new WriteBehindCacheStorage(slow);
+        storage.insert(request(0), response("first"));
+        slow.awaitWriting();
+        storage.insert(request(1), response("second"));
+        Headers headers = new Headers().add(HeaderConstants.ETAG, "\"updated\"");
+        HTTPResponse updated = storage.update(request(1), new HTTPResponse(null, Status.NOT_MODIFIED, headers));
+        assertEquals("second", new String(ByteStreams.toByteArray(updated.getPayload().getInputStream()), "UTF-8"));
+        assertEquals(1, storage.getQueueSize());
+        slow.release();
+        storage.flush();
+        CacheItem item = slow.memory.get(request(1));
+        assertEquals("\"updated\"", item.getResponse().getHeaders().getFirstHeaderValue(HeaderConstants.ETAG));
+        assertEquals("second", new String(ByteStreams.toByteArray(item.getResponse().getPayload().getInputStream()), "UTF-8"));
+        storage.shutdown();
+    }
+
+    @Test
+    public void writesAfterShutdownAreRejected() {
+        SlowStorage slow = new SlowStorage();
+        WriteBehindCacheStorage storage = new WriteBehindCacheStorage(slow);
+        slow.release();
+        storage.shutdown();
+        try {
+            storage.insert(request(0), response("late"));
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+        }
+        assertNull(slow.memory.get(request(0)));
+    }
+
+    private HTTPResponse response(String body) {
+        return new HTTPResponse(new InputStreamPayload(new ByteArrayInputStream(body.getBytes()), MIMEType.valueOf("text/plain")), Status.OK, new Headers());
+    }
+
+    private HTTPRequest request(int i) {
+        return new HTTPRequest(URI.create("http://example.com/items/" + i));
+    }
+
+    /**
+     * Holds up inserts until released.
+     */
+    private static class SlowStorage implements CacheStorage {
+        private final MemoryCacheStorage memory = new MemoryCacheStorage();
+        private final CountDownLatch writing = new CountDownLatch(1);
+        private final CountDownLatch released = new CountDownLatch(1);
+        private final AtomicInteger inserts = new AtomicInteger();
+
+        void awaitWriting() {
+            try {
+                writing.await();
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        void release() {
+            released.countDown();
+        }
+
+        public HTTPResponse insert(HTTPRequest request, HTTPResponse response) {
+            writing.countDown();
+            try {
+                released.await();
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+            inserts.incrementAndGet();
+            return memory.insert(request, response);
+        }
+
+        public HTTPResponse update(HTTPRequest request, HTTPResponse response) {
+            return memory.update(request, response);
+        }
+
+        public CacheItem get(HTTPRequest request) {
+            return memory.get(request);
+        }
+
+        public CacheItem get(Key key) {
+            return memory.get(key);
+        }
+
+        public void invalidate(URI uri) {
+            memory.invalidate(uri);
+        }
+
+        public void clear() {
+            memory.clear();
+        }
+
+        public int size() {
+            return memory.size();
+        }
+
+        public Iterator<Key> iterator() {
+            return memory.iterator();
+        }
+
+        public void shutdown() {
+        }
+    }
+}
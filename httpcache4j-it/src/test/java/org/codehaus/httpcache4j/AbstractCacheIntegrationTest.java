@@ -17,6 +17,8 @@ package org.codehaus.httpcache4j;
 
 import java.io.File;
 
+import com.google.common.util.concurrent.ListenableFuture;
+
 import org.apache.http.protocol.HTTP;
 import org.codehaus.httpcache4j.payload.StringPayload;
 import org.codehaus.httpcache4j.resolver.ResponseResolver;
@@ -245,6 +247,32 @@ public abstract class AbstractCacheIntegrationTest {
         assertEquals(2, storage.size());
     }
 
+    @Test
+    public void GETAsyncWithETagAndAuthentication() throws Exception {
+        URI uri = baseRequestURI.resolve(String.format("etag/%s", TEST_FILE));
+        HTTPResponse response = cache.executeAsync(new HTTPRequest(uri)).get();
+        assertEquals(Status.OK, response.getStatus());
+        assertNotNull(response.getETag());
+        response.consume();
+        response = cache.executeAsync(new HTTPRequest(uri)).get();
+        assertEquals(Status.OK, response.getStatus());
+        assertTrue(response.isCached());
+        response.consume();
+
+        uri = baseRequestURI.resolve(String.format("cc,10/%s", TEST_FILE));
+        cache.executeAsync(new HTTPRequest(uri)).get().consume();
+        ListenableFuture<HTTPResponse> hit = cache.executeAsync(new HTTPRequest(uri));
+        assertTrue(hit.isDone());
+        assertEquals(Status.OK, hit.get().getStatus());
+        hit.get().consume();
+
+        uri = baseRequestURI.resolve(String.format("etag/basic,u=u,p=p/%s", TEST_FILE));
+        HTTPRequest request = new HTTPRequest(uri).challenge(new UsernamePasswordChallenge("u", "p"));
+        response = cache.executeAsync(request).get();
+        assertEquals(Status.OK, response.getStatus());
+        response.consume();
+    }
+
     /**
      * Tests that requests come from the cache, but that the 
      * response isn't specified that the cache is used when the response
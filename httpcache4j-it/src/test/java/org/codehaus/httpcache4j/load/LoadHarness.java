@@ -0,0 +1,313 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.load;
+
+import com.google.common.io.Closeables;
+import org.codehaus.httpcache4j.HTTPRequest;
+import org.codehaus.httpcache4j.HTTPResponse;
+import org.codehaus.httpcache4j.Status;
+import org.codehaus.httpcache4j.cache.CacheStorage;
+import org.codehaus.httpcache4j.cache.HTTPCache;
+import org.codehaus.httpcache4j.cache.MemoryCacheStorage;
+import org.codehaus.httpcache4j.cache.PersistentCacheStorage;
+import org.codehaus.httpcache4j.cache.SegmentedMemoryCacheStorage;
+import org.codehaus.httpcache4j.resolver.ConnectionConfiguration;
+import org.codehaus.httpcache4j.resolver.ResponseResolver;
+import org.codehaus.httpcache4j.resolver.ning.NingResponseResolver;
+import org.codehaus.httpcache4j.storage.ehcache.EhCacheStorage;
+import org.codehaus.httpcache4j.storage.jdbc.H2CacheStorage;
+import org.codehaus.httpcache4j.urlconnection.URLConnectionResponseResolver;
+import org.codehaus.httpcache4j.util.LatencyHistogram;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs a {@link Workload} through an {@link HTTPCache} against a local Jetty origin,
+ * for each combination of resolver and storage.
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public class LoadHarness {
+    public static final int PORT = 10988;
+
+    private final Workload workload;
+    private final File storageDirectory;
+    private final URI base = URI.create(String.format("http://localhost:%s/", PORT));
+    private Server server;
+
+    public LoadHarness(Workload workload, File storageDirectory) {
+        this.workload = workload;
+        this.storageDirectory = storageDirectory;
+    }
+
+    public void start() throws Exception {
+        server = new Server(PORT);
+        ServletContextHandler context = new ServletContextHandler();
+        context.setContextPath("/");
+        context.addServlet(LoadServlet.class, "/load/*");
+        server.setHandler(context);
+        server.start();
+    }
+
+    public void stop() throws Exception {
+        server.stop();
+    }
+
+
+    public Result run(Resolvers resolverType, Storages storageType) throws InterruptedException {
+        ConnectionConfiguration connections = new ConnectionConfiguration.Builder()
+                .setDefaultConnectionPerHost(workload.getThreads())
+                .setMaxConnections(workload.getThreads())
+                .build();
+        File directory = new File(storageDirectory, String.format("%s-%s", resolverType, storageType).toLowerCase());
+        // Persistent storages would otherwise start with the entries of the previous run.
+        delete(directory);
+        final HTTPCache cache = new HTTPCache(storageType.create(directory, workload.getResources()), resolverType.create(connections));
+        final LatencyHistogram latency = new LatencyHistogram(workload.getThreads());
+        final AtomicLong errors = new AtomicLong();
+        final AtomicReference<String> firstError = new AtomicReference<String>();
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> clients = new ArrayList<Thread>();
+        for (int i = 0; i < workload.getThreads(); i++) {
+            final HTTPRequest[] requests = workload.createRequests(base, i);
+            Thread client = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (HTTPRequest request : requests) {
+                        long begin = System.nanoTime();
+                        try {
+                            HTTPResponse response = cache.execute(request);
+                            String error = check(request, response);
+                            if (error != null) {
+                                errors.incrementAndGet();
+                                firstError.compareAndSet(null, request.getRequestURI() + ": " + error);
+                            }
+                        } catch (IOException e) {
+                            errors.incrementAndGet();
+                            firstError.compareAndSet(null, request.getRequestURI() + ": " + e);
+                        } catch (RuntimeException e) {
+                            errors.incrementAndGet();
+                            firstError.compareAndSet(null, request.getRequestURI() + ": " + e);
+                        }
+                        latency.record(System.nanoTime() - begin);
+                    }
+                }
+            }, "load-client-" + i);
+            client.start();
+            clients.add(client);
+        }
+        long originBefore = LoadServlet.requests.get();
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread client : clients) {
+            client.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+        Result result = new Result(
+                resolverType,
+                storageType,
+                latency.getCount(),
+                elapsed,
+                latency.getPercentile(0.5),
+                latency.getPercentile(0.99),
+                LoadServlet.requests.get() - originBefore,
+                cache.getStatistics().getHitRatio(),
+                errors.get(),
+                firstError.get()
+        );
+        cache.shutdown();
+        return result;
+    }
+
+    /**
+     * Reads the whole payload, like a client would.
+     *
+     * @return a description of what is wrong with the response, or {@code null} if it is what the origin sent.
+     */
+    private static String check(HTTPRequest request, HTTPResponse response) throws IOException {
+        if (response.getStatus() != Status.OK) {
+            response.consume();
+            return response.getStatus().toString();
+        }
+        long length = 0;
+        if (response.hasPayload()) {
+            InputStream stream = response.getPayload().getInputStream();
+            try {
+                byte[] buffer = new byte[8192];
+                for (int read = stream.read(buffer); read != -1; read = stream.read(buffer)) {
+                    length += read;
+                }
+            } finally {
+                Closeables.closeQuietly(stream);
+            }
+        }
+        long expected = Workload.payloadSize(request.getRequestURI());
+        if (length != expected) {
+            return String.format("expected %d bytes, but got %d", expected, length);
+        }
+        return null;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    public static String report(Workload workload, List<Result> results) {
+        StringBuilder report = new StringBuilder();
+        report.append(workload).append('\n');
+        report.append(String.format("%-20s %-16s %12s %10s %10s %10s %8s %8s%n", "resolver", "storage", "requests/s", "p50 ms", "p99 ms", "origin", "hits", "errors"));
+        for (Result result : results) {
+            report.append(result).append('\n');
+        }
+        return report.toString();
+    }
+
+    public enum Resolvers {
+        COMMONS_HTTPCLIENT {
+            ResponseResolver create(ConnectionConfiguration configuration) {
+                return org.codehaus.httpcache4j.client.HTTPClientResponseResolver.createMultithreadedInstance(configuration);
+            }
+        },
+        HTTPCOMPONENTS {
+            ResponseResolver create(ConnectionConfiguration configuration) {
+                return org.codehaus.httpcache4j.resolver.HTTPClientResponseResolver.createMultithreadedInstance(configuration);
+            }
+        },
+        NING {
+            ResponseResolver create(ConnectionConfiguration configuration) {
+                return NingResponseResolver.newInstance(configuration);
+            }
+        },
+        URLCONNECTION {
+            ResponseResolver create(ConnectionConfiguration configuration) {
+                // Opens a connection per request, and rejects any connection limits.
+                return new URLConnectionResponseResolver(new ConnectionConfiguration());
+            }
+        };
+
+        abstract ResponseResolver create(ConnectionConfiguration configuration);
+    }
+
+    public enum Storages {
+        MEMORY {
+            CacheStorage create(File directory, int capacity) {
+                return new MemoryCacheStorage();
+            }
+        },
+        SEGMENTED_MEMORY {
+            CacheStorage create(File directory, int capacity) {
+                return new SegmentedMemoryCacheStorage(capacity);
+            }
+        },
+        FILE {
+            CacheStorage create(File directory, int capacity) {
+                return new PersistentCacheStorage(capacity, directory, "load");
+            }
+        },
+        H2 {
+            CacheStorage create(File directory, int capacity) {
+                return new H2CacheStorage(directory, true);
+            }
+        },
+        EHCACHE {
+            CacheStorage create(File directory, int capacity) {
+                return EhCacheStorage.diskPersistent(directory, capacity);
+            }
+        };
+
+        abstract CacheStorage create(File directory, int capacity);
+    }
+
+    public static class Result {
+        private final Resolvers resolver;
+        private final Storages storage;
+        private final long requests;
+        private final long elapsed;
+        private final long p50;
+        private final long p99;
+        private final long originRequests;
+        private final double hitRatio;
+        private final long errors;
+        private final String firstError;
+
+        Result(Resolvers resolver, Storages storage, long requests, long elapsed, long p50, long p99, long originRequests, double hitRatio, long errors, String firstError) {
+            this.resolver = resolver;
+            this.storage = storage;
+            this.requests = requests;
+            this.elapsed = elapsed;
+            this.p50 = p50;
+            this.p99 = p99;
+            this.originRequests = originRequests;
+            this.hitRatio = hitRatio;
+            this.errors = errors;
+            this.firstError = firstError;
+        }
+
+        public long getRequests() {
+            return requests;
+        }
+
+        public double getThroughput() {
+            return requests / (elapsed / (double) TimeUnit.SECONDS.toNanos(1));
+        }
+
+        public long getOriginRequests() {
+            return originRequests;
+        }
+
+        public double getHitRatio() {
+            return hitRatio;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        /**
+         * @return the request and the status or exception of the first error, or {@code null} if there were no errors.
+         */
+        public String getFirstError() {
+            return firstError;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-20s %-16s %12.0f %10.2f %10.2f %10d %7.1f%% %8d",
+                    resolver, storage, getThroughput(), p50 / 1e6, p99 / 1e6, originRequests, hitRatio * 100, errors);
+        }
+    }
+}
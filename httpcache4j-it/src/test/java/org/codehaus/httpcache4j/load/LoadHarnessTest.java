@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.load;
+
+import org.codehaus.httpcache4j.util.TestUtil;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs a small workload for every resolver and storage, and prints the report.
+ * Larger runs are configured with system properties, see {@link Workload#fromSystemProperties(Workload.Builder)}:
+ * <pre>
+ * mvn test -pl httpcache4j-it -Dtest=LoadHarnessTest -Dload.requests=200000 -Dload.threads=32
+ * mvn test -pl httpcache4j-it -Dtest=LoadHarnessTest -Dload.resolvers=ning,httpcomponents -Dload.storages=memory
+ * </pre>
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public class LoadHarnessTest {
+    private static Workload workload;
+    private static LoadHarness harness;
+
+    @BeforeClass
+    public static void startOrigin() throws Exception {
+        workload = Workload.fromSystemProperties(new Workload.Builder().resources(100).requests(400).threads(4));
+        harness = new LoadHarness(workload, TestUtil.getTestFile("target/load"));
+        harness.start();
+    }
+
+    @AfterClass
+    public static void stopOrigin() throws Exception {
+        harness.stop();
+    }
+
+    @Test
+    public void everyResolverAndStorageServesTheWorkload() throws Exception {
+        List<LoadHarness.Result> results = new ArrayList<LoadHarness.Result>();
+        for (LoadHarness.Resolvers resolver : selected(LoadHarness.Resolvers.class, "load.resolvers")) {
+            for (LoadHarness.Storages storage : selected(LoadHarness.Storages.class, "load.storages")) {
+                LoadHarness.Result result = harness.run(resolver, storage);
+                System.out.println(result);
+                results.add(result);
+            }
+        }
+        System.out.println(LoadHarness.report(workload, results));
+        for (LoadHarness.Result result : results) {
+            assertEquals(result.getFirstError(), 0, result.getErrors());
+            assertEquals(workload.getRequests(), result.getRequests());
+            assertTrue(result.toString(), result.getOriginRequests() < result.getRequests());
+            assertTrue(result.toString(), result.getHitRatio() > 0);
+        }
+    }
+
+    /**
+     * @return the constants named in a comma separated system property, or all of them if it is not set.
+     */
+    private static <E extends Enum<E>> Set<E> selected(Class<E> type, String property) {
+        String names = System.getProperty(property);
+        if (names == null) {
+            return EnumSet.allOf(type);
+        }
+        Set<E> selected = EnumSet.noneOf(type);
+        for (String name : names.split(",")) {
+            selected.add(Enum.valueOf(type, name.trim().toUpperCase()));
+        }
+        return selected;
+    }
+}
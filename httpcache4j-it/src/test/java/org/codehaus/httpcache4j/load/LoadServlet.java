@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.load;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves the resources of a {@link Workload}, and counts the requests which reach it.
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public class LoadServlet extends HttpServlet {
+    static final AtomicLong requests = new AtomicLong();
+
+    // Whole seconds, since that is all an HTTP date can express.
+    private static final long LAST_MODIFIED = System.currentTimeMillis() / 1000 * 1000;
+    private static final byte[] CHUNK = new byte[8192];
+
+    static {
+        Arrays.fill(CHUNK, (byte) 'x');
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        requests.incrementAndGet();
+        // {cc|etag|lm}/{max-age}/{size}/{vary|novary}/{id}
+        String[] path = request.getPathInfo().substring(1).split("/");
+        if (path.length != 5) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        String validator = path[0];
+        int size = Integer.parseInt(path[2]);
+        // Only resources which vary negotiate, other clients may send any Accept header.
+        String type = "text/plain";
+        if ("vary".equals(path[3])) {
+            response.setHeader("Vary", "Accept");
+            String accept = request.getHeader("Accept");
+            if (accept != null) {
+                type = accept;
+            }
+        }
+        String etag = String.format("\"%s-%s\"", path[4], type.hashCode());
+        if ("cc".equals(validator)) {
+            response.setHeader("Cache-Control", "max-age=" + path[1]);
+        }
+        else {
+            response.setHeader("Cache-Control", "max-age=0");
+            if ("etag".equals(validator)) {
+                response.setHeader("ETag", etag);
+                if (etag.equals(request.getHeader("If-None-Match"))) {
+                    response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                    return;
+                }
+            }
+            else {
+                response.setDateHeader("Last-Modified", LAST_MODIFIED);
+                if (request.getDateHeader("If-Modified-Since") >= LAST_MODIFIED) {
+                    response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                    return;
+                }
+            }
+        }
+        response.setContentType(type);
+        response.setContentLength(size);
+        OutputStream out = response.getOutputStream();
+        for (int written = 0; written < size; written += CHUNK.length) {
+            out.write(CHUNK, 0, Math.min(CHUNK.length, size - written));
+        }
+        out.close();
+    }
+}
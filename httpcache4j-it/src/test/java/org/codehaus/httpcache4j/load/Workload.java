@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.load;
+
+import com.google.common.base.Preconditions;
+import org.codehaus.httpcache4j.HTTPRequest;
+import org.codehaus.httpcache4j.HeaderConstants;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A reproducible set of resources and the distribution they are requested with.
+ * <p/>
+ * Resources are requested with a Zipf distribution, where resource {@code i} is requested
+ * with a probability proportional to {@code 1 / (i + 1)^exponent}.
+ * Each resource is either fresh for {@link #getMaxAge() max-age} seconds, or must be revalidated
+ * on every request using an ETag or a Last-Modified date.
+ * A fraction of the resources vary on the {@code Accept} header.
+ * <p/>
+ * Everything a resource does is encoded in its path, so the origin needs no state to serve it:
+ * {@code /load/{cc|etag|lm}/{max-age}/{size}/{vary|novary}/{id}}.
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public final class Workload {
+    private static final String[] ACCEPT = {"text/plain", "application/json"};
+    private static final String[] VALIDATORS = {"cc", "etag", "lm"};
+
+    private final int resources;
+    private final double exponent;
+    private final double varyFraction;
+    private final int[] payloadSizes;
+    private final int maxAge;
+    private final int requests;
+    private final int threads;
+    private final long seed;
+    private final double[] cumulative;
+
+    private Workload(Builder builder) {
+        this.resources = builder.resources;
+        this.exponent = builder.exponent;
+        this.varyFraction = builder.varyFraction;
+        this.payloadSizes = builder.payloadSizes;
+        this.maxAge = builder.maxAge;
+        this.requests = builder.requests;
+        this.threads = builder.threads;
+        this.seed = builder.seed;
+        cumulative = new double[resources];
+        double sum = 0;
+        for (int i = 0; i < resources; i++) {
+            sum += 1 / Math.pow(i + 1, exponent);
+            cumulative[i] = sum;
+        }
+        for (int i = 0; i < resources; i++) {
+            cumulative[i] /= sum;
+        }
+    }
+
+    public int getResources() {
+        return resources;
+    }
+
+    public int getMaxAge() {
+        return maxAge;
+    }
+
+    public int getRequests() {
+        return requests;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Creates the requests one client thread sends.
+     * The same thread index always gives the same requests.
+     */
+    public HTTPRequest[] createRequests(URI base, int thread) {
+        Random random = new Random(seed + thread);
+        HTTPRequest[] result = new HTTPRequest[requests / threads];
+        for (int i = 0; i < result.length; i++) {
+            int id = nextResource(random);
+            Random resource = new Random(seed ^ id);
+            String validator = VALIDATORS[resource.nextInt(VALIDATORS.length)];
+            int size = payloadSizes[resource.nextInt(payloadSizes.length)];
+            boolean vary = resource.nextDouble() < varyFraction;
+            String path = String.format("load/%s/%d/%d/%s/%d", validator, maxAge, size, vary ? "vary" : "novary", id);
+            HTTPRequest request = new HTTPRequest(base.resolve(path));
+            if (vary) {
+                request = request.addHeader(HeaderConstants.ACCEPT, ACCEPT[random.nextInt(ACCEPT.length)]);
+            }
+            result[i] = request;
+        }
+        return result;
+    }
+
+    /**
+     * @return the length of the payload the origin sends for a resource of this workload.
+     */
+    public static long payloadSize(URI uri) {
+        String[] path = uri.getPath().split("/");
+        return Long.parseLong(path[path.length - 3]);
+    }
+
+    private int nextResource(Random random) {
+        int index = Arrays.binarySearch(cumulative, random.nextDouble());
+        return Math.min(index < 0 ? -index - 1 : index, resources - 1);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d requests on %d threads over %d resources, zipf exponent %.2f, %.0f%% vary, max-age %d, payload sizes %s",
+                requests, threads, resources, exponent, varyFraction * 100, maxAge, Arrays.toString(payloadSizes));
+    }
+
+    /**
+     * Reads a workload from system properties prefixed with {@code load.},
+     * e.g. {@code -Dload.requests=100000 -Dload.threads=16 -Dload.payloadSizes=512,65536}.
+     * Properties which are not set are taken from the given defaults.
+     */
+    public static Workload fromSystemProperties(Builder defaults) {
+        Builder builder = new Builder();
+        builder.resources(Integer.getInteger("load.resources", defaults.resources));
+        builder.exponent(Double.parseDouble(System.getProperty("load.exponent", String.valueOf(defaults.exponent))));
+        builder.varyFraction(Double.parseDouble(System.getProperty("load.varyFraction", String.valueOf(defaults.varyFraction))));
+        builder.maxAge(Integer.getInteger("load.maxAge", defaults.maxAge));
+        builder.requests(Integer.getInteger("load.requests", defaults.requests));
+        builder.threads(Integer.getInteger("load.threads", defaults.threads));
+        builder.seed(Long.getLong("load.seed", defaults.seed));
+        String sizes = System.getProperty("load.payloadSizes");
+        if (sizes == null) {
+            builder.payloadSizes(defaults.payloadSizes);
+        }
+        else {
+            String[] parts = sizes.split(",");
+            int[] payloadSizes = new int[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                payloadSizes[i] = Integer.parseInt(parts[i].trim());
+            }
+            builder.payloadSizes(payloadSizes);
+        }
+        return builder.build();
+    }
+
+    public static class Builder {
+        private int resources = 1000;
+        private double exponent = 1.0;
+        private double varyFraction = 0.1;
+        private int[] payloadSizes = {1024, 16 * 1024};
+        private int maxAge = 60;
+        private int requests = 10000;
+        private int threads = 8;
+        private long seed = 42;
+
+        public Builder resources(int resources) {
+            Preconditions.checkArgument(resources > 0, "There must be at least one resource");
+            this.resources = resources;
+            return this;
+        }
+
+        public Builder exponent(double exponent) {
+            Preconditions.checkArgument(exponent >= 0, "Exponent may not be negative");
+            this.exponent = exponent;
+            return this;
+        }
+
+        public Builder varyFraction(double varyFraction) {
+            Preconditions.checkArgument(varyFraction >= 0 && varyFraction <= 1, "Vary fraction must be between 0 and 1");
+            this.varyFraction = varyFraction;
+            return this;
+        }
+
+        public Builder payloadSizes(int... payloadSizes) {
+            Preconditions.checkArgument(payloadSizes.length > 0, "At least one payload size is required");
+            this.payloadSizes = payloadSizes.clone();
+            return this;
+        }
+
+        public Builder maxAge(int maxAge) {
+            this.maxAge = maxAge;
+            return this;
+        }
+
+        public Builder requests(int requests) {
+            this.requests = requests;
+            return this;
+        }
+
+        public Builder threads(int threads) {
+            Preconditions.checkArgument(threads > 0, "There must be at least one thread");
+            this.threads = threads;
+            return this;
+        }
+
+        public Builder seed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        public Workload build() {
+            Preconditions.checkArgument(requests >= threads, "There must be at least one request per thread");
+            return new Workload(this);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import com.google.common.base.Preconditions;
+import org.codehaus.httpcache4j.HTTPResponse;
+
+/**
+ * Something that happened to a cache entry.
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public final class CacheEvent {
+    public enum Type {
+        /** A fresh response was served from the cache. */
+        HIT,
+        /** A response was served from the origin server. */
+        MISS,
+        /** A stale response was served from the cache. */
+        STALE_SERVED,
+        /** A stored response was revalidated with a 304 from the origin server. */
+        REVALIDATED,
+        /** A response was stored. */
+        STORED,
+        /** The headers of a stored response were updated. */
+        UPDATED,
+        /** A stored response was removed because it was invalidated. */
+        INVALIDATED,
+        /** A stored response was removed to make room for others. */
+        EVICTED,
+        /** The origin server could not be reached, or answered with a server error. */
+        RESOLVER_ERROR
+    }
+
+    private final Type type;
+    private final Key key;
+    private final long timestamp;
+    private final long duration;
+    private final long size;
+    private final Throwable error;
+
+    public CacheEvent(Type type, Key key, long size) {
+        this(type, key, -1, size, null);
+    }
+
+    /**
+     * @param type the type of event.
+     * @param key the entry the event applies to.
+     * @param duration the time taken in nanoseconds, or -1 if not applicable.
+     * @param size the payload size in bytes, or -1 if unknown.
+     * @param error the cause of a {@link Type#RESOLVER_ERROR}, if any.
+     */
+    public CacheEvent(Type type, Key key, long duration, long size, Throwable error) {
+        this.type = Preconditions.checkNotNull(type, "Type may not be null");
+        this.key = Preconditions.checkNotNull(key, "Key may not be null");
+        this.timestamp = System.currentTimeMillis();
+        this.duration = duration;
+        this.size = size;
+        this.error = error;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public Key getKey() {
+        return key;
+    }
+
+    /**
+     * @return when the event happened, in milliseconds since the epoch.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return the time taken in nanoseconds, or -1 if not applicable.
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * @return the payload size in bytes, or -1 if unknown.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    public Throwable getError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + key.getURI() + (size >= 0 ? " (" + size + " bytes)" : "");
+    }
+
+    /**
+     * @return the size of the payload of the response, or -1 if unknown.
+     */
+    public static long sizeOf(HTTPResponse response) {
+        if (response != null && response.hasPayload()) {
+            return response.getPayload().length();
+        }
+        return response != null ? 0 : -1;
+    }
+}
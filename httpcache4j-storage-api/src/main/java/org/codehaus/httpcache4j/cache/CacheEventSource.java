@@ -0,0 +1,30 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+/**
+ * Implemented by storages that publish {@link CacheEvent.Type#STORED stored}, {@link CacheEvent.Type#UPDATED updated},
+ * {@link CacheEvent.Type#INVALIDATED invalidated} and {@link CacheEvent.Type#EVICTED evicted} events.
+ * The listener is called while the storage is being modified, and must not block.
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public interface CacheEventSource {
+    /**
+     * @param listener the listener to publish to, or {@code null} to stop publishing.
+     */
+    void setEventListener(CacheEventListener listener);
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+
+package org.codehaus.httpcache4j.cache;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+
+/**
+ * Rejects one-hit wonders: a URI is only admitted the second time it is offered.
+ * Seen URIs are remembered in a bloom filter which is started afresh after
+ * {@code expectedInsertions} URIs, so a URI must be repeated within that window.
+ * False positives admit an occasional URI on its first offer.
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public class DoorkeeperAdmissionFilter implements AdmissionFilter {
+    private final int expectedInsertions;
+    private BloomFilter<CharSequence> seen;
+    private int insertions;
+
+    public DoorkeeperAdmissionFilter() {
+        this(10000);
+    }
+
+    public DoorkeeperAdmissionFilter(int expectedInsertions) {
+        Preconditions.checkArgument(expectedInsertions > 0, "Expected insertions must be positive");
+        this.expectedInsertions = expectedInsertions;
+        clear();
+    }
+
+    public synchronized boolean admit(Key key) {
+        String uri = key.getURI().toString();
+        if (seen.mightContain(uri)) {
+            return true;
+        }
+        seen.put(uri);
+        if (++insertions >= expectedInsertions) {
+            clear();
+        }
+        return false;
+    }
+
+    public synchronized void clear() {
+        seen = BloomFilter.create(Funnels.stringFunnel(), expectedInsertions, 0.01);
+        insertions = 0;
+    }
+}
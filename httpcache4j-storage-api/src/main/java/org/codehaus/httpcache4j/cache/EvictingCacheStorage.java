@@ -0,0 +1,300 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+
+package org.codehaus.httpcache4j.cache;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import org.codehaus.httpcache4j.HTTPRequest;
+import org.codehaus.httpcache4j.HTTPResponse;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounds any storage by an {@link EvictionPolicy}, optionally guarded by an {@link AdmissionFilter}.
+ * Entries are weighed by a {@link Weigher}; by default every entry weighs 1, so the policy limits the number of entries.
+ * Use {@link Weighers#bytes()} to limit the number of bytes instead.
+ * Responses rejected by the admission filter are returned without being stored.
+ * Evicting an entry invalidates its URI in the underlying storage, which removes all its variants.
+ * <p>
+ * Entries already in the storage are handed to the policy on construction.
+ * The underlying storage should not evict on its own, or the policy ends up tracking entries which are gone;
+ * give it a capacity well above the policy's.
+ * Hits are recorded in a lossy buffer without locking, and replayed into the policy under a single lock
+ * when the buffer fills or on the next write. Storing or invalidating a URI, and the matching policy bookkeeping,
+ * is done under a per URI stripe, so the policy never tracks an entry which was invalidated while it was stored.
+ * </p>
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public class EvictingCacheStorage implements WeightedCacheStorage, CacheEventSource {
+    private static final int ACCESS_BUFFER_SIZE = 128;
+    private static final int STRIPES = 64;
+
+    private final CacheStorage storage;
+    private final EvictionPolicy policy;
+    private final Weigher weigher;
+    private final AdmissionFilter admissionFilter;
+    // The tracked variants of each URI, replaced as a whole under the lock so readers need no locking.
+    private final ConcurrentHashMap<URI, Map<Vary, Key>> variants = new ConcurrentHashMap<URI, Map<Vary, Key>>();
+    private final RingBuffer<Key> accesses = new RingBuffer<Key>(ACCESS_BUFFER_SIZE);
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Object[] stripes = new Object[STRIPES];
+    private volatile CacheEventListener eventListener;
+
+    public EvictingCacheStorage(CacheStorage storage, EvictionPolicy policy) {
+        this(storage, policy, Weighers.entries(), null);
+    }
+
+    public EvictingCacheStorage(CacheStorage storage, EvictionPolicy policy, AdmissionFilter admissionFilter) {
+        this(storage, policy, Weighers.entries(), admissionFilter);
+    }
+
+    /**
+     * @param admissionFilter the filter new entries must pass, or {@code null} to admit everything.
+     */
+    public EvictingCacheStorage(CacheStorage storage, EvictionPolicy policy, Weigher weigher, AdmissionFilter admissionFilter) {
+        this.storage = Preconditions.checkNotNull(storage, "Storage may not be null");
+        this.policy = Preconditions.checkNotNull(policy, "Policy may not be null");
+        this.weigher = Preconditions.checkNotNull(weigher, "Weigher may not be null");
+        this.admissionFilter = admissionFilter;
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Object();
+        }
+        for (Key key : Lists.newArrayList(storage)) {
+            CacheItem item = storage.get(key);
+            if (item != null) {
+                evict(track(key, weigher.weigh(key, item.getResponse())));
+            }
+        }
+    }
+
+    public HTTPResponse insert(HTTPRequest request, HTTPResponse response) {
+        Key key = Key.create(request, response);
+        if (admissionFilter != null && !isTracked(key) && !admissionFilter.admit(key)) {
+            return response;
+        }
+        HTTPResponse stored;
+        List<Key> evicted;
+        synchronized (stripe(key.getURI())) {
+            stored = storage.insert(request, response);
+            evicted = track(key, weigher.weigh(key, stored));
+        }
+        evict(evicted);
+        return stored;
+    }
+
+    public HTTPResponse update(HTTPRequest request, HTTPResponse response) {
+        HTTPResponse updated = storage.update(request, response);
+        recordAccess(Key.create(request, response));
+        return updated;
+    }
+
+    public CacheItem get(Key key) {
+        CacheItem item = storage.get(key);
+        if (item != null) {
+            recordAccess(key);
+        }
+        return item;
+    }
+
+    public CacheItem get(HTTPRequest request) {
+        CacheItem item = storage.get(request);
+        if (item != null) {
+            Map<Vary, Key> known = variants.get(request.getNormalizedURI());
+            if (known != null) {
+                for (Map.Entry<Vary, Key> entry : known.entrySet()) {
+                    if (entry.getKey().matches(request)) {
+                        recordAccess(entry.getValue());
+                        break;
+                    }
+                }
+            }
+        }
+        return item;
+    }
+
+    public void invalidate(URI uri) {
+        synchronized (stripe(uri)) {
+            storage.invalidate(uri);
+            lock.lock();
+            try {
+                drainAccesses();
+                untrack(uri);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    public void clear() {
+        storage.clear();
+        lock.lock();
+        try {
+            drainAccesses();
+            policy.clear();
+            variants.clear();
+            if (admissionFilter != null) {
+                admissionFilter.clear();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        return storage.size();
+    }
+
+    public Iterator<Key> iterator() {
+        return storage.iterator();
+    }
+
+    public void shutdown() {
+        storage.shutdown();
+    }
+
+    public void setEventListener(CacheEventListener listener) {
+        eventListener = listener;
+        if (storage instanceof CacheEventSource) {
+            ((CacheEventSource) storage).setEventListener(listener);
+        }
+    }
+
+    public EvictionPolicy getPolicy() {
+        return policy;
+    }
+
+    public long getWeight() {
+        lock.lock();
+        try {
+            return policy.weight();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getMaximumWeight() {
+        return policy.maximumWeight();
+    }
+
+    private Object stripe(URI uri) {
+        return stripes[(uri.hashCode() & Integer.MAX_VALUE) % stripes.length];
+    }
+
+    private boolean isTracked(Key key) {
+        Map<Vary, Key> known = variants.get(key.getURI());
+        return known != null && known.containsKey(key.getVary());
+    }
+
+    private void recordAccess(Key key) {
+        if (!accesses.offer(key) && lock.tryLock()) {
+            try {
+                drainAccesses();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Must be called with the lock held.
+     */
+    private void drainAccesses() {
+        for (Key key = accesses.poll(); key != null; key = accesses.poll()) {
+            policy.onAccess(key);
+        }
+    }
+
+    /**
+     * @return the keys evicted to make room, which are no longer tracked but still stored.
+     */
+    private List<Key> track(Key key, long weight) {
+        lock.lock();
+        try {
+            drainAccesses();
+            Map<Vary, Key> known = variants.get(key.getURI());
+            if (known == null || !known.containsKey(key.getVary())) {
+                ImmutableMap.Builder<Vary, Key> builder = ImmutableMap.builder();
+                if (known != null) {
+                    builder.putAll(known);
+                }
+                variants.put(key.getURI(), builder.put(key.getVary(), key).build());
+            }
+            List<Key> victims = policy.onInsert(key, weight);
+            if (victims.isEmpty()) {
+                return Collections.emptyList();
+            }
+            List<Key> evicted = Lists.newArrayList();
+            for (Key victim : victims) {
+                evicted.addAll(untrack(victim.getURI()));
+            }
+            return evicted;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Invalidates the evicted URIs, unless they have been stored again since they were evicted.
+     */
+    private void evict(List<Key> evicted) {
+        Set<URI> invalidated = new HashSet<URI>();
+        for (Key victim : evicted) {
+            URI uri = victim.getURI();
+            if (invalidated.add(uri)) {
+                synchronized (stripe(uri)) {
+                    if (!variants.containsKey(uri)) {
+                        storage.invalidate(uri);
+                    }
+                }
+            }
+            publish(victim);
+        }
+    }
+
+    /**
+     * Must be called with the lock held.
+     */
+    private List<Key> untrack(URI uri) {
+        Map<Vary, Key> known = variants.remove(uri);
+        if (known == null) {
+            return Collections.emptyList();
+        }
+        List<Key> removed = Lists.newArrayListWithCapacity(known.size());
+        for (Key key : known.values()) {
+            policy.onRemove(key);
+            removed.add(key);
+        }
+        return removed;
+    }
+
+    private void publish(Key key) {
+        CacheEventListener listener = eventListener;
+        if (listener != null) {
+            listener.onEvent(new CacheEvent(CacheEvent.Type.EVICTED, key, -1));
+        }
+    }
+}
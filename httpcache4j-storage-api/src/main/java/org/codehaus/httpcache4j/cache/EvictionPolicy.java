@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+
+package org.codehaus.httpcache4j.cache;
+
+import java.util.List;
+
+/**
+ * Decides which entries a bounded storage keeps.
+ * The policy only tracks keys and their weights; the storage consulting it does the actual removal.
+ * Policies are bounded by a maximum total weight, which is the number of entries with {@link Weighers#entries()}.
+ * Implementations are not thread safe, callers are expected to synchronize.
+ *
+ * @see EvictingCacheStorage
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public interface EvictionPolicy {
+    /**
+     * Records a new entry.
+     * Recording a key which is already tracked is treated as an access.
+     *
+     * @param key the stored entry.
+     * @param weight the weight of the entry, as given by a {@link Weigher}.
+     * @return the entries to remove to stay within the maximum weight, which contains {@code key}
+     * itself if the policy rejects it. Never {@code null}.
+     */
+    List<Key> onInsert(Key key, long weight);
+
+    /**
+     * Records a read of an entry. Unknown keys are ignored.
+     */
+    void onAccess(Key key);
+
+    /**
+     * Stops tracking an entry which was removed by other means than eviction.
+     */
+    void onRemove(Key key);
+
+    int size();
+
+    /**
+     * @return the total weight of the tracked entries.
+     */
+    long weight();
+
+    long maximumWeight();
+
+    void clear();
+}
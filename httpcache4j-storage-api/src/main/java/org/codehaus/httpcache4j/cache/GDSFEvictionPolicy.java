@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+
+package org.codehaus.httpcache4j.cache;
+
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Greedy-Dual-Size-Frequency: evicts the entry with the lowest {@code L + frequency / weight},
+ * where {@code L} is the priority of the last evicted entry.
+ * Light, frequently used entries are kept over heavy ones, while the inflating {@code L}
+ * ages out entries which were popular a long time ago.
+ * This is only size aware with a weigher such as {@link Weighers#bytes()}.
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public class GDSFEvictionPolicy implements EvictionPolicy {
+    private final long maximumWeight;
+    private final Map<Key, Entry> entries = new HashMap<Key, Entry>();
+    private final TreeSet<Entry> order = new TreeSet<Entry>(new Comparator<Entry>() {
+        public int compare(Entry first, Entry second) {
+            int result = Double.compare(first.priority, second.priority);
+            if (result == 0) {
+                result = first.sequence < second.sequence ? -1 : (first.sequence == second.sequence ? 0 : 1);
+            }
+            return result;
+        }
+    });
+    private long weight;
+    private double inflation;
+    private long clock;
+
+    public GDSFEvictionPolicy(long maximumWeight) {
+        Preconditions.checkArgument(maximumWeight > 0, "Maximum weight must be positive");
+        this.maximumWeight = maximumWeight;
+    }
+
+    public List<Key> onInsert(Key key, long weight) {
+        weight = Math.max(1, weight);
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            order.remove(entry);
+            this.weight += weight - entry.weight;
+            entry.weight = weight;
+            entry.frequency++;
+            prioritize(entry);
+            return evict(0);
+        }
+        if (weight > maximumWeight) {
+            return Collections.singletonList(key);
+        }
+        List<Key> evicted = evict(weight);
+        entry = new Entry(key, weight);
+        entries.put(key, entry);
+        prioritize(entry);
+        this.weight += weight;
+        return evicted;
+    }
+
+    private List<Key> evict(long room) {
+        if (weight + room <= maximumWeight) {
+            return Collections.emptyList();
+        }
+        List<Key> evicted = new ArrayList<Key>(1);
+        while (weight + room > maximumWeight) {
+            Entry victim = order.pollFirst();
+            entries.remove(victim.key);
+            weight -= victim.weight;
+            inflation = victim.priority;
+            evicted.add(victim.key);
+        }
+        return evicted;
+    }
+
+    public void onAccess(Key key) {
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            order.remove(entry);
+            entry.frequency++;
+            prioritize(entry);
+        }
+    }
+
+    private void prioritize(Entry entry) {
+        entry.priority = inflation + (double) entry.frequency / entry.weight;
+        entry.sequence = ++clock;
+        order.add(entry);
+    }
+
+    public void onRemove(Key key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            order.remove(entry);
+            weight -= entry.weight;
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long weight() {
+        return weight;
+    }
+
+    public long maximumWeight() {
+        return maximumWeight;
+    }
+
+    public void clear() {
+        entries.clear();
+        order.clear();
+        weight = 0;
+        inflation = 0;
+    }
+
+    private static class Entry {
+        private final Key key;
+        private long weight;
+        private long frequency = 1;
+        private double priority;
+        private long sequence;
+
+        private Entry(Key key, long weight) {
+            this.key = key;
+            this.weight = weight;
+        }
+    }
+}
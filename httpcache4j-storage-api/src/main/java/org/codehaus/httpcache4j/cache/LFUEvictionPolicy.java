@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+
+package org.codehaus.httpcache4j.cache;
+
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Evicts the least frequently used entries, and the least recently used ones among equally frequent entries.
+ * New entries are always admitted, unless heavier than the maximum weight.
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public class LFUEvictionPolicy implements EvictionPolicy {
+    private final long maximumWeight;
+    private final Map<Key, Entry> entries = new HashMap<Key, Entry>();
+    private final TreeSet<Entry> order = new TreeSet<Entry>(new Comparator<Entry>() {
+        public int compare(Entry first, Entry second) {
+            if (first.frequency != second.frequency) {
+                return first.frequency < second.frequency ? -1 : 1;
+            }
+            return first.sequence < second.sequence ? -1 : (first.sequence == second.sequence ? 0 : 1);
+        }
+    });
+    private long weight;
+    private long clock;
+
+    public LFUEvictionPolicy(long maximumWeight) {
+        Preconditions.checkArgument(maximumWeight > 0, "Maximum weight must be positive");
+        this.maximumWeight = maximumWeight;
+    }
+
+    public List<Key> onInsert(Key key, long weight) {
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            this.weight += weight - entry.weight;
+            entry.weight = weight;
+            onAccess(key);
+            return evict(0);
+        }
+        if (weight > maximumWeight) {
+            return Collections.singletonList(key);
+        }
+        List<Key> evicted = evict(weight);
+        entry = new Entry(key, weight, ++clock);
+        entries.put(key, entry);
+        order.add(entry);
+        this.weight += weight;
+        return evicted;
+    }
+
+    private List<Key> evict(long room) {
+        if (weight + room <= maximumWeight) {
+            return Collections.emptyList();
+        }
+        List<Key> evicted = new ArrayList<Key>(1);
+        while (weight + room > maximumWeight) {
+            Entry victim = order.pollFirst();
+            entries.remove(victim.key);
+            weight -= victim.weight;
+            evicted.add(victim.key);
+        }
+        return evicted;
+    }
+
+    public void onAccess(Key key) {
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            order.remove(entry);
+            entry.frequency++;
+            entry.sequence = ++clock;
+            order.add(entry);
+        }
+    }
+
+    public void onRemove(Key key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            order.remove(entry);
+            weight -= entry.weight;
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long weight() {
+        return weight;
+    }
+
+    public long maximumWeight() {
+        return maximumWeight;
+    }
+
+    public void clear() {
+        entries.clear();
+        order.clear();
+        weight = 0;
+    }
+
+    private static class Entry {
+        private final Key key;
+        private long weight;
+        private long frequency = 1;
+        private long sequence;
+
+        private Entry(Key key, long weight, long sequence) {
+            this.key = key;
+            this.weight = weight;
+            this.sequence = sequence;
+        }
+    }
+}
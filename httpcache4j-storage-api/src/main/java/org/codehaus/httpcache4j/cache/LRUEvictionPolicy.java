@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+
+package org.codehaus.httpcache4j.cache;
+
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Evicts the least recently used entries.
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public class LRUEvictionPolicy implements EvictionPolicy {
+    private final long maximumWeight;
+    private final LinkedHashMap<Key, Long> entries = new LinkedHashMap<Key, Long>(16, 0.75f, true);
+    private long weight;
+
+    public LRUEvictionPolicy(long maximumWeight) {
+        Preconditions.checkArgument(maximumWeight > 0, "Maximum weight must be positive");
+        this.maximumWeight = maximumWeight;
+    }
+
+    public List<Key> onInsert(Key key, long weight) {
+        Long previous = entries.put(key, weight);
+        this.weight += weight - (previous == null ? 0 : previous);
+        if (this.weight <= maximumWeight) {
+            return Collections.emptyList();
+        }
+        List<Key> evicted = new ArrayList<Key>(1);
+        Iterator<Map.Entry<Key, Long>> iterator = entries.entrySet().iterator();
+        while (this.weight > maximumWeight) {
+            Map.Entry<Key, Long> eldest = iterator.next();
+            evicted.add(eldest.getKey());
+            this.weight -= eldest.getValue();
+            iterator.remove();
+        }
+        return evicted;
+    }
+
+    public void onAccess(Key key) {
+        entries.get(key);
+    }
+
+    public void onRemove(Key key) {
+        Long removed = entries.remove(key);
+        if (removed != null) {
+            weight -= removed;
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long weight() {
+        return weight;
+    }
+
+    public long maximumWeight() {
+        return maximumWeight;
+    }
+
+    public void clear() {
+        entries.clear();
+        weight = 0;
+    }
+}
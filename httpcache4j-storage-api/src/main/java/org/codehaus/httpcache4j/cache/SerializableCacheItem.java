@@ -64,6 +64,7 @@ public class SerializableCacheItem implements Serializable, CacheItem {
         if (response.hasPayload()) {
             FilePayload payload = (FilePayload) response.getPayload();
             object.setProperty("file", payload.getFile().getAbsolutePath());
+            object.setProperty("mime-type", payload.getMimeType().toString());
         }
         object.setProperty("headers", response.getHeaders().toString());
         return object;
@@ -75,7 +76,8 @@ public class SerializableCacheItem implements Serializable, CacheItem {
         Headers headers = Headers.parse(object.getProperty("headers"));
         FilePayload p = null;
         if (object.containsKey("file")) {
-            p = new FilePayload(new File(object.getProperty("file")), MIMEType.valueOf(headers.getFirstHeaderValue("Content-Type")));
+            String mimeType = object.getProperty("mime-type", headers.getFirstHeaderValue("Content-Type"));
+            p = new FilePayload(new File(object.getProperty("file")), mimeType == null ? MIMEType.APPLICATION_OCTET_STREAM : MIMEType.valueOf(mimeType));
         }
         return new DefaultCacheItem(new HTTPResponse(p, status, headers), time);
     }
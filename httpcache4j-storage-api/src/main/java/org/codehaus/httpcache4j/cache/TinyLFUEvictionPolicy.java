@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+
+package org.codehaus.httpcache4j.cache;
+
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Window TinyLFU.
+ * New entries go into a small LRU window (1% of the maximum weight). Entries leaving the window are only
+ * admitted to the main area if they have been seen more often than the entries the main area would evict,
+ * according to a {@link FrequencySketch}; otherwise the candidate itself is evicted.
+ * The main area is a segmented LRU where entries read while on probation are promoted to a
+ * protected segment holding 80% of the main area.
+ * This keeps a long tail of single-use entries from pushing the frequently used ones out.
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public class TinyLFUEvictionPolicy implements EvictionPolicy {
+    private enum Segment {WINDOW, PROBATION, PROTECTED}
+
+    private final long maximumWeight;
+    private final long windowMaximum;
+    private final long mainMaximum;
+    private final long protectedMaximum;
+    private final FrequencySketch sketch;
+    private final Map<Key, Node> nodes = new HashMap<Key, Node>();
+    private final LinkedHashMap<Key, Node> window = new LinkedHashMap<Key, Node>(16, 0.75f, true);
+    private final LinkedHashMap<Key, Node> probation = new LinkedHashMap<Key, Node>(16, 0.75f, true);
+    private final LinkedHashMap<Key, Node> protect = new LinkedHashMap<Key, Node>(16, 0.75f, true);
+    private long windowWeight;
+    private long probationWeight;
+    private long protectedWeight;
+
+    /**
+     * @param maximumWeight the maximum total weight.
+     */
+    public TinyLFUEvictionPolicy(long maximumWeight) {
+        this(maximumWeight, (int) Math.min(maximumWeight, 1 << 20));
+    }
+
+    /**
+     * @param maximumWeight the maximum total weight.
+     * @param expectedEntries the expected number of entries, which sizes the frequency sketch.
+     */
+    public TinyLFUEvictionPolicy(long maximumWeight, int expectedEntries) {
+        Preconditions.checkArgument(maximumWeight > 0, "Maximum weight must be positive");
+        Preconditions.checkArgument(expectedEntries > 0, "Expected entries must be positive");
+        this.maximumWeight = maximumWeight;
+        windowMaximum = Math.max(1, maximumWeight / 100);
+        mainMaximum = maximumWeight - windowMaximum;
+        protectedMaximum = (long) (mainMaximum * 0.8);
+        sketch = new FrequencySketch(expectedEntries);
+    }
+
+    public List<Key> onInsert(Key key, long weight) {
+        sketch.increment(key);
+        if (weight > maximumWeight) {
+            onRemove(key);
+            return Collections.singletonList(key);
+        }
+        Node node = nodes.get(key);
+        if (node != null) {
+            adjust(node.segment, weight - node.weight);
+            node.weight = weight;
+            touch(key, node);
+        }
+        else {
+            node = new Node(weight);
+            nodes.put(key, node);
+            window.put(key, node);
+            windowWeight += weight;
+        }
+        return evict();
+    }
+
+    private List<Key> evict() {
+        List<Key> candidates = Collections.emptyList();
+        while (windowWeight > windowMaximum) {
+            Map.Entry<Key, Node> eldest = first(window);
+            move(eldest.getKey(), eldest.getValue(), window, probation, Segment.PROBATION);
+            if (candidates.isEmpty()) {
+                candidates = new ArrayList<Key>(1);
+            }
+            candidates.add(eldest.getKey());
+        }
+        List<Key> evicted = Collections.emptyList();
+        while (probationWeight + protectedWeight > mainMaximum) {
+            Key victim = first(probation.isEmpty() ? protect : probation).getKey();
+            if (!candidates.isEmpty()) {
+                Key candidate = candidates.get(candidates.size() - 1);
+                if (!candidate.equals(victim) && sketch.frequency(candidate) <= sketch.frequency(victim)) {
+                    victim = candidate;
+                }
+                candidates.remove(victim);
+            }
+            if (evicted.isEmpty()) {
+                evicted = new ArrayList<Key>(1);
+            }
+            evicted.add(victim);
+            onRemove(victim);
+        }
+        return evicted;
+    }
+
+    public void onAccess(Key key) {
+        Node node = nodes.get(key);
+        if (node != null) {
+            sketch.increment(key);
+            touch(key, node);
+        }
+    }
+
+    private void touch(Key key, Node node) {
+        switch (node.segment) {
+            case WINDOW:
+                window.get(key);
+                break;
+            case PROBATION:
+                move(key, node, probation, protect, Segment.PROTECTED);
+                while (protectedWeight > protectedMaximum) {
+                    Map.Entry<Key, Node> demoted = first(protect);
+                    move(demoted.getKey(), demoted.getValue(), protect, probation, Segment.PROBATION);
+                }
+                break;
+            case PROTECTED:
+                protect.get(key);
+                break;
+        }
+    }
+
+    private void move(Key key, Node node, LinkedHashMap<Key, Node> from, LinkedHashMap<Key, Node> to, Segment segment) {
+        from.remove(key);
+        adjust(node.segment, -node.weight);
+        to.put(key, node);
+        node.segment = segment;
+        adjust(segment, node.weight);
+    }
+
+    private void adjust(Segment segment, long delta) {
+        switch (segment) {
+            case WINDOW:
+                windowWeight += delta;
+                break;
+            case PROBATION:
+                probationWeight += delta;
+                break;
+            case PROTECTED:
+                protectedWeight += delta;
+                break;
+        }
+    }
+
+    public void onRemove(Key key) {
+        Node node = nodes.remove(key);
+        if (node != null) {
+            window.remove(key);
+            probation.remove(key);
+            protect.remove(key);
+            adjust(node.segment, -node.weight);
+        }
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+
+    public long weight() {
+        return windowWeight + probationWeight + protectedWeight;
+    }
+
+    public long maximumWeight() {
+        return maximumWeight;
+    }
+
+    public void clear() {
+        nodes.clear();
+        window.clear();
+        probation.clear();
+        protect.clear();
+        windowWeight = 0;
+        probationWeight = 0;
+        protectedWeight = 0;
+        sketch.clear();
+    }
+
+    private static Map.Entry<Key, Node> first(LinkedHashMap<Key, Node> segment) {
+        return segment.entrySet().iterator().next();
+    }
+
+    private static final class Node {
+        private Segment segment = Segment.WINDOW;
+        private long weight;
+
+        private Node(long weight) {
+            this.weight = weight;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+
+package org.codehaus.httpcache4j.cache;
+
+import org.codehaus.httpcache4j.HTTPResponse;
+import org.codehaus.httpcache4j.Header;
+
+/**
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public final class Weighers {
+    /** Rough size of the key, cache item, response and header collection objects. */
+    static final long ENTRY_OVERHEAD = 256;
+    /** Rough size of a header object and its strings, apart from the characters. */
+    static final long HEADER_OVERHEAD = 64;
+
+    private static final Weigher ENTRIES = new Weigher() {
+        public long weigh(Key key, HTTPResponse response) {
+            return 1;
+        }
+    };
+
+    private static final Weigher BYTES = new Weigher() {
+        public long weigh(Key key, HTTPResponse response) {
+            long weight = ENTRY_OVERHEAD + 2L * key.getURI().toString().length();
+            for (Header header : response.getHeaders()) {
+                weight += HEADER_OVERHEAD + 2L * (header.getName().length() + header.getValue().length());
+            }
+            if (response.hasPayload()) {
+                weight += Math.max(0, response.getPayload().length());
+            }
+            return weight;
+        }
+    };
+
+    private Weighers() {
+    }
+
+    /**
+     * @return a weigher which counts every entry as 1, so that limits are in entries.
+     */
+    public static Weigher entries() {
+        return ENTRIES;
+    }
+
+    /**
+     * The default weigher: the payload length plus an estimate of the bytes taken by the URI, headers and metadata.
+     * Payloads of unknown length count as empty.
+     */
+    public static Weigher bytes() {
+        return BYTES;
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+
+package org.codehaus.httpcache4j.cache;
+
+/**
+ * A storage which is bounded by the total weight of its entries.
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public interface WeightedCacheStorage extends CacheStorage {
+    /**
+     * @return the current total weight of the stored entries.
+     */
+    long getWeight();
+
+    /**
+     * @return the weight above which entries are evicted, or {@link Long#MAX_VALUE} if unbounded.
+     */
+    long getMaximumWeight();
+}
@@ -0,0 +1,478 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.codehaus.httpcache4j.HTTPException;
+import org.codehaus.httpcache4j.HTTPRequest;
+import org.codehaus.httpcache4j.HTTPResponse;
+import org.codehaus.httpcache4j.payload.ByteArrayPayload;
+import org.codehaus.httpcache4j.payload.Payload;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stores responses in the background, so that slow storages do not hold up the caller.
+ * The payload is read into memory, and the response is returned immediately; the write is queued for a background writer.
+ * Writes to a key which is already queued replace the queued write. Reads are answered from the queue until the write is done,
+ * without taking the lock of the queue.
+ * <p>
+ * When the queue is full, writes either block until there is room or are dropped, depending on {@link WhenFull}.
+ * A dropped write leaves the storage as it was. Invalidations are never dropped, and never wait.
+ * {@link #size()}, {@link #iterator()} and {@link #shutdown()} wait for the queued writes.
+ * Writes after {@link #shutdown()} are rejected with an {@link IllegalStateException}.
+ * </p>
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public class WriteBehindCacheStorage implements CacheStorage, CacheEventSource {
+    public enum WhenFull {
+        BLOCK,
+        DROP
+    }
+
+    private final Logger logger = Logger.getLogger(getClass().getName());
+    private final CacheStorage storage;
+    private final int capacity;
+    private final WhenFull whenFull;
+    private final Object lock = new Object();
+    private final LinkedHashMap<Object, Write> queue = new LinkedHashMap<Object, Write>();
+    private final ConcurrentMap<URI, Pending> pending = new ConcurrentHashMap<URI, Pending>();
+    private final Thread writer;
+    private Write inFlight;
+    private int writes;
+    private boolean stopped;
+    private long dropped;
+
+    public WriteBehindCacheStorage(CacheStorage storage) {
+        this(storage, 1000, WhenFull.BLOCK);
+    }
+
+    /**
+     * @param capacity the maximum number of queued writes.
+     */
+    public WriteBehindCacheStorage(CacheStorage storage, int capacity, WhenFull whenFull) {
+        Preconditions.checkArgument(capacity > 0, "Capacity must be positive");
+        this.storage = Preconditions.checkNotNull(storage, "Storage may not be null");
+        this.capacity = capacity;
+        this.whenFull = Preconditions.checkNotNull(whenFull, "When full may not be null");
+        this.writer = new ThreadFactoryBuilder().setDaemon(true).setNameFormat("httpcache4j-write-behind-%d").build().newThread(new Runnable() {
+            public void run() {
+                write();
+            }
+        });
+        writer.start();
+    }
+
+    public HTTPResponse insert(HTTPRequest request, HTTPResponse response) {
+        Key key = Key.create(request, response);
+        HTTPResponse buffered = buffer(response);
+        return enqueue(new Write(Write.Type.INSERT, key, request, buffered)).response;
+    }
+
+    /**
+     * Updates the queued insert if there is one, otherwise the update itself is queued.
+     */
+    public HTTPResponse update(HTTPRequest request, HTTPResponse response) {
+        Key key = Key.create(request, response);
+        synchronized (lock) {
+            CacheItem existing = get(key);
+            Payload payload = existing == null ? null : existing.getResponse().getPayload();
+            HTTPResponse updated = new HTTPResponse(payload, response.getStatusLine(), response.getHeaders());
+            return enqueue(new Write(Write.Type.UPDATE, key, request, updated)).response;
+        }
+    }
+
+    public CacheItem get(Key key) {
+        Pending queued = pending.get(key.getURI());
+        if (queued != null) {
+            Write write = queued.writes.get(key.getVary());
+            if (write != null) {
+                return write.item;
+            }
+            if (queued.invalidating) {
+                return null;
+            }
+            if (queued.inFlight != null && queued.inFlight.affects(key)) {
+                return queued.inFlight.item;
+            }
+        }
+        return storage.get(key);
+    }
+
+    public CacheItem get(HTTPRequest request) {
+        Pending queued = pending.get(request.getNormalizedURI());
+        if (queued != null) {
+            for (Map.Entry<Vary, Write> write : queued.writes.entrySet()) {
+                if (write.getKey().matches(request)) {
+                    return write.getValue().item;
+                }
+            }
+            if (queued.invalidating) {
+                return null;
+            }
+            if (queued.inFlight != null) {
+                if (queued.inFlight.key == null) {
+                    return null;
+                }
+                if (queued.inFlight.key.getVary().matches(request)) {
+                    return queued.inFlight.item;
+                }
+            }
+        }
+        return storage.get(request);
+    }
+
+    /**
+     * Discards the queued writes to the URI, and queues the invalidation.
+     */
+    public void invalidate(URI uri) {
+        synchronized (lock) {
+            checkNotStopped();
+            // Queued first, so that readers never see what the discarded writes were hiding.
+            add(new Write(Write.Type.INVALIDATE, uri));
+            Iterator<Write> iterator = queue.values().iterator();
+            while (iterator.hasNext()) {
+                Write queued = iterator.next();
+                if (queued.key != null && queued.uri.equals(uri)) {
+                    iterator.remove();
+                    forget(queued);
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (lock) {
+            for (Write queued : queue.values()) {
+                forget(queued);
+            }
+            queue.clear();
+            writes = 0;
+            while (inFlight != null) {
+                await();
+            }
+            storage.clear();
+            lock.notifyAll();
+        }
+    }
+
+    public int size() {
+        flush();
+        return storage.size();
+    }
+
+    public Iterator<Key> iterator() {
+        flush();
+        return storage.iterator();
+    }
+
+    /**
+     * Waits for the queued writes, and shuts down the underlying storage.
+     */
+    public void shutdown() {
+        synchronized (lock) {
+            stopped = true;
+            lock.notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        storage.shutdown();
+    }
+
+    public void setEventListener(CacheEventListener listener) {
+        if (storage instanceof CacheEventSource) {
+            ((CacheEventSource) storage).setEventListener(listener);
+        }
+    }
+
+    /**
+     * Waits until all writes queued so far are done.
+     */
+    public void flush() {
+        synchronized (lock) {
+            while (!queue.isEmpty() || inFlight != null) {
+                if (!writer.isAlive()) {
+                    return;
+                }
+                await();
+            }
+        }
+    }
+
+    public int getQueueSize() {
+        synchronized (lock) {
+            return queue.size();
+        }
+    }
+
+    /**
+     * @return the number of writes dropped because the queue was full.
+     */
+    public long getDropped() {
+        synchronized (lock) {
+            return dropped;
+        }
+    }
+
+    private HTTPResponse buffer(HTTPResponse response) {
+        if (!response.hasPayload()) {
+            return response;
+        }
+        InputStream stream = response.getPayload().getInputStream();
+        try {
+            ByteArrayPayload payload = new ByteArrayPayload(stream, response.getPayload().getMimeType());
+            return new HTTPResponse(payload, response.getStatusLine(), response.getHeaders());
+        } catch (IOException e) {
+            throw new HTTPException("Unable to read the payload", e);
+        } finally {
+            Closeables.closeQuietly(stream);
+        }
+    }
+
+    /**
+     * @return the write as queued, or as given if it was dropped.
+     */
+    private Write enqueue(Write write) {
+        synchronized (lock) {
+            checkNotStopped();
+            while (!queue.containsKey(write.key) && writes >= capacity && whenFull == WhenFull.BLOCK) {
+                await();
+                checkNotStopped();
+            }
+            if (!queue.containsKey(write.key) && writes >= capacity) {
+                dropped++;
+                return write;
+            }
+            return add(write);
+        }
+    }
+
+    /**
+     * An update to a queued insert is queued as an insert of the queued payload with the new headers.
+     */
+    private Write add(Write write) {
+        Write replaced = queue.get(write.queueKey());
+        if (write.type == Write.Type.UPDATE && replaced != null && replaced.type == Write.Type.INSERT) {
+            HTTPResponse response = new HTTPResponse(replaced.response.getPayload(), write.response.getStatusLine(), write.response.getHeaders());
+            write = new Write(Write.Type.INSERT, write.key, write.request, response);
+        }
+        queue.put(write.queueKey(), write);
+        Pending queued = getPending(write.uri);
+        if (replaced != null) {
+            queued = queued.forget(replaced);
+            count(replaced, -1);
+        }
+        setPending(write.uri, queued.queue(write));
+        count(write, 1);
+        lock.notifyAll();
+        return write;
+    }
+
+    private void forget(Write write) {
+        setPending(write.uri, getPending(write.uri).forget(write));
+        count(write, -1);
+    }
+
+    private void count(Write write, int delta) {
+        if (write.key != null) {
+            writes += delta;
+        }
+    }
+
+    private Pending getPending(URI uri) {
+        Pending queued = pending.get(uri);
+        return queued == null ? Pending.NONE : queued;
+    }
+
+    private void setPending(URI uri, Pending queued) {
+        if (queued.isEmpty()) {
+            pending.remove(uri);
+        }
+        else {
+            pending.put(uri, queued);
+        }
+    }
+
+    private void checkNotStopped() {
+        if (stopped) {
+            throw new IllegalStateException("The write behind storage has been shut down");
+        }
+    }
+
+    private void await() {
+        try {
+            lock.wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HTTPException("Interrupted while waiting for the write behind queue", e);
+        }
+    }
+
+    private void write() {
+        while (true) {
+            Write write;
+            synchronized (lock) {
+                while (queue.isEmpty() && !stopped) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (queue.isEmpty()) {
+                    lock.notifyAll();
+                    return;
+                }
+                Iterator<Write> iterator = queue.values().iterator();
+                write = iterator.next();
+                iterator.remove();
+                count(write, -1);
+                setPending(write.uri, getPending(write.uri).forget(write).write(write));
+                inFlight = write;
+                lock.notifyAll();
+            }
+            try {
+                write.apply(storage);
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Unable to write " + write.uri, e);
+            } finally {
+                synchronized (lock) {
+                    setPending(write.uri, getPending(write.uri).write(null));
+                    inFlight = null;
+                    lock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * What readers see of the queued and in flight writes to a URI. Replaced, never changed, under the lock.
+     */
+    private static final class Pending {
+        private static final Pending NONE = new Pending(ImmutableMap.<Vary, Write>of(), false, null);
+
+        private final ImmutableMap<Vary, Write> writes;
+        private final boolean invalidating;
+        private final Write inFlight;
+
+        private Pending(ImmutableMap<Vary, Write> writes, boolean invalidating, Write inFlight) {
+            this.writes = writes;
+            this.invalidating = invalidating;
+            this.inFlight = inFlight;
+        }
+
+        private Pending queue(Write write) {
+            if (write.key == null) {
+                return new Pending(writes, true, inFlight);
+            }
+            Map<Vary, Write> copy = new HashMap<Vary, Write>(writes);
+            copy.put(write.key.getVary(), write);
+            return new Pending(ImmutableMap.copyOf(copy), invalidating, inFlight);
+        }
+
+        private Pending forget(Write write) {
+            if (write.key == null) {
+                return new Pending(writes, false, inFlight);
+            }
+            if (writes.get(write.key.getVary()) != write) {
+                return this;
+            }
+            Map<Vary, Write> copy = new HashMap<Vary, Write>(writes);
+            copy.remove(write.key.getVary());
+            return new Pending(ImmutableMap.copyOf(copy), invalidating, inFlight);
+        }
+
+        private Pending write(Write write) {
+            return new Pending(writes, invalidating, write);
+        }
+
+        private boolean isEmpty() {
+            return writes.isEmpty() && !invalidating && inFlight == null;
+        }
+    }
+
+    private static class Write {
+        enum Type {
+            INSERT,
+            UPDATE,
+            INVALIDATE
+        }
+
+        private final Type type;
+        private final URI uri;
+        private final Key key;
+        private final HTTPRequest request;
+        private final HTTPResponse response;
+        private final CacheItem item;
+
+        private Write(Type type, Key key, HTTPRequest request, HTTPResponse response) {
+            this.type = type;
+            this.uri = key.getURI();
+            this.key = key;
+            this.request = request;
+            this.response = response;
+            this.item = new DefaultCacheItem(response);
+        }
+
+        private Write(Type type, URI uri) {
+            this.type = type;
+            this.uri = uri;
+            this.key = null;
+            this.request = null;
+            this.response = null;
+            this.item = null;
+        }
+
+        private Object queueKey() {
+            return key == null ? uri : key;
+        }
+
+        private boolean affects(Key key) {
+            return key.equals(this.key) || (this.key == null && uri.equals(key.getURI()));
+        }
+
+        private void apply(CacheStorage storage) {
+            switch (type) {
+                case INSERT:
+                    storage.insert(request, response);
+                    break;
+                case UPDATE:
+                    storage.update(request, response);
+                    break;
+                case INVALIDATE:
+                    storage.invalidate(uri);
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+
+package org.codehaus.httpcache4j.cache;
+
+import org.codehaus.httpcache4j.HTTPResponse;
+import org.codehaus.httpcache4j.Headers;
+import org.codehaus.httpcache4j.MIMEType;
+import org.codehaus.httpcache4j.Status;
+import org.codehaus.httpcache4j.payload.ByteArrayPayload;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public class EvictionPolicyTest {
+
+    @Test
+    public void lruEvictsLeastRecentlyAccessed() {
+        EvictionPolicy policy = new LRUEvictionPolicy(2);
+        assertTrue(policy.onInsert(key(0), 1).isEmpty());
+        assertTrue(policy.onInsert(key(1), 1).isEmpty());
+        policy.onAccess(key(0));
+        assertEquals(Collections.singletonList(key(1)), policy.onInsert(key(2), 1));
+        assertEquals(2, policy.size());
+    }
+
+    @Test
+    public void lfuEvictsLeastFrequentlyAccessed() {
+        EvictionPolicy policy = new LFUEvictionPolicy(2);
+        policy.onInsert(key(0), 1);
+        policy.onInsert(key(1), 1);
+        policy.onAccess(key(0));
+        policy.onAccess(key(0));
+        policy.onAccess(key(1));
+        assertEquals(Collections.singletonList(key(1)), policy.onInsert(key(2), 1));
+        assertEquals(Collections.singletonList(key(2)), policy.onInsert(key(3), 1));
+    }
+
+    @Test
+    public void gdsfPrefersEvictingLargeEntries() {
+        EvictionPolicy policy = new GDSFEvictionPolicy(200000);
+        policy.onInsert(key(0), 10);
+        policy.onInsert(key(1), 100000);
+        policy.onAccess(key(1));
+        assertEquals(Collections.singletonList(key(1)), policy.onInsert(key(2), 100000));
+    }
+
+    @Test
+    public void tinyLfuKeepsHotEntriesDuringAScan() {
+        EvictionPolicy policy = new TinyLFUEvictionPolicy(100);
+        for (int i = 0; i < 10; i++) {
+            policy.onInsert(key(i), 1);
+            for (int j = 0; j < 5; j++) {
+                policy.onAccess(key(i));
+            }
+        }
+        int evicted = 0;
+        for (int i = 10; i < 10000; i++) {
+            List<Key> victims = policy.onInsert(key(i), 1);
+            for (int hot = 0; hot < 10; hot++) {
+                assertFalse("Evicted hot entry " + hot, victims.contains(key(hot)));
+            }
+            evicted += victims.size();
+            policy.onAccess(key(i % 10));
+        }
+        assertEquals(100, policy.size());
+        assertEquals(10000 - 100, evicted);
+    }
+
+    @Test
+    public void tinyLfuAdmitsCandidateSeenMoreOftenThanVictim() {
+        EvictionPolicy policy = new TinyLFUEvictionPolicy(2);
+        policy.onInsert(key(0), 1);
+        policy.onInsert(key(1), 1);
+        policy.onInsert(key(2), 1);
+        policy.onInsert(key(2), 1);
+        policy.onAccess(key(2));
+        assertEquals(Collections.singletonList(key(0)), policy.onInsert(key(3), 1));
+    }
+
+    @Test
+    public void removedAndClearedEntriesAreForgotten() {
+        EvictionPolicy[] policies = {new LRUEvictionPolicy(2), new LFUEvictionPolicy(2), new GDSFEvictionPolicy(2), new TinyLFUEvictionPolicy(2)};
+        for (EvictionPolicy policy : policies) {
+            policy.onInsert(key(0), 1);
+            policy.onInsert(key(1), 1);
+            policy.onRemove(key(0));
+            policy.onAccess(key(0));
+            assertEquals(1, policy.size());
+            assertTrue(policy.onInsert(key(2), 1).isEmpty());
+            policy.clear();
+            assertEquals(0, policy.size());
+        }
+    }
+
+    @Test
+    public void policiesAreBoundedByWeight() {
+        EvictionPolicy[] policies = {new LRUEvictionPolicy(100), new LFUEvictionPolicy(100), new GDSFEvictionPolicy(100), new TinyLFUEvictionPolicy(100)};
+        for (EvictionPolicy policy : policies) {
+            String name = policy.getClass().getSimpleName();
+            assertEquals(name, Collections.singletonList(key(0)), policy.onInsert(key(0), 101));
+            assertEquals(name, 0, policy.weight());
+            int evicted = 0;
+            for (int i = 1; i <= 10; i++) {
+                evicted += policy.onInsert(key(i), 30).size();
+                assertTrue(name, policy.weight() <= 100);
+            }
+            assertEquals(name, 7, evicted);
+            assertEquals(name, 90, policy.weight());
+            assertEquals(name, 100, policy.maximumWeight());
+        }
+    }
+
+    @Test
+    public void reweighingAnEntryEvictsOthers() {
+        EvictionPolicy policy = new LRUEvictionPolicy(100);
+        policy.onInsert(key(0), 40);
+        policy.onInsert(key(1), 40);
+        assertEquals(Collections.singletonList(key(0)), policy.onInsert(key(1), 70));
+        assertEquals(70, policy.weight());
+    }
+
+    @Test
+    public void bytesWeigherCountsPayloadAndHeaders() throws Exception {
+        Key key = key(0);
+        HTTPResponse empty = new HTTPResponse(null, Status.OK, new Headers());
+        HTTPResponse response = new HTTPResponse(new ByteArrayPayload(new ByteArrayInputStream(new byte[1000]), MIMEType.APPLICATION_OCTET_STREAM), Status.OK, new Headers().add("ETag", "\"v1\""));
+        long base = Weighers.bytes().weigh(key, empty);
+        assertTrue(base > 0);
+        assertEquals(base + 1000 + Weighers.HEADER_OVERHEAD + 2 * ("ETag".length() + 4), Weighers.bytes().weigh(key, response));
+        assertEquals(1, Weighers.entries().weigh(key, response));
+    }
+
+    private static Key key(int i) {
+        return Key.create(URI.create("http://example.com/items/" + i), new Vary());
+    }
+}
@@ -59,17 +59,22 @@ public class URLConnectionResponseResolver extends AbstractResponseResolver {
 
     @Override
     protected HTTPResponse resolveImpl(HTTPRequest request) throws IOException {
+        return resolveImpl(request, null);
+    }
+
+    @Override
+    protected HTTPResponse resolveImpl(HTTPRequest request, Timeline timeline) throws IOException {
         URL url = request.getNormalizedURI().toURL();
         URLConnection openConnection = url.openConnection();
         if (openConnection instanceof HttpsURLConnection) {
             HttpsURLConnection connection = (HttpsURLConnection) openConnection;
-            doRequest(request, connection);
-            return convertResponse(connection);
+            doRequest(request, connection, timeline);
+            return convertResponse(connection, timeline);
         }
         else if (openConnection instanceof HttpURLConnection) {
             HttpURLConnection connection = (HttpURLConnection) openConnection;
-            doRequest(request, connection);
-            return convertResponse(connection);
+            doRequest(request, connection, timeline);
+            return convertResponse(connection, timeline);
         }
 
         throw new HTTPException("This resolver only supports HTTP calls");
@@ -78,7 +83,7 @@ public class URLConnectionResponseResolver extends AbstractResponseResolver {
     public void shutdown() {        
     }
 
-    private void doRequest(HTTPRequest request, HttpURLConnection connection) throws IOException {
+    private void doRequest(HTTPRequest request, HttpURLConnection connection, Timeline timeline) throws IOException {
         configureConnection(connection);
         connection.setRequestMethod(request.getMethod().getMethod());
         Headers requestHeaders = request.getAllHeaders();
@@ -88,12 +93,20 @@ public class URLConnectionResponseResolver extends AbstractResponseResolver {
             connection.addRequestProperty(header.getName(), header.getValue());
         }
 
+        long start = timeline != null ? System.nanoTime() : 0;
         connection.connect();
+        if (timeline != null) {
+            timeline.record(Timeline.Phase.CONNECT, start, System.nanoTime());
+        }
         writeRequest(request, connection);
     }
 
-    private HTTPResponse convertResponse(HttpURLConnection connection) throws IOException {
+    private HTTPResponse convertResponse(HttpURLConnection connection, Timeline timeline) throws IOException {
+        long start = timeline != null ? System.nanoTime() : 0;
         Status status = Status.valueOf(connection.getResponseCode());
+        if (timeline != null) {
+            timeline.record(Timeline.Phase.FIRST_BYTE, start, System.nanoTime());
+        }
         String message = connection.getResponseMessage();
         Headers responseHeaders = getResponseHeaders(connection);
         return getResponseCreator().createResponse(new StatusLine(status, message), responseHeaders, wrapResponseStream(connection, status));
@@ -3,6 +3,11 @@ package org.codehaus.httpcache4j.resolver.ning;
 import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.ning.http.client.AsyncCompletionHandler;
 import com.ning.http.client.AsyncHttpClient;
 import com.ning.http.client.AsyncHttpClientConfig;
 import com.ning.http.client.FluentCaseInsensitiveStringsMap;
@@ -13,6 +18,7 @@ import org.codehaus.httpcache4j.auth.Authenticator;
 import org.codehaus.httpcache4j.auth.ProxyAuthenticator;
 import org.codehaus.httpcache4j.mutable.MutableHeaders;
 import org.codehaus.httpcache4j.resolver.AbstractResponseResolver;
+import org.codehaus.httpcache4j.resolver.AsyncResponseResolver;
 import org.codehaus.httpcache4j.resolver.ConnectionConfiguration;
 import org.codehaus.httpcache4j.resolver.ResolverConfiguration;
 
@@ -30,7 +36,7 @@ import static org.codehaus.httpcache4j.HTTPMethod.*;
  * @author <a href="mailto:erlend@escenic.com">Erlend Hamnaberg</a>
  * @version $Revision: $
  */
-public class NingResponseResolver extends AbstractResponseResolver {
+public class NingResponseResolver extends AbstractResponseResolver implements AsyncResponseResolver {
     private final AsyncHttpClient client;
 
     protected NingResponseResolver(ResolverConfiguration configuration, AsyncHttpClientConfig asyncConfig) {
@@ -89,23 +95,73 @@ public class NingResponseResolver extends AbstractResponseResolver {
         return translate(responseFuture);
     }
 
+    /**
+     * Resolves the request without blocking on the response.
+     * Authentication challenges are answered the same way as in {@link #resolve(HTTPRequest)}.
+     */
+    public ListenableFuture<HTTPResponse> resolveAsync(final HTTPRequest request) {
+        HTTPRequest req = request;
+        if (getAuthenticator().canAuthenticatePreemptively(request)) {
+            req = getAuthenticator().preparePreemptiveAuthentication(request);
+        }
+        if (getProxyAuthenticator().canAuthenticatePreemptively()) {
+            req = getProxyAuthenticator().preparePreemptiveAuthentication(req);
+        }
+        final HTTPRequest prepared = req;
+        ListenableFuture<Exchange> exchange = Futures.transform(executeAsync(prepared), new AsyncFunction<HTTPResponse, Exchange>() {
+            public ListenableFuture<Exchange> apply(HTTPResponse response) {
+                if (response.getStatus() == Status.PROXY_AUTHENTICATION_REQUIRED) {
+                    final HTTPRequest authenticated = getProxyAuthenticator().prepareAuthentication(prepared, response);
+                    if (authenticated != request) {
+                        response.consume();
+                        return Futures.transform(executeAsync(authenticated), new Function<HTTPResponse, Exchange>() {
+                            public Exchange apply(HTTPResponse response) {
+                                if (response.getStatus() == Status.PROXY_AUTHENTICATION_REQUIRED) { //We failed
+                                    getProxyAuthenticator().afterFailedAuthentication(response.getHeaders());
+                                }
+                                else {
+                                    getProxyAuthenticator().afterSuccessfulAuthentication(response.getHeaders());
+                                }
+                                return new Exchange(authenticated, response);
+                            }
+                        });
+                    }
+                }
+                return Futures.immediateFuture(new Exchange(prepared, response));
+            }
+        });
+        return Futures.transform(exchange, new AsyncFunction<Exchange, HTTPResponse>() {
+            public ListenableFuture<HTTPResponse> apply(Exchange exchange) {
+                HTTPResponse response = exchange.response;
+                if (response.getStatus() == Status.UNAUTHORIZED) {
+                    final HTTPRequest authenticated = getAuthenticator().prepareAuthentication(exchange.request, response);
+                    if (authenticated != request) {
+                        response.consume();
+                        return Futures.transform(executeAsync(authenticated), new Function<HTTPResponse, HTTPResponse>() {
+                            public HTTPResponse apply(HTTPResponse response) {
+                                if (response.getStatus() == Status.UNAUTHORIZED) { //We failed
+                                    getAuthenticator().afterFailedAuthentication(authenticated, response.getHeaders());
+                                }
+                                else {
+                                    getAuthenticator().afterSuccessfulAuthentication(authenticated, response.getHeaders());
+                                }
+                                return response;
+                            }
+                        });
+                    }
+                }
+                return Futures.immediateFuture(response);
+            }
+        });
+    }
+
     public void shutdown() {
         client.close();
     }
 
     private HTTPResponse translate(Future<Response> responseFuture) throws IOException {
         try {
-            Response response = responseFuture.get();
-            StatusLine line = new StatusLine(Status.valueOf(response.getStatusCode()), response.getStatusText());
-            FluentCaseInsensitiveStringsMap headers = response.getHeaders();
-            MutableHeaders convertedHeaders = new MutableHeaders();
-            for (Map.Entry<String, List<String>> entry : headers) {
-                final String key = entry.getKey();
-                List<String> values = entry.getValue();
-                convertedHeaders.add(Lists.transform(values, stringToHeader(key)));
-            }
-            InputStream stream = response.getResponseBodyAsStream();
-            return getResponseCreator().createResponse(line, convertedHeaders.toHeaders(), stream);
+            return translate(responseFuture.get());
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
         } catch (ExecutionException e) {
@@ -115,7 +171,49 @@ public class NingResponseResolver extends AbstractResponseResolver {
         throw new HTTPException("Not possible to get response");
     }
 
+    private HTTPResponse translate(Response response) throws IOException {
+        StatusLine line = new StatusLine(Status.valueOf(response.getStatusCode()), response.getStatusText());
+        FluentCaseInsensitiveStringsMap headers = response.getHeaders();
+        MutableHeaders convertedHeaders = new MutableHeaders();
+        for (Map.Entry<String, List<String>> entry : headers) {
+            final String key = entry.getKey();
+            List<String> values = entry.getValue();
+            convertedHeaders.add(Lists.transform(values, stringToHeader(key)));
+        }
+        InputStream stream = response.getResponseBodyAsStream();
+        return getResponseCreator().createResponse(line, convertedHeaders.toHeaders(), stream);
+    }
+
+    private ListenableFuture<HTTPResponse> executeAsync(final HTTPRequest request) {
+        final SettableFuture<HTTPResponse> future = SettableFuture.create();
+        try {
+            prepare(request).execute(new AsyncCompletionHandler<Response>() {
+                @Override
+                public Response onCompleted(Response response) throws Exception {
+                    try {
+                        future.set(translate(response));
+                    } catch (Exception e) {
+                        future.setException(e);
+                    }
+                    return response;
+                }
+
+                @Override
+                public void onThrowable(Throwable t) {
+                    future.setException(t);
+                }
+            });
+        } catch (IOException e) {
+            future.setException(e);
+        }
+        return future;
+    }
+
     private Future<Response> execute(final HTTPRequest request) throws IOException {
+        return prepare(request).execute();
+    }
+
+    private AsyncHttpClient.BoundRequestBuilder prepare(final HTTPRequest request) throws IOException {
         AsyncHttpClient.BoundRequestBuilder builder = builder(request.getNormalizedURI(), request.getMethod());
         if (request.getMethod().canHavePayload() && request.hasPayload()) {
             if (getConfiguration().isUseChunked()) {
@@ -128,7 +226,7 @@ public class NingResponseResolver extends AbstractResponseResolver {
         for (Header header : request.getAllHeaders()) {
             builder.addHeader(header.getName(), header.getValue());
         }
-        return builder.execute();
+        return builder;
     }
 
     private AsyncHttpClient.BoundRequestBuilder builder(URI uri, HTTPMethod method) {
@@ -160,4 +258,17 @@ public class NingResponseResolver extends AbstractResponseResolver {
             }
         };
     }
+
+    /**
+     * A response, and the request which produced it, so that a 401 is answered with the proxy credentials kept.
+     */
+    private static final class Exchange {
+        private final HTTPRequest request;
+        private final HTTPResponse response;
+
+        private Exchange(HTTPRequest request, HTTPResponse response) {
+            this.request = request;
+            this.response = response;
+        }
+    }
 }
@@ -33,9 +33,10 @@ import java.util.List;
  * Time: 12:11 AM
  * To change this template use File | Settings | File Templates.
  */
-public class EhCacheStorage implements CacheStorage {
+public class EhCacheStorage implements CacheStorage, CacheEventSource {
     private final Ehcache httpcache;
     private final FileManager fileManager;
+    private volatile CacheEventListener eventListener;
 
 
     public static EhCacheStorage memoryPersistent(File storageDir, int size) {
@@ -64,7 +65,9 @@ public class EhCacheStorage implements CacheStorage {
         cache.getCacheEventNotificationService().registerListener(new CacheEventListenerAdapter() {
             @Override
             public void notifyElementEvicted(Ehcache cache, Element element) {
-                invalidate((Key) element.getKey());
+                Key key = (Key) element.getKey();
+                invalidate(key);
+                publish(CacheEvent.Type.EVICTED, key, ((CacheItem) element.getValue()).getResponse());
             }
         });
     }
@@ -82,6 +85,7 @@ public class EhCacheStorage implements CacheStorage {
         }
         HTTPResponse savedResponse = new HTTPResponse(file, response.getStatus(), response.getHeaders());
         httpcache.put(new Element(key, new SerializableCacheItem(new DefaultCacheItem(savedResponse))));
+        publish(CacheEvent.Type.STORED, key, savedResponse);
         return savedResponse;
     }
 
@@ -97,6 +101,7 @@ public class EhCacheStorage implements CacheStorage {
             HTTPResponse savedResponse = item.getResponse();
             HTTPResponse updatedResponse = new HTTPResponse(savedResponse.getPayload(), savedResponse.getStatus(), response.getHeaders());
             httpcache.put(new Element(key, new SerializableCacheItem(new DefaultCacheItem(updatedResponse))));
+            publish(CacheEvent.Type.UPDATED, key, updatedResponse);
             return updatedResponse;
         }
         return response;
@@ -121,8 +126,9 @@ public class EhCacheStorage implements CacheStorage {
             }
         }
         else {
+            URI uri = request.getNormalizedURI();
             for (Key key : this) {
-                if (key.getVary().matches(request)) {
+                if (uri.equals(key.getURI()) && key.getVary().matches(request)) {
                     return (CacheItem) httpcache.get(key).getValue();
                 }
             }
@@ -135,17 +141,30 @@ public class EhCacheStorage implements CacheStorage {
             List<Result> all = findMatching(uri, false);
             for (Result result : all) {
                 httpcache.remove(result.getKey());
+                publish(CacheEvent.Type.INVALIDATED, (Key) result.getKey(), null);
             }
         }
         else {
             for (Key key : this) {
                 if (uri.equals(key.getURI())) {
                     invalidate(key);
+                    publish(CacheEvent.Type.INVALIDATED, key, null);
                 }
             }
         }
     }
 
+    public void setEventListener(CacheEventListener listener) {
+        this.eventListener = listener;
+    }
+
+    private void publish(CacheEvent.Type type, Key key, HTTPResponse response) {
+        CacheEventListener listener = eventListener;
+        if (listener != null) {
+            listener.onEvent(new CacheEvent(type, key, CacheEvent.sizeOf(response)));
+        }
+    }
+
     private List<Result> findMatching(URI uri, boolean withValues) {
         Attribute<String> uriAttribute = httpcache.getSearchAttribute("uri");
         Query query = httpcache.createQuery().addCriteria(uriAttribute.eq(uri.normalize().toString())).includeKeys();
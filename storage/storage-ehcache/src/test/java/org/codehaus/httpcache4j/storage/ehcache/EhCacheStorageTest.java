@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.storage.ehcache;
+
+import org.codehaus.httpcache4j.HTTPRequest;
+import org.codehaus.httpcache4j.HTTPResponse;
+import org.codehaus.httpcache4j.HeaderConstants;
+import org.codehaus.httpcache4j.Headers;
+import org.codehaus.httpcache4j.Status;
+import org.codehaus.httpcache4j.cache.CacheItem;
+import org.codehaus.httpcache4j.util.TestUtil;
+import org.junit.After;
+import org.junit.Test;
+
+import java.net.URI;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public class EhCacheStorageTest {
+    private EhCacheStorage storage;
+
+    @After
+    public void after() {
+        if (storage != null) {
+            storage.clear();
+            storage.shutdown();
+        }
+    }
+
+    @Test
+    public void diskPersistentGetMatchesTheURIAndNotOnlyTheVary() {
+        storage = EhCacheStorage.diskPersistent(TestUtil.getTestFile("target/ehcache"));
+        assertOnlyTheRequestedURIMatches();
+    }
+
+    @Test
+    public void memoryPersistentGetMatchesTheURIAndNotOnlyTheVary() {
+        storage = EhCacheStorage.memoryPersistent(TestUtil.getTestFile("target/ehcache"));
+        assertOnlyTheRequestedURIMatches();
+    }
+
+    private void assertOnlyTheRequestedURIMatches() {
+        HTTPRequest first = new HTTPRequest(URI.create("http://example.com/first"));
+        HTTPRequest second = new HTTPRequest(URI.create("http://example.com/second"));
+        storage.insert(first, response("\"first\""));
+        storage.insert(second, response("\"second\""));
+        assertEquals(2, storage.size());
+
+        assertETag("\"first\"", storage.get(first));
+        assertETag("\"second\"", storage.get(second));
+        assertNull(storage.get(new HTTPRequest(URI.create("http://example.com/third"))));
+    }
+
+    private static HTTPResponse response(String etag) {
+        return new HTTPResponse(null, Status.OK, new Headers().add(HeaderConstants.ETAG, etag));
+    }
+
+    private static void assertETag(String expected, CacheItem item) {
+        assertNotNull(item);
+        assertEquals(expected, item.getResponse().getHeaders().getFirstHeaderValue(HeaderConstants.ETAG));
+    }
+}
@@ -1,9 +1,7 @@
 package org.codehaus.httpcache4j.cache;
 
 import com.google.common.annotations.Beta;
-import com.google.common.base.Predicate;
 import com.google.common.cache.*;
-import com.google.common.collect.Sets;
 import org.codehaus.httpcache4j.HTTPRequest;
 import org.codehaus.httpcache4j.HTTPResponse;
 import org.codehaus.httpcache4j.util.Pair;
@@ -11,30 +9,53 @@ import org.codehaus.httpcache4j.util.Pair;
 import java.io.File;
 import java.net.URI;
 import java.util.Iterator;
-import java.util.Set;
 
 /**
+ * A {@link PersistentCacheStorage2} bounded by size or weight. Entries evicted from the bounded index are deleted from disk.
+ * Entries found on disk at startup are added to the index, evicting the excess.
+ *
  * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
  */
 @Beta
 public class IndexedPersistentCacheStorage implements CacheStorage, RemovalListener<Key, CacheItem> {
     private final PersistentCacheStorage2 backing;
     private final Cache<Key, CacheItem> index;
-    private final CacheLoader<Key, CacheItem> loader;
 
     public IndexedPersistentCacheStorage(File storageDir) {
         this(storageDir, 1000);
     }
 
     public IndexedPersistentCacheStorage(File storageDir, int maxSize) {
+        this(storageDir, maxSize, false);
+    }
+
+    /**
+     * @param maxBytes the maximum total size of the indexed entries, as estimated by {@link Weighers#bytes()}.
+     */
+    public static IndexedPersistentCacheStorage withMaxBytes(File storageDir, long maxBytes) {
+        return new IndexedPersistentCacheStorage(storageDir, maxBytes, true);
+    }
+
+    private IndexedPersistentCacheStorage(File storageDir, long maximum, boolean weighted) {
         backing = new PersistentCacheStorage2(storageDir);
-        loader = new CacheLoader<Key, CacheItem>() {
-            @Override
-            public CacheItem load(Key key) throws Exception {
-                return backing.get(key);
+        CacheBuilder<Key, CacheItem> builder = CacheBuilder.newBuilder().removalListener(this);
+        if (weighted) {
+            builder.maximumWeight(maximum).weigher(new com.google.common.cache.Weigher<Key, CacheItem>() {
+                public int weigh(Key key, CacheItem item) {
+                    return (int) Math.min(Integer.MAX_VALUE, Weighers.bytes().weigh(key, item.getResponse()));
+                }
+            });
+        }
+        else {
+            builder.maximumSize(maximum);
+        }
+        index = builder.build();
+        for (Key key : backing) {
+            CacheItem item = backing.get(key);
+            if (item != null) {
+                index.put(key, item);
             }
-        };
-        index = CacheBuilder.newBuilder().removalListener(this).maximumSize(maxSize).build(loader);
+        }
     }
 
     @Override
@@ -55,44 +76,27 @@ public class IndexedPersistentCacheStorage implements CacheStorage, RemovalListe
 
     @Override
     public CacheItem get(Key key) {
-        try {
-            return loader.load(key);
-        } catch (Exception e) {
-            return null;
-        }
+        CacheItem item = index.getIfPresent(key);
+        return item != null ? item : backing.get(key);
     }
 
     @Override
     public CacheItem get(final HTTPRequest request) {
-        Set<Key> keys = index.asMap().keySet();
-        Set<Key> filtered = Sets.filter(keys, new Predicate<Key>() {
-            @Override
-            public boolean apply(Key input) {
-                if (input.getURI().equals(request.getNormalizedURI())) {
-                    return input.getVary().matches(request);
-                }
-                return false;
-            }
-        });
-        if (filtered.isEmpty()) {
-            Pair<Key, CacheItem> keyAndItem = backing.getItem(request);
-            if (keyAndItem != null) {
-                index.put(keyAndItem.getKey(), keyAndItem.getValue());
-            }
+        Pair<Key, CacheItem> keyAndItem = backing.getItem(request);
+        if (keyAndItem == null) {
+            return null;
+        }
+        CacheItem item = index.getIfPresent(keyAndItem.getKey());
+        if (item == null) {
+            index.put(keyAndItem.getKey(), keyAndItem.getValue());
+            item = keyAndItem.getValue();
         }
-        return null;
+        return item;
     }
 
     @Override
     public void invalidate(final URI uri) {
-        Set<Key> keys = index.asMap().keySet();
-        Set<Key> filtered = Sets.filter(keys, new Predicate<Key>() {
-            @Override
-            public boolean apply(Key input) {
-                return input.getURI().equals(uri);
-            }
-        });
-        index.invalidateAll(filtered);
+        index.invalidateAll(backing.getKeys(uri));
         backing.invalidate(uri);
     }
 
@@ -114,7 +118,9 @@ public class IndexedPersistentCacheStorage implements CacheStorage, RemovalListe
 
     @Override
     public void onRemoval(RemovalNotification<Key, CacheItem> notification) {
-        backing.invalidate(notification.getKey());
+        if (notification.wasEvicted()) {
+            backing.invalidate(notification.getKey());
+        }
     }
 
     @Override
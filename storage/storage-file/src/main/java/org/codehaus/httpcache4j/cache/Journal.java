@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Closeables;
+import com.google.common.io.Files;
+
+import java.io.*;
+import java.net.URI;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append only log of changes to a {@link PersistentCacheStorage}.
+ * Records are buffered in memory and written in groups by {@link #flush()}.
+ * Each record is framed by its length and a CRC32 checksum, so a torn write at the tail is detected and ignored on replay.
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+class Journal {
+    private static final byte PUT = 1;
+    private static final byte INVALIDATE = 2;
+    private static final byte CLEAR = 3;
+
+    private final Logger logger = Logger.getLogger(getClass().getName());
+    private final File file;
+    private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private DataOutputStream out = new DataOutputStream(buffer);
+    private FileOutputStream stream;
+
+    Journal(File file) {
+        this.file = file;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    synchronized void put(Key key, Properties item) {
+        try {
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(record);
+            data.writeByte(PUT);
+            writeKey(data, key);
+            data.writeInt(item.size());
+            for (Map.Entry<Object, Object> entry : item.entrySet()) {
+                writeString(data, (String) entry.getKey());
+                writeString(data, (String) entry.getValue());
+            }
+            append(record.toByteArray());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    synchronized void invalidate(Key key) {
+        try {
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(record);
+            data.writeByte(INVALIDATE);
+            writeKey(data, key);
+            append(record.toByteArray());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    synchronized void clear() {
+        try {
+            append(new byte[]{CLEAR});
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void append(byte[] record) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        out.writeInt(record.length);
+        out.writeInt((int) crc.getValue());
+        out.write(record);
+    }
+
+    /**
+     * Writes the buffered records to the journal file.
+     */
+    synchronized void flush() {
+        try {
+            write();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to write journal " + file, e);
+        }
+    }
+
+    synchronized void write() throws IOException {
+        if (buffer.size() == 0) {
+            return;
+        }
+        try {
+            if (stream == null) {
+                stream = new FileOutputStream(file, true);
+            }
+            buffer.writeTo(stream);
+            stream.flush();
+        } finally {
+            buffer.reset();
+        }
+    }
+
+    /**
+     * Flushes, and moves the records written so far to the given file. Following records are written to a new journal.
+     * If the given file exists, from a checkpoint that failed, the records are appended to it.
+     */
+    synchronized void rotate(File to) {
+        flush();
+        close();
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            if (to.exists()) {
+                FileOutputStream append = new FileOutputStream(to, true);
+                try {
+                    Files.copy(file, append);
+                } finally {
+                    append.close();
+                }
+                file.delete();
+            }
+            else if (!file.renameTo(to)) {
+                throw new IOException("Unable to rename " + file + " to " + to);
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to rotate journal " + file, e);
+        }
+    }
+
+    /**
+     * Discards all records, written or not.
+     */
+    synchronized void reset() {
+        buffer.reset();
+        close();
+        file.delete();
+    }
+
+    synchronized void close() {
+        Closeables.closeQuietly(stream);
+        stream = null;
+    }
+
+    /**
+     * Applies the records of the given journal file, and truncates a torn tail.
+     */
+    static void replay(File file, Visitor visitor) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        long valid = 0;
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            while (true) {
+                byte[] record;
+                try {
+                    int length = input.readInt();
+                    int checksum = input.readInt();
+                    if (length <= 0 || length > file.length()) {
+                        break;
+                    }
+                    record = new byte[length];
+                    input.readFully(record);
+                    CRC32 crc = new CRC32();
+                    crc.update(record);
+                    if ((int) crc.getValue() != checksum) {
+                        break;
+                    }
+                    valid += 8 + length;
+                } catch (EOFException e) {
+                    break;
+                }
+                apply(record, visitor);
+            }
+        } finally {
+            Closeables.closeQuietly(input);
+        }
+        if (valid < file.length()) {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(valid);
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+    private static void apply(byte[] record, Visitor visitor) throws IOException {
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(record));
+        byte type = data.readByte();
+        if (type == CLEAR) {
+            visitor.clear();
+            return;
+        }
+        Key key = Key.create(URI.create(readString(data)), Vary.parse(readString(data)));
+        if (type == PUT) {
+            Properties item = new Properties();
+            int size = data.readInt();
+            for (int i = 0; i < size; i++) {
+                item.setProperty(readString(data), readString(data));
+            }
+            visitor.put(key, item);
+        }
+        else if (type == INVALIDATE) {
+            visitor.invalidate(key);
+        }
+    }
+
+    private static void writeKey(DataOutputStream data, Key key) throws IOException {
+        writeString(data, key.getURI().toString());
+        writeString(data, key.getVary().toString());
+    }
+
+    private static void writeString(DataOutputStream data, String value) throws IOException {
+        byte[] bytes = value.getBytes(Charsets.UTF_8);
+        data.writeInt(bytes.length);
+        data.write(bytes);
+    }
+
+    private static String readString(DataInputStream data) throws IOException {
+        byte[] bytes = new byte[data.readInt()];
+        data.readFully(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
+
+    interface Visitor {
+        void put(Key key, Properties item);
+
+        void invalidate(Key key);
+
+        void clear();
+    }
+}
@@ -17,19 +17,31 @@
 package org.codehaus.httpcache4j.cache;
 
 import java.io.*;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
-import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.codehaus.httpcache4j.HTTPResponse;
 import org.codehaus.httpcache4j.payload.FilePayload;
 import org.codehaus.httpcache4j.payload.Payload;
 import org.codehaus.httpcache4j.util.InvalidateOnRemoveLRUHashMap;
-import org.codehaus.httpcache4j.util.SerializationUtils;
 
 /**
- * Persistent version of the in memory cache. This stores a serialized version of the
- * hashmap on every save. The cache is then restored on startup.
+ * Persistent version of the in memory cache.
+ * Every change is appended to a journal, which is flushed in the background.
+ * When the {@link SerializationPolicy} says so, a checkpoint of the whole cache is written in the background
+ * and the journal is started over. On startup the cache is restored from the checkpoint, and the journal is replayed.
  *
  * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
  */
@@ -37,33 +49,59 @@ public class PersistentCacheStorage extends MemoryCacheStorage implements Serial
 
 
     private static final long serialVersionUID = 2551525125071085301L;
+    private static final long FLUSH_INTERVAL = 100;
 
+    private final transient Logger logger = Logger.getLogger(getClass().getName());
     private final File serializationFile;
+    private final File checkpointJournal;
     private final FileManager fileManager;
+    private final transient Journal journal;
+    private final transient ScheduledExecutorService executor;
+    final transient Thread shutdownHook;
+    private final transient AtomicBoolean checkpointing = new AtomicBoolean();
 
     private transient int modCount;
+    private transient int generation;
     private long lastSerialization = 0L;
-    private SerializationPolicy serializationPolicy = new DefaultSerializationPolicy();
+    private SerializationPolicy serializationPolicy = defaultSerializationPolicy();
 
     public PersistentCacheStorage(File storageDirectory) {
         this(1000, storageDirectory, "persistent.ser");
     }
 
     public PersistentCacheStorage(final int capacity, final File storageDirectory, final String name) {
-        super(capacity);
+        this(capacity, Long.MAX_VALUE, storageDirectory, name);
+    }
+
+    /**
+     * @param maxBytes the maximum total size of the stored files and metadata, as estimated by {@link Weighers#bytes()}.
+     */
+    public PersistentCacheStorage(final int capacity, final long maxBytes, final File storageDirectory, final String name) {
+        super(capacity, maxBytes);
         Preconditions.checkArgument(capacity > 0, "You may not have a empty persistent cache");
         Preconditions.checkNotNull(storageDirectory, "You may not have a null storageDirectory");
         Preconditions.checkArgument(!Strings.isNullOrEmpty(name), "You may not have a empty file name");
         fileManager = new FileManager(storageDirectory);
 
         serializationFile = new File(storageDirectory, name);
+        checkpointJournal = new File(storageDirectory, name + ".journal.checkpoint");
+        journal = new Journal(new File(storageDirectory, name + ".journal"));
         getCacheFromDisk();
 
-        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+        executor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("httpcache4j-journal-%d").build()
+        );
+        executor.scheduleWithFixedDelay(new Runnable() {
             public void run() {
-                saveCacheToDisk();
+                journal.flush();
             }
-        }));
+        }, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+        shutdownHook = new Thread(new Runnable() {
+            public void run() {
+                journal.flush();
+            }
+        });
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
     }
 
     public void onRemoveFromMap(Key key) {
@@ -74,22 +112,57 @@ public class PersistentCacheStorage extends MemoryCacheStorage implements Serial
         return fileManager;
     }
 
+    Journal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Decides when a checkpoint is written. Between checkpoints changes are only appended to the journal,
+     * so the default is to checkpoint every 10000 changes or 10 minutes.
+     */
     public void setSerializationPolicy(SerializationPolicy serializationPolicy) {
-        this.serializationPolicy = serializationPolicy == null ? new DefaultSerializationPolicy() : serializationPolicy;
+        this.serializationPolicy = serializationPolicy == null ? defaultSerializationPolicy() : serializationPolicy;
+    }
+
+    private static SerializationPolicy defaultSerializationPolicy() {
+        return new DefaultSerializationPolicy(TimeUnit.MINUTES.toMillis(10), 10000);
     }
 
     @Override
     protected void afterClear() {
+        generation++;
+        journal.reset();
+        checkpointJournal.delete();
         serializationFile.delete();
         fileManager.clear();
     }
 
+    @Override
+    protected void afterRemove(Key key, CacheItem item) {
+        journal.invalidate(key);
+    }
+
     @Override
     protected HTTPResponse putImpl(Key key, HTTPResponse response) {
         HTTPResponse res = super.putImpl(key, response);
+        Map<Vary, CacheItem> variants = cache.get(key.getURI());
+        CacheItem item = variants == null ? null : variants.get(key.getVary());
+        if (item != null && (!res.hasPayload() || res.getPayload() instanceof FilePayload)) {
+            journal.put(key, ((SerializableCacheItem) item).toProperties());
+        }
+        else {
+            // Not stored in a file, so it cannot be restored.
+            journal.invalidate(key);
+        }
         if (serializationPolicy.shouldWePersist(modCount++, lastSerialization)) {
             lastSerialization = System.currentTimeMillis();
-            saveCacheToDisk();
+            if (checkpointing.compareAndSet(false, true)) {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        checkpoint();
+                    }
+                });
+            }
         }
         return res;
     }
@@ -108,47 +181,128 @@ public class PersistentCacheStorage extends MemoryCacheStorage implements Serial
         return null;
     }
 
+    @Override
+    public void shutdown() {
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException ignore) {
+            // The JVM is shutting down, and the hook flushes the journal.
+        }
+        executor.shutdown();
+        journal.flush();
+        journal.close();
+    }
+
     private void getCacheFromDisk() {
         write.lock();
         try {
-            if (serializationFile.exists()) {
-                FileInputStream inputStream = null;
-                try {
-                    inputStream = new FileInputStream(serializationFile);
-                    cache = (InvalidateOnRemoveLRUHashMap) SerializationUtils.deserialize(inputStream);
+            InvalidateOnRemoveLRUHashMap map = new InvalidateOnRemoveLRUHashMap(capacity);
+            replay(serializationFile, map);
+            replay(checkpointJournal, map);
+            replay(journal.getFile(), map);
+            map.setListener(this);
+            restore(map);
+        } finally {
+            write.unlock();
+        }
+    }
+
+    private void replay(File file, final InvalidateOnRemoveLRUHashMap map) {
+        try {
+            Journal.replay(file, new Journal.Visitor() {
+                public void put(Key key, Properties item) {
+                    CacheItem cacheItem = SerializableCacheItem.parse(item);
+                    HTTPResponse response = cacheItem.getResponse();
+                    if (response.hasPayload() && !response.getPayload().isAvailable()) {
+                        map.remove(key);
+                        return;
+                    }
+                    Map<Vary, CacheItem> variants = map.get(key.getURI());
+                    if (variants == null) {
+                        variants = new HashMap<Vary, CacheItem>();
+                        map.put(key.getURI(), variants);
+                    }
+                    variants.put(key.getVary(), new SerializableCacheItem(cacheItem));
                 }
-                catch (Exception e) {
-                    serializationFile.delete();
-                    //Ignored, we create a new one.
-                    cache = new InvalidateOnRemoveLRUHashMap(capacity);
+
+                public void invalidate(Key key) {
+                    map.remove(key);
+                }
+
+                public void clear() {
+                    map.clear();
+                }
+            });
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to replay journal " + file, e);
+        }
+    }
+
+    /**
+     * Writes a checkpoint of the cache, and discards the journal it replaces.
+     * The checkpoint is a journal with one record per entry, in least recently inserted order.
+     * The cache is copied under the read lock; the checkpoint itself is written without holding any lock.
+     */
+    void checkpoint() {
+        try {
+            Map<URI, Map<Vary, CacheItem>> copy = new LinkedHashMap<URI, Map<Vary, CacheItem>>();
+            int checkpointGeneration;
+            read.lock();
+            try {
+                for (Map.Entry<URI, Map<Vary, CacheItem>> entry : cache.entrySet()) {
+                    copy.put(entry.getKey(), new HashMap<Vary, CacheItem>(entry.getValue()));
                 }
-                finally {
-                    Closeables.closeQuietly(inputStream);
+                journal.rotate(checkpointJournal);
+                checkpointGeneration = generation;
+            } finally {
+                read.unlock();
+            }
+            File temporary = new File(serializationFile.getParentFile(), serializationFile.getName() + ".tmp");
+            temporary.delete();
+            Journal checkpoint = new Journal(temporary);
+            int written = 0;
+            try {
+                for (Map.Entry<URI, Map<Vary, CacheItem>> entry : copy.entrySet()) {
+                    for (Map.Entry<Vary, CacheItem> variant : entry.getValue().entrySet()) {
+                        HTTPResponse response = variant.getValue().getResponse();
+                        if (!response.hasPayload() || response.getPayload() instanceof FilePayload) {
+                            checkpoint.put(Key.create(entry.getKey(), variant.getKey()), ((SerializableCacheItem) variant.getValue()).toProperties());
+                        }
+                    }
+                    if (++written % 1000 == 0) {
+                        checkpoint.write();
+                    }
                 }
+                checkpoint.write();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Unable to write checkpoint " + temporary, e);
+                return;
+            } finally {
+                checkpoint.close();
             }
-            else {
-                cache = new InvalidateOnRemoveLRUHashMap(capacity);
+            read.lock();
+            try {
+                if (checkpointGeneration == generation && replace(temporary, serializationFile)) {
+                    checkpointJournal.delete();
+                }
+                temporary.delete();
+            } finally {
+                read.unlock();
             }
         } finally {
-            cache.setListener(this);
-            write.unlock();
+            checkpointing.set(false);
         }
     }
 
-    private void saveCacheToDisk() {
-        read.lock();
-
-        FileOutputStream outputStream = null;
-        try {
-            outputStream = new FileOutputStream(serializationFile);
-            SerializationUtils.serialize(cache, outputStream);
-        }
-        catch (Exception e) {
-            //Ignored, we create a new one.
-        }
-        finally {
-            Closeables.closeQuietly(outputStream);
-            read.unlock();
+    /**
+     * Renames over the target, which is atomic on POSIX. Some platforms refuse to rename over an existing file,
+     * so the target is deleted and the rename retried if the first one fails.
+     */
+    private static boolean replace(File source, File target) {
+        if (source.renameTo(target)) {
+            return true;
         }
+        target.delete();
+        return source.renameTo(target);
     }
 }
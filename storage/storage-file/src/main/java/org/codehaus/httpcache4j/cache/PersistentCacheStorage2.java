@@ -20,6 +20,7 @@ import com.google.common.annotations.Beta;
 import com.google.common.collect.Iterators;
 import com.google.common.io.Closeables;
 import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.codehaus.httpcache4j.HTTPException;
 import org.codehaus.httpcache4j.HTTPRequest;
 import org.codehaus.httpcache4j.HTTPResponse;
@@ -31,18 +32,29 @@ import org.codehaus.httpcache4j.util.PropertiesLoader;
 import java.io.*;
 import java.net.URI;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Completely file-persistent storage, also for metadata.
+ * The metadata is also kept in a concurrent in memory index, which is built by scanning the storage directory
+ * in parallel on startup. Lookups only use the index; the disk is only touched to read a payload.
+ * Changes are serialized, and written to disk before they are visible in the index.
  *
  * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
  */
 @Beta
 public class PersistentCacheStorage2 implements CacheStorage {
+    private final Logger logger = Logger.getLogger(getClass().getName());
     private final FileManager fileManager;
+    private final ConcurrentMap<URI, ConcurrentMap<Vary, CacheItem>> index = new ConcurrentHashMap<URI, ConcurrentMap<Vary, CacheItem>>();
+    private final AtomicInteger size = new AtomicInteger();
 
     public PersistentCacheStorage2(final File storageDirectory) {
         fileManager = new FileManager(storageDirectory);
+        buildIndex();
     }
 
     FileManager getFileManager() {
@@ -71,14 +83,19 @@ public class PersistentCacheStorage2 implements CacheStorage {
             HTTPResponse storedResponse = createCacheableResponse(key, response);
             SerializableCacheItem item = createCacheItem(storedResponse);
             writeItem(key, item);
+            index(key, item);
             return item.getResponse();
         } catch (IOException e) {
             throw new HTTPException(e);
         }
     }
 
+    private File metadataFile(Key key) {
+        return new File(fileManager.resolve(key).getAbsolutePath() + ".metadata");
+    }
+
     private void writeItem(Key key, SerializableCacheItem item) throws IOException {
-        File metadata = new File(fileManager.resolve(key).getAbsolutePath() + ".metadata");
+        File metadata = metadataFile(key);
         if (!metadata.getParentFile().exists()) {
             fileManager.ensureDirectoryExists(metadata.getParentFile());
         }
@@ -102,31 +119,46 @@ public class PersistentCacheStorage2 implements CacheStorage {
         return null;
     }
 
+    private void index(Key key, CacheItem item) {
+        ConcurrentMap<Vary, CacheItem> variants = index.get(key.getURI());
+        if (variants == null) {
+            variants = new ConcurrentHashMap<Vary, CacheItem>(4);
+            ConcurrentMap<Vary, CacheItem> existing = index.putIfAbsent(key.getURI(), variants);
+            if (existing != null) {
+                variants = existing;
+            }
+        }
+        if (variants.put(key.getVary(), item) == null) {
+            size.incrementAndGet();
+        }
+    }
+
+    /**
+     * Keeps the payload which is already stored, and replaces the metadata.
+     */
     @Override
     public synchronized HTTPResponse update(HTTPRequest request, HTTPResponse response) {
         Key key = Key.create(request, response);
+        CacheItem existing = get(key);
+        Payload payload = existing == null ? null : existing.getResponse().getPayload();
         try {
-            SerializableCacheItem item = createCacheItem(response);
+            SerializableCacheItem item = createCacheItem(new HTTPResponse(payload, response.getStatusLine(), response.getHeaders()));
             writeItem(key, item);
+            index(key, item);
+            return item.getResponse();
         } catch (IOException e) {
             throw new HTTPException(e);
         }
-
-        return get(key).getResponse();
     }
 
     @Override
-    public synchronized CacheItem get(Key key) {
-        File metadata = new File(fileManager.resolve(key).getAbsolutePath() + ".metadata");
-        Pair<Key, CacheItem> pair = readItem(metadata);
-        if (pair != null) {
-            return pair.getValue();
-        }
-        return null;
+    public CacheItem get(Key key) {
+        Map<Vary, CacheItem> variants = index.get(key.getURI());
+        return variants == null ? null : variants.get(key.getVary());
     }
 
     @Override
-    public synchronized CacheItem get(HTTPRequest request) {
+    public CacheItem get(HTTPRequest request) {
         Pair<Key, CacheItem> item = getItem(request);
         if (item != null) {
             return item.getValue();
@@ -134,58 +166,69 @@ public class PersistentCacheStorage2 implements CacheStorage {
         return null;
     }
 
-    synchronized Pair<Key, CacheItem> getItem(HTTPRequest request) {
-        File uri = fileManager.resolve(request.getNormalizedURI());
-        File[] files = uri.listFiles((FileFilter) new SuffixFileFilter("metadata"));
-        for (File file : new FilesIterable(files)) {
-            Pair<Key, CacheItem> pair = readItem(file);
-            if (pair != null && pair.getKey().getVary().matches(request)) {
-                return pair;
+    Pair<Key, CacheItem> getItem(HTTPRequest request) {
+        URI uri = request.getNormalizedURI();
+        Map<Vary, CacheItem> variants = index.get(uri);
+        if (variants != null) {
+            for (Map.Entry<Vary, CacheItem> variant : variants.entrySet()) {
+                if (variant.getKey().matches(request)) {
+                    return Pair.of(Key.create(uri, variant.getKey()), variant.getValue());
+                }
             }
         }
         return null;
     }
 
+    List<Key> getKeys(URI uri) {
+        List<Key> keys = new ArrayList<Key>();
+        Map<Vary, CacheItem> variants = index.get(uri);
+        if (variants != null) {
+            for (Vary vary : variants.keySet()) {
+                keys.add(Key.create(uri, vary));
+            }
+        }
+        return keys;
+    }
+
     @Override
     public synchronized void invalidate(URI uri) {
+        Map<Vary, CacheItem> variants = index.remove(uri);
+        if (variants != null) {
+            size.addAndGet(-variants.size());
+        }
         fileManager.clear(uri);
     }
 
     synchronized void invalidate(Key key) {
+        Map<Vary, CacheItem> variants = index.get(key.getURI());
+        if (variants != null && variants.remove(key.getVary()) != null) {
+            size.decrementAndGet();
+            if (variants.isEmpty()) {
+                index.remove(key.getURI(), variants);
+            }
+        }
+        metadataFile(key).delete();
         fileManager.remove(key);
     }
 
     @Override
     public synchronized void clear() {
+        index.clear();
+        size.set(0);
         fileManager.clear();
     }
 
     @Override
-    public synchronized int size() {
-        int count = 0;
-        File base = fileManager.getBaseDirectory();
-        for (File hash : new FilesIterable(base.listFiles())) {
-            for (File uriHash : new FilesIterable(hash.listFiles())) {
-                String[] metadata = uriHash.list(new SuffixFileFilter("metadata"));
-                count += metadata.length;
-            }
-        }
-        return count;
+    public int size() {
+        return size.get();
     }
 
     @Override
-    public synchronized Iterator<Key> iterator() {
+    public Iterator<Key> iterator() {
         List<Key> keys = new ArrayList<Key>();
-        File base = fileManager.getBaseDirectory();
-        for (File hash : new FilesIterable(base.listFiles())) {
-            for (File uriHash : new FilesIterable(hash.listFiles())) {
-                File[] metadata = uriHash.listFiles((FileFilter) new SuffixFileFilter("metadata"));
-                for (File m : new FilesIterable(metadata)) {
-                    Pair<Key, CacheItem> item = readItem(m);
-                    if (item != null) {
-                        keys.add(item.getKey());
-                    }
-                }
+        for (Map.Entry<URI, ConcurrentMap<Vary, CacheItem>> entry : index.entrySet()) {
+            for (Vary vary : entry.getValue().keySet()) {
+                keys.add(Key.create(entry.getKey(), vary));
             }
         }
         return Collections.unmodifiableList(keys).iterator();
@@ -195,6 +238,56 @@ public class PersistentCacheStorage2 implements CacheStorage {
     public void shutdown() {
     }
 
+    /**
+     * Reads all metadata files, one task per distribution directory.
+     */
+    private void buildIndex() {
+        File[] distributions = fileManager.getBaseDirectory().listFiles();
+        if (distributions == null || distributions.length == 0) {
+            return;
+        }
+        int threads = Math.min(distributions.length, Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("httpcache4j-index-%d").build()
+        );
+        try {
+            List<Future<?>> scans = new ArrayList<Future<?>>();
+            for (final File distribution : distributions) {
+                scans.add(executor.submit(new Runnable() {
+                    public void run() {
+                        scan(distribution);
+                    }
+                }));
+            }
+            for (Future<?> scan : scans) {
+                scan.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HTTPException("Interrupted while indexing " + fileManager.getBaseDirectory(), e);
+        } catch (ExecutionException e) {
+            throw new HTTPException("Unable to index " + fileManager.getBaseDirectory(), e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void scan(File distribution) {
+        for (File uriHash : new FilesIterable(distribution.listFiles())) {
+            File[] metadata = uriHash.listFiles((FileFilter) new SuffixFileFilter("metadata"));
+            for (File m : new FilesIterable(metadata)) {
+                try {
+                    Pair<Key, CacheItem> item = readItem(m);
+                    if (item != null) {
+                        index(item.getKey(), item.getValue());
+                    }
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING, "Ignoring unreadable metadata " + m, e);
+                }
+            }
+        }
+    }
+
     private static class FilesIterable implements Iterable<File> {
         private File[] files;
 
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.cache;
+
+import org.codehaus.httpcache4j.*;
+import org.codehaus.httpcache4j.payload.FilePayload;
+import org.codehaus.httpcache4j.payload.InputStreamPayload;
+import org.codehaus.httpcache4j.util.NullInputStream;
+import org.codehaus.httpcache4j.util.TestUtil;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.URI;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public class IndexedPersistentCacheStorageTest extends CacheStorageAbstractTest {
+    private final File directory = TestUtil.getTestFile("target/indexed");
+
+    @Override
+    protected CacheStorage createCacheStorage() {
+        return new IndexedPersistentCacheStorage(directory, 10);
+    }
+
+    @Test
+    public void getReturnsTheStoredItem() {
+        storage.insert(REQUEST, createRealResponse());
+        CacheItem item = storage.get(REQUEST);
+        assertNotNull(item);
+        assertTrue(item.getResponse().getPayload().isAvailable());
+    }
+
+    @Test
+    public void insertingTheSameKeyAgainKeepsTheFile() {
+        storage.insert(REQUEST, createRealResponse());
+        HTTPResponse response = storage.insert(REQUEST, createRealResponse());
+        assertTrue(((FilePayload) response.getPayload()).getFile().exists());
+        assertEquals(1, storage.size());
+    }
+
+    @Test
+    public void evictedEntriesAreDeletedFromDisk() {
+        for (int i = 0; i < 20; i++) {
+            storage.insert(new HTTPRequest(URI.create("foo" + i)), createRealResponse());
+        }
+        assertTrue(storage.size() <= 10);
+        assertTrue(new PersistentCacheStorage2(directory).size() <= 10);
+    }
+
+    @Test
+    public void entriesOnDiskAreIndexedOnStartup() {
+        storage.insert(REQUEST, createRealResponse());
+        IndexedPersistentCacheStorage restarted = new IndexedPersistentCacheStorage(directory, 10);
+        assertEquals(1, restarted.size());
+        assertNotNull(restarted.get(REQUEST));
+    }
+
+    private HTTPResponse createRealResponse() {
+        return new HTTPResponse(new InputStreamPayload(new NullInputStream(10), MIMEType.APPLICATION_OCTET_STREAM), Status.OK, new Headers());
+    }
+
+    @Override
+    protected void afterTest() {
+    }
+}
@@ -33,6 +33,7 @@ import org.junit.Test;
 
 import static junit.framework.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 /** @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a> */
@@ -80,6 +81,21 @@ public class PersistentCacheStorage2Test extends CacheStorageAbstractTest {
         assertEquals(100, storage.size());
     }
 
+    @Test
+    public void indexIsRebuiltFromDiskOnStartup() {
+        for (int i = 0; i < 100; i++) {
+            storage.insert(new HTTPRequest(URI.create("foo" + i)), createRealResponse());
+        }
+        storage.invalidate(URI.create("foo3"));
+
+        PersistentCacheStorage2 restarted = new PersistentCacheStorage2(TestUtil.getTestFile("target/persistent2"));
+        assertEquals(99, restarted.size());
+        assertNull(restarted.get(new HTTPRequest(URI.create("foo3"))));
+        CacheItem item = restarted.get(new HTTPRequest(URI.create("foo42")));
+        assertNotNull(item);
+        assertTrue(item.getResponse().getPayload().isAvailable());
+    }
+
     private HTTPResponse createRealResponse() {
         return new HTTPResponse(new InputStreamPayload(new NullInputStream(10), MIMEType.APPLICATION_OCTET_STREAM), Status.OK, new Headers());
     }
@@ -24,6 +24,9 @@ import org.codehaus.httpcache4j.util.NullInputStream;
 import org.codehaus.httpcache4j.util.TestUtil;
 import org.junit.Test;
 
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
 import java.io.File;
 import java.net.URI;
 
@@ -97,6 +100,116 @@ public class PersistentCacheStorageTest extends CacheStorageAbstractTest {
         t3.interrupt();
     }
 
+    @Test
+    public void evictsEldestFilesUntilWithinMaxBytes() {
+        File directory = TestUtil.getTestFile("target/persistent-bounded");
+        PersistentCacheStorage bounded = new PersistentCacheStorage(100, 3000, directory, "bounded.ser");
+        try {
+            for (int i = 0; i < 3; i++) {
+                HTTPResponse response = new HTTPResponse(new InputStreamPayload(new NullInputStream(1000), MIMEType.APPLICATION_OCTET_STREAM), Status.OK, new Headers());
+                bounded.insert(new HTTPRequest(URI.create("http://example.com/items/" + i)), response);
+            }
+            assertEquals(2, bounded.size());
+            assertTrue(bounded.getWeight() <= 3000);
+            assertFalse(bounded.getFileManager().resolve(Key.create(URI.create("http://example.com/items/0"), new Vary())).exists());
+        } finally {
+            bounded.clear();
+        }
+    }
+
+    @Test
+    public void recoversFromTheJournalOnRestart() {
+        File directory = TestUtil.getTestFile("target/persistent-journal");
+        PersistentCacheStorage first = journaled(directory);
+        first.clear();
+        for (int i = 0; i < 3; i++) {
+            first.insert(item(i), createRealResponse());
+        }
+        first.invalidate(item(1).getNormalizedURI());
+        first.shutdown();
+        assertFalse(new File(directory, "journal.ser").exists());
+
+        PersistentCacheStorage second = journaled(directory);
+        try {
+            assertEquals(2, second.size());
+            assertNull(second.get(item(1)));
+            CacheItem item = second.get(item(2));
+            assertNotNull(item);
+            assertTrue(item.getResponse().getPayload().isAvailable());
+        } finally {
+            second.clear();
+            second.shutdown();
+        }
+    }
+
+    @Test
+    public void ignoresATornRecordAtTheEndOfTheJournal() throws Exception {
+        File directory = TestUtil.getTestFile("target/persistent-journal");
+        PersistentCacheStorage first = journaled(directory);
+        first.clear();
+        first.insert(item(0), createRealResponse());
+        first.shutdown();
+        Files.append("\0\0\0\u0040torn", first.getJournal().getFile(), Charsets.ISO_8859_1);
+
+        PersistentCacheStorage second = journaled(directory);
+        assertEquals(1, second.size());
+        second.insert(item(1), createRealResponse());
+        second.shutdown();
+
+        PersistentCacheStorage third = journaled(directory);
+        try {
+            assertEquals(2, third.size());
+        } finally {
+            third.clear();
+            third.shutdown();
+        }
+    }
+
+    @Test
+    public void checkpointReplacesTheJournal() {
+        File directory = TestUtil.getTestFile("target/persistent-journal");
+        PersistentCacheStorage first = journaled(directory);
+        first.clear();
+        first.insert(item(0), createRealResponse());
+        first.insert(item(1), createRealResponse());
+        first.checkpoint();
+        assertTrue(new File(directory, "journal.ser").exists());
+        assertFalse(new File(directory, "journal.ser.journal.checkpoint").exists());
+        first.insert(item(2), createRealResponse());
+        first.shutdown();
+
+        PersistentCacheStorage second = journaled(directory);
+        try {
+            assertEquals(3, second.size());
+            assertNotNull(second.get(item(0)));
+            assertNotNull(second.get(item(2)));
+        } finally {
+            second.clear();
+            second.shutdown();
+        }
+    }
+
+    @Test
+    public void shutdownRemovesTheShutdownHook() {
+        PersistentCacheStorage journaled = journaled(TestUtil.getTestFile("target/persistent-journal"));
+        journaled.shutdown();
+        assertFalse(Runtime.getRuntime().removeShutdownHook(journaled.shutdownHook));
+    }
+
+    private PersistentCacheStorage journaled(File directory) {
+        PersistentCacheStorage journaled = new PersistentCacheStorage(100, directory, "journal.ser");
+        journaled.setSerializationPolicy(new SerializationPolicy() {
+            public boolean shouldWePersist(long numberOfModifications, long lastSerializationTime) {
+                return false;
+            }
+        });
+        return journaled;
+    }
+
+    private HTTPRequest item(int i) {
+        return new HTTPRequest(URI.create("http://example.com/journal/" + i));
+    }
+
     private HTTPResponse createRealResponse() {
         return new HTTPResponse(new InputStreamPayload(new NullInputStream(10), MIMEType.APPLICATION_OCTET_STREAM), Status.OK, new Headers());
     }
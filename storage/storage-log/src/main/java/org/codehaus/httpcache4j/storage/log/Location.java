@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.storage.log;
+
+/**
+ * Where a record is stored in the log, and what its header says.
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+final class Location {
+    final int segment;
+    final long offset;
+    final byte type;
+    final long sequence;
+    final long reference;
+    final int keyLength;
+    final int metaLength;
+    final long bodyLength;
+
+    Location(int segment, long offset, byte type, long sequence, long reference, int keyLength, int metaLength, long bodyLength) {
+        this.segment = segment;
+        this.offset = offset;
+        this.type = type;
+        this.sequence = sequence;
+        this.reference = reference;
+        this.keyLength = keyLength;
+        this.metaLength = metaLength;
+        this.bodyLength = bodyLength;
+    }
+
+    Location moveTo(int segment, long offset) {
+        return new Location(segment, offset, type, sequence, reference, keyLength, metaLength, bodyLength);
+    }
+
+    long length() {
+        return Segment.HEADER_SIZE + keyLength + metaLength + bodyLength;
+    }
+
+    long metaOffset() {
+        return offset + Segment.HEADER_SIZE + keyLength;
+    }
+
+    long bodyOffset() {
+        return metaOffset() + metaLength;
+    }
+
+    boolean isSameRecord(Location location) {
+        return location != null && segment == location.segment && offset == location.offset;
+    }
+}
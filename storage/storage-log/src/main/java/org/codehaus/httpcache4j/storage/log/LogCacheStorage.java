@@ -0,0 +1,705 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.storage.log;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Closeables;
+import com.google.common.io.LimitInputStream;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.codehaus.httpcache4j.*;
+import org.codehaus.httpcache4j.cache.*;
+import org.codehaus.httpcache4j.payload.Payload;
+import org.joda.time.DateTime;
+
+import java.io.*;
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Storage which appends every change to log segments, Bitcask style.
+ * An in memory key directory points to the record holding the metadata, and the record holding the body, of each key.
+ * The metadata is read from disk on every {@code get}, and the body is streamed from the segment.
+ * <p/>
+ * Segments are rolled when they reach the segment size.
+ * Sealed segments where the garbage (overwritten records and tombstones) exceeds the compaction threshold
+ * are compacted in the background: live records are copied to the active segment, and the segment is deleted
+ * on the following compaction, so that bodies handed out just before can still be read.
+ * Each sealed segment has a hint file, so startup only reads the bodies of segments without one.
+ * <p/>
+ * Appends to the active segment have their own lock. The key directory is only locked to publish a record,
+ * so reads are not blocked while a body is copied into the segment.
+ * <p/>
+ * There is no size limit; wrap it in an {@link EvictingCacheStorage} to bound it.
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public class LogCacheStorage implements CacheStorage, CacheEventSource {
+    public static final long DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static final double DEFAULT_COMPACTION_THRESHOLD = 0.5;
+    public static final long DEFAULT_COMPACTION_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final Logger logger = Logger.getLogger(getClass().getName());
+    private final File directory;
+    private final long segmentSize;
+    private final double compactionThreshold;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Lock read = lock.readLock();
+    private final Lock write = lock.writeLock();
+    private final Lock append = new ReentrantLock();
+    private final Map<URI, Map<Vary, Entry>> entries = new HashMap<URI, Map<Vary, Entry>>();
+    private final SortedMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+    // Compacted segments, deleted oldest first so that a tombstone never outlives the record it hides.
+    private final SortedMap<Integer, Segment> retired = new TreeMap<Integer, Segment>();
+    private final ScheduledExecutorService compactor;
+    private Segment active;
+    private long sequence;
+    private int size;
+    private volatile CacheEventListener eventListener;
+
+    public LogCacheStorage(File directory) {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_COMPACTION_THRESHOLD, DEFAULT_COMPACTION_INTERVAL);
+    }
+
+    /**
+     * @param segmentSize the size in bytes at which a segment is sealed, and a new one started.
+     * @param compactionThreshold the ratio of garbage at which a sealed segment is compacted.
+     * @param compactionInterval milliseconds between background compactions, {@code 0} to only compact on {@link #compact()}.
+     */
+    public LogCacheStorage(File directory, long segmentSize, double compactionThreshold, long compactionInterval) {
+        Preconditions.checkNotNull(directory, "Directory may not be null");
+        Preconditions.checkArgument(segmentSize > 0, "Segment size must be positive");
+        Preconditions.checkArgument(compactionThreshold > 0 && compactionThreshold <= 1, "Compaction threshold must be within (0, 1]");
+        Preconditions.checkArgument(compactionInterval >= 0, "Compaction interval may not be negative");
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.compactionThreshold = compactionThreshold;
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IllegalArgumentException("Unable to create " + directory);
+        }
+        try {
+            load();
+        } catch (IOException e) {
+            throw new HTTPException("Unable to load " + directory, e);
+        }
+        if (compactionInterval > 0) {
+            compactor = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("httpcache4j-compaction-%d").build()
+            );
+            compactor.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    compact();
+                }
+            }, compactionInterval, compactionInterval, TimeUnit.MILLISECONDS);
+        }
+        else {
+            compactor = null;
+        }
+    }
+
+    public HTTPResponse insert(HTTPRequest request, HTTPResponse response) {
+        Key key = Key.create(request, response);
+        MIMEType mimeType = response.hasPayload() ? response.getPayload().getMimeType() : null;
+        byte[] meta = encodeMeta(response.getStatus(), response.getHeaders(), new DateTime(), mimeType);
+        append.lock();
+        InputStream stream = null;
+        try {
+            Entry entry;
+            if (response.hasPayload()) {
+                stream = response.getPayload().getInputStream();
+                Location location = active.append(Segment.PUT, ++sequence, -1, encodeKey(key), meta, stream);
+                entry = new Entry(location, location);
+            }
+            else {
+                entry = new Entry(active.append(Segment.HEAD, ++sequence, -1, encodeKey(key), meta, null), null);
+            }
+            write.lock();
+            try {
+                replace(key, entry);
+                rollIfFull();
+            } finally {
+                write.unlock();
+            }
+            HTTPResponse stored = new HTTPResponse(payload(key, entry, mimeType), response.getStatus(), response.getHeaders());
+            publish(CacheEvent.Type.STORED, key, stored);
+            return stored;
+        } catch (IOException e) {
+            throw new HTTPException("Unable to store " + key, e);
+        } finally {
+            Closeables.closeQuietly(stream);
+            append.unlock();
+        }
+    }
+
+    /**
+     * Appends the new headers only; the body stays where it is.
+     */
+    public HTTPResponse update(HTTPRequest request, HTTPResponse response) {
+        Key key = Key.create(request, response);
+        append.lock();
+        write.lock();
+        try {
+            Entry previous = get(entries, key);
+            if (previous == null) {
+                return response;
+            }
+            Meta saved = readMeta(previous);
+            byte[] meta = encodeMeta(saved.status, response.getHeaders(), new DateTime(), saved.mimeType);
+            long reference = previous.body == null ? -1 : previous.body.sequence;
+            Entry entry = new Entry(active.append(Segment.UPDATE, ++sequence, reference, encodeKey(key), meta, null), previous.body);
+            replace(key, entry);
+            rollIfFull();
+            HTTPResponse updated = new HTTPResponse(payload(key, entry, saved.mimeType), saved.status, response.getHeaders());
+            publish(CacheEvent.Type.UPDATED, key, updated);
+            return updated;
+        } catch (IOException e) {
+            throw new HTTPException("Unable to update " + key, e);
+        } finally {
+            write.unlock();
+            append.unlock();
+        }
+    }
+
+    public CacheItem get(Key key) {
+        read.lock();
+        try {
+            Entry entry = get(entries, key);
+            return entry == null ? null : item(key, entry);
+        } finally {
+            read.unlock();
+        }
+    }
+
+    public CacheItem get(HTTPRequest request) {
+        read.lock();
+        try {
+            Map<Vary, Entry> variants = entries.get(request.getNormalizedURI());
+            if (variants != null) {
+                for (Map.Entry<Vary, Entry> variant : variants.entrySet()) {
+                    if (variant.getKey().matches(request)) {
+                        return item(Key.create(request.getNormalizedURI(), variant.getKey()), variant.getValue());
+                    }
+                }
+            }
+            return null;
+        } finally {
+            read.unlock();
+        }
+    }
+
+    public void invalidate(URI uri) {
+        append.lock();
+        write.lock();
+        try {
+            Map<Vary, Entry> variants = entries.get(uri);
+            if (variants == null) {
+                return;
+            }
+            for (Vary vary : new ArrayList<Vary>(variants.keySet())) {
+                Key key = Key.create(uri, vary);
+                Location tombstone = active.append(Segment.TOMBSTONE, ++sequence, -1, encodeKey(key), EMPTY, null);
+                active.addGarbage(tombstone.length());
+                remove(key);
+                publish(CacheEvent.Type.INVALIDATED, key, null);
+            }
+            rollIfFull();
+        } catch (IOException e) {
+            throw new HTTPException("Unable to invalidate " + uri, e);
+        } finally {
+            write.unlock();
+            append.unlock();
+        }
+    }
+
+    public void clear() {
+        append.lock();
+        write.lock();
+        try {
+            int next = active.id + 1;
+            for (Segment segment : segments.values()) {
+                segment.delete();
+            }
+            segments.clear();
+            deleteRetired();
+            entries.clear();
+            size = 0;
+            active = Segment.create(directory, next);
+            segments.put(active.id, active);
+        } catch (IOException e) {
+            throw new HTTPException("Unable to clear " + directory, e);
+        } finally {
+            write.unlock();
+            append.unlock();
+        }
+    }
+
+    public int size() {
+        read.lock();
+        try {
+            return size;
+        } finally {
+            read.unlock();
+        }
+    }
+
+    public Iterator<Key> iterator() {
+        read.lock();
+        try {
+            List<Key> keys = new ArrayList<Key>(size);
+            for (Map.Entry<URI, Map<Vary, Entry>> entry : entries.entrySet()) {
+                for (Vary vary : entry.getValue().keySet()) {
+                    keys.add(Key.create(entry.getKey(), vary));
+                }
+            }
+            return ImmutableList.copyOf(keys).iterator();
+        } finally {
+            read.unlock();
+        }
+    }
+
+    /**
+     * Seals the active segment, so that the next startup can use its hint file, and closes all segments.
+     */
+    public void shutdown() {
+        if (compactor != null) {
+            compactor.shutdown();
+        }
+        append.lock();
+        write.lock();
+        try {
+            active.seal();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to seal " + active.file, e);
+        } finally {
+            for (Segment segment : segments.values()) {
+                segment.close();
+            }
+            deleteRetired();
+            write.unlock();
+            append.unlock();
+        }
+    }
+
+    public void setEventListener(CacheEventListener listener) {
+        this.eventListener = listener;
+    }
+
+    /**
+     * Compacts the sealed segments with more garbage than the compaction threshold.
+     */
+    public void compact() {
+        List<Segment> candidates = new ArrayList<Segment>();
+        write.lock();
+        try {
+            deleteRetired();
+            for (Segment segment : segments.values()) {
+                if (segment != active && segment.length() > 0 && segment.garbage() >= segment.length() * compactionThreshold) {
+                    candidates.add(segment);
+                }
+            }
+        } finally {
+            write.unlock();
+        }
+        for (Segment segment : candidates) {
+            try {
+                compact(segment);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Unable to compact " + segment.file, e);
+            }
+        }
+    }
+
+    int getSegmentCount() {
+        read.lock();
+        try {
+            return segments.size();
+        } finally {
+            read.unlock();
+        }
+    }
+
+    /**
+     * Copies the live records of the segment to the active segment, one record at a time, and deletes it.
+     * Tombstones are kept only while there are older segments, compacted but not yet deleted ones included, which may hold the key.
+     */
+    private void compact(Segment segment) throws IOException {
+        for (Segment.Record record : segment.records()) {
+            append.lock();
+            write.lock();
+            try {
+                if (segments.get(segment.id) != segment) {
+                    return;
+                }
+                Location location = record.location;
+                Key key = decodeKey(record.key);
+                Entry entry = get(entries, key);
+                if (location.type == Segment.TOMBSTONE) {
+                    if (entry == null && hasOlderSegment(segment.id)) {
+                        active.addGarbage(active.copy(segment, location, record.key).length());
+                        rollIfFull();
+                    }
+                    continue;
+                }
+                if (entry == null) {
+                    continue;
+                }
+                boolean meta = location.isSameRecord(entry.meta);
+                boolean body = location.isSameRecord(entry.body);
+                if (meta || body) {
+                    Location copy = active.copy(segment, location, record.key);
+                    entries.get(key.getURI()).put(key.getVary(), new Entry(meta ? copy : entry.meta, body ? copy : entry.body));
+                    rollIfFull();
+                }
+            } finally {
+                write.unlock();
+                append.unlock();
+            }
+        }
+        write.lock();
+        try {
+            if (segments.get(segment.id) == segment) {
+                segments.remove(segment.id);
+                retired.put(segment.id, segment);
+            }
+        } finally {
+            write.unlock();
+        }
+    }
+
+    private boolean hasOlderSegment(int id) {
+        return segments.firstKey() < id || (!retired.isEmpty() && retired.firstKey() < id);
+    }
+
+    /**
+     * @return the files of the compacted segments which are not yet deleted, oldest first.
+     */
+    List<File> getRetiredFiles() {
+        read.lock();
+        try {
+            List<File> files = new ArrayList<File>();
+            for (Segment segment : retired.values()) {
+                files.add(segment.file);
+            }
+            return files;
+        } finally {
+            read.unlock();
+        }
+    }
+
+    private void deleteRetired() {
+        for (Segment segment : retired.values()) {
+            segment.delete();
+        }
+        retired.clear();
+    }
+
+    private Segment segment(int id) {
+        Segment segment = segments.get(id);
+        return segment == null ? retired.get(id) : segment;
+    }
+
+    InputStream open(Key key, Location location) {
+        read.lock();
+        try {
+            Location current = resolve(key, location);
+            if (current == null) {
+                throw new HTTPException(String.format("The body of %s is no longer stored", key));
+            }
+            FileInputStream stream = new FileInputStream(segment(current.segment).file);
+            try {
+                stream.getChannel().position(current.bodyOffset());
+            } catch (IOException e) {
+                Closeables.closeQuietly(stream);
+                throw e;
+            }
+            return new LimitInputStream(stream, current.bodyLength);
+        } catch (IOException e) {
+            throw new HTTPException("Unable to read the body of " + key, e);
+        } finally {
+            read.unlock();
+        }
+    }
+
+    boolean isStored(Key key, Location location) {
+        read.lock();
+        try {
+            return resolve(key, location) != null;
+        } finally {
+            read.unlock();
+        }
+    }
+
+    /**
+     * Finds the body record where it is now, if it has been moved by compaction.
+     */
+    private Location resolve(Key key, Location location) {
+        if (segment(location.segment) != null) {
+            return location;
+        }
+        Entry entry = get(entries, key);
+        if (entry != null && entry.body != null && entry.body.sequence == location.sequence) {
+            return entry.body;
+        }
+        return null;
+    }
+
+    private CacheItem item(Key key, Entry entry) {
+        try {
+            Meta meta = readMeta(entry);
+            HTTPResponse response = new HTTPResponse(payload(key, entry, meta.mimeType), meta.status, meta.headers);
+            return new DefaultCacheItem(response, meta.cachedTime);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to read " + key, e);
+            return null;
+        }
+    }
+
+    private Payload payload(Key key, Entry entry, MIMEType mimeType) {
+        if (entry.body == null) {
+            return null;
+        }
+        return new LogPayload(this, key, entry.body, mimeType);
+    }
+
+    private Meta readMeta(Entry entry) throws IOException {
+        Location location = entry.meta;
+        byte[] bytes = segment(location.segment).read(location.metaOffset(), location.metaLength);
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(bytes));
+        Status status = Status.valueOf(data.readInt());
+        DateTime cachedTime = new DateTime(data.readLong());
+        Headers headers = Headers.parse(readString(data));
+        String mimeType = readString(data);
+        return new Meta(status, headers, cachedTime, mimeType.isEmpty() ? null : MIMEType.valueOf(mimeType));
+    }
+
+    private void replace(Key key, Entry entry) {
+        Map<Vary, Entry> variants = entries.get(key.getURI());
+        if (variants == null) {
+            variants = new HashMap<Vary, Entry>();
+            entries.put(key.getURI(), variants);
+        }
+        Entry previous = variants.put(key.getVary(), entry);
+        if (previous == null) {
+            size++;
+        }
+        else {
+            release(previous, entry);
+        }
+    }
+
+    private void remove(Key key) {
+        Map<Vary, Entry> variants = entries.get(key.getURI());
+        Entry previous = variants == null ? null : variants.remove(key.getVary());
+        if (previous != null) {
+            if (variants.isEmpty()) {
+                entries.remove(key.getURI());
+            }
+            size--;
+            release(previous, null);
+        }
+    }
+
+    /**
+     * Counts the records of the previous entry that the replacing entry no longer points to as garbage.
+     */
+    private void release(Entry previous, Entry replacement) {
+        release(previous.meta, replacement);
+        if (previous.body != null && !previous.body.isSameRecord(previous.meta)) {
+            release(previous.body, replacement);
+        }
+    }
+
+    private void release(Location location, Entry replacement) {
+        if (replacement != null && (location.isSameRecord(replacement.meta) || location.isSameRecord(replacement.body))) {
+            return;
+        }
+        Segment segment = segments.get(location.segment);
+        if (segment != null) {
+            segment.addGarbage(location.length());
+        }
+    }
+
+    private void rollIfFull() throws IOException {
+        if (active.length() >= segmentSize) {
+            active.seal();
+            active = Segment.create(directory, active.id + 1);
+            segments.put(active.id, active);
+        }
+    }
+
+    /**
+     * Loads the segments in order, keeping the record with the highest sequence number for each key.
+     * An update is only kept if the body it refers to is the latest body of its key.
+     */
+    private void load() throws IOException {
+        SortedSet<Integer> ids = new TreeSet<Integer>();
+        for (String name : directory.list()) {
+            int id = Segment.parseId(name);
+            if (id >= 0) {
+                ids.add(id);
+            }
+        }
+        Map<Key, Location[]> latest = new HashMap<Key, Location[]>();
+        for (int id : ids) {
+            Segment segment = Segment.open(directory, id);
+            if (segment.length() == 0) {
+                segment.delete();
+                continue;
+            }
+            segments.put(id, segment);
+            for (Segment.Record record : segment.records()) {
+                Location location = record.location;
+                sequence = Math.max(sequence, location.sequence);
+                Key key = decodeKey(record.key);
+                Location[] found = latest.get(key);
+                if (found == null) {
+                    found = new Location[2];
+                    latest.put(key, found);
+                }
+                if (found[0] == null || location.sequence >= found[0].sequence) {
+                    found[0] = location;
+                }
+                if (location.type == Segment.PUT && (found[1] == null || location.sequence >= found[1].sequence)) {
+                    found[1] = location;
+                }
+            }
+        }
+        Map<Integer, Long> live = new HashMap<Integer, Long>();
+        for (Map.Entry<Key, Location[]> found : latest.entrySet()) {
+            Location meta = found.getValue()[0];
+            Location body = found.getValue()[1];
+            Entry entry = null;
+            if (meta.type == Segment.PUT) {
+                entry = new Entry(meta, meta);
+            }
+            else if (meta.type == Segment.HEAD || (meta.type == Segment.UPDATE && meta.reference == -1)) {
+                entry = new Entry(meta, null);
+            }
+            else if (meta.type == Segment.UPDATE && body != null && body.sequence == meta.reference) {
+                entry = new Entry(meta, body);
+                addLive(live, body);
+            }
+            if (entry != null) {
+                addLive(live, meta);
+                replace(found.getKey(), entry);
+            }
+        }
+        for (Segment segment : segments.values()) {
+            Long bytes = live.get(segment.id);
+            segment.setGarbage(segment.length() - (bytes == null ? 0 : bytes));
+        }
+        active = Segment.create(directory, ids.isEmpty() ? 0 : ids.last() + 1);
+        segments.put(active.id, active);
+    }
+
+    private static void addLive(Map<Integer, Long> live, Location location) {
+        Long bytes = live.get(location.segment);
+        live.put(location.segment, (bytes == null ? 0 : bytes) + location.length());
+    }
+
+    private void publish(CacheEvent.Type type, Key key, HTTPResponse response) {
+        CacheEventListener listener = eventListener;
+        if (listener != null) {
+            listener.onEvent(new CacheEvent(type, key, CacheEvent.sizeOf(response)));
+        }
+    }
+
+    private static Entry get(Map<URI, Map<Vary, Entry>> entries, Key key) {
+        Map<Vary, Entry> variants = entries.get(key.getURI());
+        return variants == null ? null : variants.get(key.getVary());
+    }
+
+    private static byte[] encodeKey(Key key) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        try {
+            writeString(data, key.getURI().toString());
+            writeString(data, key.getVary().toString());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Key decodeKey(byte[] key) throws IOException {
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(key));
+        return Key.create(URI.create(readString(data)), Vary.parse(readString(data)));
+    }
+
+    private static byte[] encodeMeta(Status status, Headers headers, DateTime cachedTime, MIMEType mimeType) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        try {
+            data.writeInt(status.getCode());
+            data.writeLong(cachedTime.getMillis());
+            writeString(data, headers.toString());
+            writeString(data, mimeType == null ? "" : mimeType.toString());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream data, String value) throws IOException {
+        byte[] bytes = value.getBytes(Charsets.UTF_8);
+        data.writeInt(bytes.length);
+        data.write(bytes);
+    }
+
+    private static String readString(DataInputStream data) throws IOException {
+        byte[] bytes = new byte[data.readInt()];
+        data.readFully(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
+
+    /**
+     * The records holding the metadata and the body of a key. The body is {@code null} for responses without one.
+     */
+    private static final class Entry {
+        private final Location meta;
+        private final Location body;
+
+        private Entry(Location meta, Location body) {
+            this.meta = meta;
+            this.body = body;
+        }
+    }
+
+    private static final class Meta {
+        private final Status status;
+        private final Headers headers;
+        private final DateTime cachedTime;
+        private final MIMEType mimeType;
+
+        private Meta(Status status, Headers headers, DateTime cachedTime, MIMEType mimeType) {
+            this.status = status;
+            this.headers = headers;
+            this.cachedTime = cachedTime;
+            this.mimeType = mimeType;
+        }
+    }
+}
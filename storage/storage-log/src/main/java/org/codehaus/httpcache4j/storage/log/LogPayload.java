@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.storage.log;
+
+import org.codehaus.httpcache4j.MIMEType;
+import org.codehaus.httpcache4j.cache.Key;
+import org.codehaus.httpcache4j.payload.Payload;
+
+import java.io.InputStream;
+
+/**
+ * A body stored in the log. The body is found again if compaction has moved it.
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+class LogPayload implements Payload {
+    private final LogCacheStorage storage;
+    private final Key key;
+    private final Location location;
+    private final MIMEType mimeType;
+
+    LogPayload(LogCacheStorage storage, Key key, Location location, MIMEType mimeType) {
+        this.storage = storage;
+        this.key = key;
+        this.location = location;
+        this.mimeType = mimeType;
+    }
+
+    public MIMEType getMimeType() {
+        return mimeType;
+    }
+
+    public InputStream getInputStream() {
+        return storage.open(key, location);
+    }
+
+    public long length() {
+        return location.bodyLength;
+    }
+
+    public boolean isAvailable() {
+        return storage.isStored(key, location);
+    }
+}
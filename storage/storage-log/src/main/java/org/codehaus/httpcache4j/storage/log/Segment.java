@@ -0,0 +1,355 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.storage.log;
+
+import com.google.common.io.Closeables;
+import com.google.common.io.Files;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * One file of the log. Records are only ever appended, and a segment is not written to after it is sealed.
+ * <p/>
+ * A record is a header followed by the key, the metadata and the body.
+ * The header holds a CRC32 checksum of the rest of the record, the type, the sequence number,
+ * the sequence number of the record holding the body of an {@link #UPDATE}, and the three lengths.
+ * <p/>
+ * A sealed segment has a hint file listing the headers and keys of its records, so that it can be loaded
+ * without reading the bodies.
+ *
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+final class Segment {
+    static final int HEADER_SIZE = 4 + 1 + 8 + 8 + 4 + 4 + 8;
+
+    /** Metadata and body. */
+    static final byte PUT = 'P';
+    /** Metadata of a response without a body. */
+    static final byte HEAD = 'H';
+    /** New metadata for the body of an earlier record. */
+    static final byte UPDATE = 'U';
+    /** The key is no longer stored. */
+    static final byte TOMBSTONE = 'T';
+
+    private final Logger logger = Logger.getLogger(getClass().getName());
+    final int id;
+    final File file;
+    private final File hintFile;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private long length;
+    private long garbage;
+    private ByteArrayOutputStream hints;
+
+    private Segment(File directory, int id) throws IOException {
+        this.id = id;
+        this.file = new File(directory, String.format("%010d.log", id));
+        this.hintFile = new File(directory, String.format("%010d.hint", id));
+        this.raf = new RandomAccessFile(file, "rw");
+        this.channel = raf.getChannel();
+        this.length = channel.size();
+    }
+
+    /**
+     * Opens an existing segment.
+     */
+    static Segment open(File directory, int id) throws IOException {
+        return new Segment(directory, id);
+    }
+
+    /**
+     * Creates a new segment, which may be appended to until it is sealed.
+     */
+    static Segment create(File directory, int id) throws IOException {
+        Segment segment = new Segment(directory, id);
+        segment.hints = new ByteArrayOutputStream();
+        return segment;
+    }
+
+    /**
+     * @return the id of the given segment file, or {@code -1} if it is not a segment file.
+     */
+    static int parseId(String fileName) {
+        if (fileName.matches("\\d{10}\\.log")) {
+            return Integer.parseInt(fileName.substring(0, 10));
+        }
+        return -1;
+    }
+
+    long length() {
+        return length;
+    }
+
+    long garbage() {
+        return garbage;
+    }
+
+    void addGarbage(long bytes) {
+        garbage += bytes;
+    }
+
+    void setGarbage(long bytes) {
+        garbage = bytes;
+    }
+
+    Location append(byte type, long sequence, long reference, byte[] key, byte[] meta, InputStream body) throws IOException {
+        long start = length;
+        long position = start + HEADER_SIZE;
+        CRC32 crc = new CRC32();
+        try {
+            position += write(key, key.length, position, crc);
+            position += write(meta, meta.length, position, crc);
+            long bodyLength = 0;
+            if (body != null) {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = body.read(buffer)) != -1) {
+                    position += write(buffer, read, position, crc);
+                    bodyLength += read;
+                }
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(0).put(type).putLong(sequence).putLong(reference).putInt(key.length).putInt(meta.length).putLong(bodyLength);
+            crc.update(header.array(), 4, HEADER_SIZE - 4);
+            header.putInt(0, (int) crc.getValue());
+            write(header.array(), HEADER_SIZE, start, null);
+            length = position;
+            Location location = new Location(id, start, type, sequence, reference, key.length, meta.length, bodyLength);
+            hint(location, key);
+            return location;
+        } catch (IOException e) {
+            channel.truncate(start);
+            throw e;
+        }
+    }
+
+    /**
+     * Copies a record from another segment as is.
+     */
+    Location copy(Segment from, Location location, byte[] key) throws IOException {
+        long start = length;
+        long transferred = 0;
+        try {
+            channel.position(start);
+            while (transferred < location.length()) {
+                long count = from.channel.transferTo(location.offset + transferred, location.length() - transferred, channel);
+                if (count <= 0) {
+                    throw new EOFException("Record at " + location.offset + " in " + from.file + " is truncated");
+                }
+                transferred += count;
+            }
+        } catch (IOException e) {
+            channel.truncate(start);
+            throw e;
+        }
+        length = start + transferred;
+        Location copy = location.moveTo(id, start);
+        hint(copy, key);
+        return copy;
+    }
+
+    private int write(byte[] bytes, int count, long position, CRC32 crc) throws IOException {
+        if (crc != null) {
+            crc.update(bytes, 0, count);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, count);
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        return count;
+    }
+
+    byte[] read(long position, int count) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(count);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of " + file);
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Returns the records of this segment, from the hint file if there is a valid one.
+     * Otherwise the segment is read and verified, a torn record at the end is truncated, and the hint file is written.
+     */
+    List<Record> records() throws IOException {
+        List<Record> records = readHints();
+        if (records == null) {
+            records = scan();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(bytes);
+            for (Record record : records) {
+                writeHint(data, record.location, record.key);
+            }
+            writeHints(bytes);
+        }
+        return records;
+    }
+
+    /**
+     * Makes the records durable, and writes the hint file. The segment is not appended to after this.
+     */
+    void seal() throws IOException {
+        if (hints != null) {
+            channel.force(false);
+            writeHints(hints);
+            hints = null;
+        }
+    }
+
+    void close() {
+        Closeables.closeQuietly(raf);
+    }
+
+    void delete() {
+        close();
+        file.delete();
+        hintFile.delete();
+    }
+
+    private void hint(Location location, byte[] key) throws IOException {
+        if (hints != null) {
+            writeHint(new DataOutputStream(hints), location, key);
+        }
+    }
+
+    private static void writeHint(DataOutputStream data, Location location, byte[] key) throws IOException {
+        data.writeByte(location.type);
+        data.writeLong(location.sequence);
+        data.writeLong(location.reference);
+        data.writeLong(location.offset);
+        data.writeInt(location.keyLength);
+        data.writeInt(location.metaLength);
+        data.writeLong(location.bodyLength);
+        data.write(key);
+    }
+
+    private void writeHints(ByteArrayOutputStream bytes) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] content = bytes.toByteArray();
+        crc.update(content);
+        File temporary = new File(hintFile.getParentFile(), hintFile.getName() + ".tmp");
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+        try {
+            output.write(content);
+            output.writeInt((int) crc.getValue());
+        } finally {
+            output.close();
+        }
+        hintFile.delete();
+        if (!temporary.renameTo(hintFile)) {
+            temporary.delete();
+        }
+    }
+
+    private List<Record> readHints() throws IOException {
+        if (!hintFile.exists()) {
+            return null;
+        }
+        byte[] content = Files.toByteArray(hintFile);
+        if (content.length < 4) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(content, 0, content.length - 4);
+        if ((int) crc.getValue() != ByteBuffer.wrap(content, content.length - 4, 4).getInt()) {
+            logger.warning("Ignoring corrupt hint file " + hintFile);
+            return null;
+        }
+        List<Record> records = new ArrayList<Record>();
+        ByteBuffer data = ByteBuffer.wrap(content, 0, content.length - 4);
+        while (data.hasRemaining()) {
+            byte type = data.get();
+            long sequence = data.getLong();
+            long reference = data.getLong();
+            long offset = data.getLong();
+            int keyLength = data.getInt();
+            int metaLength = data.getInt();
+            long bodyLength = data.getLong();
+            byte[] key = new byte[keyLength];
+            data.get(key);
+            records.add(new Record(new Location(id, offset, type, sequence, reference, keyLength, metaLength, bodyLength), key));
+        }
+        return records;
+    }
+
+    private List<Record> scan() throws IOException {
+        List<Record> records = new ArrayList<Record>();
+        long position = 0;
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+        try {
+            byte[] header = new byte[HEADER_SIZE];
+            byte[] buffer = new byte[8192];
+            while (position + HEADER_SIZE <= length) {
+                input.readFully(header);
+                ByteBuffer fields = ByteBuffer.wrap(header);
+                int checksum = fields.getInt();
+                Location location = new Location(id, position, fields.get(), fields.getLong(), fields.getLong(), fields.getInt(), fields.getInt(), fields.getLong());
+                if (location.keyLength < 0 || location.metaLength < 0 || location.bodyLength < 0 || position + location.length() > length) {
+                    break;
+                }
+                CRC32 crc = new CRC32();
+                byte[] key = new byte[location.keyLength];
+                input.readFully(key);
+                crc.update(key);
+                update(crc, input, location.metaLength + location.bodyLength, buffer);
+                crc.update(header, 4, HEADER_SIZE - 4);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                records.add(new Record(location, key));
+                position += location.length();
+            }
+        } catch (EOFException ignore) {
+        } finally {
+            Closeables.closeQuietly(input);
+        }
+        if (position < length) {
+            logger.warning(String.format("Truncating %s at %d, the record there is incomplete", file, position));
+            channel.truncate(position);
+            length = position;
+        }
+        return records;
+    }
+
+    private static void update(CRC32 crc, InputStream input, long count, byte[] buffer) throws IOException {
+        while (count > 0) {
+            int read = input.read(buffer, 0, (int) Math.min(buffer.length, count));
+            if (read < 0) {
+                throw new EOFException();
+            }
+            crc.update(buffer, 0, read);
+            count -= read;
+        }
+    }
+
+    static final class Record {
+        final Location location;
+        final byte[] key;
+
+        Record(Location location, byte[] key) {
+            this.location = location;
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.storage.log;
+
+import com.google.common.io.Files;
+import org.codehaus.httpcache4j.cache.CacheStorage;
+import org.codehaus.httpcache4j.cache.ConcurrentCacheStorageAbstractTest;
+import org.codehaus.httpcache4j.util.DeletingFileFilter;
+import org.junit.After;
+
+import java.io.File;
+
+/**
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public class ConcurrentLogCacheStorageTest extends ConcurrentCacheStorageAbstractTest {
+    private final File directory = Files.createTempDir();
+
+    @Override
+    protected CacheStorage createCacheStorage() {
+        return new LogCacheStorage(directory, 64 * 1024, 0.5, LogCacheStorage.DEFAULT_COMPACTION_INTERVAL);
+    }
+
+    @Override
+    @After
+    public void tearDown() {
+        super.tearDown();
+        cacheStorage.shutdown();
+        directory.listFiles(new DeletingFileFilter());
+        directory.delete();
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2012. The Codehaus. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.codehaus.httpcache4j.storage.log;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import org.codehaus.httpcache4j.*;
+import org.codehaus.httpcache4j.cache.CacheItem;
+import org.codehaus.httpcache4j.cache.CacheStorage;
+import org.codehaus.httpcache4j.cache.CacheStorageAbstractTest;
+import org.codehaus.httpcache4j.payload.InputStreamPayload;
+import org.codehaus.httpcache4j.util.DeletingFileFilter;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author <a href="mailto:hamnis@codehaus.org">Erlend Hamnaberg</a>
+ */
+public class LogCacheStorageTest extends CacheStorageAbstractTest {
+    private final File directory = Files.createTempDir();
+
+    @Override
+    protected CacheStorage createCacheStorage() {
+        return new LogCacheStorage(directory, 4096, 0.5, 0);
+    }
+
+    @Override
+    protected void afterTest() {
+        storage.shutdown();
+        directory.listFiles(new DeletingFileFilter());
+        directory.delete();
+    }
+
+    @Test
+    public void bodyIsReadFromTheLog() throws IOException {
+        storage.insert(request(0), response(1000, '0'));
+        CacheItem item = storage.get(request(0));
+        assertArrayEquals(body(1000, '0'), read(item));
+        assertEquals(1000, item.getResponse().getPayload().length());
+    }
+
+    @Test
+    public void updateKeepsTheBody() throws IOException {
+        storage.insert(request(0), response(100, '0'));
+        Headers headers = new Headers().add(HeaderConstants.ETAG, "\"updated\"");
+        HTTPResponse updated = storage.update(request(0), new HTTPResponse(null, Status.NOT_MODIFIED, headers));
+        assertEquals(Status.OK, updated.getStatus());
+        CacheItem item = storage.get(request(0));
+        assertEquals("\"updated\"", item.getResponse().getHeaders().getFirstHeaderValue(HeaderConstants.ETAG));
+        assertArrayEquals(body(100, '0'), read(item));
+    }
+
+    @Test
+    public void recoversTheKeysOnRestart() throws IOException {
+        for (int i = 0; i < 10; i++) {
+            storage.insert(request(i), response(1000, (char) ('0' + i)));
+        }
+        storage.invalidate(request(3).getNormalizedURI());
+        storage.update(request(5), new HTTPResponse(null, Status.NOT_MODIFIED, new Headers().add(HeaderConstants.ETAG, "\"5\"")));
+        storage.shutdown();
+
+        storage = new LogCacheStorage(directory, 4096, 0.5, 0);
+        assertRecovered();
+    }
+
+    @Test
+    public void recoversWithoutHintFilesAndTruncatesATornRecord() throws IOException {
+        for (int i = 0; i < 10; i++) {
+            storage.insert(request(i), response(1000, (char) ('0' + i)));
+        }
+        storage.invalidate(request(3).getNormalizedURI());
+        storage.update(request(5), new HTTPResponse(null, Status.NOT_MODIFIED, new Headers().add(HeaderConstants.ETAG, "\"5\"")));
+        storage.shutdown();
+        File[] segments = directory.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                if (file.getName().endsWith(".hint")) {
+                    file.delete();
+                }
+                return file.getName().endsWith(".log");
+            }
+        });
+        Arrays.sort(segments);
+        Files.append("torn record", segments[segments.length - 1], Charsets.US_ASCII);
+
+        storage = new LogCacheStorage(directory, 4096, 0.5, 0);
+        assertRecovered();
+    }
+
+    @Test
+    public void compactionCopiesLiveRecordsAndDeletesSegments() throws IOException {
+        storage.insert(request(1), response(1000, 'a'));
+        for (int i = 0; i < 20; i++) {
+            storage.insert(request(0), response(1000, (char) ('a' + i)));
+        }
+        storage.invalidate(request(1).getNormalizedURI());
+        CacheItem before = storage.get(request(0));
+        LogCacheStorage log = (LogCacheStorage) storage;
+        int segments = log.getSegmentCount();
+
+        log.compact();
+        assertTrue(log.getSegmentCount() < segments);
+        log.compact();
+        assertArrayEquals(body(1000, 't'), read(before));
+        assertEquals(1, storage.size());
+        storage.shutdown();
+
+        storage = new LogCacheStorage(directory, 4096, 0.5, 0);
+        assertEquals(1, storage.size());
+        assertNull(storage.get(request(1)));
+        assertArrayEquals(body(1000, 't'), read(storage.get(request(0))));
+    }
+
+    @Test
+    public void tombstonesOutliveCompactedSegmentsWhichAreNotYetDeleted() throws IOException {
+        storage.insert(request(1), response(1000, 'a'));
+        for (int i = 0; i < 20; i++) {
+            storage.insert(request(0), response(1000, (char) ('a' + i)));
+        }
+        storage.invalidate(request(1).getNormalizedURI());
+        for (int i = 0; i < 10; i++) {
+            storage.insert(request(0), response(1000, (char) ('k' + i)));
+        }
+        LogCacheStorage log = (LogCacheStorage) storage;
+        log.compact();
+        List<File> retired = log.getRetiredFiles();
+        assertTrue(retired.size() > 1);
+        // A crash while deleting the compacted segments leaves the oldest one behind.
+        for (File file : retired.subList(1, retired.size())) {
+            assertTrue(file.delete());
+            new File(directory, file.getName().replace(".log", ".hint")).delete();
+        }
+
+        storage = new LogCacheStorage(directory, 4096, 0.5, 0);
+        assertNull(storage.get(request(1)));
+        assertArrayEquals(body(1000, 't'), read(storage.get(request(0))));
+    }
+
+    @Test
+    public void readsAreNotBlockedWhileABodyIsAppended() throws Exception {
+        storage.insert(request(0), response(100, '0'));
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        InputStream slow = new ByteArrayInputStream(body(100, '1')) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                reading.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.read(b, off, len);
+            }
+        };
+        final HTTPResponse response = new HTTPResponse(new InputStreamPayload(slow, MIMEType.APPLICATION_OCTET_STREAM), Status.OK, new Headers());
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                storage.insert(request(1), response);
+            }
+        };
+        writer.start();
+        try {
+            assertTrue(reading.await(5, TimeUnit.SECONDS));
+            assertArrayEquals(body(100, '0'), read(storage.get(request(0))));
+            assertNull(storage.get(request(1)));
+        } finally {
+            release.countDown();
+            writer.join();
+        }
+        assertArrayEquals(body(100, '1'), read(storage.get(request(1))));
+    }
+
+    private void assertRecovered() throws IOException {
+        assertEquals(9, storage.size());
+        assertNull(storage.get(request(3)));
+        for (int i : new int[]{0, 5, 9}) {
+            assertArrayEquals(body(1000, (char) ('0' + i)), read(storage.get(request(i))));
+        }
+        assertEquals("\"5\"", storage.get(request(5)).getResponse().getHeaders().getFirstHeaderValue(HeaderConstants.ETAG));
+    }
+
+    private static HTTPRequest request(int i) {
+        return new HTTPRequest(URI.create("http://example.com/log/" + i));
+    }
+
+    private static HTTPResponse response(int length, char content) {
+        return new HTTPResponse(new InputStreamPayload(new ByteArrayInputStream(body(length, content)), MIMEType.APPLICATION_OCTET_STREAM), Status.OK, new Headers());
+    }
+
+    private static byte[] body(int length, char content) {
+        byte[] body = new byte[length];
+        Arrays.fill(body, (byte) content);
+        return body;
+    }
+
+    private static byte[] read(CacheItem item) throws IOException {
+        InputStream stream = item.getResponse().getPayload().getInputStream();
+        try {
+            return ByteStreams.toByteArray(stream);
+        } finally {
+            stream.close();
+        }
+    }
+}